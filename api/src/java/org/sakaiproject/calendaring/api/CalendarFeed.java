@@ -0,0 +1,49 @@
+/*
+* Licensed to The Apereo Foundation under one or more contributor license
+* agreements. See the NOTICE file distributed with this work for
+* additional information regarding copyright ownership.
+*
+* The Apereo Foundation licenses this file to you under the Educational 
+* Community License, Version 2.0 (the "License"); you may not use this file 
+* except in compliance with the License. You may obtain a copy of the 
+* License at:
+*
+* http://opensource.org/licenses/ecl2.txt
+* 
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package org.sakaiproject.calendaring.api;
+
+import net.fortuna.ical4j.model.Calendar;
+
+/**
+ * A calendar that clients subscribe to over HTTP.
+ * <p>
+ * Clients poll feeds every few minutes, so the version of a feed must be cheap to get. The calendar itself is only asked for
+ * when the client doesn't already have the current version.
+ */
+public interface CalendarFeed {
+
+	/**
+	 * Get a tag that changes whenever the content of the feed changes, for example a hash of the event ids and versions
+	 * @return the tag, or null if there isn't one
+	 */
+	public String getETag();
+	
+	/**
+	 * Get the time the content of the feed last changed
+	 * @return millis since the epoch, or 0 if not known
+	 */
+	public long getLastModified();
+	
+	/**
+	 * Build the calendar for the feed
+	 * @return the calendar or null if there was an error
+	 */
+	public Calendar getCalendar();
+}
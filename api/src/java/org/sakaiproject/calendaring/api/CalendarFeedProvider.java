@@ -0,0 +1,45 @@
+/*
+* Licensed to The Apereo Foundation under one or more contributor license
+* agreements. See the NOTICE file distributed with this work for
+* additional information regarding copyright ownership.
+*
+* The Apereo Foundation licenses this file to you under the Educational 
+* Community License, Version 2.0 (the "License"); you may not use this file 
+* except in compliance with the License. You may obtain a copy of the 
+* License at:
+*
+* http://opensource.org/licenses/ecl2.txt
+* 
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package org.sakaiproject.calendaring.api;
+
+import java.util.Collection;
+
+/**
+ * Provides the calendar feeds served by the calendar feed servlet.
+ * <p>
+ * Register an implementation as a component named <code>org.sakaiproject.calendaring.api.CalendarFeedProvider</code>.
+ * Feed ids are part of the subscription URL, so a provider that serves private calendars should use ids that can't be guessed.
+ */
+public interface CalendarFeedProvider {
+
+	/**
+	 * Get a feed
+	 * @param feedId the id of the feed, from the request path
+	 * @return the feed or null if there isn't one with that id
+	 */
+	public CalendarFeed getFeed(String feedId);
+	
+	/**
+	 * Get the feeds that include the events of a Sakai calendar, so they can be refreshed when the calendar changes
+	 * @param calendarReference the reference of the calendar, eg /calendar/calendar/{siteId}/main
+	 * @return the feed ids, never null
+	 */
+	public Collection<String> getFeedIds(String calendarReference);
+}
@@ -0,0 +1,142 @@
+/*
+* Licensed to The Apereo Foundation under one or more contributor license
+* agreements. See the NOTICE file distributed with this work for
+* additional information regarding copyright ownership.
+*
+* The Apereo Foundation licenses this file to you under the Educational 
+* Community License, Version 2.0 (the "License"); you may not use this file 
+* except in compliance with the License. You may obtain a copy of the 
+* License at:
+*
+* http://opensource.org/licenses/ecl2.txt
+* 
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package org.sakaiproject.calendaring.api;
+
+/**
+ * Options for {@link ExternalCalendaringService#createCalendarForEvents(java.util.List, CalendarOptions)}, to keep feeds to a sensible size.
+ * <p>
+ * By default there is no method, no time window and no limits.
+ */
+public class CalendarOptions {
+
+	/**
+	 * Extra calendar properties added when events had to be left out because of the limits
+	 */
+	public static final String X_TRUNCATED = "X-SAKAI-TRUNCATED";
+	public static final String X_OMITTED_EVENTS = "X-SAKAI-OMITTED-EVENTS";
+	
+	private String method;
+	private Integer daysBefore;
+	private Integer daysAfter;
+	private int maxEvents;
+	private long maxBytes;
+	private int maxEventsPerFile;
+	private long maxBytesPerFile;
+	
+	/**
+	 * Create options for a rolling window around now, eg 30 days before and 365 days after.
+	 * @param daysBefore
+	 * @param daysAfter
+	 * @return
+	 */
+	public static CalendarOptions window(int daysBefore, int daysAfter) {
+		CalendarOptions options = new CalendarOptions();
+		options.setDaysBefore(daysBefore);
+		options.setDaysAfter(daysAfter);
+		return options;
+	}
+	
+	/**
+	 * The iTIP method of the calendar, eg REQUEST. Feeds usually have none.
+	 * @return the method or null
+	 */
+	public String getMethod() {
+		return method;
+	}
+
+	public void setMethod(String method) {
+		this.method = method;
+	}
+
+	/**
+	 * Events that finished more than this many days ago are left out
+	 * @return the number of days, or null for no limit
+	 */
+	public Integer getDaysBefore() {
+		return daysBefore;
+	}
+
+	public void setDaysBefore(Integer daysBefore) {
+		this.daysBefore = daysBefore;
+	}
+
+	/**
+	 * Events that start more than this many days from now are left out
+	 * @return the number of days, or null for no limit
+	 */
+	public Integer getDaysAfter() {
+		return daysAfter;
+	}
+
+	public void setDaysAfter(Integer daysAfter) {
+		this.daysAfter = daysAfter;
+	}
+
+	/**
+	 * The most events to include, in the order they are given
+	 * @return the number of events, or 0 for no limit
+	 */
+	public int getMaxEvents() {
+		return maxEvents;
+	}
+
+	public void setMaxEvents(int maxEvents) {
+		this.maxEvents = maxEvents;
+	}
+
+	/**
+	 * The approximate size the events in the calendar may add up to before the rest are left out. This is in characters,
+	 * estimated from the lengths of each event's fields plus an allowance for the rest of it, so the calendar as written may be
+	 * somewhat larger or smaller, and larger still in bytes if it has non-ASCII text.
+	 * @return the number of characters, or 0 for no limit
+	 */
+	public long getMaxBytes() {
+		return maxBytes;
+	}
+
+	public void setMaxBytes(long maxBytes) {
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * When a calendar is split into several files, the most events to put in each one.
+	 * See {@link ExternalCalendaringService#toFiles(java.util.Iterator, java.util.Collection, CalendarOptions)}
+	 * @return the number of events, or 0 for no limit
+	 */
+	public int getMaxEventsPerFile() {
+		return maxEventsPerFile;
+	}
+
+	public void setMaxEventsPerFile(int maxEventsPerFile) {
+		this.maxEventsPerFile = maxEventsPerFile;
+	}
+
+	/**
+	 * When a calendar is split into several files, the largest each file may be in bytes. A single event larger than this gets a file of its own.
+	 * @return the number of bytes, or 0 for no limit
+	 */
+	public long getMaxBytesPerFile() {
+		return maxBytesPerFile;
+	}
+
+	public void setMaxBytesPerFile(long maxBytesPerFile) {
+		this.maxBytesPerFile = maxBytesPerFile;
+	}
+}
@@ -0,0 +1,59 @@
+/*
+* Licensed to The Apereo Foundation under one or more contributor license
+* agreements. See the NOTICE file distributed with this work for
+* additional information regarding copyright ownership.
+*
+* The Apereo Foundation licenses this file to you under the Educational 
+* Community License, Version 2.0 (the "License"); you may not use this file 
+* except in compliance with the License. You may obtain a copy of the 
+* License at:
+*
+* http://opensource.org/licenses/ecl2.txt
+* 
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package org.sakaiproject.calendaring.api;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import net.fortuna.ical4j.model.Calendar;
+
+/**
+ * A calendar of many events held in a compact form, for large exports.
+ * <p>
+ * The events are written straight out as iCalendar without building a {@link Calendar}, which would take many times the memory.
+ * A Calendar is only built if asked for.
+ */
+public interface CompactCalendar {
+
+	/**
+	 * Get the number of events in the calendar
+	 * @return
+	 */
+	public int size();
+	
+	/**
+	 * Get the number of events that were left out because a limit was reached
+	 * @return
+	 */
+	public int getOmitted();
+	
+	/**
+	 * Write the calendar as iCalendar to the given stream. The stream is flushed but not closed.
+	 * @param out
+	 * @throws IOException
+	 */
+	public void write(OutputStream out) throws IOException;
+	
+	/**
+	 * Build an iCal Calendar with the same content
+	 * @return the Calendar
+	 */
+	public Calendar toCalendar();
+}
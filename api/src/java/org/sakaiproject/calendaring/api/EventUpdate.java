@@ -0,0 +1,98 @@
+/*
+* Licensed to The Apereo Foundation under one or more contributor license
+* agreements. See the NOTICE file distributed with this work for
+* additional information regarding copyright ownership.
+*
+* The Apereo Foundation licenses this file to you under the Educational 
+* Community License, Version 2.0 (the "License"); you may not use this file 
+* except in compliance with the License. You may obtain a copy of the 
+* License at:
+*
+* http://opensource.org/licenses/ecl2.txt
+* 
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.sakaiproject.calendaring.api;
+
+import net.fortuna.ical4j.model.component.VEvent;
+
+import org.sakaiproject.calendar.api.CalendarEvent;
+
+/**
+ * The result of {@link ExternalCalendaringService#createEventUpdate(CalendarEvent, java.util.List)}.
+ * <p>
+ * Either the event has changed since it was last sent and {@link #getEvent()} is the VEvent to send,
+ * or it hasn't and there is nothing to send. Once the VEvent has actually been sent, pass the update to
+ * {@link ExternalCalendaringService#markSent(EventUpdate)}. Until then the event is not considered sent,
+ * so if sending fails the next update for it is built again.
+ */
+public class EventUpdate {
+
+	private final String uid;
+	private final int sequence;
+	private final VEvent event;
+	private final Object state;
+	
+	/**
+	 * @param uid the UID of the event, may be null if the event doesn't have a stable one
+	 * @param sequence the sequence of the update, or of the last one sent if unchanged
+	 * @param event the VEvent to send, or null if the event is unchanged
+	 * @param state what the service needs to remember once the update is sent
+	 */
+	public EventUpdate(String uid, int sequence, VEvent event, Object state) {
+		this.uid = uid;
+		this.sequence = sequence;
+		this.event = event;
+		this.state = state;
+	}
+	
+	/**
+	 * An update for an event that hasn't changed since it was last sent
+	 * @param uid
+	 * @param sequence the sequence that was last sent
+	 * @return
+	 */
+	public static EventUpdate unchanged(String uid, int sequence) {
+		return new EventUpdate(uid, sequence, null, null);
+	}
+	
+	/**
+	 * Has the event changed since it was last sent?
+	 * @return true if there is a VEvent to send
+	 */
+	public boolean isChanged() {
+		return event != null;
+	}
+
+	public String getUid() {
+		return uid;
+	}
+
+	public int getSequence() {
+		return sequence;
+	}
+
+	/**
+	 * @return the VEvent to send, or null if the event is unchanged
+	 */
+	public VEvent getEvent() {
+		return event;
+	}
+	
+	/**
+	 * Opaque to callers, only the service that created the update uses it.
+	 * @return
+	 */
+	public Object getState() {
+		return state;
+	}
+	
+	@Override
+	public String toString() {
+		return "EventUpdate[uid=" + uid + ", sequence=" + sequence + ", changed=" + isChanged() + "]";
+	}
+}
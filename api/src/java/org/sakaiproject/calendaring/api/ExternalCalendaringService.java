@@ -19,7 +19,14 @@
 
 package org.sakaiproject.calendaring.api;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Collection;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+
+import javax.activation.DataSource;
 
 import net.fortuna.ical4j.model.Calendar;
 import net.fortuna.ical4j.model.component.VEvent;
@@ -66,10 +73,47 @@ public interface ExternalCalendaringService {
 	 */
 	public VEvent createEvent(CalendarEvent event, List<User> attendees);
 	
+	/**
+	 * Creates an iCal VEvent for a Sakai CalendarEvent with the given attendees, identified by their user ids.
+	 * The organiser and all attendees are looked up in a single call to the user directory, so this is the better choice for large invitations.
+	 * 
+	 * <br>The 'vevent_uuid', 'vevent_sequence' and 'vevent_url' fields are used in the same way as {@link #createEvent(CalendarEvent, List)}.
+	 * 
+	 * @param event Sakai CalendarEvent
+	 * @param attendeeIds ids of the users that have been invited to the event
+	 * @return the VEvent for the given event or null if there was an error
+	 */
+	public VEvent createEventWithAttendeeIds(CalendarEvent event, Collection<String> attendeeIds);
+	
+	/**
+	 * Creates an iCal VEvent for a Sakai CalendarEvent that has changed, to be sent as an update to an earlier invitation.
+	 * The state of each event marked as sent via {@link #markSent(EventUpdate)} is remembered by UID, so that unchanged events
+	 * are not resent and each update carries the next sequence number.
+	 * 
+	 * <br>The UID is taken from the 'vevent_uuid' field or the event id, as for {@link #createEvent(CalendarEvent, List)}.
+	 * <br>If the CalendarEvent has the field 'vevent_sequence', the sequence will be at least that.
+	 * 
+	 * @param event Sakai CalendarEvent
+	 * @param attendees list of Users that have been invited to the event
+	 * @return the update, which says whether anything has changed since the event was last sent, or null if there was an error
+	 */
+	public EventUpdate createEventUpdate(CalendarEvent event, List<User> attendees);
+	
+	/**
+	 * Remember that an update has been sent, so the next update for the same event is only sent if it has changed again.
+	 * Call this only once the VEvent has actually been sent; if sending fails, don't, and the update will be built again next time.
+	 * <br>Marking an update that is unchanged, or older than one already marked, does nothing.
+	 * 
+	 * @param update from {@link #createEventUpdate(CalendarEvent, List)}
+	 */
+	public void markSent(EventUpdate update);
+	
 	/**
 	 * Adds a list of attendees to an existing VEvent.
 	 * This must then be turned into a Calendar before it can be turned into an ICS file. 
 	 * 
+	 * <br>Each event gets its own ATTENDEE properties, so PARTSTAT, ROLE etc. can be changed on the returned event without affecting any other.
+	 * 
 	 * @param vevent  The VEvent to add the attendess too
 	 * @param attendees list of Users that have been invited to the event
 	 * @return the VEvent for the given event or null if there was an error
@@ -95,6 +139,69 @@ public interface ExternalCalendaringService {
 	 */
 	public VEvent cancelEvent(VEvent vevent);
 	
+	/**
+	 * Cancels many VEvents at once and puts them all in a single calendar with the CANCEL method.
+	 * Each VEvent is updated as per {@link #cancelEvent(VEvent)}. Only the properties a cancellation requires are checked,
+	 * the events are not validated in full. Events without a UID or ORGANIZER are skipped.
+	 * 
+	 * @param events the VEvents to cancel
+	 * @return the CANCEL Calendar, or null if there were no events that could be cancelled
+	 */
+	public Calendar createCancelCalendar(List<VEvent> events);
+	
+	/**
+	 * Cancels many events by UID and puts them all in a single calendar with the CANCEL method.
+	 * Only events previously sent via {@link #createEventUpdate(CalendarEvent, List)} are known by UID;
+	 * each is cancelled with the next sequence after the one last sent, and then forgotten.
+	 * 
+	 * @param uids UIDs of the events to cancel
+	 * @return the CANCEL Calendar, or null if none of the events could be cancelled
+	 */
+	public Calendar createCancelCalendarForUids(Collection<String> uids);
+	
+	/**
+	 * Creates an iCal calendar for a list of Sakai CalendarEvents, for example for a subscription feed, without attendees.
+	 * 
+	 * <br>Events outside of the time window in the options are skipped without being built.
+	 * <br>Once the maximum number of events, or the approximate maximum size in characters, is reached, the remaining events are left out and the calendar is marked with
+	 * {@link CalendarOptions#X_TRUNCATED} and {@link CalendarOptions#X_OMITTED_EVENTS}.
+	 * 
+	 * @param events Sakai CalendarEvents
+	 * @param options the method, time window and limits
+	 * @return the Calendar or null if there were no events in the window or there was an error
+	 */
+	public Calendar createCalendarForEvents(List<CalendarEvent> events, CalendarOptions options);
+	
+	/**
+	 * Creates a calendar for a list of Sakai CalendarEvents in a compact form, for exports of many thousands of events.
+	 * It takes far less memory than {@link #createCalendarForEvents(List, CalendarOptions)} and can be written straight out,
+	 * see {@link CompactCalendar}.
+	 * 
+	 * <br>The options are applied in the same way as for {@link #createCalendarForEvents(List, CalendarOptions)}.
+	 * 
+	 * @param events Sakai CalendarEvents
+	 * @param attendeeIds ids of users to add to every event as required participants, or null for none
+	 * @param options the method, time window and limits
+	 * @return the CompactCalendar or null if there were no events in the window or there was an error
+	 */
+	public CompactCalendar createCompactCalendar(List<CalendarEvent> events, Collection<String> attendeeIds, CalendarOptions options);
+	
+	/**
+	 * Writes a calendar of Sakai CalendarEvents to the stream as they are read, so memory use stays the same however many events there are.
+	 * The calendar header is written first, then the events in batches, then the end of the calendar.
+	 * 
+	 * <br>The time window and limits in the options are applied as for {@link #createCalendarForEvents(List, CalendarOptions)},
+	 * but as the header has already been written the calendar can't be marked as truncated. It may have no events at all.
+	 * 
+	 * @param events Sakai CalendarEvents, read once
+	 * @param attendeeIds ids of users to add to every event as required participants, or null for none
+	 * @param options the method, time window and limits
+	 * @param out the stream to write to, flushed but not closed
+	 * @return the number of events written
+	 * @throws IOException if the stream could not be written to, or the service is disabled
+	 */
+	public int streamCalendar(Iterator<CalendarEvent> events, Collection<String> attendeeIds, CalendarOptions options, OutputStream out) throws IOException;
+	
 	/**
 	 * Creates an iCal calendar from a list of VEvents.
 	 * 
@@ -119,6 +226,81 @@ public interface ExternalCalendaringService {
 	 */
 	public String toFile(Calendar calendar);
 	
+	/**
+	 * Write a calendar of Sakai CalendarEvents out to several files in the filesystem, for clients and mail gateways that reject large files.
+	 * Each file is a complete calendar with its own header and VTIMEZONE, and holds no more than the per file limits in the options.
+	 * 
+	 * <br>The events are read and written in a single pass, as for {@link #streamCalendar(Iterator, Collection, CalendarOptions, OutputStream)},
+	 * with the same time window and maximum number of events.
+	 * 
+	 * @param events Sakai CalendarEvents, read once
+	 * @param attendeeIds ids of users to add to every event as required participants, or null for none
+	 * @param options the method, time window and per file limits
+	 * @return the paths to the files, in order, or null if there was an error
+	 */
+	public List<String> toFiles(Iterator<CalendarEvent> events, Collection<String> attendeeIds, CalendarOptions options);
+	
+	/**
+	 * Write many calendars, e.g. everyone's personal schedule, as ICS entries in a single zip, in one pass with no intermediate files.
+	 * Each calendar is written as for {@link #streamCalendar(Iterator, Collection, CalendarOptions, OutputStream)}, without attendees.
+	 * 
+	 * <br>The compression level and whether calendars are rendered in parallel are configured in sakai.properties.
+	 * 
+	 * @param calendars the events of each calendar, keyed by the name of its entry, e.g. a user id. Names are made safe for use in a zip.
+	 * @param options the method, time window and limits for every calendar
+	 * @param out the stream to write the zip to, finished but not closed
+	 * @return the number of calendars written
+	 * @throws IOException if the stream could not be written to, or the service is disabled
+	 */
+	public int writeZip(Map<String, ? extends Iterable<CalendarEvent>> calendars, CalendarOptions options, OutputStream out) throws IOException;
+	
+	/**
+	 * Write many calendars as ICS entries in a zip file in the filesystem and return the path.
+	 * See {@link #writeZip(Map, CalendarOptions, OutputStream)}
+	 * 
+	 * @param calendars the events of each calendar, keyed by the name of its entry
+	 * @param options the method, time window and limits for every calendar
+	 * @return the path to the zip file, or null if there was an error
+	 */
+	public String toZipFile(Map<String, ? extends Iterable<CalendarEvent>> calendars, CalendarOptions options);
+	
+	/**
+	 * Write an iCal calendar out to an in memory DataSource, ready to be attached to an email.
+	 * The content type is text/calendar and includes the method of the calendar, if it has one.
+	 * @param calendar iCal calendar object
+	 * @return the DataSource for the calendar or null if there was an error
+	 */
+	public DataSource toDataSource(Calendar calendar);
+	
+	/**
+	 * Write an iCal calendar to a stream, for example an HTTP response. Nothing is written to the filesystem.
+	 * The stream is not closed.
+	 * @param calendar iCal calendar object
+	 * @param out the stream to write to
+	 * @throws IOException if the calendar could not be written or is not valid
+	 */
+	public void writeCalendar(Calendar calendar, OutputStream out) throws IOException;
+	
+	/**
+	 * Get the pre-rendered snapshot of a feed, if the feed is one of those configured via calendar.ics.feed.snapshot.ids
+	 * and its snapshot is no older than calendar.ics.feed.snapshot.maxage.
+	 * @param feedId the id of a feed from the {@link CalendarFeedProvider}
+	 * @return the snapshot or null if there isn't a fresh one
+	 */
+	public FeedSnapshot getFeedSnapshot(String feedId);
+	
+	/**
+	 * Tell every node in the cluster that a feed has changed, so any snapshot of it is no longer served.
+	 * @param feedId the id of a feed from the {@link CalendarFeedProvider}
+	 */
+	public void invalidateFeed(String feedId);
+	
+	/**
+	 * Tell every node in the cluster to forget what was last sent for an event, so the next update for it is always sent.
+	 * @param uid the UID of the VEvent
+	 */
+	public void invalidateEvent(String uid);
+	
 	/**
 	 * Is the ICS service enabled? Tools can use this public method for test in their own UIs.
 	 * If this is disabled, nothing will be generated.
@@ -126,5 +308,10 @@ public interface ExternalCalendaringService {
 	 */
 	public boolean isIcsEnabled();
 	
+	/**
+	 * Get a snapshot of the service's counters and gauges, e.g. the bytes and files used against the calendar file quota.
+	 * @return map of metric name to value, sorted by name
+	 */
+	public Map<String, Long> getMetrics();
 	
 }
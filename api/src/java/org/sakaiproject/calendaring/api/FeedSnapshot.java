@@ -0,0 +1,92 @@
+/*
+* Licensed to The Apereo Foundation under one or more contributor license
+* agreements. See the NOTICE file distributed with this work for
+* additional information regarding copyright ownership.
+*
+* The Apereo Foundation licenses this file to you under the Educational 
+* Community License, Version 2.0 (the "License"); you may not use this file 
+* except in compliance with the License. You may obtain a copy of the 
+* License at:
+*
+* http://opensource.org/licenses/ecl2.txt
+* 
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package org.sakaiproject.calendaring.api;
+
+import java.io.File;
+
+/**
+ * A calendar feed that has been rendered to disk ahead of time, so it can be served without building the calendar.
+ * <p>
+ * The files of a snapshot are complete and never change. A newer snapshot is written to new files.
+ */
+public class FeedSnapshot {
+
+	private final String feedId;
+	private final File file;
+	private final File gzipFile;
+	private final String eTag;
+	private final long lastModified;
+	private final long renderedAt;
+	
+	/**
+	 * @param feedId
+	 * @param file the ICS file
+	 * @param gzipFile the same ICS file, gzipped
+	 * @param eTag the ETag of the feed when it was rendered, may be null
+	 * @param lastModified the last modified time of the feed when it was rendered
+	 * @param renderedAt when the feed was rendered or last confirmed to be unchanged
+	 */
+	public FeedSnapshot(String feedId, File file, File gzipFile, String eTag, long lastModified, long renderedAt) {
+		this.feedId = feedId;
+		this.file = file;
+		this.gzipFile = gzipFile;
+		this.eTag = eTag;
+		this.lastModified = lastModified;
+		this.renderedAt = renderedAt;
+	}
+	
+	/**
+	 * Copy of this snapshot, confirmed to be unchanged at the given time
+	 * @param renderedAt
+	 * @return
+	 */
+	public FeedSnapshot confirmedAt(long renderedAt) {
+		return new FeedSnapshot(feedId, file, gzipFile, eTag, lastModified, renderedAt);
+	}
+
+	public String getFeedId() {
+		return feedId;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	public File getGzipFile() {
+		return gzipFile;
+	}
+
+	public String getETag() {
+		return eTag;
+	}
+
+	public long getLastModified() {
+		return lastModified;
+	}
+
+	public long getRenderedAt() {
+		return renderedAt;
+	}
+	
+	@Override
+	public String toString() {
+		return "FeedSnapshot[feedId=" + feedId + ", file=" + file + ", eTag=" + eTag + ", renderedAt=" + renderedAt + "]";
+	}
+}
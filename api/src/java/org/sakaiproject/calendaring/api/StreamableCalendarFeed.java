@@ -0,0 +1,46 @@
+/*
+* Licensed to The Apereo Foundation under one or more contributor license
+* agreements. See the NOTICE file distributed with this work for
+* additional information regarding copyright ownership.
+*
+* The Apereo Foundation licenses this file to you under the Educational 
+* Community License, Version 2.0 (the "License"); you may not use this file 
+* except in compliance with the License. You may obtain a copy of the 
+* License at:
+*
+* http://opensource.org/licenses/ecl2.txt
+* 
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package org.sakaiproject.calendaring.api;
+
+import java.util.Iterator;
+
+import org.sakaiproject.calendar.api.CalendarEvent;
+
+/**
+ * A calendar feed with too many events to build as a single {@link net.fortuna.ical4j.model.Calendar}.
+ * <p>
+ * The calendar feed servlet writes the events of a feed like this to the client as they are read, via
+ * {@link ExternalCalendaringService#streamCalendar(Iterator, java.util.Collection, CalendarOptions, java.io.OutputStream)},
+ * instead of asking for {@link #getCalendar()}.
+ */
+public interface StreamableCalendarFeed extends CalendarFeed {
+
+	/**
+	 * Get the events of the feed
+	 * @return the events, read once
+	 */
+	public Iterator<CalendarEvent> getEvents();
+	
+	/**
+	 * Get the method, time window and limits for the feed
+	 * @return the options, or null for the defaults
+	 */
+	public CalendarOptions getOptions();
+}
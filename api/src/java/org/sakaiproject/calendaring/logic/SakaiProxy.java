@@ -19,6 +19,13 @@
 
 package org.sakaiproject.calendaring.logic;
 
+import java.util.Collection;
+import java.util.Map;
+import java.util.Observer;
+
+import org.sakaiproject.calendar.api.CalendarEvent;
+import org.sakaiproject.calendaring.api.CalendarFeedProvider;
+
 /**
  * An interface to abstract all Sakai related API calls. This does not form part of the public API for the ExternalCalendaringService.
  * 
@@ -78,4 +85,210 @@ public interface SakaiProxy {
 	 * @return
 	 */
 	public boolean isCleanupEnabled();
+	
+	/**
+	 * Get the maximum number of bytes that generated ICS files may occupy under the calendar file path.
+	 * Configured via calendar.ics.generation.quota.bytes, defaults to 0 (unlimited).
+	 * @return
+	 */
+	public long getCalendarFileQuotaBytes();
+	
+	/**
+	 * Get the maximum number of generated ICS files that may exist under the calendar file path.
+	 * Configured via calendar.ics.generation.quota.files, defaults to 0 (unlimited).
+	 * @return
+	 */
+	public int getCalendarFileQuotaFiles();
+	
+	/**
+	 * Should the oldest generated files be deleted once the quota is reached? If not, new files are refused instead.
+	 * Configured via calendar.ics.generation.quota.policy, either 'evict' (the default) or 'refuse'.
+	 * @return
+	 */
+	public boolean isCalendarFileQuotaEvictionEnabled();
+	
+	/**
+	 * Get the size in bytes of the serialisation buffer each thread keeps for reuse. Calendars are encoded into it and written
+	 * to the file or stream each time it fills, so a large calendar takes many writes and is never held encoded in full.
+	 * Configured via calendar.ics.serialization.buffer.max, defaults to 32768 (32KB).
+	 * @return
+	 */
+	public int getSerializationBufferLimit();
+	
+	/**
+	 * Should the service warm itself up in the background on startup, so the first request doesn't pay for class loading
+	 * and timezone parsing? Configured via calendar.ics.warmup.enabled, defaults to true.
+	 * @return
+	 */
+	public boolean isWarmupEnabled();
+	
+	/**
+	 * Get the maximum time in seconds the background warm up may run for. Any remaining steps are skipped after this.
+	 * Configured via calendar.ics.warmup.timeout, defaults to 30.
+	 * @return
+	 */
+	public int getWarmupTimeout();
+	
+	/**
+	 * Get the ids of the timezones to load during warm up, in addition to the one from {@link #getTimeZoneId()}.
+	 * Configured via calendar.ics.warmup.timezones as a comma separated list, defaults to none.
+	 * @return
+	 */
+	public String[] getWarmupTimeZoneIds();
+	
+	/**
+	 * Get the id of the timezone that events should be output in.
+	 * This is calendar.ics.timezone if set, otherwise the current user's timezone, which itself defaults to the server's timezone.
+	 * @return
+	 */
+	public String getTimeZoneId();
+	
+	/**
+	 * Get the maximum number of event snapshots kept in memory to work out whether an update needs to be sent.
+	 * Configured via calendar.ics.snapshot.max, defaults to 10000.
+	 * @return
+	 */
+	public int getEventSnapshotLimit();
+	
+	/**
+	 * Get the maximum time in millis to wait for the organizer's details from the user directory when creating an event.
+	 * After this, the last known details or a placeholder are used instead. 0 means wait indefinitely.
+	 * Configured via calendar.ics.lookup.timeout, defaults to 2000.
+	 * @return
+	 */
+	public long getUserLookupTimeout();
+	
+	/**
+	 * Get the number of consecutive failed or timed out user lookups after which lookups are skipped for a while.
+	 * Configured via calendar.ics.lookup.breaker.failures, defaults to 5.
+	 * @return
+	 */
+	public int getUserLookupFailureThreshold();
+	
+	/**
+	 * Get the time in millis that user lookups are skipped for once the failure threshold has been reached.
+	 * Configured via calendar.ics.lookup.breaker.cooldown, defaults to 30000.
+	 * @return
+	 */
+	public long getUserLookupCooldown();
+	
+	/**
+	 * Get the maximum number of users whose details are remembered as a fallback for failed lookups.
+	 * Configured via calendar.ics.lookup.cache.max, defaults to 5000.
+	 * @return
+	 */
+	public int getUserLookupCacheSize();
+	
+	/**
+	 * Get the email address and display name for many users in a single call to the user directory
+	 * @param uuids
+	 * @return map of uuid to details. Users that could not be found are not included.
+	 */
+	public Map<String, UserDetails> getUserDetails(Collection<String> uuids);
+	
+	/**
+	 * Get the maximum number of ATTENDEE properties kept for reuse across events. 0 disables reuse.
+	 * Configured via calendar.ics.attendee.cache.max, defaults to 10000.
+	 * @return
+	 */
+	public int getAttendeeCacheSize();
+	
+	/**
+	 * Get the proportion of service calls to trace, between 0 and 1.
+	 * Configured via calendar.ics.trace.sample.rate, defaults to 0.
+	 * @return
+	 */
+	public double getTraceSampleRate();
+	
+	/**
+	 * Get the time in millis beyond which a service call is always traced. A negative value disables this.
+	 * Configured via calendar.ics.trace.slow.threshold, defaults to 1000.
+	 * @return
+	 */
+	public long getTraceSlowThreshold();
+	
+	/**
+	 * Get the provider of calendar feeds, if a tool has registered one
+	 * @return the provider or null
+	 */
+	public CalendarFeedProvider getCalendarFeedProvider();
+	
+	/**
+	 * Get an event from a Sakai calendar, regardless of the current user's permissions
+	 * @param calendarReference e.g. /calendar/calendar/{siteId}/{calendarId}
+	 * @param eventId
+	 * @return the event, or null if it or the calendar doesn't exist
+	 */
+	public CalendarEvent getCalendarEvent(String calendarReference, String eventId);
+	
+	/**
+	 * Get the ids of the feeds to pre-render to disk.
+	 * Configured via calendar.ics.feed.snapshot.ids as a comma separated list, defaults to none.
+	 * @return
+	 */
+	public String[] getFeedSnapshotIds();
+	
+	/**
+	 * Get the time in seconds between renders of each feed snapshot.
+	 * Configured via calendar.ics.feed.snapshot.interval, defaults to 300.
+	 * @return
+	 */
+	public int getFeedSnapshotInterval();
+	
+	/**
+	 * Get the maximum age in seconds of a feed snapshot that may be served. Older snapshots are ignored and the feed is built instead.
+	 * Configured via calendar.ics.feed.snapshot.maxage, defaults to 900.
+	 * @return
+	 */
+	public int getFeedSnapshotMaxAge();
+	
+	/**
+	 * Get the time in seconds allowed for sending a feed snapshot to a client. A snapshot that has been replaced is kept for this long
+	 * after it could last have been served, so a send that is still in progress can finish.
+	 * Configured via calendar.ics.feed.snapshot.sendtime, defaults to 300.
+	 * @return
+	 */
+	public int getFeedSnapshotSendTime();
+	
+	/**
+	 * Post an event via the event tracking service. Events are seen by observers on every node in the cluster.
+	 * @param event the event name
+	 * @param reference the resource the event is about
+	 * @param modify true if the event is a modification
+	 */
+	public void postEvent(String event, String reference, boolean modify);
+	
+	/**
+	 * Observe the events posted via the event tracking service on every node in the cluster.
+	 * The observer is called with each {@link org.sakaiproject.event.api.Event}.
+	 * @param observer
+	 */
+	public void addEventObserver(Observer observer);
+	
+	/**
+	 * Stop observing events
+	 * @param observer
+	 */
+	public void deleteEventObserver(Observer observer);
+	
+	/**
+	 * Get the number of slots used to share repeated locations, descriptions and names between events. 0 disables it.
+	 * Configured via calendar.ics.dedup.size, defaults to 8192.
+	 * @return
+	 */
+	public int getDedupSize();
+	
+	/**
+	 * Get the compression level for zips of many calendars, from 0 for none to 9 for the smallest, or -1 for the default.
+	 * Configured via calendar.ics.zip.compression.level, defaults to -1.
+	 * @return
+	 */
+	public int getZipCompressionLevel();
+	
+	/**
+	 * Get the number of threads used to render calendars for a zip in parallel. 1 renders them one at a time, streaming each straight into the zip.
+	 * Configured via calendar.ics.zip.threads, defaults to 1.
+	 * @return
+	 */
+	public int getZipThreads();
 }
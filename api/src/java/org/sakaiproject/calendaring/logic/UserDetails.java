@@ -0,0 +1,59 @@
+/*
+* Licensed to The Apereo Foundation under one or more contributor license
+* agreements. See the NOTICE file distributed with this work for
+* additional information regarding copyright ownership.
+*
+* The Apereo Foundation licenses this file to you under the Educational 
+* Community License, Version 2.0 (the "License"); you may not use this file 
+* except in compliance with the License. You may obtain a copy of the 
+* License at:
+*
+* http://opensource.org/licenses/ecl2.txt
+* 
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package org.sakaiproject.calendaring.logic;
+
+/**
+ * The details of a user that are needed to add them to an event.
+ */
+public class UserDetails {
+
+	private final String email;
+	private final String displayName;
+	
+	/**
+	 * @param email the user's email address, may be null or empty
+	 * @param displayName the user's display name
+	 */
+	public UserDetails(String email, String displayName) {
+		this.email = email;
+		this.displayName = displayName;
+	}
+	
+	/**
+	 * Get the email address for this user
+	 * @return the email address, may be null or empty
+	 */
+	public String getEmail() {
+		return email;
+	}
+	
+	/**
+	 * Get the display name for this user
+	 * @return
+	 */
+	public String getDisplayName() {
+		return displayName;
+	}
+	
+	@Override
+	public String toString() {
+		return "UserDetails[email=" + email + ", displayName=" + displayName + "]";
+	}
+}
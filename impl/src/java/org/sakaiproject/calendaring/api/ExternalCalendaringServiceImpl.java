@@ -19,25 +19,37 @@
 
 package org.sakaiproject.calendaring.api;
 
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.GregorianCalendar;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.UUID;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import javax.activation.DataSource;
 
 import lombok.Setter;
 import lombok.extern.apachecommons.CommonsLog;
-import net.fortuna.ical4j.data.CalendarOutputter;
 import net.fortuna.ical4j.model.Calendar;
+import net.fortuna.ical4j.model.Component;
 import net.fortuna.ical4j.model.DateTime;
+import net.fortuna.ical4j.model.Parameter;
 import net.fortuna.ical4j.model.Property;
 import net.fortuna.ical4j.model.TimeZone;
-import net.fortuna.ical4j.model.TimeZoneRegistry;
-import net.fortuna.ical4j.model.TimeZoneRegistryFactory;
 import net.fortuna.ical4j.model.ValidationException;
 import net.fortuna.ical4j.model.component.VEvent;
 import net.fortuna.ical4j.model.component.VTimeZone;
@@ -48,9 +60,39 @@ import net.fortuna.ical4j.model.parameter.Rsvp;
 import net.fortuna.ical4j.model.property.*;
 
 import org.apache.commons.collections.CollectionUtils;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.NullOutputStream;
 import org.apache.commons.lang.StringUtils;
+import org.apache.commons.lang.math.NumberUtils;
 import org.sakaiproject.calendar.api.CalendarEvent;
+import org.sakaiproject.calendaring.logic.AttendeeCache;
+import org.sakaiproject.calendaring.logic.ColumnarCalendar;
+import org.sakaiproject.calendaring.logic.EventSnapshot;
+import org.sakaiproject.calendaring.logic.EventInvalidationBroadcaster;
+import org.sakaiproject.calendaring.logic.EventSnapshotStore;
+import org.sakaiproject.calendaring.logic.FeedSnapshotRenderer;
+import org.sakaiproject.calendaring.logic.GeneratedFileQuota;
+import org.sakaiproject.calendaring.logic.GuardedUserLookup;
+import org.sakaiproject.calendaring.logic.ImmutableAttendee;
+import org.sakaiproject.calendaring.logic.InMemoryEventSnapshotStore;
+import org.sakaiproject.calendaring.logic.InvalidationBroadcaster;
+import org.sakaiproject.calendaring.logic.InvalidationListener;
+import org.sakaiproject.calendaring.logic.LocalInvalidator;
 import org.sakaiproject.calendaring.logic.SakaiProxy;
+import org.sakaiproject.calendaring.logic.ServiceMetrics;
+import org.sakaiproject.calendaring.logic.TimedOutputStream;
+import org.sakaiproject.calendaring.logic.Trace;
+import org.sakaiproject.calendaring.logic.Tracer;
+import org.sakaiproject.calendaring.logic.UserDetails;
+import org.sakaiproject.calendaring.logic.ValueDeduplicator;
+import org.sakaiproject.calendaring.logic.ZipBundleWriter;
+import org.sakaiproject.calendaring.util.CalendarDataSource;
+import org.sakaiproject.calendaring.util.CalendarSerializer;
+import org.sakaiproject.calendaring.util.ContentLineWriter;
+import org.sakaiproject.calendaring.util.FastIdGenerator;
+import org.sakaiproject.calendaring.util.IdGenerator;
+import org.sakaiproject.calendaring.util.TimeZoneCache;
 import org.sakaiproject.time.api.TimeRange;
 import org.sakaiproject.user.api.User;
 
@@ -64,7 +106,7 @@ import org.sakaiproject.user.api.User;
  *
  */
 @CommonsLog
-public class ExternalCalendaringServiceImpl implements ExternalCalendaringService {
+public class ExternalCalendaringServiceImpl implements ExternalCalendaringService, LocalInvalidator {
 
 	/**
 	 * {@inheritDoc}
@@ -83,29 +125,107 @@ public class ExternalCalendaringServiceImpl implements ExternalCalendaringServic
 			return null;
 		}
 		
-		//timezone. All dates are in GMT so we need to explicitly set that
-		TimeZoneRegistry registry = TimeZoneRegistryFactory.getInstance().createRegistry();
-		TimeZone timezone = registry.getTimeZone("GMT");
-		VTimeZone tz = timezone.getVTimeZone();
+		Trace trace = tracer.start("createEvent");
+		try {
+			//organiser is bounded in time, so a stalled directory can't hold up event creation
+			UserDetails organizer = null;
+			if(StringUtils.isNotBlank(event.getCreator())) {
+				long mark = trace.mark();
+				organizer = userLookup.lookup(event.getCreator());
+				trace.span("organizer", mark);
+			}
+			
+			VEvent vevent = buildEvent(event, organizer, getTimeZone(trace));
+			
+			//add attendees to event with 'required participant' role
+			long mark = trace.mark();
+			vevent = addAttendeesToEvent(vevent, attendees);
+			trace.span("attendees", mark, attendees != null ? attendees.size() : 0);
+			
+			return vevent;
+		} finally {
+			tracer.finish(trace);
+		}
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	public VEvent createEventWithAttendeeIds(CalendarEvent event, Collection<String> attendeeIds) {
+		
+		if(!isIcsEnabled()) {
+			log.debug("ExternalCalendaringService is disabled. Enable via calendar.ics.generation.enabled=true in sakai.properties");
+			return null;
+		}
+		
+		Trace trace = tracer.start("createEventWithAttendeeIds");
+		try {
+			//resolve the organiser and all attendees in one trip to the directory
+			long mark = trace.mark();
+			Set<String> userIds = new LinkedHashSet<String>();
+			if(StringUtils.isNotBlank(event.getCreator())) {
+				userIds.add(event.getCreator());
+			}
+			List<String> attendees = nonBlank(attendeeIds);
+			if(attendees == null) {
+				attendees = Collections.emptyList();
+			}
+			userIds.addAll(attendees);
+			Map<String, UserDetails> details = userLookup.lookupAll(userIds);
+			trace.span("lookup", mark, userIds.size());
+			
+			VEvent vevent = buildEvent(event, details.get(event.getCreator()), getTimeZone(trace));
+			
+			//add attendees to event with 'required participant' role
+			mark = trace.mark();
+			for(String userId: attendees) {
+				UserDetails d = details.get(userId);
+				vevent.getProperties().add(createAttendee(userId, d.getEmail(), d.getDisplayName(), Role.REQ_PARTICIPANT));
+			}
+			trace.span("attendees", mark, attendees.size());
+			
+			return vevent;
+		} finally {
+			tracer.finish(trace);
+		}
+	}
+	
+	/**
+	 * Helper to get the timezone for events.
+	 * Dates are output in the configured or user's timezone, or UTC if there isn't one. createCalendar adds the matching VTIMEZONE.
+	 * @param trace
+	 * @return the timezone or null for UTC
+	 */
+	private TimeZone getTimeZone(Trace trace) {
+		long mark = trace.mark();
+		TimeZone timezone = timeZoneCache.getTimeZone(sakaiProxy.getTimeZoneId());
+		trace.span("timezone", mark);
+		return timezone;
+	}
+	
+	/**
+	 * Helper to build the VEvent for a CalendarEvent, without attendees
+	 * @param event
+	 * @param organizer details of the event's creator, or null if there isn't one
+	 * @param timezone the timezone for the dates, or null for UTC
+	 * @return the VEvent
+	 */
+	private VEvent buildEvent(CalendarEvent event, UserDetails organizer, TimeZone timezone) {
 
 		//start and end date
-		DateTime start = new DateTime(getStartDate(event.getRange()).getTime());
-		DateTime end = new DateTime(getEndDate(event.getRange()).getTime());
+		DateTime start = createDateTime(getStartDate(event.getRange()), timezone);
+		DateTime end = createDateTime(getEndDate(event.getRange()), timezone);
 		
 		//create event incl title/summary
-		VEvent vevent = new VEvent(start, end, event.getDisplayName());
-			
-		//add timezone
-		vevent.getProperties().add(tz.getTimeZoneId());
+		//repeated values are shared between events, see ValueDeduplicator
+		VEvent vevent = new VEvent(start, end, deduplicator.dedup(event.getDisplayName()));
 		
 		//add uid to event
-		//could come from the vevent_uuid field in the calendar event, otherwise from event ID.
-		String uuid = null;
-		if(StringUtils.isNotBlank(event.getField("vevent_uuid"))) {
-			uuid = event.getField("vevent_uuid");
-		} else {
-			uuid = event.getId();
-		}		
+		//could come from the vevent_uuid field in the calendar event, otherwise from event ID, otherwise generated.
+		String uuid = getUid(event);
+		if(uuid == null) {
+			uuid = idGenerator.nextId();
+		}
 		vevent.getProperties().add(new Uid(uuid));
 		
 		//add sequence to event
@@ -117,27 +237,16 @@ public class ExternalCalendaringServiceImpl implements ExternalCalendaringServic
 		}
 			
 		//add description to event
-		vevent.getProperties().add(new Description(event.getDescription()));
+		vevent.getProperties().add(new Description(deduplicator.dedup(event.getDescription())));
 		
 		//add location to event
-		vevent.getProperties().add(new Location(event.getLocation()));
+		vevent.getProperties().add(new Location(deduplicator.dedup(event.getLocation())));
 		
 		//add organiser to event
-		if(StringUtils.isNotBlank(event.getCreator())) {
-
-			String creatorEmail = sakaiProxy.getUserEmail(event.getCreator());
-
-			URI mailURI = createMailURI(creatorEmail);
-			Cn commonName = new Cn(sakaiProxy.getUserDisplayName(event.getCreator()));
-
-			Organizer organizer = new Organizer(mailURI);
-			organizer.getParameters().add(commonName);
-			vevent.getProperties().add(organizer);
+		if(organizer != null) {
+			vevent.getProperties().add(createOrganizer(organizer));
 		}
 		
-		//add attendees to event with 'required participant' role
-		vevent = addAttendeesToEvent(vevent, attendees);
-		
 		//add URL to event, if present
 		String url = null;
 		if(StringUtils.isNotBlank(event.getField("vevent_url"))) {
@@ -151,11 +260,83 @@ public class ExternalCalendaringServiceImpl implements ExternalCalendaringServic
 			}
 		}
 		
-		if(log.isDebugEnabled()){
-			log.debug("VEvent:" + vevent);
+		return vevent;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	public EventUpdate createEventUpdate(CalendarEvent event, List<User> attendees) {
+		
+		if(!isIcsEnabled()) {
+			log.debug("ExternalCalendaringService is disabled. Enable via calendar.ics.generation.enabled=true in sakai.properties");
+			return null;
 		}
 		
-		return vevent;
+		//without a stable uid we can't tell what was sent before, so always send
+		String uuid = getUid(event);
+		if(uuid == null) {
+			VEvent vevent = createEvent(event, attendees);
+			if(vevent == null) {
+				return null;
+			}
+			return new EventUpdate(null, NumberUtils.toInt(event.getField("vevent_sequence"), 0), vevent, null);
+		}
+		
+		//compare with what was last sent before doing the expensive work of building the vevent
+		int sequence = NumberUtils.toInt(event.getField("vevent_sequence"), 0);
+		EventSnapshot current = EventSnapshot.create(uuid, sequence, event, attendees);
+		EventSnapshot previous = snapshotStore.get(uuid);
+		
+		if(previous != null) {
+			Set<String> changed = current.diff(previous);
+			if(changed.isEmpty()) {
+				metrics.increment("updates.skipped");
+				if(log.isDebugEnabled()){
+					log.debug("Event " + uuid + " is unchanged since sequence " + previous.getSequence() + ", no update required.");
+				}
+				return EventUpdate.unchanged(uuid, previous.getSequence());
+			}
+			
+			sequence = Math.max(sequence, previous.getSequence() + 1);
+			current = current.withSequence(sequence);
+			
+			if(log.isDebugEnabled()){
+				log.debug("Event " + uuid + " changed " + changed + ", sending sequence " + sequence);
+			}
+		}
+		
+		VEvent vevent = createEvent(event, attendees);
+		if(vevent == null) {
+			return null;
+		}
+		
+		//replace any sequence from the vevent_sequence field with the one we worked out
+		vevent.getProperties().removeAll(vevent.getProperties(Property.SEQUENCE));
+		vevent.getProperties().add(new Sequence(sequence));
+		
+		//not remembered until the caller says it has been sent, so a failed send doesn't suppress the retry
+		return new EventUpdate(uuid, sequence, vevent, current);
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	public void markSent(EventUpdate update) {
+		if(update == null || !(update.getState() instanceof EventSnapshot)) {
+			return;
+		}
+		EventSnapshot sent = (EventSnapshot)update.getState();
+		
+		//updates may be sent out of order, only ever move forward
+		synchronized(snapshotStore) {
+			EventSnapshot previous = snapshotStore.get(sent.getUid());
+			if(previous != null && previous.getSequence() > sent.getSequence()) {
+				return;
+			}
+			snapshotStore.put(sent);
+		}
+		metrics.increment("updates.sent");
 	}
 	
 	/**
@@ -192,32 +373,142 @@ public class ExternalCalendaringServiceImpl implements ExternalCalendaringServic
 		//add attendees to event with 'required participant' role
 		if(attendees != null){
 			for(User u: attendees) {
-				Attendee a = new Attendee(createMailURI(u.getEmail()));
-				a.getParameters().add(role);
-				a.getParameters().add(new Cn(u.getDisplayName()));
-				a.getParameters().add(PartStat.ACCEPTED);
-				a.getParameters().add(Rsvp.FALSE);
-			
-				vevent.getProperties().add(a);
+				vevent.getProperties().add(createAttendee(u.getId(), u.getEmail(), u.getDisplayName(), role));
 			}
 		}
 		
+		return vevent;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public VEvent cancelEvent(VEvent vevent) {
+		
+		if(!isIcsEnabled()) {
+			log.debug("ExternalCalendaringService is disabled. Enable via calendar.ics.generation.enabled=true in sakai.properties");
+			return null;
+		}
+		markCancelled(vevent);
+
 		if(log.isDebugEnabled()){
-			log.debug("VEvent with attendees:" + vevent);
+			log.debug("VEvent cancelled: " + vevent.getProperty(Property.UID));
 		}
 		
 		return vevent;
+		
 	}
-
+	
 	/**
 	 * {@inheritDoc}
 	 */
-	public VEvent cancelEvent(VEvent vevent) {
+	public Calendar createCancelCalendar(List<VEvent> events) {
+		
+		if(!isIcsEnabled()) {
+			log.debug("ExternalCalendaringService is disabled. Enable via calendar.ics.generation.enabled=true in sakai.properties");
+			return null;
+		}
+		
+		//null check
+		if(CollectionUtils.isEmpty(events)) {
+			log.error("List of VEvents was null or empty, no calendar will be created.");
+			return null;
+		}
+		
+		List<VEvent> cancelled = new ArrayList<VEvent>(events.size());
+		for(VEvent vevent: events) {
+			//only check what a cancellation needs rather than validating every event in full, and leave events we skip untouched
+			if(vevent.getProperty(Property.UID) == null || vevent.getProperty(Property.ORGANIZER) == null) {
+				log.warn("VEvent is missing a UID or ORGANIZER and cannot be cancelled, skipping.");
+				continue;
+			}
+			markCancelled(vevent);
+			cancelled.add(vevent);
+		}
+		
+		return createCancelCalendarFromEvents(cancelled);
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	public Calendar createCancelCalendarForUids(Collection<String> uids) {
 		
 		if(!isIcsEnabled()) {
 			log.debug("ExternalCalendaringService is disabled. Enable via calendar.ics.generation.enabled=true in sakai.properties");
 			return null;
 		}
+		
+		//null check
+		if(CollectionUtils.isEmpty(uids)) {
+			log.error("List of UIDs was null or empty, no calendar will be created.");
+			return null;
+		}
+		
+		//the organiser of many events is usually the same person, so only look each one up once
+		Map<String, Organizer> organizers = new HashMap<String, Organizer>();
+		
+		List<VEvent> cancelled = new ArrayList<VEvent>(uids.size());
+		for(String uid: uids) {
+			EventSnapshot snapshot = snapshotStore.get(uid);
+			if(snapshot == null || StringUtils.isBlank(snapshot.getCreator())) {
+				log.warn("No record of event " + uid + " having been sent, it cannot be cancelled by UID.");
+				continue;
+			}
+			
+			Organizer organizer = organizers.get(snapshot.getCreator());
+			if(organizer == null) {
+				organizer = createOrganizer(snapshot.getCreator());
+				organizers.put(snapshot.getCreator(), organizer);
+			}
+			
+			//a minimal event is all a cancellation needs, it comes with a DTSTAMP
+			VEvent vevent = new VEvent();
+			DateTime start = new DateTime(snapshot.getStart());
+			start.setUtc(true);
+			vevent.getProperties().add(new DtStart(start));
+			vevent.getProperties().add(new Uid(uid));
+			vevent.getProperties().add(new Sequence(snapshot.getSequence() + 1));
+			vevent.getProperties().add(Status.VEVENT_CANCELLED);
+			vevent.getProperties().add(organizer);
+			cancelled.add(vevent);
+			
+			//every node must forget it, or a later REQUEST would be suppressed as unchanged wherever it was sent before
+			invalidateEvent(uid);
+		}
+		
+		return createCancelCalendarFromEvents(cancelled);
+	}
+	
+	/**
+	 * Helper to build a CANCEL calendar from events that have already been marked as cancelled
+	 * @param cancelled
+	 * @return the calendar or null if there are no events
+	 */
+	private Calendar createCancelCalendarFromEvents(List<VEvent> cancelled) {
+		
+		if(cancelled.isEmpty()) {
+			log.error("No VEvents could be cancelled, no calendar will be created.");
+			return null;
+		}
+		
+		Calendar calendar = setupCalendar(Method.CANCEL.getValue());
+		addTimeZones(calendar, cancelled);
+		calendar.getComponents().addAll(cancelled);
+		
+		metrics.add("events.cancelled", cancelled.size());
+		if(log.isDebugEnabled()){
+			log.debug("Cancelled " + cancelled.size() + " VEvents in one calendar");
+		}
+		
+		return calendar;
+	}
+	
+	/**
+	 * Helper to set the status of a VEvent to cancelled and make sure it has a sequence
+	 * @param vevent
+	 */
+	private void markCancelled(VEvent vevent) {
 		// You can only have one status so make sure we remove any previous ones.
 		vevent.getProperties().removeAll(vevent.getProperties(Property.STATUS));
 		vevent.getProperties().add(Status.VEVENT_CANCELLED);
@@ -226,13 +517,6 @@ public class ExternalCalendaringServiceImpl implements ExternalCalendaringServic
 		if (vevent.getProperties().getProperty(Property.SEQUENCE) == null) {
 			vevent.getProperties().add(new Sequence("1"));
 		}
-
-		if(log.isDebugEnabled()){
-			log.debug("VEvent cancelled:" + vevent);
-		}
-		
-		return vevent;
-		
 	}
 	
 	
@@ -262,29 +546,120 @@ public class ExternalCalendaringServiceImpl implements ExternalCalendaringServic
 			return null;
 		}
 		
-		//add vevents to calendar
-		calendar.getComponents().addAll(events);
+		Trace trace = tracer.start("createCalendar");
+		try {
+			//add the timezones used by the vevents, once each
+			long mark = trace.mark();
+			addTimeZones(calendar, events);
+			trace.span("timezones", mark, calendar.getComponents(Component.VTIMEZONE).size());
+			
+			//add vevents to calendar
+			calendar.getComponents().addAll(events);
+			
+			//validate
+			mark = trace.mark();
+			try {
+				calendar.validate(true);
+			} catch (ValidationException e) {
+				e.printStackTrace();
+				return null;
+			}
+			trace.span("validation", mark, events.size());
+			
+			return calendar;
+		} finally {
+			tracer.finish(trace);
+		}
+		
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	public Calendar createCalendarForEvents(List<CalendarEvent> events, CalendarOptions options) {
+		
+		if(!isIcsEnabled()) {
+			log.debug("ExternalCalendaringService is disabled. Enable via calendar.ics.generation.enabled=true in sakai.properties");
+			return null;
+		}
+		
+		//null check
+		if(CollectionUtils.isEmpty(events)) {
+			log.error("List of CalendarEvents was null or empty, no calendar will be created.");
+			return null;
+		}
+		if(options == null) {
+			options = new CalendarOptions();
+		}
 		
-		//validate
+		Trace trace = tracer.start("createCalendarForEvents");
+		List<VEvent> vevents;
+		int omitted;
 		try {
-			calendar.validate(true);
-		} catch (ValidationException e) {
-			e.printStackTrace();
+			//skip events outside the window before doing any work on them
+			long mark = trace.mark();
+			Set<String> creators = new HashSet<String>();
+			List<CalendarEvent> inWindow = selectEvents(events, options, creators);
+			trace.span("window", mark, inWindow.size());
+			
+			if(inWindow.isEmpty()) {
+				log.debug("No CalendarEvents in the window, no calendar will be created.");
+				return null;
+			}
+			
+			//all organisers in one trip to the directory
+			mark = trace.mark();
+			Map<String, UserDetails> organizers = userLookup.lookupAll(creators);
+			trace.span("organizers", mark, creators.size());
+			
+			TimeZone timezone = getTimeZone(trace);
+			
+			//build events until a limit is reached
+			mark = trace.mark();
+			vevents = new ArrayList<VEvent>(inWindow.size());
+			long bytes = 0;
+			for(CalendarEvent event: inWindow) {
+				if(options.getMaxEvents() > 0 && vevents.size() >= options.getMaxEvents()) {
+					break;
+				}
+				UserDetails organizer = organizers.get(event.getCreator());
+				
+				//estimated from the lengths of the fields, so events that won't fit are never built or serialised
+				if(options.getMaxBytes() > 0) {
+					bytes += ColumnarCalendar.estimateSize(event, event.getField("vevent_url"), organizer);
+					if(bytes > options.getMaxBytes()) {
+						break;
+					}
+				}
+				vevents.add(buildEvent(event, organizer, timezone));
+			}
+			omitted = inWindow.size() - vevents.size();
+			trace.span("events", mark, vevents.size());
+		} finally {
+			tracer.finish(trace);
+		}
+		
+		if(vevents.isEmpty()) {
+			log.error("No CalendarEvents fit within approximately " + options.getMaxBytes() + " characters, no calendar will be created.");
 			return null;
 		}
 		
-		if(log.isDebugEnabled()){
-			log.debug("Calendar:" + calendar);
+		Calendar calendar = createCalendar(vevents, options.getMethod());
+		
+		//let clients and support staff know the feed is incomplete
+		if(calendar != null && omitted > 0) {
+			calendar.getProperties().add(new XProperty(CalendarOptions.X_TRUNCATED, "TRUE"));
+			calendar.getProperties().add(new XProperty(CalendarOptions.X_OMITTED_EVENTS, String.valueOf(omitted)));
+			metrics.add("events.omitted", omitted);
 		}
 		
 		return calendar;
-		
 	}
 	
 	/**
 	 * {@inheritDoc}
 	 */
-	public String toFile(Calendar calendar) {
+	public CompactCalendar createCompactCalendar(List<CalendarEvent> events, Collection<String> attendeeIds, CalendarOptions options) {
 		
 		if(!isIcsEnabled()) {
 			log.debug("ExternalCalendaringService is disabled. Enable via calendar.ics.generation.enabled=true in sakai.properties");
@@ -292,111 +667,851 @@ public class ExternalCalendaringServiceImpl implements ExternalCalendaringServic
 		}
 		
 		//null check
-		if(calendar == null) {
-			log.error("Calendar is null, cannot generate ICS file.");
+		if(CollectionUtils.isEmpty(events)) {
+			log.error("List of CalendarEvents was null or empty, no calendar will be created.");
 			return null;
 		}
+		if(options == null) {
+			options = new CalendarOptions();
+		}
+		attendeeIds = nonBlank(attendeeIds);
 		
-		String path = generateFilePath(UUID.randomUUID().toString());
-		
-		//test file
-		File file = new File(path);
+		Trace trace = tracer.start("createCompactCalendar");
+		ColumnarCalendar calendar;
 		try {
-			if(!file.createNewFile()) {
-				log.error("Couldn't write file to: " + path);
-				return null;	
+			//skip events outside the window before doing any work on them
+			long mark = trace.mark();
+			Set<String> userIds = new HashSet<String>();
+			List<CalendarEvent> inWindow = selectEvents(events, options, userIds);
+			trace.span("window", mark, inWindow.size());
+			
+			if(inWindow.isEmpty()) {
+				log.debug("No CalendarEvents in the window, no calendar will be created.");
+				return null;
 			}
-		} catch (IOException e) {
-			log.error("An error occurred trying to write file to: " + path + " : " + e.getClass() + " : " + e.getMessage());
-			return null;
+			
+			//all organisers and attendees in one trip to the directory
+			mark = trace.mark();
+			if(attendeeIds != null) {
+				userIds.addAll(attendeeIds);
+			}
+			Map<String, UserDetails> details = userLookup.lookupAll(userIds);
+			trace.span("lookup", mark, userIds.size());
+			
+			calendar = new ColumnarCalendar(getProdId(), options.getMethod(), sakaiProxy.getTimeZoneId(), timeZoneCache);
+			int attendees = attendeeIds != null ? calendar.addAttendees(attendeeIds, details) : -1;
+			
+			//add events until a limit is reached
+			mark = trace.mark();
+			long bytes = 0;
+			for(CalendarEvent event: inWindow) {
+				if(options.getMaxEvents() > 0 && calendar.size() >= options.getMaxEvents()) {
+					break;
+				}
+				
+				bytes += addEvent(calendar, event, details, attendees);
+				
+				//approximate, as lines are not yet folded
+				if(options.getMaxBytes() > 0 && bytes > options.getMaxBytes()) {
+					calendar.removeLast();
+					break;
+				}
+			}
+			calendar.setOmitted(inWindow.size() - calendar.size());
+			trace.span("events", mark, calendar.size());
+		} finally {
+			tracer.finish(trace);
 		}
 		
-		//if cleanup enabled, mark for deletion when the JVM exits.
-		if(sakaiProxy.isCleanupEnabled()) {
-			file.deleteOnExit();
+		if(calendar.size() == 0) {
+			log.error("No CalendarEvents fit within approximately " + options.getMaxBytes() + " characters, no calendar will be created.");
+			return null;
 		}
 		
-		FileOutputStream fout;
-		try {
-			fout = new FileOutputStream(file);
-		
-			CalendarOutputter outputter = new CalendarOutputter();
-			outputter.output(calendar, fout);
-		
-			fout.flush();
-			fout.close();
-		} catch (FileNotFoundException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		} catch (IOException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		} catch (ValidationException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+		if(calendar.getOmitted() > 0) {
+			metrics.add("events.omitted", calendar.getOmitted());
 		}
- 
-		return path;
+		metrics.increment("calendars.compact");
 		
+		return calendar;
 	}
 	
 	/**
-	 * {@inheritDoc}
+	 * Helper to pick out the events within the time window of the options, and the organisers of those that can make it in
+	 * under the maximum number of events.
+	 * @param events
+	 * @param options
+	 * @param creators the organisers to look up are added to this
+	 * @return the events in the window, in order
 	 */
-	public boolean isIcsEnabled() {
-		return sakaiProxy.isIcsEnabled();
+	private List<CalendarEvent> selectEvents(List<CalendarEvent> events, CalendarOptions options, Set<String> creators) {
+		long now = System.currentTimeMillis();
+		List<CalendarEvent> inWindow = new ArrayList<CalendarEvent>(events.size());
+		for(CalendarEvent event: events) {
+			if(!isInWindow(event, options, now)) {
+				continue;
+			}
+			inWindow.add(event);
+			
+			//only look up the organisers of events that can make it in
+			if(StringUtils.isNotBlank(event.getCreator()) && (options.getMaxEvents() <= 0 || inWindow.size() <= options.getMaxEvents())) {
+				creators.add(event.getCreator());
+			}
+		}
+		return inWindow;
 	}
 	
 	/**
-	 * Helper method to setup the standard parts of the calendar
+	 * Helper to check if an event is within the time window of the options
+	 * @param event
+	 * @param options
+	 * @param now
 	 * @return
 	 */
-	private Calendar setupCalendar(String method) {
-		
-		String serverName = sakaiProxy.getServerName();
-		
-		//setup calendar
-		Calendar calendar = new Calendar();
-		calendar.getProperties().add(new ProdId("-//"+serverName+"//Sakai External Calendaring Service//EN"));
-		calendar.getProperties().add(Version.VERSION_2_0);
-		calendar.getProperties().add(CalScale.GREGORIAN);
-		if (method != null) {
-			calendar.getProperties().add(new Method(method));
+	private boolean isInWindow(CalendarEvent event, CalendarOptions options, long now) {
+		TimeRange range = event.getRange();
+		if(options.getDaysBefore() != null && range.lastTime().getTime() < now - options.getDaysBefore() * DAY_MILLIS) {
+			return false;
 		}
-		return calendar;
+		if(options.getDaysAfter() != null && range.firstTime().getTime() > now + options.getDaysAfter() * DAY_MILLIS) {
+			return false;
+		}
+		return true;
 	}
 	
-	
-	
-	
 	/**
-	 * Helper to extract the startDate of a TimeRange into a java.util.Calendar object. 
-	 * @param range 
-	 * @return
+	 * Helper to add an event to a compact calendar, with its organiser
+	 * @param calendar
+	 * @param event
+	 * @param details the details of the organiser, and any others
+	 * @param attendees the attendee list in the calendar, or -1 for none
+	 * @return the approximate number of bytes the event will take
 	 */
-	private java.util.Calendar getStartDate(TimeRange range) {
-		java.util.Calendar c = new GregorianCalendar();
-		c.setTimeInMillis(range.firstTime().getTime());
-		return c;
+	private long addEvent(ColumnarCalendar calendar, CalendarEvent event, Map<String, UserDetails> details, int attendees) {
+		String uid = getUid(event);
+		if(uid == null) {
+			uid = idGenerator.nextId();
+		}
+		String creator = StringUtils.isNotBlank(event.getCreator()) ? event.getCreator() : null;
+		return calendar.add(uid, event, creator, creator != null ? details.get(creator) : null, attendees);
 	}
 	
 	/**
-	 * Helper to extract the endDate of a TimeRange into a java.util.Calendar object. 
-	 * @param range 
-	 * @return
+	 * {@inheritDoc}
 	 */
-	private java.util.Calendar getEndDate(TimeRange range) {
-		java.util.Calendar c = new GregorianCalendar();
-		c.setTimeInMillis(range.lastTime().getTime());
+	public int streamCalendar(Iterator<CalendarEvent> events, Collection<String> attendeeIds, CalendarOptions options, OutputStream out) throws IOException {
+		
+		if(!isIcsEnabled()) {
+			throw new IOException("ExternalCalendaringService is disabled. Enable via calendar.ics.generation.enabled=true in sakai.properties");
+		}
+		if(options == null) {
+			options = new CalendarOptions();
+		}
+		attendeeIds = nonBlank(attendeeIds);
+		
+		Trace trace = tracer.start("streamCalendar");
+		int written = 0;
+		try {
+			//the attendees are the same for every event so are only looked up once
+			long mark = trace.mark();
+			Map<String, UserDetails> attendeeDetails = attendeeIds != null ? userLookup.lookupAll(attendeeIds) : null;
+			trace.span("attendees", mark, attendeeIds != null ? attendeeIds.size() : 0);
+			
+			mark = trace.mark();
+			ContentLineWriter writer = new ContentLineWriter(out);
+			ColumnarCalendar batch = new ColumnarCalendar(getProdId(), options.getMethod(), sakaiProxy.getTimeZoneId(), timeZoneCache);
+			batch.writeHeader(writer);
+			
+			//only one batch of events is held at a time, however many there are
+			long now = System.currentTimeMillis();
+			List<CalendarEvent> pending = new ArrayList<CalendarEvent>(STREAM_BATCH_SIZE);
+			boolean full = false;
+			while(!full && events.hasNext()) {
+				CalendarEvent event = events.next();
+				if(!isInWindow(event, options, now)) {
+					continue;
+				}
+				if(options.getMaxEvents() > 0 && written + pending.size() >= options.getMaxEvents()) {
+					break;
+				}
+				pending.add(event);
+				
+				if(pending.size() == STREAM_BATCH_SIZE) {
+					full = writeBatch(pending, attendeeIds, attendeeDetails, options, batch, writer);
+					written += batch.size();
+					batch.clear();
+					pending.clear();
+				}
+			}
+			if(!full && !pending.isEmpty()) {
+				writeBatch(pending, attendeeIds, attendeeDetails, options, batch, writer);
+				written += batch.size();
+			}
+			
+			batch.writeFooter(writer);
+			writer.flush();
+			trace.span("events", mark, written);
+		} finally {
+			tracer.finish(trace);
+		}
+		metrics.increment("streams.written");
+		
+		return written;
+	}
+	
+	/**
+	 * Helper to add a batch of events to the calendar and write them out, until the byte limit is reached
+	 * @param pending the events
+	 * @param attendeeIds
+	 * @param attendeeDetails
+	 * @param options
+	 * @param batch the calendar, with no events
+	 * @param writer
+	 * @return true if the byte limit was reached and no more events should be written
+	 * @throws IOException
+	 */
+	private boolean writeBatch(List<CalendarEvent> pending, Collection<String> attendeeIds, Map<String, UserDetails> attendeeDetails,
+			CalendarOptions options, ColumnarCalendar batch, ContentLineWriter writer) throws IOException {
+		
+		//the organisers of the whole batch in one trip to the directory
+		Set<String> creators = new HashSet<String>();
+		for(CalendarEvent event: pending) {
+			if(StringUtils.isNotBlank(event.getCreator())) {
+				creators.add(event.getCreator());
+			}
+		}
+		Map<String, UserDetails> details = userLookup.lookupAll(creators);
+		int attendees = attendeeIds != null ? batch.addAttendees(attendeeIds, attendeeDetails) : -1;
+		
+		//approximate, as lines are not yet folded
+		long bytes = writer.getBytesWritten();
+		boolean full = false;
+		for(CalendarEvent event: pending) {
+			bytes += addEvent(batch, event, details, attendees);
+			if(options.getMaxBytes() > 0 && bytes > options.getMaxBytes()) {
+				batch.removeLast();
+				full = true;
+				break;
+			}
+		}
+		batch.writeEvents(writer);
+		return full;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	public String toFile(Calendar calendar) {
+		
+		if(!isIcsEnabled()) {
+			log.debug("ExternalCalendaringService is disabled. Enable via calendar.ics.generation.enabled=true in sakai.properties");
+			return null;
+		}
+		
+		//null check
+		if(calendar == null) {
+			log.error("Calendar is null, cannot generate ICS file.");
+			return null;
+		}
+		
+		//if the quota is full and we aren't allowed to evict, don't even try
+		if(!quota.hasRoom()) {
+			log.error("Calendar file quota exceeded, cannot generate ICS file.");
+			return null;
+		}
+		
+		Trace trace = tracer.start("toFile");
+		try {
+			String path = generateFilePath(idGenerator.nextId(), ".ics");
+			
+			//test file
+			long mark = trace.mark();
+			File file = new File(path);
+			try {
+				if(!file.createNewFile()) {
+					log.error("Couldn't write file to: " + path);
+					return null;	
+				}
+			} catch (IOException e) {
+				log.error("An error occurred trying to write file to: " + path + " : " + e.getClass() + " : " + e.getMessage());
+				return null;
+			}
+			
+			//if cleanup enabled, mark for deletion when the JVM exits.
+			if(sakaiProxy.isCleanupEnabled()) {
+				file.deleteOnExit();
+			}
+			
+			TimedOutputStream fout = null;
+			try {
+				fout = new TimedOutputStream(new FileOutputStream(file));
+				trace.span("open", mark);
+				
+				//the serialiser writes to the file a buffer at a time as it goes, the time spent in those writes is recorded separately
+				mark = trace.mark();
+				serializer.write(calendar, fout);
+				fout.close();
+				trace.record("serialisation", System.nanoTime() - mark - fout.getNanos(), -1);
+				trace.record("write", fout.getNanos(), fout.getBytes());
+			} catch (IOException e) {
+				//don't leave a partial file behind, or count it against the quota
+				log.error("An error occurred trying to write file to: " + path + " : " + e.getClass() + " : " + e.getMessage());
+				IOUtils.closeQuietly(fout);
+				FileUtils.deleteQuietly(file);
+				return null;
+			} catch (ValidationException e) {
+				log.error("Calendar failed validation, cannot write file to: " + path + " : " + e.getClass() + " : " + e.getMessage());
+				IOUtils.closeQuietly(fout);
+				FileUtils.deleteQuietly(file);
+				return null;
+			} finally {
+				IOUtils.closeQuietly(fout);
+			}
+			
+			//account for the file, this may evict older files or refuse this one
+			mark = trace.mark();
+			boolean admitted = quota.admit(file);
+			trace.span("quota", mark);
+			if(!admitted) {
+				return null;
+			}
+			metrics.increment("files.written");
+	 
+			return path;
+		} finally {
+			tracer.finish(trace);
+		}
+		
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	public List<String> toFiles(Iterator<CalendarEvent> events, Collection<String> attendeeIds, CalendarOptions options) {
+		
+		if(!isIcsEnabled()) {
+			log.debug("ExternalCalendaringService is disabled. Enable via calendar.ics.generation.enabled=true in sakai.properties");
+			return null;
+		}
+		
+		//null check
+		if(events == null) {
+			log.error("CalendarEvents were null, cannot generate ICS files.");
+			return null;
+		}
+		if(options == null) {
+			options = new CalendarOptions();
+		}
+		attendeeIds = nonBlank(attendeeIds);
+		
+		//if the quota is full and we aren't allowed to evict, don't even try
+		if(!quota.hasRoom()) {
+			log.error("Calendar file quota exceeded, cannot generate ICS files.");
+			return null;
+		}
+		
+		Trace trace = tracer.start("toFiles");
+		List<File> files = new ArrayList<File>();
+		FileChunk chunk = null;
+		try {
+			//the attendees are the same for every event so are only looked up once
+			long mark = trace.mark();
+			Map<String, UserDetails> attendeeDetails = attendeeIds != null ? userLookup.lookupAll(attendeeIds) : null;
+			trace.span("attendees", mark, attendeeIds != null ? attendeeIds.size() : 0);
+			
+			//every file gets the same header and footer
+			mark = trace.mark();
+			ColumnarCalendar batch = new ColumnarCalendar(getProdId(), options.getMethod(), sakaiProxy.getTimeZoneId(), timeZoneCache);
+			EventBuffer buffer = new EventBuffer();
+			ContentLineWriter writer = new ContentLineWriter(buffer);
+			batch.writeHeader(writer);
+			writer.flush();
+			byte[] header = buffer.toByteArray();
+			buffer.reset();
+			writer.reset(buffer);
+			batch.writeFooter(writer);
+			writer.flush();
+			byte[] footer = buffer.toByteArray();
+			
+			//a batch of events at a time is written to a buffer, then shared out between files by their exact size
+			long now = System.currentTimeMillis();
+			List<CalendarEvent> pending = new ArrayList<CalendarEvent>(STREAM_BATCH_SIZE);
+			int written = 0;
+			while(events.hasNext()) {
+				CalendarEvent event = events.next();
+				if(!isInWindow(event, options, now)) {
+					continue;
+				}
+				if(options.getMaxEvents() > 0 && written + pending.size() >= options.getMaxEvents()) {
+					break;
+				}
+				pending.add(event);
+				
+				if(pending.size() == STREAM_BATCH_SIZE) {
+					written += pending.size();
+					chunk = writeChunks(pending, attendeeIds, attendeeDetails, options, batch, buffer, writer, header, footer, chunk, files);
+					pending.clear();
+				}
+			}
+			if(!pending.isEmpty()) {
+				written += pending.size();
+				chunk = writeChunks(pending, attendeeIds, attendeeDetails, options, batch, buffer, writer, header, footer, chunk, files);
+			}
+			if(chunk != null) {
+				closeChunk(chunk, footer);
+				chunk = null;
+			}
+			trace.span("events", mark, written);
+		} catch (IOException e) {
+			log.error("An error occurred trying to write ICS files : " + e.getClass() + " : " + e.getMessage());
+			if(chunk != null) {
+				IOUtils.closeQuietly(chunk.out);
+			}
+			for(File file: files) {
+				FileUtils.deleteQuietly(file);
+			}
+			return null;
+		} finally {
+			tracer.finish(trace);
+		}
+		
+		//account for the files together, this may evict older files or refuse all of these, but never evicts one of these to make room for another
+		if(!quota.admitAll(files)) {
+			return null;
+		}
+		List<String> paths = new ArrayList<String>(files.size());
+		for(File file: files) {
+			paths.add(file.getPath());
+		}
+		metrics.add("files.written", files.size());
+		
+		return paths;
+	}
+	
+	/**
+	 * Helper to add a batch of events to the calendar and share them out between files, starting a new file whenever the current one is full
+	 * @param pending the events
+	 * @param attendeeIds
+	 * @param attendeeDetails
+	 * @param options
+	 * @param batch the calendar, with no events
+	 * @param buffer where the events are written before being copied to files
+	 * @param writer writes to the buffer
+	 * @param header
+	 * @param footer
+	 * @param chunk the file being written, or null if there isn't one yet
+	 * @param files every file started is added to this
+	 * @return the file being written
+	 * @throws IOException
+	 */
+	private FileChunk writeChunks(List<CalendarEvent> pending, Collection<String> attendeeIds, Map<String, UserDetails> attendeeDetails,
+			CalendarOptions options, ColumnarCalendar batch, EventBuffer buffer, ContentLineWriter writer, byte[] header, byte[] footer,
+			FileChunk chunk, List<File> files) throws IOException {
+		
+		//the organisers of the whole batch in one trip to the directory
+		Set<String> creators = new HashSet<String>();
+		for(CalendarEvent event: pending) {
+			if(StringUtils.isNotBlank(event.getCreator())) {
+				creators.add(event.getCreator());
+			}
+		}
+		Map<String, UserDetails> details = userLookup.lookupAll(creators);
+		int attendees = attendeeIds != null ? batch.addAttendees(attendeeIds, attendeeDetails) : -1;
+		for(CalendarEvent event: pending) {
+			addEvent(batch, event, details, attendees);
+		}
+		
+		buffer.reset();
+		writer.reset(buffer);
+		long[] offsets = new long[batch.size()];
+		batch.writeEvents(writer, offsets);
+		writer.flush();
+		batch.clear();
+		
+		int start = 0;
+		for(long offset: offsets) {
+			int length = (int)offset - start;
+			if(chunk != null && !chunk.fits(length, footer.length, options)) {
+				closeChunk(chunk, footer);
+				chunk = null;
+			}
+			if(chunk == null) {
+				chunk = openChunk(header);
+				files.add(chunk.file);
+			}
+			chunk.write(buffer.buffer(), start, length);
+			start = (int)offset;
+		}
+		return chunk;
+	}
+	
+	/**
+	 * Helper to start a new file and write the calendar header to it
+	 * @param header
+	 * @return
+	 * @throws IOException
+	 */
+	private FileChunk openChunk(byte[] header) throws IOException {
+		String path = generateFilePath(idGenerator.nextId(), ".ics");
+		File file = new File(path);
+		if(!file.createNewFile()) {
+			throw new IOException("Couldn't write file to: " + path);
+		}
+		
+		//if cleanup enabled, mark for deletion when the JVM exits.
+		if(sakaiProxy.isCleanupEnabled()) {
+			file.deleteOnExit();
+		}
+		
+		FileChunk chunk = new FileChunk(file, new BufferedOutputStream(new FileOutputStream(file)));
+		chunk.out.write(header);
+		chunk.bytes = header.length;
+		return chunk;
+	}
+	
+	/**
+	 * Helper to finish a file with the calendar footer
+	 * @param chunk
+	 * @param footer
+	 * @throws IOException
+	 */
+	private void closeChunk(FileChunk chunk, byte[] footer) throws IOException {
+		try {
+			chunk.out.write(footer);
+			chunk.out.flush();
+		} finally {
+			IOUtils.closeQuietly(chunk.out);
+		}
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	public int writeZip(Map<String, ? extends Iterable<CalendarEvent>> calendars, CalendarOptions options, OutputStream out) throws IOException {
+		
+		if(!isIcsEnabled()) {
+			throw new IOException("ExternalCalendaringService is disabled. Enable via calendar.ics.generation.enabled=true in sakai.properties");
+		}
+		
+		Trace trace = tracer.start("writeZip");
+		try {
+			long mark = trace.mark();
+			int written = zipWriter.write(calendars, options, out);
+			trace.span("calendars", mark, written);
+			return written;
+		} finally {
+			tracer.finish(trace);
+		}
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	public String toZipFile(Map<String, ? extends Iterable<CalendarEvent>> calendars, CalendarOptions options) {
+		
+		if(!isIcsEnabled()) {
+			log.debug("ExternalCalendaringService is disabled. Enable via calendar.ics.generation.enabled=true in sakai.properties");
+			return null;
+		}
+		
+		//null check
+		if(calendars == null) {
+			log.error("Calendars were null, cannot generate zip file.");
+			return null;
+		}
+		
+		//if the quota is full and we aren't allowed to evict, don't even try
+		if(!quota.hasRoom()) {
+			log.error("Calendar file quota exceeded, cannot generate zip file.");
+			return null;
+		}
+		
+		Trace trace = tracer.start("toZipFile");
+		String path = generateFilePath(idGenerator.nextId(), ".zip");
+		File file = new File(path);
+		OutputStream out = null;
+		try {
+			if(!file.createNewFile()) {
+				log.error("Couldn't write file to: " + path);
+				return null;
+			}
+			
+			//if cleanup enabled, mark for deletion when the JVM exits.
+			if(sakaiProxy.isCleanupEnabled()) {
+				file.deleteOnExit();
+			}
+			
+			//calendars are written straight into the zip, with no intermediate files
+			long mark = trace.mark();
+			out = new BufferedOutputStream(new FileOutputStream(file));
+			int written = zipWriter.write(calendars, options, out);
+			out.flush();
+			trace.span("calendars", mark, written);
+		} catch (IOException e) {
+			log.error("An error occurred trying to write zip file to: " + path + " : " + e.getClass() + " : " + e.getMessage());
+			IOUtils.closeQuietly(out);
+			FileUtils.deleteQuietly(file);
+			return null;
+		} finally {
+			IOUtils.closeQuietly(out);
+			tracer.finish(trace);
+		}
+		
+		//account for the file, this may evict older files or refuse this one
+		if(!quota.admit(file)) {
+			return null;
+		}
+		metrics.increment("files.written");
+		
+		return path;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	public DataSource toDataSource(Calendar calendar) {
+		
+		if(!isIcsEnabled()) {
+			log.debug("ExternalCalendaringService is disabled. Enable via calendar.ics.generation.enabled=true in sakai.properties");
+			return null;
+		}
+		
+		//null check
+		if(calendar == null) {
+			log.error("Calendar is null, cannot generate ICS data.");
+			return null;
+		}
+		
+		Trace trace = tracer.start("toDataSource");
+		byte[] data;
+		try {
+			long mark = trace.mark();
+			data = serializer.toByteArray(calendar);
+			trace.span("serialisation", mark, data.length);
+		} catch (IOException e) {
+			log.error("An error occurred trying to serialise calendar : " + e.getClass() + " : " + e.getMessage());
+			return null;
+		} catch (ValidationException e) {
+			log.error("Calendar failed validation : " + e.getClass() + " : " + e.getMessage());
+			return null;
+		} finally {
+			tracer.finish(trace);
+		}
+		
+		Method method = calendar.getMethod();
+		CalendarDataSource dataSource = new CalendarDataSource(data, method != null ? method.getValue() : null, "invite.ics");
+		metrics.increment("datasources.created");
+		
+		return dataSource;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	public void writeCalendar(Calendar calendar, OutputStream out) throws IOException {
+		
+		if(!isIcsEnabled()) {
+			throw new IOException("ExternalCalendaringService is disabled. Enable via calendar.ics.generation.enabled=true in sakai.properties");
+		}
+		
+		Trace trace = tracer.start("writeCalendar");
+		try {
+			long mark = trace.mark();
+			serializer.write(calendar, out);
+			trace.span("serialisation", mark);
+		} catch (ValidationException e) {
+			throw new IOException("Calendar failed validation : " + e.getMessage(), e);
+		} finally {
+			tracer.finish(trace);
+		}
+		metrics.increment("streams.written");
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	public FeedSnapshot getFeedSnapshot(String feedId) {
+		if(!isIcsEnabled()) {
+			return null;
+		}
+		return feedRenderer.get(feedId);
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	public void invalidateFeed(String feedId) {
+		invalidationBroadcaster.broadcast(InvalidationBroadcaster.REGION_FEED, feedId);
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	public void invalidateEvent(String uid) {
+		invalidationBroadcaster.broadcast(InvalidationBroadcaster.REGION_EVENT, uid);
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	public void invalidateLocally(String region, String key) {
+		if(InvalidationBroadcaster.REGION_FEED.equals(region)) {
+			feedRenderer.invalidate(key);
+		} else if(InvalidationBroadcaster.REGION_EVENT.equals(region)) {
+			snapshotStore.remove(key);
+		} else if(InvalidationBroadcaster.REGION_USER.equals(region)) {
+			userLookup.forget(key);
+			attendeeCache.forget(key);
+		}
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	public boolean isIcsEnabled() {
+		return sakaiProxy.isIcsEnabled();
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	public Map<String, Long> getMetrics() {
+		return metrics.snapshot();
+	}
+	
+	/**
+	 * Helper to get the PRODID for calendars from this server
+	 * @return
+	 */
+	private String getProdId() {
+		return "-//" + sakaiProxy.getServerName() + "//Sakai External Calendaring Service//EN";
+	}
+	
+	/**
+	 * Helper method to setup the standard parts of the calendar
+	 * @return
+	 */
+	private Calendar setupCalendar(String method) {
+		
+		//setup calendar
+		Calendar calendar = new Calendar();
+		calendar.getProperties().add(new ProdId(getProdId()));
+		calendar.getProperties().add(Version.VERSION_2_0);
+		calendar.getProperties().add(CalScale.GREGORIAN);
+		if (method != null) {
+			calendar.getProperties().add(new Method(method));
+		}
+		return calendar;
+	}
+	
+	
+	
+	
+	/**
+	 * Helper to drop null or blank user ids, which would otherwise each become a lookup and an attendee with no email
+	 * @param userIds
+	 * @return the user ids that aren't blank, or null if there were no user ids at all
+	 */
+	private List<String> nonBlank(Collection<String> userIds) {
+		if(userIds == null) {
+			return null;
+		}
+		List<String> ids = new ArrayList<String>(userIds.size());
+		for(String userId: userIds) {
+			if(StringUtils.isNotBlank(userId)) {
+				ids.add(userId);
+			}
+		}
+		return ids;
+	}
+	
+	/**
+	 * Helper to get the UID for an event, from the vevent_uuid field if set, otherwise the event id
+	 * @param event
+	 * @return the UID or null if the event has neither
+	 */
+	private String getUid(CalendarEvent event) {
+		if(StringUtils.isNotBlank(event.getField("vevent_uuid"))) {
+			return event.getField("vevent_uuid");
+		}
+		if(StringUtils.isNotBlank(event.getId())) {
+			return event.getId();
+		}
+		return null;
+	}
+	
+	/**
+	 * Helper to add the VTIMEZONE for each timezone referenced by the start or end of the given events. Each is only added once.
+	 * @param calendar
+	 * @param events
+	 */
+	private void addTimeZones(Calendar calendar, List<VEvent> events) {
+		Set<String> added = new HashSet<String>();
+		for(VEvent vevent: events) {
+			addTimeZone(calendar, vevent.getStartDate(), added);
+			addTimeZone(calendar, vevent.getEndDate(), added);
+		}
+	}
+	
+	private void addTimeZone(Calendar calendar, DateProperty date, Set<String> added) {
+		if(date == null) {
+			return;
+		}
+		Parameter tzid = date.getParameter(Parameter.TZID);
+		if(tzid != null && added.add(tzid.getValue())) {
+			VTimeZone vtimezone = timeZoneCache.getVTimeZone(tzid.getValue());
+			if(vtimezone != null) {
+				calendar.getComponents().add(vtimezone);
+			}
+		}
+	}
+	
+	/**
+	 * Helper to create an iCal DateTime in the given timezone, or in UTC if there is none
+	 * @param date
+	 * @param timezone
+	 * @return
+	 */
+	private DateTime createDateTime(java.util.Calendar date, TimeZone timezone) {
+		DateTime dateTime = new DateTime(date.getTime());
+		if(timezone != null) {
+			dateTime.setTimeZone(timezone);
+		} else {
+			dateTime.setUtc(true);
+		}
+		return dateTime;
+	}
+	
+	/**
+	 * Helper to extract the startDate of a TimeRange into a java.util.Calendar object. 
+	 * @param range 
+	 * @return
+	 */
+	private java.util.Calendar getStartDate(TimeRange range) {
+		java.util.Calendar c = new GregorianCalendar();
+		c.setTimeInMillis(range.firstTime().getTime());
 		return c;
 	}
 	
 	/**
-	 * Helper to create the name of the ICS file we are to write
+	 * Helper to extract the endDate of a TimeRange into a java.util.Calendar object. 
+	 * @param range 
+	 * @return
+	 */
+	private java.util.Calendar getEndDate(TimeRange range) {
+		java.util.Calendar c = new GregorianCalendar();
+		c.setTimeInMillis(range.lastTime().getTime());
+		return c;
+	}
+	
+	/**
+	 * Helper to create the name of the file we are to write. The name always starts with {@link #GENERATED_FILE_PREFIX}
+	 * so the file can be recognised as ours after a restart, whatever the {@link IdGenerator} produces.
 	 * @param filename
+	 * @param extension e.g. .ics
 	 * @return
 	 */
-	private String generateFilePath(String filename) {
+	private String generateFilePath(String filename, String extension) {
 		StringBuilder sb = new StringBuilder();
 		
 		String base = sakaiProxy.getCalendarFilePath();
@@ -407,11 +1522,61 @@ public class ExternalCalendaringServiceImpl implements ExternalCalendaringServic
 			sb.append(File.separator);
 		}
 		
+		sb.append(GENERATED_FILE_PREFIX);
 		sb.append(filename);
-		sb.append(".ics");
+		sb.append(extension);
 		return sb.toString();
 	}
 
+	/**
+	 * Create the organizer property for a user, with their email address and display name
+	 * @param userId
+	 * @return
+	 */
+	private Organizer createOrganizer(String userId) {
+		//bounded in time, so a stalled directory can't hold up event creation
+		return createOrganizer(userLookup.lookup(userId));
+	}
+	
+	/**
+	 * Helper to create an Organizer from a user's details
+	 * @param details
+	 * @return the Organizer
+	 */
+	private Organizer createOrganizer(UserDetails details) {
+		URI mailURI = createMailURI(details.getEmail());
+		Cn commonName = new Cn(deduplicator.dedup(details.getDisplayName()));
+
+		Organizer organizer = new Organizer(mailURI);
+		organizer.getParameters().add(commonName);
+		return organizer;
+	}
+	
+	/**
+	 * Helper to create an Attendee who has accepted and doesn't need to reply.
+	 * The same people are invited to many events so the address and parameters are reused where possible, see {@link AttendeeCache}.
+	 * Each call returns a new Attendee though, so callers can change the one on their event without affecting any other.
+	 * @param userId
+	 * @param email can be empty or <code>null</code>
+	 * @param displayName
+	 * @param role
+	 * @return the Attendee
+	 */
+	private Attendee createAttendee(String userId, String email, String displayName, Role role) {
+		AttendeeCache.Key key = AttendeeCache.key(userId, email, displayName, role);
+		ImmutableAttendee a = attendeeCache.get(key);
+		if(a != null) {
+			return a.mutableCopy();
+		}
+		
+		//immutable, as the cached attendee is the template for every event it is added to
+		a = new ImmutableAttendee(createMailURI(email), role, new Cn(deduplicator.dedup(displayName)), PartStat.ACCEPTED, Rsvp.FALSE);
+		
+		attendeeCache.put(key, a);
+		metrics.increment("attendees.created");
+		return a.mutableCopy();
+	}
+	
 	/**
 	 * Create a URI to be used for a person's email address that degrades nicely if one is not defined
 	 * @param email The email address as a string, can be empty or even <code>null</code>
@@ -430,9 +1595,227 @@ public class ExternalCalendaringServiceImpl implements ExternalCalendaringServic
 	 */
 	public void init() {
 		log.info("init");
+		
+		quota = new GeneratedFileQuota(sakaiProxy, metrics);
+		quota.scan(new File(sakaiProxy.getCalendarFilePath()), GENERATED_FILE_NAME);
+		serializer = new CalendarSerializer(sakaiProxy.getSerializationBufferLimit(), timeZoneCache);
+		userLookup = new GuardedUserLookup(sakaiProxy, metrics);
+		attendeeCache = new AttendeeCache(sakaiProxy.getAttendeeCacheSize());
+		deduplicator = new ValueDeduplicator(sakaiProxy.getDedupSize());
+		tracer = new Tracer(sakaiProxy.getTraceSampleRate(), sakaiProxy.getTraceSlowThreshold(), metrics);
+		feedRenderer = new FeedSnapshotRenderer(this, sakaiProxy, metrics, quota);
+		zipWriter = new ZipBundleWriter(this, sakaiProxy, metrics);
+		
+		if(snapshotStore == null) {
+			snapshotStore = new InMemoryEventSnapshotStore(sakaiProxy.getEventSnapshotLimit());
+		}
+		
+		//drop exactly the entries that have changed on any node
+		if(invalidationBroadcaster == null) {
+			invalidationBroadcaster = new EventInvalidationBroadcaster(sakaiProxy, metrics);
+		}
+		invalidationBroadcaster.addListener(new InvalidationListener() {
+			public void invalidate(String region, String key) {
+				invalidateLocally(region, key);
+			}
+		});
+		
+		//warm up in the background so we don't hold up startup
+		if(sakaiProxy.isWarmupEnabled()) {
+			final long deadline = System.currentTimeMillis() + sakaiProxy.getWarmupTimeout() * 1000L;
+			Thread warmup = new Thread(new Runnable() {
+				public void run() {
+					warmUp(deadline);
+				}
+			}, "ExternalCalendaringService-warmup");
+			warmup.setDaemon(true);
+			warmup.setPriority(Thread.MIN_PRIORITY);
+			warmup.start();
+		}
+		
+		feedRenderer.start();
+	}
+	
+	/**
+	 * Load the timezone data and build, validate and serialise a synthetic calendar so that ical4j's classes,
+	 * validators and outputters are loaded before the first real request. Steps are skipped once the deadline passes.
+	 * 
+	 * @param deadline time in millis after which no further steps are started
+	 * @return true if all steps completed
+	 */
+	protected boolean warmUp(long deadline) {
+		long start = System.currentTimeMillis();
+		try {
+			//load and serialise the default timezone, then any others we've been asked to, checking the deadline after each as they're slow to parse
+			TimeZone timezone = timeZoneCache.getTimeZone(sakaiProxy.getTimeZoneId());
+			timeZoneCache.getSerialized(sakaiProxy.getTimeZoneId());
+			String[] zoneIds = sakaiProxy.getWarmupTimeZoneIds();
+			int loaded = 1;
+			if(zoneIds != null) {
+				for(String zoneId: zoneIds) {
+					if(System.currentTimeMillis() > deadline) {
+						log.warn("Warm up timed out after loading " + loaded + " timezones");
+						return false;
+					}
+					timeZoneCache.getSerialized(zoneId);
+					loaded++;
+				}
+			}
+			if(System.currentTimeMillis() > deadline) {
+				log.warn("Warm up timed out after loading " + loaded + " timezones");
+				return false;
+			}
+			
+			//build a calendar that exercises the same properties as a real invitation
+			java.util.Calendar now = new GregorianCalendar();
+			java.util.Calendar later = new GregorianCalendar();
+			later.add(java.util.Calendar.HOUR, 1);
+			VEvent vevent = new VEvent(createDateTime(now, timezone), createDateTime(later, timezone), "Warm up");
+			vevent.getProperties().add(new Uid(idGenerator.nextId()));
+			vevent.getProperties().add(new Sequence(1));
+			vevent.getProperties().add(new Description("Warm up, please ignore; this event is never sent."));
+			vevent.getProperties().add(new Location("Nowhere"));
+			Organizer organizer = new Organizer(createMailURI("warmup@localhost"));
+			organizer.getParameters().add(new Cn("Warm up"));
+			vevent.getProperties().add(organizer);
+			Attendee attendee = new Attendee(createMailURI("warmup@localhost"));
+			attendee.getParameters().add(Role.REQ_PARTICIPANT);
+			attendee.getParameters().add(new Cn("Warm up"));
+			attendee.getParameters().add(PartStat.ACCEPTED);
+			attendee.getParameters().add(Rsvp.FALSE);
+			vevent.getProperties().add(attendee);
+			
+			Calendar calendar = setupCalendar(Method.REQUEST.getValue());
+			addTimeZones(calendar, Collections.singletonList(vevent));
+			calendar.getComponents().add(vevent);
+			calendar.validate(true);
+			if(System.currentTimeMillis() > deadline) {
+				log.warn("Warm up timed out after building calendar");
+				return false;
+			}
+			
+			//serialise, this also validates again via the outputter
+			serializer.toByteArray(calendar);
+			
+			ContentLineWriter writer = new ContentLineWriter(new NullOutputStream());
+			writer.writeText("DESCRIPTION", vevent.getDescription().getValue());
+			writer.flush();
+			
+			long elapsed = System.currentTimeMillis() - start;
+			metrics.set("warmup.millis", elapsed);
+			log.info("Warm up completed in " + elapsed + "ms");
+			return true;
+			
+		} catch (Exception e) {
+			//warm up is only an optimisation, it must never break anything
+			log.warn("Warm up failed : " + e.getClass() + " : " + e.getMessage());
+			return false;
+		}
+	}
+	
+	/**
+	 * destroy
+	 */
+	public void destroy() {
+		userLookup.shutdown();
+		feedRenderer.shutdown();
+		zipWriter.shutdown();
+		invalidationBroadcaster.shutdown();
 	}
 	
 	@Setter
 	private SakaiProxy sakaiProxy;
 	
+	/**
+	 * Generates ICS file names and fallback UIDs. Can be replaced via Spring config.
+	 */
+	@Setter
+	private IdGenerator idGenerator = new FastIdGenerator();
+	
+	private final ServiceMetrics metrics = new ServiceMetrics();
+	
+	private GeneratedFileQuota quota;
+	
+	private CalendarSerializer serializer;
+	
+	private GuardedUserLookup userLookup;
+	
+	private AttendeeCache attendeeCache;
+	
+	private ValueDeduplicator deduplicator;
+	
+	private Tracer tracer;
+	
+	private FeedSnapshotRenderer feedRenderer;
+	
+	private ZipBundleWriter zipWriter;
+	
+	private static final long DAY_MILLIS = 24L * 60 * 60 * 1000;
+	
+	//number of events held at a time when streaming a calendar
+	private static final int STREAM_BATCH_SIZE = 500;
+	
+	//the files we generate are named with this prefix and an id from the IdGenerator, anything else in the calendar file path isn't ours
+	private static final String GENERATED_FILE_PREFIX = "ecs-";
+	private static final Pattern GENERATED_FILE_NAME = Pattern.compile(Pattern.quote(GENERATED_FILE_PREFIX) + ".+\\.(ics|zip)");
+	
+	private final TimeZoneCache timeZoneCache = new TimeZoneCache();
+	
+	/**
+	 * Remembers what was last sent for each event. Defaults to an in memory store, can be replaced via Spring config.
+	 */
+	@Setter
+	private EventSnapshotStore snapshotStore;
+	
+	/**
+	 * Tells every node in the cluster when cached entries change. Defaults to using Sakai events, can be replaced via Spring config.
+	 */
+	@Setter
+	private InvalidationBroadcaster invalidationBroadcaster;
+	
+	
+	/**
+	 * One of the files a calendar is being split into
+	 */
+	private static class FileChunk {
+		
+		private final File file;
+		private final OutputStream out;
+		private int events;
+		private long bytes;
+		
+		private FileChunk(File file, OutputStream out) {
+			this.file = file;
+			this.out = out;
+		}
+		
+		/**
+		 * Will an event of the given size fit in this file and still leave room for the footer?
+		 */
+		private boolean fits(int length, int footerLength, CalendarOptions options) {
+			if(options.getMaxEventsPerFile() > 0 && events >= options.getMaxEventsPerFile()) {
+				return false;
+			}
+			if(options.getMaxBytesPerFile() > 0 && events > 0 && bytes + length + footerLength > options.getMaxBytesPerFile()) {
+				return false;
+			}
+			return true;
+		}
+		
+		private void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			events++;
+			bytes += len;
+		}
+	}
+	
+	/**
+	 * ByteArrayOutputStream that gives access to its buffer, so events can be copied to files without first copying the whole batch
+	 */
+	private static class EventBuffer extends ByteArrayOutputStream {
+		
+		private byte[] buffer() {
+			return buf;
+		}
+	}
 }
@@ -0,0 +1,174 @@
+/*
+* Licensed to The Apereo Foundation under one or more contributor license
+* agreements. See the NOTICE file distributed with this work for
+* additional information regarding copyright ownership.
+*
+* The Apereo Foundation licenses this file to you under the Educational 
+* Community License, Version 2.0 (the "License"); you may not use this file 
+* except in compliance with the License. You may obtain a copy of the 
+* License at:
+*
+* http://opensource.org/licenses/ecl2.txt
+* 
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package org.sakaiproject.calendaring.logic;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import net.fortuna.ical4j.model.parameter.Role;
+
+/**
+ * Remembers the ATTENDEE properties built for users so the same people invited to many events don't each cost a new property.
+ * <p>
+ * Attendees are keyed by user id, email address, display name and role, so a change to any of these builds a new one.
+ * The least recently used are discarded once full, and a user's are dropped when their account changes. A cache size of 0 disables it.
+ * <p>
+ * The cached attendees are immutable and never added to a VEvent themselves, each event gets a {@link ImmutableAttendee#mutableCopy()}
+ * which shares the cached address and parameters.
+ */
+public class AttendeeCache {
+
+	private final Map<Key, ImmutableAttendee> attendees;
+	private final boolean enabled;
+	
+	/**
+	 * @param maxSize the maximum number of attendees to keep
+	 */
+	public AttendeeCache(final int maxSize) {
+		this.enabled = maxSize > 0;
+		this.attendees = new LinkedHashMap<Key, ImmutableAttendee>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+			
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Key, ImmutableAttendee> eldest) {
+				return size() > maxSize;
+			}
+		};
+	}
+	
+	/**
+	 * Get a previously built attendee
+	 * @param key
+	 * @return the attendee or null if there isn't one
+	 */
+	public ImmutableAttendee get(Key key) {
+		if(!enabled) {
+			return null;
+		}
+		synchronized(attendees) {
+			return attendees.get(key);
+		}
+	}
+	
+	/**
+	 * Remember an attendee
+	 * @param key
+	 * @param attendee
+	 */
+	public void put(Key key, ImmutableAttendee attendee) {
+		if(!enabled) {
+			return;
+		}
+		synchronized(attendees) {
+			attendees.put(key, attendee);
+		}
+	}
+	
+	/**
+	 * Drop every attendee built for a user, whatever their role
+	 * @param userId
+	 */
+	public void forget(String userId) {
+		if(!enabled || userId == null) {
+			return;
+		}
+		synchronized(attendees) {
+			Iterator<Key> iter = attendees.keySet().iterator();
+			while(iter.hasNext()) {
+				if(userId.equals(iter.next().userId)) {
+					iter.remove();
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Number of attendees currently held
+	 * @return
+	 */
+	public int size() {
+		synchronized(attendees) {
+			return attendees.size();
+		}
+	}
+	
+	/**
+	 * Create the key for an attendee
+	 * @param userId can be null
+	 * @param email can be null
+	 * @param displayName can be null
+	 * @param role
+	 * @return
+	 */
+	public static Key key(String userId, String email, String displayName, Role role) {
+		return new Key(userId, email, displayName, role.getValue());
+	}
+	
+	/**
+	 * Identifies everything that goes into an attendee
+	 */
+	public static final class Key {
+		
+		private final String userId;
+		private final String email;
+		private final String displayName;
+		private final String role;
+		private final int hash;
+		
+		private Key(String userId, String email, String displayName, String role) {
+			this.userId = userId;
+			this.email = email;
+			this.displayName = displayName;
+			this.role = role;
+			
+			int h = hashCode(userId);
+			h = 31 * h + hashCode(email);
+			h = 31 * h + hashCode(displayName);
+			h = 31 * h + hashCode(role);
+			this.hash = h;
+		}
+		
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+		
+		@Override
+		public boolean equals(Object o) {
+			if(this == o) {
+				return true;
+			}
+			if(!(o instanceof Key)) {
+				return false;
+			}
+			Key k = (Key)o;
+			return hash == k.hash && equals(userId, k.userId) && equals(email, k.email) && equals(displayName, k.displayName) && equals(role, k.role);
+		}
+		
+		private static int hashCode(String s) {
+			return s == null ? 0 : s.hashCode();
+		}
+		
+		private static boolean equals(String a, String b) {
+			return a == null ? b == null : a.equals(b);
+		}
+	}
+}
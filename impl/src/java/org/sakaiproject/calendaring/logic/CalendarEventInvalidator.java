@@ -0,0 +1,138 @@
+/*
+* Licensed to The Apereo Foundation under one or more contributor license
+* agreements. See the NOTICE file distributed with this work for
+* additional information regarding copyright ownership.
+*
+* The Apereo Foundation licenses this file to you under the Educational 
+* Community License, Version 2.0 (the "License"); you may not use this file 
+* except in compliance with the License. You may obtain a copy of the 
+* License at:
+*
+* http://opensource.org/licenses/ecl2.txt
+* 
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package org.sakaiproject.calendaring.logic;
+
+import java.util.Collection;
+import java.util.Observable;
+import java.util.Observer;
+
+import lombok.Setter;
+import lombok.extern.apachecommons.CommonsLog;
+
+import org.apache.commons.lang.StringUtils;
+import org.sakaiproject.calendar.api.CalendarEvent;
+import org.sakaiproject.calendar.api.CalendarService;
+import org.sakaiproject.calendaring.api.CalendarFeedProvider;
+import org.sakaiproject.event.api.Event;
+
+/**
+ * Drops what the ExternalCalendaringService has cached for a calendar event when it is added, revised or deleted in the Sakai calendar.
+ * <p>
+ * Sakai delivers calendar events to every node in the cluster, so each node only drops its own entries. Only the entries for the
+ * changed event are dropped: what was last sent for it, and the snapshots of the feeds that include its calendar.
+ * <p>
+ * What was last sent is kept by VEvent UID. That is the event's own vevent_uuid field if it has one, otherwise its id, so the event
+ * is looked up to find it. A deleted event can no longer be looked up, so only its id is used. What was sent for it
+ * under a vevent_uuid is left to age out, which does no harm as it won't be sent again.
+ */
+@CommonsLog
+public class CalendarEventInvalidator implements Observer {
+
+	//calendar event references look like /calendar/event/{siteId}/{calendarId}/{eventId}
+	private static final String EVENT_REFERENCE_PREFIX = "/calendar/event/";
+	private static final String CALENDAR_REFERENCE_PREFIX = "/calendar/calendar/";
+	
+	/**
+	 * init
+	 */
+	public void init() {
+		sakaiProxy.addEventObserver(this);
+	}
+	
+	/**
+	 * destroy
+	 */
+	public void destroy() {
+		sakaiProxy.deleteEventObserver(this);
+	}
+	
+	/**
+	 * Called for every event on every node, so get out quickly if it's not a calendar change
+	 */
+	@Override
+	public void update(Observable o, Object arg) {
+		if(!(arg instanceof Event)) {
+			return;
+		}
+		Event event = (Event) arg;
+		if(!isCalendarChange(event.getEvent())) {
+			return;
+		}
+		
+		String resource = event.getResource();
+		if(!StringUtils.startsWith(resource, EVENT_REFERENCE_PREFIX)) {
+			return;
+		}
+		
+		//siteId/calendarId/eventId
+		String[] parts = StringUtils.split(resource.substring(EVENT_REFERENCE_PREFIX.length()), '/');
+		if(parts.length < 3) {
+			return;
+		}
+		String calendarReference = CALENDAR_REFERENCE_PREFIX + parts[0] + "/" + parts[1];
+		String eventId = parts[2];
+		
+		externalCalendaringService.invalidateLocally(InvalidationBroadcaster.REGION_EVENT, eventId);
+		if(!CalendarService.EVENT_REMOVE_CALENDAR.equals(event.getEvent())) {
+			String uid = getUid(calendarReference, eventId);
+			if(uid != null && !uid.equals(eventId)) {
+				externalCalendaringService.invalidateLocally(InvalidationBroadcaster.REGION_EVENT, uid);
+			}
+		}
+		
+		CalendarFeedProvider provider = sakaiProxy.getCalendarFeedProvider();
+		if(provider != null) {
+			Collection<String> feedIds = provider.getFeedIds(calendarReference);
+			for(String feedId: feedIds) {
+				externalCalendaringService.invalidateLocally(InvalidationBroadcaster.REGION_FEED, feedId);
+			}
+		}
+		
+		if(log.isDebugEnabled()) {
+			log.debug("Invalidated " + resource + " after " + event.getEvent());
+		}
+	}
+	
+	/**
+	 * Get the UID the service gives the VEvent for a calendar event, if it has its own
+	 * @return the vevent_uuid of the event, or null if it has none or can't be found
+	 */
+	private String getUid(String calendarReference, String eventId) {
+		CalendarEvent calendarEvent = sakaiProxy.getCalendarEvent(calendarReference, eventId);
+		if(calendarEvent == null) {
+			return null;
+		}
+		String uid = calendarEvent.getField("vevent_uuid");
+		return StringUtils.isNotBlank(uid) ? uid : null;
+	}
+	
+	private boolean isCalendarChange(String name) {
+		//revisions come in as calendar.revise or as one of the more specific calendar.revise.* events
+		return CalendarService.EVENT_ADD_CALENDAR.equals(name)
+			|| CalendarService.EVENT_REMOVE_CALENDAR.equals(name)
+			|| StringUtils.startsWith(name, CalendarService.EVENT_MODIFY_CALENDAR);
+	}
+	
+	@Setter
+	private SakaiProxy sakaiProxy;
+	
+	@Setter
+	private LocalInvalidator externalCalendaringService;
+}
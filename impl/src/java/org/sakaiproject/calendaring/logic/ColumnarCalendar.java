@@ -0,0 +1,575 @@
+/*
+* Licensed to The Apereo Foundation under one or more contributor license
+* agreements. See the NOTICE file distributed with this work for
+* additional information regarding copyright ownership.
+*
+* The Apereo Foundation licenses this file to you under the Educational 
+* Community License, Version 2.0 (the "License"); you may not use this file 
+* except in compliance with the License. You may obtain a copy of the 
+* License at:
+*
+* http://opensource.org/licenses/ecl2.txt
+* 
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package org.sakaiproject.calendaring.logic;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.GregorianCalendar;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.fortuna.ical4j.model.Calendar;
+import net.fortuna.ical4j.model.DateTime;
+import net.fortuna.ical4j.model.TimeZone;
+import net.fortuna.ical4j.model.component.VEvent;
+import net.fortuna.ical4j.model.parameter.Cn;
+import net.fortuna.ical4j.model.parameter.PartStat;
+import net.fortuna.ical4j.model.parameter.Role;
+import net.fortuna.ical4j.model.parameter.Rsvp;
+import net.fortuna.ical4j.model.property.Attendee;
+import net.fortuna.ical4j.model.property.CalScale;
+import net.fortuna.ical4j.model.property.Description;
+import net.fortuna.ical4j.model.property.Location;
+import net.fortuna.ical4j.model.property.Method;
+import net.fortuna.ical4j.model.property.Organizer;
+import net.fortuna.ical4j.model.property.ProdId;
+import net.fortuna.ical4j.model.property.Sequence;
+import net.fortuna.ical4j.model.property.Uid;
+import net.fortuna.ical4j.model.property.Url;
+import net.fortuna.ical4j.model.property.Version;
+import net.fortuna.ical4j.model.property.XProperty;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.lang.math.NumberUtils;
+import org.sakaiproject.calendar.api.CalendarEvent;
+import org.sakaiproject.calendaring.api.CalendarOptions;
+import org.sakaiproject.calendaring.api.CompactCalendar;
+import org.sakaiproject.calendaring.util.ContentLineWriter;
+import org.sakaiproject.calendaring.util.TimeZoneCache;
+
+/**
+ * Holds the events of a calendar column by column rather than as VEvents.
+ * <p>
+ * Start and end times are primitive arrays. Summaries, descriptions and locations are dictionary encoded, as are organisers,
+ * so each distinct value is held once and each event only holds an index. Attendee lists are encoded the same way,
+ * so events with the same attendees share one list. Events are written straight out as content lines.
+ * <p>
+ * Events are added by a single thread. Once built, it can be written out by any number of threads.
+ * <p>
+ * For a calendar too large to hold at all, write the header, then add, write and clear a batch of events at a time, then write the footer.
+ */
+public class ColumnarCalendar implements CompactCalendar {
+
+	private static final int NONE = -1;
+	private static final int INITIAL_CAPACITY = 64;
+	
+	//rough size of the fixed parts of an event, e.g. delimiters, dates and UID
+	private static final int EVENT_OVERHEAD_BYTES = 200;
+	private static final int ATTENDEE_OVERHEAD_BYTES = 60;
+	
+	private static final java.util.TimeZone UTC = java.util.TimeZone.getTimeZone("UTC");
+	
+	private final String prodId;
+	private final String method;
+	private final String timeZoneId;
+	private final TimeZoneCache timeZoneCache;
+	private final long stamp;
+	
+	private int size;
+	private int omitted;
+	
+	private long[] starts = new long[INITIAL_CAPACITY];
+	private long[] ends = new long[INITIAL_CAPACITY];
+	private String[] uids = new String[INITIAL_CAPACITY];
+	private String[] urls = new String[INITIAL_CAPACITY];
+	private int[] sequences = new int[INITIAL_CAPACITY];
+	private int[] summaries = new int[INITIAL_CAPACITY];
+	private int[] descriptions = new int[INITIAL_CAPACITY];
+	private int[] locations = new int[INITIAL_CAPACITY];
+	private int[] organizers = new int[INITIAL_CAPACITY];
+	private int[] attendeeLists = new int[INITIAL_CAPACITY];
+	
+	private final Dictionary<String> text = new Dictionary<String>();
+	private final Dictionary<String> people = new Dictionary<String>();
+	private final List<String> mailUris = new ArrayList<String>();
+	private final List<String> displayNames = new ArrayList<String>();
+	private final Dictionary<List<String>> attendeeListIds = new Dictionary<List<String>>();
+	private final List<int[]> attendeeListPeople = new ArrayList<int[]>();
+	private final List<Integer> attendeeListBytes = new ArrayList<Integer>();
+	
+	/**
+	 * @param prodId the PRODID of the calendar
+	 * @param method the METHOD of the calendar, or null for none
+	 * @param timeZoneId the timezone for the dates, or null for UTC. May be an alias, the dates always refer to the zone by its canonical TZID.
+	 * @param timeZoneCache
+	 */
+	public ColumnarCalendar(String prodId, String method, String timeZoneId, TimeZoneCache timeZoneCache) {
+		this.prodId = prodId;
+		this.method = method;
+		this.timeZoneId = timeZoneCache.getCanonicalId(timeZoneId);
+		this.timeZoneCache = timeZoneCache;
+		this.stamp = System.currentTimeMillis();
+	}
+	
+	/**
+	 * Add a list of attendees who can then be shared by any number of events. Adding the same list again returns the same one.
+	 * @param userIds
+	 * @param details the details of each user
+	 * @return the index of the list to pass to {@link #add(String, CalendarEvent, String, UserDetails, int)}
+	 */
+	public int addAttendees(Collection<String> userIds, Map<String, UserDetails> details) {
+		List<String> ids = new ArrayList<String>(userIds);
+		int index = attendeeListIds.encode(ids);
+		if(index == attendeeListPeople.size()) {
+			int[] list = new int[ids.size()];
+			int bytes = 0;
+			for(int i=0;i<list.length;i++) {
+				list[i] = person(ids.get(i), details.get(ids.get(i)));
+				bytes += ATTENDEE_OVERHEAD_BYTES + mailUris.get(list[i]).length() + StringUtils.length(displayNames.get(list[i]));
+			}
+			attendeeListPeople.add(list);
+			attendeeListBytes.add(bytes);
+		}
+		return index;
+	}
+	
+	/**
+	 * Add an event
+	 * @param uid the UID for the event
+	 * @param event
+	 * @param organizerId the user id of the organiser, or null for none
+	 * @param organizer the details of the organiser, or null for none
+	 * @param attendees the index of a list from {@link #addAttendees(Collection, Map)}, or -1 for none
+	 * @return the approximate number of bytes the event will take when written
+	 */
+	public long add(String uid, CalendarEvent event, String organizerId, UserDetails organizer, int attendees) {
+		if(size == starts.length) {
+			grow();
+		}
+		
+		int i = size++;
+		starts[i] = event.getRange().firstTime().getTime();
+		ends[i] = event.getRange().lastTime().getTime();
+		uids[i] = uid;
+		sequences[i] = NumberUtils.toInt(event.getField("vevent_sequence"), NONE);
+		summaries[i] = text.encode(event.getDisplayName());
+		descriptions[i] = text.encode(event.getDescription());
+		locations[i] = text.encode(event.getLocation());
+		organizers[i] = organizer != null ? person(organizerId, organizer) : NONE;
+		attendeeLists[i] = attendees;
+		
+		//only keep URLs that will parse, as VEvents are only given those
+		urls[i] = null;
+		String url = event.getField("vevent_url");
+		if(StringUtils.isNotBlank(url)) {
+			try {
+				new Url().setValue(url);
+				urls[i] = url;
+			} catch (URISyntaxException e) {
+				//it doesnt matter, ignore it
+			}
+		}
+		
+		long bytes = estimateSize(event, urls[i], organizer);
+		if(attendees != NONE) {
+			bytes += attendeeListBytes.get(attendees);
+		}
+		return bytes;
+	}
+	
+	/**
+	 * Estimate the size of an event once written, from the lengths of its fields, without building or serialising it.
+	 * Attendees are not included.
+	 * @param event
+	 * @param url the URL that will be written for the event, or null for none
+	 * @param organizer the details of the organiser, or null for none
+	 * @return the approximate number of characters
+	 */
+	public static long estimateSize(CalendarEvent event, String url, UserDetails organizer) {
+		long size = EVENT_OVERHEAD_BYTES + StringUtils.length(event.getDisplayName()) + StringUtils.length(event.getDescription())
+				+ StringUtils.length(event.getLocation()) + StringUtils.length(url);
+		if(organizer != null) {
+			size += ATTENDEE_OVERHEAD_BYTES + mailUri(organizer.getEmail()).length() + StringUtils.length(organizer.getDisplayName());
+		}
+		return size;
+	}
+	
+	/**
+	 * Remove the most recently added event, e.g. if it took the calendar over a limit
+	 */
+	public void removeLast() {
+		if(size > 0) {
+			size--;
+		}
+	}
+	
+	/**
+	 * Remove all events, along with the people and attendee lists they used, so the calendar can be reused for the next batch.
+	 * Attendee lists must be added again.
+	 */
+	public void clear() {
+		size = 0;
+		Arrays.fill(uids, null);
+		Arrays.fill(urls, null);
+		text.clear();
+		people.clear();
+		mailUris.clear();
+		displayNames.clear();
+		attendeeListIds.clear();
+		attendeeListPeople.clear();
+		attendeeListBytes.clear();
+	}
+	
+	/**
+	 * Record the number of events that were left out because a limit was reached. The calendar is marked as truncated.
+	 * @param omitted
+	 */
+	public void setOmitted(int omitted) {
+		this.omitted = omitted;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	public int getOmitted() {
+		return omitted;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	public int size() {
+		return size;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	public void write(OutputStream out) throws IOException {
+		ContentLineWriter writer = new ContentLineWriter(out);
+		writeHeader(writer);
+		writeEvents(writer);
+		writeFooter(writer);
+		writer.flush();
+	}
+	
+	/**
+	 * Write the start of the calendar: its properties and VTIMEZONE
+	 * @param writer
+	 * @throws IOException
+	 */
+	public void writeHeader(ContentLineWriter writer) throws IOException {
+		writer.writeValue("BEGIN", "VCALENDAR");
+		writer.writeValue("PRODID", prodId);
+		writer.writeValue("VERSION", Version.VERSION_2_0.getValue());
+		writer.writeValue("CALSCALE", CalScale.GREGORIAN.getValue());
+		if(method != null) {
+			writer.writeValue("METHOD", method);
+		}
+		if(omitted > 0) {
+			writer.writeValue(CalendarOptions.X_TRUNCATED, "TRUE");
+			writer.writeValue(CalendarOptions.X_OMITTED_EVENTS, String.valueOf(omitted));
+		}
+		
+		if(timeZoneId != null) {
+			byte[] vtimezone = timeZoneCache.getSerialized(timeZoneId);
+			writer.writeRaw(vtimezone, 0, vtimezone.length);
+		}
+	}
+	
+	/**
+	 * Write the events added so far. Together with {@link #clear()} this lets a calendar of any size be written a batch at a time.
+	 * @param writer
+	 * @throws IOException
+	 */
+	public void writeEvents(ContentLineWriter writer) throws IOException {
+		writeEvents(writer, null);
+	}
+	
+	/**
+	 * Write the events added so far, noting where each one ends, e.g. so they can be shared out between files
+	 * @param writer
+	 * @param offsets if not null, the total bytes written by the writer after each event
+	 * @throws IOException
+	 */
+	public void writeEvents(ContentLineWriter writer, long[] offsets) throws IOException {
+		DateFormatter dates = new DateFormatter(timeZoneId != null ? timeZoneCache.getTimeZone(timeZoneId) : null);
+		DateFormatter utc = new DateFormatter(null);
+		
+		String dtstamp = utc.format(stamp).toString();
+		for(int i=0;i<size;i++) {
+			writer.writeValue("BEGIN", "VEVENT");
+			writer.writeValue("DTSTAMP", dtstamp);
+			writeDate(writer, "DTSTART", dates, starts[i]);
+			writeDate(writer, "DTEND", dates, ends[i]);
+			writer.writeText("SUMMARY", text.decode(summaries[i]));
+			writer.writeValue("UID", uids[i]);
+			if(sequences[i] != NONE) {
+				writer.writeValue("SEQUENCE", String.valueOf(sequences[i]));
+			}
+			writer.writeText("DESCRIPTION", text.decode(descriptions[i]));
+			writer.writeText("LOCATION", text.decode(locations[i]));
+			if(organizers[i] != NONE) {
+				writer.startLine("ORGANIZER");
+				writeCn(writer, organizers[i]);
+				writer.appendValue(mailUris.get(organizers[i]));
+				writer.endLine();
+			}
+			if(urls[i] != null) {
+				writer.writeValue("URL", urls[i]);
+			}
+			if(attendeeLists[i] != NONE) {
+				for(int p: attendeeListPeople.get(attendeeLists[i])) {
+					writer.startLine("ATTENDEE");
+					writer.appendParameter("ROLE", Role.REQ_PARTICIPANT.getValue());
+					writeCn(writer, p);
+					writer.appendParameter("PARTSTAT", PartStat.ACCEPTED.getValue());
+					writer.appendParameter("RSVP", Rsvp.FALSE.getValue());
+					writer.appendValue(mailUris.get(p));
+					writer.endLine();
+				}
+			}
+			writer.writeValue("END", "VEVENT");
+			
+			if(offsets != null) {
+				offsets[i] = writer.getBytesWritten();
+			}
+		}
+	}
+	
+	/**
+	 * Write the end of the calendar
+	 * @param writer
+	 * @throws IOException
+	 */
+	public void writeFooter(ContentLineWriter writer) throws IOException {
+		writer.writeValue("END", "VCALENDAR");
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	public Calendar toCalendar() {
+		Calendar calendar = new Calendar();
+		calendar.getProperties().add(new ProdId(prodId));
+		calendar.getProperties().add(Version.VERSION_2_0);
+		calendar.getProperties().add(CalScale.GREGORIAN);
+		if(method != null) {
+			calendar.getProperties().add(new Method(method));
+		}
+		if(omitted > 0) {
+			calendar.getProperties().add(new XProperty(CalendarOptions.X_TRUNCATED, "TRUE"));
+			calendar.getProperties().add(new XProperty(CalendarOptions.X_OMITTED_EVENTS, String.valueOf(omitted)));
+		}
+		
+		TimeZone timezone = null;
+		if(timeZoneId != null) {
+			timezone = timeZoneCache.getTimeZone(timeZoneId);
+			calendar.getComponents().add(timeZoneCache.getVTimeZone(timeZoneId));
+		}
+		
+		//properties can be changed, so each event gets its own. Only the immutable address of each person is shared.
+		URI[] addresses = new URI[people.size()];
+		
+		for(int i=0;i<size;i++) {
+			VEvent vevent = new VEvent(createDateTime(starts[i], timezone), createDateTime(ends[i], timezone), text.decode(summaries[i]));
+			vevent.getProperties().add(new Uid(uids[i]));
+			if(sequences[i] != NONE) {
+				vevent.getProperties().add(new Sequence(sequences[i]));
+			}
+			vevent.getProperties().add(new Description(text.decode(descriptions[i])));
+			vevent.getProperties().add(new Location(text.decode(locations[i])));
+			
+			int o = organizers[i];
+			if(o != NONE) {
+				Organizer organizer = new Organizer(address(addresses, o));
+				if(displayNames.get(o) != null) {
+					organizer.getParameters().add(new Cn(displayNames.get(o)));
+				}
+				vevent.getProperties().add(organizer);
+			}
+			
+			if(urls[i] != null) {
+				Url u = new Url();
+				try {
+					u.setValue(urls[i]);
+					vevent.getProperties().add(u);
+				} catch (URISyntaxException e) {
+					//checked when added, can't happen
+				}
+			}
+			
+			if(attendeeLists[i] != NONE) {
+				for(int p: attendeeListPeople.get(attendeeLists[i])) {
+					Attendee a = new Attendee(address(addresses, p));
+					a.getParameters().add(Role.REQ_PARTICIPANT);
+					if(displayNames.get(p) != null) {
+						a.getParameters().add(new Cn(displayNames.get(p)));
+					}
+					a.getParameters().add(PartStat.ACCEPTED);
+					a.getParameters().add(Rsvp.FALSE);
+					vevent.getProperties().add(a);
+				}
+			}
+			
+			calendar.getComponents().add(vevent);
+		}
+		return calendar;
+	}
+	
+	/**
+	 * Get the mail URI of a person, parsing it the first time it is needed
+	 */
+	private URI address(URI[] addresses, int person) {
+		if(addresses[person] == null) {
+			addresses[person] = URI.create(mailUris.get(person));
+		}
+		return addresses[person];
+	}
+	
+	/**
+	 * Add a person to the dictionary
+	 * @return their index
+	 */
+	private int person(String userId, UserDetails details) {
+		int index = people.encode(userId);
+		if(index == mailUris.size()) {
+			mailUris.add(mailUri(details != null ? details.getEmail() : null));
+			displayNames.add(details != null ? details.getDisplayName() : null);
+		}
+		return index;
+	}
+	
+	private static String mailUri(String email) {
+		return StringUtils.isEmpty(email) ? "noemail" : "mailto:" + email;
+	}
+	
+	private void writeCn(ContentLineWriter writer, int person) throws IOException {
+		String displayName = displayNames.get(person);
+		if(displayName != null) {
+			writer.appendParameter("CN", displayName);
+		}
+	}
+	
+	private void writeDate(ContentLineWriter writer, String name, DateFormatter dates, long millis) throws IOException {
+		writer.startLine(name);
+		if(timeZoneId != null) {
+			writer.appendParameter("TZID", timeZoneId);
+		}
+		writer.appendValue(dates.format(millis));
+		writer.endLine();
+	}
+	
+	private DateTime createDateTime(long millis, TimeZone timezone) {
+		DateTime dateTime = new DateTime(millis);
+		if(timezone != null) {
+			dateTime.setTimeZone(timezone);
+		} else {
+			dateTime.setUtc(true);
+		}
+		return dateTime;
+	}
+	
+	private void grow() {
+		int capacity = starts.length * 2;
+		starts = Arrays.copyOf(starts, capacity);
+		ends = Arrays.copyOf(ends, capacity);
+		uids = Arrays.copyOf(uids, capacity);
+		urls = Arrays.copyOf(urls, capacity);
+		sequences = Arrays.copyOf(sequences, capacity);
+		summaries = Arrays.copyOf(summaries, capacity);
+		descriptions = Arrays.copyOf(descriptions, capacity);
+		locations = Arrays.copyOf(locations, capacity);
+		organizers = Arrays.copyOf(organizers, capacity);
+		attendeeLists = Arrays.copyOf(attendeeLists, capacity);
+	}
+	
+	/**
+	 * Assigns each distinct value an index, in the order they are first seen. null is always {@link ColumnarCalendar#NONE}.
+	 */
+	private static class Dictionary<T> {
+		
+		private final Map<T, Integer> indexes = new HashMap<T, Integer>();
+		private final List<T> values = new ArrayList<T>();
+		
+		private int encode(T value) {
+			if(value == null) {
+				return NONE;
+			}
+			Integer index = indexes.get(value);
+			if(index == null) {
+				index = values.size();
+				indexes.put(value, index);
+				values.add(value);
+			}
+			return index;
+		}
+		
+		private T decode(int index) {
+			return index == NONE ? null : values.get(index);
+		}
+		
+		private int size() {
+			return values.size();
+		}
+		
+		private void clear() {
+			indexes.clear();
+			values.clear();
+		}
+	}
+	
+	/**
+	 * Formats times as iCalendar DATE-TIME values in a timezone, or in UTC, reusing the same buffer for each
+	 */
+	private static class DateFormatter {
+		
+		private final java.util.Calendar calendar;
+		private final boolean utc;
+		private final StringBuilder sb = new StringBuilder(16);
+		
+		private DateFormatter(java.util.TimeZone timezone) {
+			this.utc = timezone == null;
+			this.calendar = new GregorianCalendar(utc ? UTC : timezone);
+		}
+		
+		private CharSequence format(long millis) {
+			calendar.setTimeInMillis(millis);
+			sb.setLength(0);
+			pad(calendar.get(java.util.Calendar.YEAR), 4);
+			pad(calendar.get(java.util.Calendar.MONTH) + 1, 2);
+			pad(calendar.get(java.util.Calendar.DAY_OF_MONTH), 2);
+			sb.append('T');
+			pad(calendar.get(java.util.Calendar.HOUR_OF_DAY), 2);
+			pad(calendar.get(java.util.Calendar.MINUTE), 2);
+			pad(calendar.get(java.util.Calendar.SECOND), 2);
+			if(utc) {
+				sb.append('Z');
+			}
+			return sb;
+		}
+		
+		private void pad(int value, int digits) {
+			int p = 1;
+			for(int d=1;d<digits;d++) {
+				p *= 10;
+			}
+			for(;p>0;p/=10) {
+				sb.append((char)('0' + (value / p) % 10));
+			}
+		}
+	}
+}
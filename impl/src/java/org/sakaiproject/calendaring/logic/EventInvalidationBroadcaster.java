@@ -0,0 +1,104 @@
+/*
+* Licensed to The Apereo Foundation under one or more contributor license
+* agreements. See the NOTICE file distributed with this work for
+* additional information regarding copyright ownership.
+*
+* The Apereo Foundation licenses this file to you under the Educational 
+* Community License, Version 2.0 (the "License"); you may not use this file 
+* except in compliance with the License. You may obtain a copy of the 
+* License at:
+*
+* http://opensource.org/licenses/ecl2.txt
+* 
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package org.sakaiproject.calendaring.logic;
+
+import java.util.List;
+import java.util.Observable;
+import java.util.Observer;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import lombok.extern.apachecommons.CommonsLog;
+
+import org.sakaiproject.event.api.Event;
+
+/**
+ * {@link InvalidationBroadcaster} built on Sakai's event tracking, which already carries events between the nodes of a cluster.
+ * <p>
+ * Listeners on this node are told straight away. Other nodes are told when they next pick up cluster events, so the delay is bounded
+ * by Sakai's cluster event polling interval. This node sees its own event again too, which is harmless.
+ */
+@CommonsLog
+public class EventInvalidationBroadcaster implements InvalidationBroadcaster, Observer {
+
+	/**
+	 * The event posted for each invalidation. The resource is the region and key separated by a colon.
+	 */
+	public static final String EVENT_INVALIDATE = "calendaring.invalidate";
+	
+	private final SakaiProxy sakaiProxy;
+	private final ServiceMetrics metrics;
+	private final List<InvalidationListener> listeners = new CopyOnWriteArrayList<InvalidationListener>();
+	
+	public EventInvalidationBroadcaster(SakaiProxy sakaiProxy, ServiceMetrics metrics) {
+		this.sakaiProxy = sakaiProxy;
+		this.metrics = metrics;
+		sakaiProxy.addEventObserver(this);
+	}
+	
+	@Override
+	public void broadcast(String region, String key) {
+		notifyListeners(region, key);
+		sakaiProxy.postEvent(EVENT_INVALIDATE, region + ":" + key, false);
+		metrics.increment("invalidations.sent");
+	}
+	
+	@Override
+	public void addListener(InvalidationListener listener) {
+		listeners.add(listener);
+	}
+	
+	@Override
+	public void shutdown() {
+		sakaiProxy.deleteEventObserver(this);
+	}
+	
+	/**
+	 * Called for every event on every node, so get out quickly if it's not ours
+	 */
+	@Override
+	public void update(Observable o, Object arg) {
+		if(!(arg instanceof Event)) {
+			return;
+		}
+		Event event = (Event) arg;
+		if(!EVENT_INVALIDATE.equals(event.getEvent())) {
+			return;
+		}
+		
+		String resource = event.getResource();
+		int colon = resource != null ? resource.indexOf(':') : -1;
+		if(colon < 0) {
+			log.warn("Ignoring invalidation with no region: " + resource);
+			return;
+		}
+		metrics.increment("invalidations.received");
+		notifyListeners(resource.substring(0, colon), resource.substring(colon + 1));
+	}
+	
+	private void notifyListeners(String region, String key) {
+		for(InvalidationListener listener: listeners) {
+			try {
+				listener.invalidate(region, key);
+			} catch (Exception e) {
+				log.error("Error invalidating " + region + ":" + key + " : " + e.getClass() + " : " + e.getMessage());
+			}
+		}
+	}
+}
@@ -0,0 +1,155 @@
+/*
+* Licensed to The Apereo Foundation under one or more contributor license
+* agreements. See the NOTICE file distributed with this work for
+* additional information regarding copyright ownership.
+*
+* The Apereo Foundation licenses this file to you under the Educational 
+* Community License, Version 2.0 (the "License"); you may not use this file 
+* except in compliance with the License. You may obtain a copy of the 
+* License at:
+*
+* http://opensource.org/licenses/ecl2.txt
+* 
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package org.sakaiproject.calendaring.logic;
+
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.sakaiproject.calendar.api.CalendarEvent;
+import org.sakaiproject.user.api.User;
+
+/**
+ * A compact record of the state of an event as it was last sent, used to work out what has changed in an update.
+ * <p>
+ * Rather than the values themselves, only a 64 bit hash of each significant field is kept, apart from the start and end times.
+ * Attendees are hashed as a set, so reordering them is not a change.
+ */
+public class EventSnapshot {
+
+	public static final String[] FIELDS = {"SUMMARY", "DTSTART", "DTEND", "LOCATION", "DESCRIPTION", "URL", "ORGANIZER", "ATTENDEE"};
+	
+	private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+	private static final long FNV_PRIME = 0x100000001b3L;
+	
+	private final String uid;
+	private final int sequence;
+	private final String creator;
+	private final long start;
+	private final long[] hashes;
+	
+	private EventSnapshot(String uid, int sequence, String creator, long start, long[] hashes) {
+		this.uid = uid;
+		this.sequence = sequence;
+		this.creator = creator;
+		this.start = start;
+		this.hashes = hashes;
+	}
+	
+	/**
+	 * Take a snapshot of an event and its attendees
+	 * @param uid the UID of the VEvent
+	 * @param sequence the sequence the VEvent is sent with
+	 * @param event
+	 * @param attendees may be null
+	 * @return
+	 */
+	public static EventSnapshot create(String uid, int sequence, CalendarEvent event, List<User> attendees) {
+		long start = event.getRange().firstTime().getTime();
+		
+		long[] hashes = new long[FIELDS.length];
+		hashes[0] = hash(event.getDisplayName());
+		hashes[1] = start;
+		hashes[2] = event.getRange().lastTime().getTime();
+		hashes[3] = hash(event.getLocation());
+		hashes[4] = hash(event.getDescription());
+		hashes[5] = hash(event.getField("vevent_url"));
+		hashes[6] = hash(event.getCreator());
+		
+		long attendeeHash = 0;
+		if(attendees != null) {
+			for(User u: attendees) {
+				attendeeHash += hash(u.getId()) * 31 + hash(u.getEmail()) * 17 + hash(u.getDisplayName());
+			}
+		}
+		hashes[7] = attendeeHash;
+		
+		return new EventSnapshot(uid, sequence, event.getCreator(), start, hashes);
+	}
+	
+	/**
+	 * Get the names of the fields that differ between this snapshot and a previous one
+	 * @param previous
+	 * @return names from {@link #FIELDS}, empty if nothing has changed
+	 */
+	public Set<String> diff(EventSnapshot previous) {
+		Set<String> changed = new LinkedHashSet<String>();
+		for(int i=0;i<FIELDS.length;i++) {
+			if(hashes[i] != previous.hashes[i]) {
+				changed.add(FIELDS[i]);
+			}
+		}
+		return changed;
+	}
+	
+	/**
+	 * Copy of this snapshot with a different sequence
+	 * @param sequence
+	 * @return
+	 */
+	public EventSnapshot withSequence(int sequence) {
+		return new EventSnapshot(uid, sequence, creator, start, hashes);
+	}
+	
+	public String getUid() {
+		return uid;
+	}
+	
+	public int getSequence() {
+		return sequence;
+	}
+	
+	/**
+	 * The start time of the event in millis
+	 * @return
+	 */
+	public long getStart() {
+		return start;
+	}
+	
+	/**
+	 * The id of the user that organised the event
+	 * @return
+	 */
+	public String getCreator() {
+		return creator;
+	}
+	
+	@Override
+	public String toString() {
+		return "EventSnapshot[uid=" + uid + ", sequence=" + sequence + ", hashes=" + Arrays.toString(hashes) + "]";
+	}
+	
+	/**
+	 * 64 bit FNV-1a hash of a string, 0 for null
+	 */
+	private static long hash(String s) {
+		if(s == null) {
+			return 0;
+		}
+		long h = FNV_OFFSET;
+		for(int i=0;i<s.length();i++) {
+			h ^= s.charAt(i);
+			h *= FNV_PRIME;
+		}
+		return h;
+	}
+}
@@ -0,0 +1,47 @@
+/*
+* Licensed to The Apereo Foundation under one or more contributor license
+* agreements. See the NOTICE file distributed with this work for
+* additional information regarding copyright ownership.
+*
+* The Apereo Foundation licenses this file to you under the Educational 
+* Community License, Version 2.0 (the "License"); you may not use this file 
+* except in compliance with the License. You may obtain a copy of the 
+* License at:
+*
+* http://opensource.org/licenses/ecl2.txt
+* 
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package org.sakaiproject.calendaring.logic;
+
+/**
+ * Stores the last sent state of each event, keyed by UID.
+ * <p>
+ * Implementations must be thread safe.
+ */
+public interface EventSnapshotStore {
+
+	/**
+	 * Get the snapshot of the event as it was last sent
+	 * @param uid
+	 * @return the snapshot or null if there isn't one
+	 */
+	public EventSnapshot get(String uid);
+	
+	/**
+	 * Record the state of an event that is being sent, replacing any previous snapshot with the same UID
+	 * @param snapshot
+	 */
+	public void put(EventSnapshot snapshot);
+	
+	/**
+	 * Forget about an event
+	 * @param uid
+	 */
+	public void remove(String uid);
+}
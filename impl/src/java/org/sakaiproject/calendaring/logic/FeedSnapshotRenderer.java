@@ -0,0 +1,430 @@
+/*
+* Licensed to The Apereo Foundation under one or more contributor license
+* agreements. See the NOTICE file distributed with this work for
+* additional information regarding copyright ownership.
+*
+* The Apereo Foundation licenses this file to you under the Educational 
+* Community License, Version 2.0 (the "License"); you may not use this file 
+* except in compliance with the License. You may obtain a copy of the 
+* License at:
+*
+* http://opensource.org/licenses/ecl2.txt
+* 
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package org.sakaiproject.calendaring.logic;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPOutputStream;
+
+import lombok.extern.apachecommons.CommonsLog;
+import net.fortuna.ical4j.model.Calendar;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.sakaiproject.calendaring.api.CalendarFeed;
+import org.sakaiproject.calendaring.api.CalendarFeedProvider;
+import org.sakaiproject.calendaring.api.ExternalCalendaringService;
+import org.sakaiproject.calendaring.api.FeedSnapshot;
+
+/**
+ * Renders the busiest calendar feeds to disk on a schedule, so they can be served straight from a file.
+ * <p>
+ * Each render is written to a temporary file and then moved to a new, uniquely named file, so a reader never sees a half written
+ * snapshot and a file never changes once it is served. A container may send a file some time after it was handed out, and by name,
+ * so a generation that has been replaced is kept for {@link SakaiProxy#getFeedSnapshotMaxAge()} plus {@link SakaiProxy#getFeedSnapshotSendTime()}
+ * before it is deleted.
+ * Feeds whose ETag hasn't changed since the last render are not rendered again.
+ * <p>
+ * Only a render swaps or retires the snapshot of a feed, and renders of the same feed take turns. An invalidation just stops anything
+ * rendered before it from being served, and asks for a new render.
+ * <p>
+ * Snapshots are kept in a <code>feeds</code> directory under {@link SakaiProxy#getCalendarFilePath()} and count towards the
+ * {@link GeneratedFileQuota}, but are pinned so the quota never evicts them while they may be being sent. Snapshots left behind by a previous run
+ * are deleted on startup.
+ */
+@CommonsLog
+public class FeedSnapshotRenderer {
+
+	private final ExternalCalendaringService service;
+	private final SakaiProxy sakaiProxy;
+	private final ServiceMetrics metrics;
+	private final GeneratedFileQuota quota;
+	private final File directory;
+	
+	//md5 of the feed id, then the render time, see render()
+	private static final Pattern SNAPSHOT_NAME = Pattern.compile("[0-9a-f]{32}-[0-9]+\\.ics(\\.gz)?");
+	private static final String TEMP_PREFIX = "feed";
+	private static final String TEMP_SUFFIX = ".tmp";
+	
+	private final Map<String, FeedSnapshot> snapshots = new ConcurrentHashMap<String, FeedSnapshot>();
+	private final ConcurrentMap<File, Retired> retired = new ConcurrentHashMap<File, Retired>();
+	private final ConcurrentMap<String, Long> invalidatedAt = new ConcurrentHashMap<String, Long>();
+	private final ConcurrentMap<String, Object> locks = new ConcurrentHashMap<String, Object>();
+	
+	private ScheduledExecutorService scheduler;
+	private volatile Set<String> feedIds = Collections.emptySet();
+	
+	public FeedSnapshotRenderer(ExternalCalendaringService service, SakaiProxy sakaiProxy, ServiceMetrics metrics, GeneratedFileQuota quota) {
+		this.service = service;
+		this.sakaiProxy = sakaiProxy;
+		this.metrics = metrics;
+		this.quota = quota;
+		this.directory = new File(sakaiProxy.getCalendarFilePath(), "feeds");
+	}
+	
+	/**
+	 * Start rendering the configured feeds in the background, if there are any.
+	 * The first render waits for one interval, as the tool providing the feeds may not have started yet.
+	 * Any snapshots left behind by a previous run are deleted first, whether or not there are feeds to render now.
+	 */
+	public void start() {
+		deleteOrphans();
+		
+		final String[] ids = sakaiProxy.getFeedSnapshotIds();
+		if(ids == null || ids.length == 0) {
+			return;
+		}
+		feedIds = new HashSet<String>(Arrays.asList(ids));
+		
+		int interval = sakaiProxy.getFeedSnapshotInterval();
+		scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "ExternalCalendaringService-feeds");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		scheduler.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				for(String feedId: ids) {
+					renderQuietly(feedId);
+				}
+				releaseRetired(System.currentTimeMillis());
+			}
+		}, interval, interval, TimeUnit.SECONDS);
+		
+		log.info("Rendering snapshots of " + ids.length + " feeds every " + interval + "s");
+	}
+	
+	/**
+	 * Stop rendering
+	 */
+	public void shutdown() {
+		if(scheduler != null) {
+			scheduler.shutdownNow();
+		}
+	}
+	
+	/**
+	 * Get the current snapshot of a feed, if it is fresh enough to serve
+	 * @param feedId
+	 * @return the snapshot or null
+	 */
+	public FeedSnapshot get(String feedId) {
+		FeedSnapshot snapshot = snapshots.get(feedId);
+		if(snapshot == null || isInvalidated(snapshot)) {
+			return null;
+		}
+		//removed by hand. Left for the next render to replace, so its other file is still released
+		if(!exists(snapshot)) {
+			metrics.increment("feeds.snapshot.missing");
+			return null;
+		}
+		if(System.currentTimeMillis() - snapshot.getRenderedAt() > sakaiProxy.getFeedSnapshotMaxAge() * 1000L) {
+			metrics.increment("feeds.snapshot.stale");
+			return null;
+		}
+		return snapshot;
+	}
+	
+	/**
+	 * Stop serving the snapshot of a feed because it has changed. If it is one of the feeds being rendered, it is rendered again in the background.
+	 * The snapshot itself is left for that render to replace, as this is called from whichever thread saw the change.
+	 * @param feedId
+	 */
+	public void invalidate(final String feedId) {
+		//only remembered for feeds we have or will have snapshots of, so this doesn't grow with every feed that changes
+		if(feedIds.contains(feedId) || snapshots.containsKey(feedId)) {
+			invalidatedAt.put(feedId, System.currentTimeMillis());
+			metrics.increment("feeds.snapshot.invalidated");
+		}
+		
+		if(scheduler != null && feedIds.contains(feedId)) {
+			scheduler.execute(new Runnable() {
+				public void run() {
+					renderQuietly(feedId);
+				}
+			});
+		}
+	}
+	
+	/**
+	 * Render a feed to disk now, unless it hasn't changed since it was last rendered
+	 * @param feedId
+	 * @return the new snapshot, or null if the feed doesn't exist
+	 * @throws IOException if the snapshot couldn't be written
+	 */
+	public FeedSnapshot render(String feedId) throws IOException {
+		synchronized(lockFor(feedId)) {
+			return renderLocked(feedId);
+		}
+	}
+	
+	/**
+	 * Render a feed, with no other render of the same feed running at the same time
+	 */
+	private FeedSnapshot renderLocked(String feedId) throws IOException {
+		
+		//before the feed is read, so an invalidation while this render is running still applies to what it renders
+		long now = System.currentTimeMillis();
+		
+		CalendarFeedProvider provider = sakaiProxy.getCalendarFeedProvider();
+		if(provider == null) {
+			log.warn("No CalendarFeedProvider is registered, cannot render snapshot of feed: " + feedId);
+			return null;
+		}
+		
+		CalendarFeed feed = provider.getFeed(feedId);
+		if(feed == null) {
+			log.warn("No such feed, cannot render snapshot of feed: " + feedId);
+			return null;
+		}
+		
+		//unchanged, the files we have are still good
+		FeedSnapshot current = snapshots.get(feedId);
+		if(current != null && !isInvalidated(current) && exists(current) && feed.getETag() != null && feed.getETag().equals(current.getETag())) {
+			FeedSnapshot confirmed = current.confirmedAt(now);
+			snapshots.put(feedId, confirmed);
+			metrics.increment("feeds.snapshot.unchanged");
+			return confirmed;
+		}
+		
+		Calendar calendar = feed.getCalendar();
+		if(calendar == null) {
+			throw new IOException("No calendar for feed: " + feedId);
+		}
+		
+		if(!quota.hasRoom()) {
+			throw new IOException("Calendar file quota exceeded, cannot render snapshot of feed: " + feedId);
+		}
+		
+		if(!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Couldn't create directory: " + directory);
+		}
+		
+		//unique per render, so a file never changes once it's been served
+		String name = DigestUtils.md5Hex(feedId) + "-" + now;
+		File file = new File(directory, name + ".ics");
+		File gzipFile = new File(directory, name + ".ics.gz");
+		
+		writeAtomically(calendar, file);
+		
+		//compress what was just written rather than serialising the calendar again
+		try {
+			gzipAtomically(file, gzipFile);
+		} catch (IOException e) {
+			FileUtils.deleteQuietly(file);
+			throw e;
+		}
+		
+		//pinned, as they may still be being sent after they've been replaced, see releaseRetired()
+		if(!quota.admitAll(Arrays.asList(file, gzipFile), true)) {
+			throw new IOException("Calendar file quota exceeded, refused snapshot of feed: " + feedId);
+		}
+		
+		FeedSnapshot snapshot = new FeedSnapshot(feedId, file, gzipFile, feed.getETag(), feed.getLastModified(), now);
+		snapshots.put(feedId, snapshot);
+		
+		if(current != null) {
+			retire(current, now);
+		}
+		releaseRetired(now);
+		
+		metrics.increment("feeds.snapshot.rendered");
+		if(log.isDebugEnabled()) {
+			log.debug("Rendered " + snapshot);
+		}
+		return snapshot;
+	}
+	
+	/**
+	 * Keep a snapshot that's no longer current for anyone still sending it, until {@link #releaseRetired(long)} decides it can't be.
+	 * Retiring the same snapshot twice does nothing.
+	 */
+	private void retire(FeedSnapshot snapshot, long now) {
+		retired.putIfAbsent(snapshot.getFile(), new Retired(snapshot, now));
+	}
+	
+	/**
+	 * Delete the retired snapshots that can't still be being sent. A snapshot may have been handed out just before it was retired,
+	 * and the container may take up to the send time to start sending it by name. The maximum age is added to that to be safe.
+	 * @param now
+	 */
+	private void releaseRetired(long now) {
+		long keep = (sakaiProxy.getFeedSnapshotMaxAge() + sakaiProxy.getFeedSnapshotSendTime()) * 1000L;
+		for(Retired r: retired.values()) {
+			if(now - r.retiredAt >= keep && retired.remove(r.snapshot.getFile(), r)) {
+				quota.release(r.snapshot.getFile());
+				quota.release(r.snapshot.getGzipFile());
+			}
+		}
+	}
+	
+	/**
+	 * Has the feed changed since this snapshot was rendered?
+	 */
+	private boolean isInvalidated(FeedSnapshot snapshot) {
+		Long at = invalidatedAt.get(snapshot.getFeedId());
+		return at != null && at.longValue() >= snapshot.getRenderedAt();
+	}
+	
+	private boolean exists(FeedSnapshot snapshot) {
+		return snapshot.getFile().exists() && snapshot.getGzipFile().exists();
+	}
+	
+	private Object lockFor(String feedId) {
+		Object lock = locks.get(feedId);
+		if(lock == null) {
+			Object created = new Object();
+			lock = locks.putIfAbsent(feedId, created);
+			if(lock == null) {
+				lock = created;
+			}
+		}
+		return lock;
+	}
+	
+	/**
+	 * Delete the snapshots and temporary files of a previous run. Nothing refers to them any more, so they would otherwise never be removed.
+	 */
+	private void deleteOrphans() {
+		File[] files = directory.listFiles();
+		if(files == null) {
+			return;
+		}
+		int deleted = 0;
+		for(File file: files) {
+			String name = file.getName();
+			boolean temp = name.startsWith(TEMP_PREFIX) && name.endsWith(TEMP_SUFFIX);
+			if(!file.isFile() || !(temp || SNAPSHOT_NAME.matcher(name).matches())) {
+				continue;
+			}
+			if(file.delete()) {
+				deleted++;
+			} else {
+				log.warn("Couldn't delete old feed snapshot: " + file.getPath());
+			}
+		}
+		if(deleted > 0) {
+			log.info("Deleted " + deleted + " feed snapshot files left by a previous run");
+		}
+	}
+	
+	/**
+	 * Render a feed, logging rather than throwing any error so one bad feed can't stop the others or kill the schedule
+	 */
+	private void renderQuietly(String feedId) {
+		try {
+			render(feedId);
+		} catch (Exception e) {
+			metrics.increment("feeds.snapshot.error");
+			log.error("Couldn't render snapshot of feed: " + feedId + " : " + e.getClass() + " : " + e.getMessage());
+		}
+	}
+	
+	/**
+	 * Write the calendar to a temporary file and move it into place in one step
+	 */
+	private void writeAtomically(Calendar calendar, File target) throws IOException {
+		File temp = File.createTempFile(TEMP_PREFIX, TEMP_SUFFIX, directory);
+		OutputStream out = null;
+		try {
+			out = new FileOutputStream(temp);
+			service.writeCalendar(calendar, out);
+			out.close();
+			out = null;
+			
+			moveIntoPlace(temp, target);
+		} finally {
+			IOUtils.closeQuietly(out);
+			deleteTemp(temp);
+		}
+	}
+	
+	/**
+	 * Gzip a file that has already been written to a temporary file and move it into place in one step
+	 */
+	private void gzipAtomically(File source, File target) throws IOException {
+		File temp = File.createTempFile(TEMP_PREFIX, TEMP_SUFFIX, directory);
+		InputStream in = null;
+		OutputStream out = null;
+		try {
+			in = new FileInputStream(source);
+			out = new GZIPOutputStream(new FileOutputStream(temp), 8192);
+			IOUtils.copy(in, out);
+			out.close();
+			out = null;
+			
+			moveIntoPlace(temp, target);
+		} finally {
+			IOUtils.closeQuietly(in);
+			IOUtils.closeQuietly(out);
+			deleteTemp(temp);
+		}
+	}
+	
+	private void moveIntoPlace(File temp, File target) throws IOException {
+		try {
+			Files.move(temp.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+		} catch (AtomicMoveNotSupportedException e) {
+			//target is a new name, so nobody can be reading it yet
+			Files.move(temp.toPath(), target.toPath());
+		}
+	}
+	
+	private void deleteTemp(File temp) {
+		if(temp.exists() && !temp.delete()) {
+			log.warn("Couldn't delete temporary file: " + temp);
+		}
+	}
+	
+	/**
+	 * A snapshot that has been replaced, and when
+	 */
+	private static class Retired {
+		private final FeedSnapshot snapshot;
+		private final long retiredAt;
+		
+		private Retired(FeedSnapshot snapshot, long retiredAt) {
+			this.snapshot = snapshot;
+			this.retiredAt = retiredAt;
+		}
+	}
+}
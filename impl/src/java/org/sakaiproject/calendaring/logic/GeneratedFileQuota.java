@@ -0,0 +1,282 @@
+/*
+* Licensed to The Apereo Foundation under one or more contributor license
+* agreements. See the NOTICE file distributed with this work for
+* additional information regarding copyright ownership.
+*
+* The Apereo Foundation licenses this file to you under the Educational 
+* Community License, Version 2.0 (the "License"); you may not use this file 
+* except in compliance with the License. You may obtain a copy of the 
+* License at:
+*
+* http://opensource.org/licenses/ecl2.txt
+* 
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package org.sakaiproject.calendaring.logic;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import lombok.extern.apachecommons.CommonsLog;
+
+import org.apache.commons.io.comparator.LastModifiedFileComparator;
+
+/**
+ * Keeps track of the ICS files this node has written under the calendar file path and enforces the configured quota.
+ * <p>
+ * Files are tracked oldest first. Once the quota is exceeded, the oldest files are deleted to make room, or
+ * the new file is refused, depending on the configured policy. Files that have already been removed by someone
+ * else (e.g. the consuming tool) are dropped from the accounting before anything is evicted.
+ * <p>
+ * Files written before a restart are picked up by {@link #scan(File, Pattern)} when the service starts.
+ * <p>
+ * Files can be admitted as pinned, when whoever wrote them decides when they are deleted, e.g. feed snapshots that may still be being sent.
+ * Pinned files count towards the quota but are never evicted, they must be {@link #release(File) released}.
+ */
+@CommonsLog
+public class GeneratedFileQuota {
+
+	private final SakaiProxy sakaiProxy;
+	private final ServiceMetrics metrics;
+	
+	private final LinkedList<TrackedFile> files = new LinkedList<TrackedFile>();
+	private long bytesUsed;
+	
+	public GeneratedFileQuota(SakaiProxy sakaiProxy, ServiceMetrics metrics) {
+		this.sakaiProxy = sakaiProxy;
+		this.metrics = metrics;
+		publish();
+	}
+	
+	/**
+	 * Start accounting for the generated files already in a directory, for example those written before a restart,
+	 * so that the quota covers everything on disk and not just what has been written since. Should be called before any file is admitted.
+	 * Files are tracked oldest first, so they are the first to be evicted.
+	 * 
+	 * @param directory where the files are written
+	 * @param names that the names of generated files match, so that nothing else in the directory is counted or evicted
+	 * @return the number of files found
+	 */
+	public synchronized int scan(File directory, final Pattern names) {
+		File[] found = directory.listFiles(new FileFilter() {
+			public boolean accept(File file) {
+				return file.isFile() && names.matcher(file.getName()).matches();
+			}
+		});
+		if(found == null) {
+			return 0;
+		}
+		
+		Arrays.sort(found, LastModifiedFileComparator.LASTMODIFIED_COMPARATOR);
+		for(File file: found) {
+			long size = file.length();
+			files.addLast(new TrackedFile(file, size, false));
+			bytesUsed += size;
+		}
+		
+		publish();
+		if(found.length > 0) {
+			log.info("Found " + found.length + " calendar files (" + bytesUsed + " bytes) from before startup in: " + directory);
+		}
+		return found.length;
+	}
+	
+	/**
+	 * Is there room for another file? Only relevant when the policy is to refuse, since eviction can always make room.
+	 * @return
+	 */
+	public synchronized boolean hasRoom() {
+		if(sakaiProxy.isCalendarFileQuotaEvictionEnabled() || !isExceeded(0, 1)) {
+			return true;
+		}
+		pruneMissing();
+		return !isExceeded(0, 1);
+	}
+	
+	/**
+	 * Account for a file that has just been written. If the quota is now exceeded, older files are evicted,
+	 * or, if the policy is to refuse, the new file is deleted.
+	 * 
+	 * @param file the file that was written
+	 * @return true if the file was admitted, false if it was refused and deleted
+	 */
+	public boolean admit(File file) {
+		return admitAll(Collections.singletonList(file));
+	}
+	
+	/**
+	 * Account for a set of files that have just been written and are only any use together, e.g. the parts of one calendar.
+	 * Either all of them are admitted or none are. Room is made for the whole set at once, so admitting one file of the set
+	 * never evicts another. If the policy is to refuse and there isn't room for all of them, they are all deleted.
+	 * 
+	 * @param set the files that were written
+	 * @return true if the files were admitted, false if they were refused and deleted
+	 */
+	public boolean admitAll(List<File> set) {
+		return admitAll(set, false);
+	}
+	
+	/**
+	 * Account for a set of files that have just been written, as per {@link #admitAll(List)}
+	 * 
+	 * @param set the files that were written
+	 * @param pinned if true the files are never evicted and must be released by the caller
+	 * @return true if the files were admitted, false if they were refused and deleted
+	 */
+	public synchronized boolean admitAll(List<File> set, boolean pinned) {
+		
+		long size = 0;
+		long[] sizes = new long[set.size()];
+		for(int i=0;i<sizes.length;i++) {
+			sizes[i] = set.get(i).length();
+			size += sizes[i];
+		}
+		
+		if(isExceeded(size, set.size())) {
+			pruneMissing();
+		}
+		
+		if(isExceeded(size, set.size())) {
+			if(!sakaiProxy.isCalendarFileQuotaEvictionEnabled()) {
+				for(File file: set) {
+					if(!file.delete()) {
+						log.warn("Couldn't delete refused file: " + file.getPath());
+					}
+					log.error("Calendar file quota exceeded, refusing to write: " + file.getPath());
+				}
+				metrics.increment("quota.refused");
+				publish();
+				return false;
+			}
+			evict(size, set.size());
+		}
+		
+		for(int i=0;i<sizes.length;i++) {
+			files.addLast(new TrackedFile(set.get(i), sizes[i], pinned));
+			bytesUsed += sizes[i];
+		}
+		
+		publish();
+		return true;
+	}
+	
+	/**
+	 * Delete a file that is no longer needed and stop accounting for it
+	 * @param file
+	 */
+	public synchronized void release(File file) {
+		Iterator<TrackedFile> iter = files.iterator();
+		while(iter.hasNext()) {
+			TrackedFile tracked = iter.next();
+			if(tracked.file.equals(file)) {
+				iter.remove();
+				bytesUsed -= tracked.size;
+				break;
+			}
+		}
+		if(file.exists() && !file.delete()) {
+			log.warn("Couldn't delete calendar file: " + file.getPath());
+		}
+		publish();
+	}
+	
+	/**
+	 * Number of bytes currently accounted for
+	 * @return
+	 */
+	public synchronized long getBytesUsed() {
+		return bytesUsed;
+	}
+	
+	/**
+	 * Number of files currently accounted for
+	 * @return
+	 */
+	public synchronized int getFilesUsed() {
+		return files.size();
+	}
+	
+	/**
+	 * Would adding the given number of bytes and files take us over either limit?
+	 */
+	private boolean isExceeded(long extraBytes, int extraFiles) {
+		long maxBytes = sakaiProxy.getCalendarFileQuotaBytes();
+		int maxFiles = sakaiProxy.getCalendarFileQuotaFiles();
+		
+		if(maxBytes > 0 && bytesUsed + extraBytes > maxBytes) {
+			return true;
+		}
+		if(maxFiles > 0 && files.size() + extraFiles > maxFiles) {
+			return true;
+		}
+		return false;
+	}
+	
+	/**
+	 * Delete the oldest files that aren't pinned until there is room for the given number of files of the given total size
+	 */
+	private void evict(long size, int count) {
+		Iterator<TrackedFile> iter = files.iterator();
+		while(iter.hasNext() && isExceeded(size, count)) {
+			TrackedFile oldest = iter.next();
+			if(oldest.pinned) {
+				continue;
+			}
+			iter.remove();
+			bytesUsed -= oldest.size;
+			
+			if(oldest.file.delete()) {
+				metrics.increment("quota.evicted");
+				if(log.isDebugEnabled()){
+					log.debug("Evicted calendar file: " + oldest.file.getPath());
+				}
+			} else if(oldest.file.exists()) {
+				log.warn("Couldn't evict calendar file: " + oldest.file.getPath());
+			}
+		}
+	}
+	
+	/**
+	 * Stop accounting for files that no longer exist
+	 */
+	private void pruneMissing() {
+		Iterator<TrackedFile> iter = files.iterator();
+		while(iter.hasNext()) {
+			TrackedFile tracked = iter.next();
+			if(!tracked.file.exists()) {
+				iter.remove();
+				bytesUsed -= tracked.size;
+			}
+		}
+	}
+	
+	private void publish() {
+		metrics.set("quota.bytes.used", bytesUsed);
+		metrics.set("quota.files.used", files.size());
+		metrics.set("quota.bytes.limit", sakaiProxy.getCalendarFileQuotaBytes());
+		metrics.set("quota.files.limit", sakaiProxy.getCalendarFileQuotaFiles());
+	}
+	
+	private static class TrackedFile {
+		private final File file;
+		private final long size;
+		private final boolean pinned;
+		
+		private TrackedFile(File file, long size, boolean pinned) {
+			this.file = file;
+			this.size = size;
+			this.pinned = pinned;
+		}
+	}
+}
@@ -0,0 +1,290 @@
+/*
+* Licensed to The Apereo Foundation under one or more contributor license
+* agreements. See the NOTICE file distributed with this work for
+* additional information regarding copyright ownership.
+*
+* The Apereo Foundation licenses this file to you under the Educational 
+* Community License, Version 2.0 (the "License"); you may not use this file 
+* except in compliance with the License. You may obtain a copy of the 
+* License at:
+*
+* http://opensource.org/licenses/ecl2.txt
+* 
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package org.sakaiproject.calendaring.logic;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import lombok.extern.apachecommons.CommonsLog;
+
+/**
+ * Looks up a user's email address and display name via the {@link SakaiProxy} without ever blocking for longer than the configured timeout.
+ * <p>
+ * If a lookup times out, fails or can't be started, the last details successfully looked up for that user are used, or failing that,
+ * no email address and the user id as the display name. After a number of consecutive failures the directory is considered unhealthy
+ * and lookups are skipped altogether until the cooldown has passed.
+ * <p>
+ * Many users can be looked up at once with {@link #lookupAll(Collection)}, which costs a single call to the directory.
+ * <p>
+ * Lookups run on a small pool of daemon threads so a hung directory call only ever ties up one of those, never the caller.
+ * When all of them are busy, lookups wait their turn in a queue. The timeout covers the wait as well as the call, and a lookup that
+ * times out before it started doesn't count against the directory's health, since the directory was never asked.
+ */
+@CommonsLog
+public class GuardedUserLookup {
+
+	//the most lookups that may be in progress at once. Beyond this, lookups are queued.
+	private static final int MAX_THREADS = 16;
+	
+	//the most lookups that may be waiting for a thread. Only beyond this do callers get the fallback straight away.
+	private static final int MAX_QUEUED = 1000;
+	
+	private final SakaiProxy sakaiProxy;
+	private final ServiceMetrics metrics;
+	private final ThreadPoolExecutor executor;
+	private final Map<String, UserDetails> lastKnown;
+	
+	private final AtomicInteger consecutiveFailures = new AtomicInteger();
+	private volatile long skipUntil;
+	
+	public GuardedUserLookup(SakaiProxy sakaiProxy, ServiceMetrics metrics) {
+		this.sakaiProxy = sakaiProxy;
+		this.metrics = metrics;
+		
+		final int cacheSize = sakaiProxy.getUserLookupCacheSize();
+		this.lastKnown = new LinkedHashMap<String, UserDetails>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+			
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, UserDetails> eldest) {
+				return size() > cacheSize;
+			}
+		};
+		
+		this.executor = new ThreadPoolExecutor(MAX_THREADS, MAX_THREADS, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(MAX_QUEUED), new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+			
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "ExternalCalendaringService-lookup-" + count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		this.executor.allowCoreThreadTimeOut(true);
+	}
+	
+	/**
+	 * Get the details of a user, within the configured time limit
+	 * @param userId
+	 * @return the user's details, never null
+	 */
+	public UserDetails lookup(final String userId) {
+		
+		//skip the directory entirely while it is unhealthy
+		if(System.currentTimeMillis() < skipUntil) {
+			metrics.increment("lookup.skipped");
+			return fallback(userId);
+		}
+		
+		UserDetails details = call(new Callable<UserDetails>() {
+			public UserDetails call() {
+				return new UserDetails(sakaiProxy.getUserEmail(userId), sakaiProxy.getUserDisplayName(userId));
+			}
+		}, "user: " + userId);
+		
+		if(details == null) {
+			return fallback(userId);
+		}
+		remember(userId, details);
+		return details;
+	}
+	
+	/**
+	 * Get the details of many users in a single call to the directory, within the configured time limit
+	 * @param userIds
+	 * @return map of user id to details, with an entry for every user id given
+	 */
+	public Map<String, UserDetails> lookupAll(Collection<String> userIds) {
+		
+		Map<String, UserDetails> result = new HashMap<String, UserDetails>();
+		if(userIds == null || userIds.isEmpty()) {
+			return result;
+		}
+		final List<String> ids = new ArrayList<String>(new LinkedHashSet<String>(userIds));
+		
+		//skip the directory entirely while it is unhealthy
+		Map<String, UserDetails> found = null;
+		if(System.currentTimeMillis() < skipUntil) {
+			metrics.increment("lookup.skipped");
+		} else {
+			found = call(new Callable<Map<String, UserDetails>>() {
+				public Map<String, UserDetails> call() {
+					return sakaiProxy.getUserDetails(ids);
+				}
+			}, ids.size() + " users");
+		}
+		
+		for(String userId: ids) {
+			if(found == null) {
+				result.put(userId, fallback(userId));
+				continue;
+			}
+			
+			UserDetails details = found.get(userId);
+			if(details == null) {
+				//the directory answered but doesn't know them
+				metrics.increment("lookup.notfound");
+				details = new UserDetails(null, userId);
+			} else {
+				remember(userId, details);
+			}
+			result.put(userId, details);
+		}
+		metrics.add("lookup.users", ids.size());
+		return result;
+	}
+	
+	/**
+	 * Forget the remembered details of a user
+	 * @param userId
+	 */
+	public void forget(String userId) {
+		synchronized(lastKnown) {
+			lastKnown.remove(userId);
+		}
+	}
+	
+	/**
+	 * Is the directory currently being skipped as unhealthy?
+	 * @return
+	 */
+	public boolean isSkipping() {
+		return System.currentTimeMillis() < skipUntil;
+	}
+	
+	/**
+	 * Stop the lookup threads
+	 */
+	public void shutdown() {
+		executor.shutdownNow();
+	}
+	
+	/**
+	 * Run a directory call within the configured time limit, keeping track of failures
+	 * @param task the directory call
+	 * @param description what is being looked up, for logging
+	 * @return the result or null if the call timed out, failed or couldn't be started
+	 */
+	private <T> T call(final Callable<T> task, String description) {
+		
+		long timeout = sakaiProxy.getUserLookupTimeout();
+		
+		T result;
+		try {
+			if(timeout <= 0) {
+				result = task.call();
+			} else {
+				final AtomicBoolean started = new AtomicBoolean();
+				Future<T> future = executor.submit(new Callable<T>() {
+					public T call() throws Exception {
+						started.set(true);
+						return task.call();
+					}
+				});
+				try {
+					result = future.get(timeout, TimeUnit.MILLISECONDS);
+				} catch (TimeoutException e) {
+					future.cancel(true);
+					if(!started.get()) {
+						//still queued behind other lookups, the directory itself may be fine
+						metrics.increment("lookup.queue.timeout");
+						log.warn("Timed out after " + timeout + "ms waiting to look up " + description);
+						return null;
+					}
+					metrics.increment("lookup.timeout");
+					log.warn("Timed out after " + timeout + "ms looking up " + description);
+					failed();
+					return null;
+				}
+			}
+		} catch (RejectedExecutionException e) {
+			metrics.increment("lookup.rejected");
+			log.warn("Too many user lookups waiting, not looking up " + description);
+			return null;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return null;
+		} catch (ExecutionException e) {
+			metrics.increment("lookup.error");
+			log.warn("Error looking up " + description + " : " + e.getCause().getClass() + " : " + e.getCause().getMessage());
+			failed();
+			return null;
+		} catch (Exception e) {
+			metrics.increment("lookup.error");
+			log.warn("Error looking up " + description + " : " + e.getClass() + " : " + e.getMessage());
+			failed();
+			return null;
+		}
+		
+		consecutiveFailures.set(0);
+		metrics.increment("lookup.success");
+		return result;
+	}
+	
+	/**
+	 * Record a failure, skipping the directory for a while if there have been too many
+	 */
+	private void failed() {
+		if(consecutiveFailures.incrementAndGet() >= sakaiProxy.getUserLookupFailureThreshold()) {
+			long cooldown = sakaiProxy.getUserLookupCooldown();
+			skipUntil = System.currentTimeMillis() + cooldown;
+			metrics.increment("lookup.breaker.opened");
+			log.error("User directory appears unhealthy, skipping lookups for " + cooldown + "ms");
+		}
+	}
+	
+	/**
+	 * The last known details for the user, or no email and their id as their name
+	 */
+	private UserDetails fallback(String userId) {
+		UserDetails details;
+		synchronized(lastKnown) {
+			details = lastKnown.get(userId);
+		}
+		if(details != null) {
+			metrics.increment("lookup.fallback.cached");
+			return details;
+		}
+		metrics.increment("lookup.fallback.default");
+		return new UserDetails(null, userId);
+	}
+	
+	private void remember(String userId, UserDetails details) {
+		synchronized(lastKnown) {
+			lastKnown.put(userId, details);
+		}
+	}
+}
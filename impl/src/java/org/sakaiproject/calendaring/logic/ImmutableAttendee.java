@@ -0,0 +1,94 @@
+/*
+* Licensed to The Apereo Foundation under one or more contributor license
+* agreements. See the NOTICE file distributed with this work for
+* additional information regarding copyright ownership.
+*
+* The Apereo Foundation licenses this file to you under the Educational 
+* Community License, Version 2.0 (the "License"); you may not use this file 
+* except in compliance with the License. You may obtain a copy of the 
+* License at:
+*
+* http://opensource.org/licenses/ecl2.txt
+* 
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package org.sakaiproject.calendaring.logic;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.Iterator;
+
+import net.fortuna.ical4j.model.Parameter;
+import net.fortuna.ical4j.model.ParameterList;
+import net.fortuna.ical4j.model.property.Attendee;
+
+/**
+ * An ATTENDEE that can't be changed, so one instance can safely be kept in the {@link AttendeeCache} and reused for every event the same person is invited to.
+ * <p>
+ * Its parameters are unmodifiable and changing its value throws {@link UnsupportedOperationException}.
+ * It is never added to an event itself, events get a {@link #mutableCopy()} which callers are free to change.
+ */
+public class ImmutableAttendee extends Attendee {
+
+	private static final long serialVersionUID = 1L;
+	
+	private final boolean frozen;
+	
+	/**
+	 * @param calAddress
+	 * @param parameters
+	 */
+	public ImmutableAttendee(URI calAddress, Parameter... parameters) {
+		super(unmodifiable(parameters), calAddress);
+		this.frozen = true;
+	}
+	
+	@Override
+	public void setValue(String aValue) throws URISyntaxException {
+		if(frozen) {
+			throw new UnsupportedOperationException("Shared attendees cannot be modified, replace it with a copy instead");
+		}
+		super.setValue(aValue);
+	}
+	
+	@Override
+	public void setCalAddress(URI calAddress) {
+		if(frozen) {
+			throw new UnsupportedOperationException("Shared attendees cannot be modified, replace it with a copy instead");
+		}
+		super.setCalAddress(calAddress);
+	}
+	
+	/**
+	 * A plain Attendee with the same address and parameters, which can be changed without affecting this one.
+	 * <p>
+	 * This is much cheaper than {@link #copy()}, which parses everything again. The address and parameters themselves are shared
+	 * rather than copied as none of them can be changed, only replaced.
+	 * @return the copy
+	 */
+	public Attendee mutableCopy() {
+		ParameterList parameters = new ParameterList();
+		for(Iterator<?> i = getParameters().iterator(); i.hasNext();) {
+			parameters.add((Parameter)i.next());
+		}
+		return new Attendee(parameters, getCalAddress());
+	}
+	
+	private static ParameterList unmodifiable(Parameter... parameters) {
+		ParameterList list = new ParameterList();
+		for(Parameter p: parameters) {
+			list.add(p);
+		}
+		try {
+			return new ParameterList(list, true);
+		} catch (URISyntaxException e) {
+			//the parameters have already been parsed so can't be invalid
+			throw new IllegalArgumentException(e);
+		}
+	}
+}
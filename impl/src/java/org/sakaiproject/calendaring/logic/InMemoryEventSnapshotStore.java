@@ -0,0 +1,70 @@
+/*
+* Licensed to The Apereo Foundation under one or more contributor license
+* agreements. See the NOTICE file distributed with this work for
+* additional information regarding copyright ownership.
+*
+* The Apereo Foundation licenses this file to you under the Educational 
+* Community License, Version 2.0 (the "License"); you may not use this file 
+* except in compliance with the License. You may obtain a copy of the 
+* License at:
+*
+* http://opensource.org/licenses/ecl2.txt
+* 
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package org.sakaiproject.calendaring.logic;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * {@link EventSnapshotStore} that keeps snapshots in memory, discarding the least recently used once full.
+ * <p>
+ * Snapshots are lost on restart, after which the next update for each event is always sent.
+ */
+public class InMemoryEventSnapshotStore implements EventSnapshotStore {
+
+	private final Map<String, EventSnapshot> snapshots;
+	
+	/**
+	 * @param maxSize the maximum number of snapshots to keep
+	 */
+	public InMemoryEventSnapshotStore(final int maxSize) {
+		snapshots = new LinkedHashMap<String, EventSnapshot>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+			
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, EventSnapshot> eldest) {
+				return size() > maxSize;
+			}
+		};
+	}
+	
+	@Override
+	public synchronized EventSnapshot get(String uid) {
+		return snapshots.get(uid);
+	}
+
+	@Override
+	public synchronized void put(EventSnapshot snapshot) {
+		snapshots.put(snapshot.getUid(), snapshot);
+	}
+
+	@Override
+	public synchronized void remove(String uid) {
+		snapshots.remove(uid);
+	}
+	
+	/**
+	 * Number of snapshots currently held
+	 * @return
+	 */
+	public synchronized int size() {
+		return snapshots.size();
+	}
+}
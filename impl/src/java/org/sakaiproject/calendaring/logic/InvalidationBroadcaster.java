@@ -0,0 +1,62 @@
+/*
+* Licensed to The Apereo Foundation under one or more contributor license
+* agreements. See the NOTICE file distributed with this work for
+* additional information regarding copyright ownership.
+*
+* The Apereo Foundation licenses this file to you under the Educational 
+* Community License, Version 2.0 (the "License"); you may not use this file 
+* except in compliance with the License. You may obtain a copy of the 
+* License at:
+*
+* http://opensource.org/licenses/ecl2.txt
+* 
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package org.sakaiproject.calendaring.logic;
+
+/**
+ * Tells every node in the cluster to drop a cached entry, for example when a calendar event has been edited on one node.
+ * <p>
+ * Entries are identified by a region, which says what kind of cache they are in, and a key within it. Only the matching entry is
+ * dropped, never the whole cache.
+ */
+public interface InvalidationBroadcaster {
+
+	/**
+	 * Pre-rendered feeds, keyed by feed id
+	 */
+	public static final String REGION_FEED = "feed";
+	
+	/**
+	 * Snapshots of events that have been sent, keyed by VEvent UID
+	 */
+	public static final String REGION_EVENT = "event";
+	
+	/**
+	 * Remembered user details and the attendees built from them, keyed by user id
+	 */
+	public static final String REGION_USER = "user";
+	
+	/**
+	 * Drop an entry on every node, including this one
+	 * @param region
+	 * @param key
+	 */
+	public void broadcast(String region, String key);
+	
+	/**
+	 * Be told about every invalidation, whichever node it came from
+	 * @param listener
+	 */
+	public void addListener(InvalidationListener listener);
+	
+	/**
+	 * Stop listening for invalidations from other nodes
+	 */
+	public void shutdown();
+}
@@ -0,0 +1,35 @@
+/*
+* Licensed to The Apereo Foundation under one or more contributor license
+* agreements. See the NOTICE file distributed with this work for
+* additional information regarding copyright ownership.
+*
+* The Apereo Foundation licenses this file to you under the Educational 
+* Community License, Version 2.0 (the "License"); you may not use this file 
+* except in compliance with the License. You may obtain a copy of the 
+* License at:
+*
+* http://opensource.org/licenses/ecl2.txt
+* 
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package org.sakaiproject.calendaring.logic;
+
+/**
+ * Drops cached entries when told to by an {@link InvalidationBroadcaster}.
+ * <p>
+ * The same invalidation may arrive more than once, so dropping an entry must be harmless if it has already gone.
+ */
+public interface InvalidationListener {
+
+	/**
+	 * Drop an entry
+	 * @param region
+	 * @param key
+	 */
+	public void invalidate(String region, String key);
+}
@@ -0,0 +1,36 @@
+/*
+* Licensed to The Apereo Foundation under one or more contributor license
+* agreements. See the NOTICE file distributed with this work for
+* additional information regarding copyright ownership.
+*
+* The Apereo Foundation licenses this file to you under the Educational 
+* Community License, Version 2.0 (the "License"); you may not use this file 
+* except in compliance with the License. You may obtain a copy of the 
+* License at:
+*
+* http://opensource.org/licenses/ecl2.txt
+* 
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package org.sakaiproject.calendaring.logic;
+
+/**
+ * Holds cached entries that can be dropped on this node alone. Used for changes that every node is told about anyway,
+ * such as Sakai events, so there is no need to broadcast them with an {@link InvalidationBroadcaster}.
+ * <p>
+ * As with {@link InvalidationListener}, dropping an entry must be harmless if it has already gone.
+ */
+public interface LocalInvalidator {
+
+	/**
+	 * Drop a cached entry on this node only
+	 * @param region one of the {@link InvalidationBroadcaster} regions
+	 * @param key
+	 */
+	public void invalidateLocally(String region, String key);
+}
@@ -20,14 +20,32 @@
 package org.sakaiproject.calendaring.logic;
 
 import java.io.File;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Observer;
+import java.util.zip.Deflater;
 
 import lombok.Setter;
 import lombok.extern.apachecommons.CommonsLog;
 
 import org.apache.commons.lang.StringUtils;
+import org.apache.commons.lang.math.NumberUtils;
+import org.sakaiproject.authz.api.SecurityAdvisor;
 import org.sakaiproject.authz.api.SecurityService;
+import org.sakaiproject.calendar.api.CalendarEvent;
+import org.sakaiproject.calendar.api.CalendarService;
+import org.sakaiproject.calendaring.api.CalendarFeedProvider;
+import org.sakaiproject.calendaring.util.CalendarSerializer;
 import org.sakaiproject.component.api.ServerConfigurationService;
+import org.sakaiproject.component.cover.ComponentManager;
+import org.sakaiproject.event.api.EventTrackingService;
+import org.sakaiproject.exception.IdUnusedException;
+import org.sakaiproject.exception.PermissionException;
+import org.sakaiproject.time.api.TimeService;
 import org.sakaiproject.tool.api.SessionManager;
+import org.sakaiproject.user.api.User;
 import org.sakaiproject.user.api.UserDirectoryService;
 import org.sakaiproject.user.api.UserNotDefinedException;
 
@@ -117,6 +135,253 @@ public class SakaiProxyImpl implements SakaiProxy {
 		return serverConfigurationService.getBoolean("calendar.ics.cleanup.enabled", true);
 	}
 	
+	/**
+ 	* {@inheritDoc}
+ 	*/
+	public long getCalendarFileQuotaBytes() {
+		return NumberUtils.toLong(serverConfigurationService.getString("calendar.ics.generation.quota.bytes"), 0);
+	}
+	
+	/**
+ 	* {@inheritDoc}
+ 	*/
+	public int getCalendarFileQuotaFiles() {
+		return serverConfigurationService.getInt("calendar.ics.generation.quota.files", 0);
+	}
+	
+	/**
+ 	* {@inheritDoc}
+ 	*/
+	public boolean isCalendarFileQuotaEvictionEnabled() {
+		return !StringUtils.equalsIgnoreCase("refuse", serverConfigurationService.getString("calendar.ics.generation.quota.policy", "evict"));
+	}
+	
+	/**
+ 	* {@inheritDoc}
+ 	*/
+	public int getSerializationBufferLimit() {
+		return serverConfigurationService.getInt("calendar.ics.serialization.buffer.max", CalendarSerializer.DEFAULT_BUFFER_SIZE);
+	}
+	
+	/**
+ 	* {@inheritDoc}
+ 	*/
+	public boolean isWarmupEnabled() {
+		return serverConfigurationService.getBoolean("calendar.ics.warmup.enabled", true);
+	}
+	
+	/**
+ 	* {@inheritDoc}
+ 	*/
+	public int getWarmupTimeout() {
+		return serverConfigurationService.getInt("calendar.ics.warmup.timeout", 30);
+	}
+	
+	/**
+ 	* {@inheritDoc}
+ 	*/
+	public String[] getWarmupTimeZoneIds() {
+		return StringUtils.stripAll(StringUtils.split(serverConfigurationService.getString("calendar.ics.warmup.timezones", ""), ','));
+	}
+	
+	/**
+ 	* {@inheritDoc}
+ 	*/
+	public String getTimeZoneId() {
+		String id = serverConfigurationService.getString("calendar.ics.timezone", null);
+		if(StringUtils.isNotBlank(id)) {
+			return id;
+		}
+		return timeService.getLocalTimeZone().getID();
+	}
+	
+	/**
+ 	* {@inheritDoc}
+ 	*/
+	public int getEventSnapshotLimit() {
+		return serverConfigurationService.getInt("calendar.ics.snapshot.max", 10000);
+	}
+	
+	/**
+ 	* {@inheritDoc}
+ 	*/
+	public long getUserLookupTimeout() {
+		return NumberUtils.toLong(serverConfigurationService.getString("calendar.ics.lookup.timeout"), 2000);
+	}
+	
+	/**
+ 	* {@inheritDoc}
+ 	*/
+	public int getUserLookupFailureThreshold() {
+		return serverConfigurationService.getInt("calendar.ics.lookup.breaker.failures", 5);
+	}
+	
+	/**
+ 	* {@inheritDoc}
+ 	*/
+	public long getUserLookupCooldown() {
+		return NumberUtils.toLong(serverConfigurationService.getString("calendar.ics.lookup.breaker.cooldown"), 30000);
+	}
+	
+	/**
+ 	* {@inheritDoc}
+ 	*/
+	public int getUserLookupCacheSize() {
+		return serverConfigurationService.getInt("calendar.ics.lookup.cache.max", 5000);
+	}
+	
+	/**
+ 	* {@inheritDoc}
+ 	*/
+	public Map<String, UserDetails> getUserDetails(Collection<String> uuids) {
+		Map<String, UserDetails> details = new HashMap<String, UserDetails>();
+		if(uuids == null || uuids.isEmpty()) {
+			return details;
+		}
+		
+		List<User> users = userDirectoryService.getUsers(uuids);
+		for(User u: users) {
+			details.put(u.getId(), new UserDetails(u.getEmail(), u.getDisplayName()));
+		}
+		
+		if(details.size() < uuids.size()) {
+			log.warn("Cannot get details for " + (uuids.size() - details.size()) + " of " + uuids.size() + " users");
+		}
+		return details;
+	}
+	
+	/**
+ 	* {@inheritDoc}
+ 	*/
+	public int getAttendeeCacheSize() {
+		return serverConfigurationService.getInt("calendar.ics.attendee.cache.max", 10000);
+	}
+	
+	/**
+ 	* {@inheritDoc}
+ 	*/
+	public double getTraceSampleRate() {
+		return NumberUtils.toDouble(serverConfigurationService.getString("calendar.ics.trace.sample.rate"), 0);
+	}
+	
+	/**
+ 	* {@inheritDoc}
+ 	*/
+	public long getTraceSlowThreshold() {
+		return NumberUtils.toLong(serverConfigurationService.getString("calendar.ics.trace.slow.threshold"), 1000);
+	}
+	
+	/**
+ 	* {@inheritDoc}
+ 	*/
+	public CalendarFeedProvider getCalendarFeedProvider() {
+		return (CalendarFeedProvider) ComponentManager.get(CalendarFeedProvider.class);
+	}
+	
+	/**
+ 	* {@inheritDoc}
+ 	*/
+	public CalendarEvent getCalendarEvent(String calendarReference, String eventId) {
+		//looked up lazily like the feed provider, as the calendar tool may start after us
+		CalendarService calendarService = (CalendarService) ComponentManager.get(CalendarService.class);
+		if(calendarService == null) {
+			return null;
+		}
+		
+		//usually called from an event observer, where the current user, if any, may not be able to read the calendar
+		SecurityAdvisor advisor = new SecurityAdvisor() {
+			public SecurityAdvice isAllowed(String userId, String function, String reference) {
+				return CalendarService.AUTH_READ_CALENDAR.equals(function) ? SecurityAdvice.ALLOWED : SecurityAdvice.PASS;
+			}
+		};
+		securityService.pushAdvisor(advisor);
+		try {
+			return calendarService.getCalendar(calendarReference).getEvent(eventId);
+		} catch (IdUnusedException e) {
+			return null;
+		} catch (PermissionException e) {
+			log.warn("Couldn't read event " + eventId + " from calendar " + calendarReference + " : " + e.getMessage());
+			return null;
+		} finally {
+			securityService.popAdvisor(advisor);
+		}
+	}
+	
+	/**
+ 	* {@inheritDoc}
+ 	*/
+	public String[] getFeedSnapshotIds() {
+		return StringUtils.stripAll(StringUtils.split(serverConfigurationService.getString("calendar.ics.feed.snapshot.ids", ""), ','));
+	}
+	
+	/**
+ 	* {@inheritDoc}
+ 	*/
+	public int getFeedSnapshotInterval() {
+		return serverConfigurationService.getInt("calendar.ics.feed.snapshot.interval", 300);
+	}
+	
+	/**
+ 	* {@inheritDoc}
+ 	*/
+	public int getFeedSnapshotMaxAge() {
+		return serverConfigurationService.getInt("calendar.ics.feed.snapshot.maxage", 900);
+	}
+	
+	/**
+ 	* {@inheritDoc}
+ 	*/
+	public int getFeedSnapshotSendTime() {
+		return serverConfigurationService.getInt("calendar.ics.feed.snapshot.sendtime", 300);
+	}
+	
+	/**
+ 	* {@inheritDoc}
+ 	*/
+	public void postEvent(String event, String reference, boolean modify) {
+		eventTrackingService.post(eventTrackingService.newEvent(event, reference, modify));
+	}
+	
+	/**
+ 	* {@inheritDoc}
+ 	*/
+	public void addEventObserver(Observer observer) {
+		eventTrackingService.addObserver(observer);
+	}
+	
+	/**
+ 	* {@inheritDoc}
+ 	*/
+	public void deleteEventObserver(Observer observer) {
+		eventTrackingService.deleteObserver(observer);
+	}
+	
+	/**
+ 	* {@inheritDoc}
+ 	*/
+	public int getDedupSize() {
+		return serverConfigurationService.getInt("calendar.ics.dedup.size", 8192);
+	}
+	
+	/**
+ 	* {@inheritDoc}
+ 	*/
+	public int getZipCompressionLevel() {
+		int level = serverConfigurationService.getInt("calendar.ics.zip.compression.level", Deflater.DEFAULT_COMPRESSION);
+		if(level < Deflater.DEFAULT_COMPRESSION || level > Deflater.BEST_COMPRESSION) {
+			log.warn("Invalid calendar.ics.zip.compression.level: " + level + ", using the default.");
+			return Deflater.DEFAULT_COMPRESSION;
+		}
+		return level;
+	}
+	
+	/**
+ 	* {@inheritDoc}
+ 	*/
+	public int getZipThreads() {
+		return serverConfigurationService.getInt("calendar.ics.zip.threads", 1);
+	}
+	
 	
 	/**
 	 * init
@@ -138,4 +403,10 @@ public class SakaiProxyImpl implements SakaiProxy {
 	@Setter
 	private UserDirectoryService userDirectoryService;
 	
+	@Setter
+	private TimeService timeService;
+	
+	@Setter
+	private EventTrackingService eventTrackingService;
+	
 }
@@ -0,0 +1,96 @@
+/*
+* Licensed to The Apereo Foundation under one or more contributor license
+* agreements. See the NOTICE file distributed with this work for
+* additional information regarding copyright ownership.
+*
+* The Apereo Foundation licenses this file to you under the Educational 
+* Community License, Version 2.0 (the "License"); you may not use this file 
+* except in compliance with the License. You may obtain a copy of the 
+* License at:
+*
+* http://opensource.org/licenses/ecl2.txt
+* 
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package org.sakaiproject.calendaring.logic;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Simple registry of named counters and gauges for the ExternalCalendaringService.
+ * <p>
+ * Values are exposed via {@link org.sakaiproject.calendaring.api.ExternalCalendaringService#getMetrics()}.
+ */
+public class ServiceMetrics {
+
+	private final ConcurrentMap<String, AtomicLong> values = new ConcurrentHashMap<String, AtomicLong>();
+	
+	/**
+	 * Increment a counter by one
+	 * @param name
+	 */
+	public void increment(String name) {
+		add(name, 1);
+	}
+	
+	/**
+	 * Add a delta to a counter
+	 * @param name
+	 * @param delta
+	 */
+	public void add(String name, long delta) {
+		get(name).addAndGet(delta);
+	}
+	
+	/**
+	 * Set a gauge to an absolute value
+	 * @param name
+	 * @param value
+	 */
+	public void set(String name, long value) {
+		get(name).set(value);
+	}
+	
+	/**
+	 * Get the current value of a counter or gauge, 0 if it has never been recorded
+	 * @param name
+	 * @return
+	 */
+	public long getValue(String name) {
+		AtomicLong value = values.get(name);
+		return value == null ? 0 : value.get();
+	}
+	
+	/**
+	 * Get a point in time copy of all values, sorted by name
+	 * @return
+	 */
+	public Map<String, Long> snapshot() {
+		Map<String, Long> snapshot = new TreeMap<String, Long>();
+		for(Map.Entry<String, AtomicLong> entry: values.entrySet()) {
+			snapshot.put(entry.getKey(), entry.getValue().get());
+		}
+		return snapshot;
+	}
+	
+	private AtomicLong get(String name) {
+		AtomicLong value = values.get(name);
+		if(value == null) {
+			AtomicLong created = new AtomicLong();
+			value = values.putIfAbsent(name, created);
+			if(value == null) {
+				value = created;
+			}
+		}
+		return value;
+	}
+}
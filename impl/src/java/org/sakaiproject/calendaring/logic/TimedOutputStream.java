@@ -0,0 +1,86 @@
+/*
+* Licensed to The Apereo Foundation under one or more contributor license
+* agreements. See the NOTICE file distributed with this work for
+* additional information regarding copyright ownership.
+*
+* The Apereo Foundation licenses this file to you under the Educational 
+* Community License, Version 2.0 (the "License"); you may not use this file 
+* except in compliance with the License. You may obtain a copy of the 
+* License at:
+*
+* http://opensource.org/licenses/ecl2.txt
+* 
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package org.sakaiproject.calendaring.logic;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Counts the bytes written to a stream and the time spent writing, flushing and closing it,
+ * so that time spent on I/O can be told apart from the work producing the bytes.
+ * <p>
+ * Like a {@link Trace}, it belongs to one thread and is not thread safe.
+ */
+public class TimedOutputStream extends FilterOutputStream {
+
+	private long nanos;
+	private long bytes;
+	
+	public TimedOutputStream(OutputStream out) {
+		super(out);
+	}
+	
+	@Override
+	public void write(int b) throws IOException {
+		long start = System.nanoTime();
+		out.write(b);
+		nanos += System.nanoTime() - start;
+		bytes++;
+	}
+	
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		long start = System.nanoTime();
+		out.write(b, off, len);
+		nanos += System.nanoTime() - start;
+		bytes += len;
+	}
+	
+	@Override
+	public void flush() throws IOException {
+		long start = System.nanoTime();
+		out.flush();
+		nanos += System.nanoTime() - start;
+	}
+	
+	@Override
+	public void close() throws IOException {
+		long start = System.nanoTime();
+		out.close();
+		nanos += System.nanoTime() - start;
+	}
+	
+	/**
+	 * Time spent in the underlying stream
+	 * @return nanos
+	 */
+	public long getNanos() {
+		return nanos;
+	}
+	
+	/**
+	 * Bytes written to the underlying stream
+	 * @return
+	 */
+	public long getBytes() {
+		return bytes;
+	}
+}
@@ -0,0 +1,180 @@
+/*
+* Licensed to The Apereo Foundation under one or more contributor license
+* agreements. See the NOTICE file distributed with this work for
+* additional information regarding copyright ownership.
+*
+* The Apereo Foundation licenses this file to you under the Educational 
+* Community License, Version 2.0 (the "License"); you may not use this file 
+* except in compliance with the License. You may obtain a copy of the 
+* License at:
+*
+* http://opensource.org/licenses/ecl2.txt
+* 
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package org.sakaiproject.calendaring.logic;
+
+import java.util.Arrays;
+
+/**
+ * The timings of the stages of one service call, for example looking up the organizer or serialising the calendar.
+ * <p>
+ * Each stage is recorded as a span with its duration and, where it makes sense, a size such as a number of attendees or bytes.
+ * Only numbers are kept, never the content of the calendar, so a trace is cheap to record and safe to log.
+ * <p>
+ * A trace belongs to the thread that started it and is not thread safe, except for {@link #NOOP}, which records nothing
+ * and so can be shared by every call that isn't being traced.
+ * <p>
+ * The arrays that hold the spans are only created when the first span is recorded.
+ */
+public class Trace {
+
+	/**
+	 * A trace that records nothing, for calls that will never be logged
+	 */
+	public static final Trace NOOP = new Trace();
+	
+	private static final int INITIAL_SPANS = 8;
+	
+	private final String operation;
+	private final boolean sampled;
+	private final boolean recording;
+	private final long startNanos;
+	
+	private String[] stages;
+	private long[] durations;
+	private long[] sizes;
+	private int count;
+	
+	Trace(String operation, boolean sampled) {
+		this.operation = operation;
+		this.sampled = sampled;
+		this.recording = true;
+		this.startNanos = System.nanoTime();
+	}
+	
+	private Trace() {
+		this.operation = "none";
+		this.sampled = false;
+		this.recording = false;
+		this.startNanos = 0;
+	}
+	
+	/**
+	 * Mark the start of a stage
+	 * @return the value to pass to {@link #span(String, long, long)} when the stage ends
+	 */
+	public long mark() {
+		return recording ? System.nanoTime() : 0;
+	}
+	
+	/**
+	 * Record a stage that started at the given mark and has just finished
+	 * @param stage name of the stage
+	 * @param mark from {@link #mark()}
+	 * @param size a size for the stage, or -1 if there isn't one
+	 */
+	public void span(String stage, long mark, long size) {
+		if(recording) {
+			record(stage, System.nanoTime() - mark, size);
+		}
+	}
+	
+	/**
+	 * Record a stage whose duration was measured separately, for example time spent in writes spread through another stage
+	 * @param stage name of the stage
+	 * @param duration nanos
+	 * @param size a size for the stage, or -1 if there isn't one
+	 */
+	public void record(String stage, long duration, long size) {
+		if(!recording) {
+			return;
+		}
+		if(stages == null) {
+			stages = new String[INITIAL_SPANS];
+			durations = new long[INITIAL_SPANS];
+			sizes = new long[INITIAL_SPANS];
+		} else if(count == stages.length) {
+			stages = Arrays.copyOf(stages, count * 2);
+			durations = Arrays.copyOf(durations, count * 2);
+			sizes = Arrays.copyOf(sizes, count * 2);
+		}
+		stages[count] = stage;
+		durations[count] = duration;
+		sizes[count] = size;
+		count++;
+	}
+	
+	/**
+	 * Record a stage that has no size
+	 * @param stage
+	 * @param mark
+	 */
+	public void span(String stage, long mark) {
+		span(stage, mark, -1);
+	}
+	
+	public String getOperation() {
+		return operation;
+	}
+	
+	/**
+	 * Was this trace chosen to be recorded regardless of how long it takes?
+	 * @return
+	 */
+	public boolean isSampled() {
+		return sampled;
+	}
+	
+	/**
+	 * Time since the trace was started
+	 * @return nanos
+	 */
+	public long getElapsed() {
+		return recording ? System.nanoTime() - startNanos : 0;
+	}
+	
+	/**
+	 * Number of spans recorded
+	 * @return
+	 */
+	public int getSpanCount() {
+		return count;
+	}
+	
+	/**
+	 * Describe the trace as key=value pairs, eg <code>op=createEvent total=1.204ms timezone=0.012ms attendees=0.310ms/600</code>
+	 * @param elapsed total time taken in nanos
+	 * @return
+	 */
+	public String format(long elapsed) {
+		StringBuilder sb = new StringBuilder(64 + count * 24);
+		sb.append("op=").append(operation);
+		appendMillis(sb.append(" total="), elapsed);
+		for(int i=0;i<count;i++) {
+			appendMillis(sb.append(' ').append(stages[i]).append('='), durations[i]);
+			if(sizes[i] >= 0) {
+				sb.append('/').append(sizes[i]);
+			}
+		}
+		return sb.toString();
+	}
+	
+	private static void appendMillis(StringBuilder sb, long nanos) {
+		long micros = nanos / 1000;
+		sb.append(micros / 1000).append('.');
+		long fraction = micros % 1000;
+		if(fraction < 100) {
+			sb.append('0');
+		}
+		if(fraction < 10) {
+			sb.append('0');
+		}
+		sb.append(fraction).append("ms");
+	}
+}
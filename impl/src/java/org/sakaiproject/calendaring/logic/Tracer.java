@@ -0,0 +1,93 @@
+/*
+* Licensed to The Apereo Foundation under one or more contributor license
+* agreements. See the NOTICE file distributed with this work for
+* additional information regarding copyright ownership.
+*
+* The Apereo Foundation licenses this file to you under the Educational 
+* Community License, Version 2.0 (the "License"); you may not use this file 
+* except in compliance with the License. You may obtain a copy of the 
+* License at:
+*
+* http://opensource.org/licenses/ecl2.txt
+* 
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package org.sakaiproject.calendaring.logic;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+import lombok.extern.apachecommons.CommonsLog;
+
+/**
+ * Decides which {@link Trace}s are logged.
+ * <p>
+ * A proportion of calls are sampled when they start and are always logged. Any call that turns out to be slower than the threshold is logged too,
+ * so slow calls are never missed however low the sample rate. Everything else is discarded.
+ * <p>
+ * Traces are logged at INFO under this class's own category, so they can be turned on and off independently of the service's debug logging.
+ * <p>
+ * A call that isn't sampled, when slow calls aren't logged either, gets the shared {@link Trace#NOOP}, so tracing costs nothing
+ * unless it is turned on. An unsampled call that may turn out to be slow only records its start time until its first span.
+ */
+@CommonsLog
+public class Tracer {
+
+	private final double sampleRate;
+	private final long slowThresholdNanos;
+	private final ServiceMetrics metrics;
+	
+	/**
+	 * @param sampleRate proportion of calls to log, between 0 and 1
+	 * @param slowThresholdMillis calls that take at least this long are always logged. A negative value disables this.
+	 * @param metrics
+	 */
+	public Tracer(double sampleRate, long slowThresholdMillis, ServiceMetrics metrics) {
+		this.sampleRate = Math.max(0, Math.min(1, sampleRate));
+		this.slowThresholdNanos = slowThresholdMillis < 0 ? Long.MAX_VALUE : slowThresholdMillis * 1000000L;
+		this.metrics = metrics;
+	}
+	
+	/**
+	 * Start tracing a call
+	 * @param operation name of the call, eg createEvent
+	 * @return the trace
+	 */
+	public Trace start(String operation) {
+		boolean sampled = sampleRate > 0 && (sampleRate >= 1 || ThreadLocalRandom.current().nextDouble() < sampleRate);
+		if(!sampled && slowThresholdNanos == Long.MAX_VALUE) {
+			return Trace.NOOP;
+		}
+		return new Trace(operation, sampled);
+	}
+	
+	/**
+	 * Finish a trace, logging it if it was sampled or was slow
+	 * @param trace
+	 * @return true if it was logged
+	 */
+	public boolean finish(Trace trace) {
+		if(trace == Trace.NOOP) {
+			return false;
+		}
+		long elapsed = trace.getElapsed();
+		
+		if(elapsed >= slowThresholdNanos) {
+			metrics.increment("traces.slow");
+			log.warn("Slow " + trace.format(elapsed));
+			return true;
+		}
+		if(trace.isSampled()) {
+			metrics.increment("traces.sampled");
+			if(log.isInfoEnabled()) {
+				log.info(trace.format(elapsed));
+			}
+			return true;
+		}
+		return false;
+	}
+}
@@ -0,0 +1,100 @@
+/*
+* Licensed to The Apereo Foundation under one or more contributor license
+* agreements. See the NOTICE file distributed with this work for
+* additional information regarding copyright ownership.
+*
+* The Apereo Foundation licenses this file to you under the Educational 
+* Community License, Version 2.0 (the "License"); you may not use this file 
+* except in compliance with the License. You may obtain a copy of the 
+* License at:
+*
+* http://opensource.org/licenses/ecl2.txt
+* 
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package org.sakaiproject.calendaring.logic;
+
+import java.util.Observable;
+import java.util.Observer;
+
+import lombok.Setter;
+import lombok.extern.apachecommons.CommonsLog;
+
+import org.apache.commons.lang.StringUtils;
+import org.sakaiproject.event.api.Event;
+import org.sakaiproject.user.api.UserDirectoryService;
+
+/**
+ * Drops what the ExternalCalendaringService remembers about a user when their account is updated or removed, so a changed
+ * name or email address is used from the next invitation on, even if the directory is unavailable by then.
+ * <p>
+ * Sakai delivers user events to every node in the cluster, so each node only drops its own entries.
+ */
+@CommonsLog
+public class UserChangeInvalidator implements Observer {
+
+	//user.upd.any, user.upd.own and the more specific user.upd.own.* events
+	private static final String EVENT_UPDATE_USER_PREFIX = "user.upd";
+	
+	//user references look like /user/{userId}
+	private static final String USER_REFERENCE_PREFIX = UserDirectoryService.REFERENCE_ROOT + "/";
+	
+	/**
+	 * init
+	 */
+	public void init() {
+		sakaiProxy.addEventObserver(this);
+	}
+	
+	/**
+	 * destroy
+	 */
+	public void destroy() {
+		sakaiProxy.deleteEventObserver(this);
+	}
+	
+	/**
+	 * Called for every event on every node, so get out quickly if it's not a user change
+	 */
+	@Override
+	public void update(Observable o, Object arg) {
+		if(!(arg instanceof Event)) {
+			return;
+		}
+		Event event = (Event) arg;
+		if(!isUserChange(event.getEvent())) {
+			return;
+		}
+		
+		String resource = event.getResource();
+		if(!StringUtils.startsWith(resource, USER_REFERENCE_PREFIX)) {
+			return;
+		}
+		String userId = resource.substring(USER_REFERENCE_PREFIX.length());
+		if(StringUtils.isBlank(userId)) {
+			return;
+		}
+		
+		externalCalendaringService.invalidateLocally(InvalidationBroadcaster.REGION_USER, userId);
+		
+		if(log.isDebugEnabled()) {
+			log.debug("Invalidated " + resource + " after " + event.getEvent());
+		}
+	}
+	
+	private boolean isUserChange(String name) {
+		return StringUtils.startsWith(name, EVENT_UPDATE_USER_PREFIX)
+			|| UserDirectoryService.SECURE_REMOVE_USER.equals(name);
+	}
+	
+	@Setter
+	private SakaiProxy sakaiProxy;
+	
+	@Setter
+	private LocalInvalidator externalCalendaringService;
+}
@@ -0,0 +1,78 @@
+/*
+* Licensed to The Apereo Foundation under one or more contributor license
+* agreements. See the NOTICE file distributed with this work for
+* additional information regarding copyright ownership.
+*
+* The Apereo Foundation licenses this file to you under the Educational 
+* Community License, Version 2.0 (the "License"); you may not use this file 
+* except in compliance with the License. You may obtain a copy of the 
+* License at:
+*
+* http://opensource.org/licenses/ecl2.txt
+* 
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package org.sakaiproject.calendaring.logic;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Shares the values that repeat across many events, so a calendar of thousands of lectures in the same few rooms
+ * holds one copy of each room rather than one per event.
+ * <p>
+ * Strings are held in a fixed size table indexed by hash. A value is returned from the table if an equal one is already there,
+ * otherwise it replaces whatever was in its slot. This bounds the memory used without any locking or eviction bookkeeping;
+ * a collision only means a value is not shared. A size of 0 disables it.
+ * <p>
+ * Only the immutable strings are shared. Each event still gets its own properties, so tools can change one event without affecting others.
+ */
+public class ValueDeduplicator {
+
+	private final AtomicReferenceArray<String> strings;
+	private final int mask;
+	
+	/**
+	 * @param size the number of slots, rounded up to a power of two
+	 */
+	public ValueDeduplicator(int size) {
+		int slots = size > 0 ? Integer.highestOneBit(Math.max(size - 1, 1)) << 1 : 0;
+		this.strings = new AtomicReferenceArray<String>(slots);
+		this.mask = slots - 1;
+	}
+	
+	/**
+	 * Get the shared copy of a string
+	 * @param value can be null
+	 * @return an equal string, which may be the one given
+	 */
+	public String dedup(String value) {
+		if(value == null || mask < 0) {
+			return value;
+		}
+		int i = slot(value);
+		String s = strings.get(i);
+		if(s != null && s.equals(value)) {
+			return s;
+		}
+		strings.lazySet(i, value);
+		return value;
+	}
+	
+	/**
+	 * Number of slots
+	 * @return
+	 */
+	public int size() {
+		return mask + 1;
+	}
+	
+	private int slot(String value) {
+		int h = value.hashCode();
+		return (h ^ (h >>> 16)) & mask;
+	}
+}
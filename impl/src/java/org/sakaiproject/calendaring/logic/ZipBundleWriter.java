@@ -0,0 +1,234 @@
+/*
+* Licensed to The Apereo Foundation under one or more contributor license
+* agreements. See the NOTICE file distributed with this work for
+* additional information regarding copyright ownership.
+*
+* The Apereo Foundation licenses this file to you under the Educational 
+* Community License, Version 2.0 (the "License"); you may not use this file 
+* except in compliance with the License. You may obtain a copy of the 
+* License at:
+*
+* http://opensource.org/licenses/ecl2.txt
+* 
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package org.sakaiproject.calendaring.logic;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import lombok.extern.apachecommons.CommonsLog;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.CloseShieldOutputStream;
+import org.sakaiproject.calendar.api.CalendarEvent;
+import org.sakaiproject.calendaring.api.CalendarOptions;
+import org.sakaiproject.calendaring.api.ExternalCalendaringService;
+
+/**
+ * Writes many calendars, e.g. one per user, as entries in a single zip, with no intermediate files.
+ * <p>
+ * By default each calendar is streamed straight into its zip entry in turn. If more than one thread is configured,
+ * calendars are rendered in parallel into memory, a few ahead of the one being written, and added to the zip in order.
+ */
+@CommonsLog
+public class ZipBundleWriter {
+
+	private final ExternalCalendaringService service;
+	private final ServiceMetrics metrics;
+	private final int level;
+	private final int threads;
+	private final ExecutorService executor;
+	
+	//entry name for a calendar without one
+	private static final String DEFAULT_NAME = "calendar";
+	
+	/**
+	 * @param service renders each calendar
+	 * @param sakaiProxy for the compression level and number of threads
+	 * @param metrics
+	 */
+	public ZipBundleWriter(ExternalCalendaringService service, SakaiProxy sakaiProxy, ServiceMetrics metrics) {
+		this.service = service;
+		this.metrics = metrics;
+		this.level = sakaiProxy.getZipCompressionLevel();
+		this.threads = sakaiProxy.getZipThreads();
+		
+		if(threads > 1) {
+			executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+				private final AtomicInteger count = new AtomicInteger();
+				
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "ExternalCalendaringService-zip-" + count.incrementAndGet());
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		} else {
+			executor = null;
+		}
+	}
+	
+	/**
+	 * Write each calendar as an ICS entry in a zip. The zip is finished but the stream is not closed.
+	 * @param calendars the events of each calendar, keyed by the name of its entry, e.g. a user id. Names that would clash once made safe are given a numeric suffix
+	 * @param options applied to every calendar
+	 * @param out
+	 * @return the number of calendars written
+	 * @throws IOException
+	 */
+	public int write(Map<String, ? extends Iterable<CalendarEvent>> calendars, CalendarOptions options, OutputStream out) throws IOException {
+		//closing the zip releases its deflater, but must leave the caller's stream open
+		ZipOutputStream zip = new ZipOutputStream(new CloseShieldOutputStream(out));
+		zip.setLevel(level);
+		
+		int written;
+		try {
+			written = executor != null ? writeParallel(calendars, options, zip) : writeSerial(calendars, options, zip);
+			zip.finish();
+			zip.flush();
+		} finally {
+			IOUtils.closeQuietly(zip);
+		}
+		metrics.add("zip.entries", written);
+		return written;
+	}
+	
+	/**
+	 * Stop the rendering threads
+	 */
+	public void shutdown() {
+		if(executor != null) {
+			executor.shutdownNow();
+		}
+	}
+	
+	private int writeSerial(Map<String, ? extends Iterable<CalendarEvent>> calendars, CalendarOptions options, ZipOutputStream zip) throws IOException {
+		int written = 0;
+		Set<String> used = new HashSet<String>();
+		for(Map.Entry<String, ? extends Iterable<CalendarEvent>> calendar: calendars.entrySet()) {
+			zip.putNextEntry(new ZipEntry(entryName(calendar.getKey(), used)));
+			service.streamCalendar(calendar.getValue().iterator(), null, options, zip);
+			zip.closeEntry();
+			written++;
+		}
+		return written;
+	}
+	
+	private int writeParallel(Map<String, ? extends Iterable<CalendarEvent>> calendars, final CalendarOptions options, ZipOutputStream zip) throws IOException {
+		int written = 0;
+		Set<String> used = new HashSet<String>();
+		
+		//only a few calendars ahead are held in memory at once
+		Iterator<? extends Map.Entry<String, ? extends Iterable<CalendarEvent>>> entries = calendars.entrySet().iterator();
+		LinkedList<Future<Rendered>> pending = new LinkedList<Future<Rendered>>();
+		try {
+			while(entries.hasNext() || !pending.isEmpty()) {
+				while(entries.hasNext() && pending.size() < threads * 2) {
+					final Map.Entry<String, ? extends Iterable<CalendarEvent>> calendar = entries.next();
+					pending.add(executor.submit(new Callable<Rendered>() {
+						public Rendered call() throws IOException {
+							ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+							service.streamCalendar(calendar.getValue().iterator(), null, options, bytes);
+							return new Rendered(calendar.getKey(), bytes);
+						}
+					}));
+				}
+				
+				Rendered rendered = get(pending.removeFirst());
+				zip.putNextEntry(new ZipEntry(entryName(rendered.name, used)));
+				rendered.bytes.writeTo(zip);
+				zip.closeEntry();
+				written++;
+			}
+		} finally {
+			for(Future<Rendered> f: pending) {
+				f.cancel(true);
+			}
+		}
+		return written;
+	}
+	
+	private Rendered get(Future<Rendered> future) throws IOException {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while rendering calendars for zip");
+		} catch (ExecutionException e) {
+			if(e.getCause() instanceof IOException) {
+				throw (IOException)e.getCause();
+			}
+			log.error("Failed to render calendar for zip : " + e.getCause());
+			throw new IOException("Failed to render calendar for zip", e.getCause());
+		}
+	}
+	
+	/**
+	 * Make a safe, unique entry name, so a name can't escape the zip or clash with a directory or another entry.
+	 * Different names can end up the same once made safe, so clashes get a suffix: -1, -2 and so on.
+	 * Names are compared ignoring case, as the zip may well be extracted onto a filesystem that does.
+	 * @param name the name of the calendar, may be null
+	 * @param used the names already in the zip, lower cased, which the new name is added to
+	 * @return
+	 */
+	static String entryName(String name, Set<String> used) {
+		String base = safeName(name);
+		String entry = base + ".ics";
+		for(int i=1; !used.add(entry.toLowerCase(Locale.ENGLISH)); i++) {
+			entry = base + "-" + i + ".ics";
+		}
+		return entry;
+	}
+	
+	private static String safeName(String name) {
+		if(name == null || name.isEmpty()) {
+			return DEFAULT_NAME;
+		}
+		StringBuilder sb = new StringBuilder(name.length() + 4);
+		for(int i=0;i<name.length();i++) {
+			char c = name.charAt(i);
+			if((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '-' || c == '_' || c == '@' || (c == '.' && i > 0)) {
+				sb.append(c);
+			} else {
+				sb.append('_');
+			}
+		}
+		return sb.toString();
+	}
+	
+	/**
+	 * A calendar rendered into memory
+	 */
+	private static class Rendered {
+		private final String name;
+		private final ByteArrayOutputStream bytes;
+		
+		private Rendered(String name, ByteArrayOutputStream bytes) {
+			this.name = name;
+			this.bytes = bytes;
+		}
+	}
+}
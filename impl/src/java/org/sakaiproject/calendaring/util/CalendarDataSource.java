@@ -0,0 +1,82 @@
+/*
+* Licensed to The Apereo Foundation under one or more contributor license
+* agreements. See the NOTICE file distributed with this work for
+* additional information regarding copyright ownership.
+*
+* The Apereo Foundation licenses this file to you under the Educational 
+* Community License, Version 2.0 (the "License"); you may not use this file 
+* except in compliance with the License. You may obtain a copy of the 
+* License at:
+*
+* http://opensource.org/licenses/ecl2.txt
+* 
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package org.sakaiproject.calendaring.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import javax.activation.DataSource;
+
+/**
+ * A read only {@link DataSource} for a serialised iCal calendar held in memory, suitable for attaching to an email.
+ */
+public class CalendarDataSource implements DataSource {
+
+	private final byte[] data;
+	private final String contentType;
+	private final String name;
+	
+	/**
+	 * @param data the serialised calendar, UTF-8 encoded
+	 * @param method the ITIP method of the calendar, e.g. "REQUEST", or null if none
+	 * @param name the name of the attachment, e.g. "invite.ics"
+	 */
+	public CalendarDataSource(byte[] data, String method, String name) {
+		this.data = data;
+		this.name = name;
+		
+		StringBuilder sb = new StringBuilder("text/calendar; charset=UTF-8");
+		if(method != null) {
+			sb.append("; method=");
+			sb.append(method);
+		}
+		this.contentType = sb.toString();
+	}
+	
+	@Override
+	public InputStream getInputStream() throws IOException {
+		return new ByteArrayInputStream(data);
+	}
+
+	@Override
+	public OutputStream getOutputStream() throws IOException {
+		throw new IOException("CalendarDataSource is read only");
+	}
+
+	@Override
+	public String getContentType() {
+		return contentType;
+	}
+
+	@Override
+	public String getName() {
+		return name;
+	}
+	
+	/**
+	 * Size of the serialised calendar in bytes
+	 * @return
+	 */
+	public int getSize() {
+		return data.length;
+	}
+}
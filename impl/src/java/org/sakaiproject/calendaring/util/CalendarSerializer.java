@@ -0,0 +1,266 @@
+/*
+* Licensed to The Apereo Foundation under one or more contributor license
+* agreements. See the NOTICE file distributed with this work for
+* additional information regarding copyright ownership.
+*
+* The Apereo Foundation licenses this file to you under the Educational 
+* Community License, Version 2.0 (the "License"); you may not use this file 
+* except in compliance with the License. You may obtain a copy of the 
+* License at:
+*
+* http://opensource.org/licenses/ecl2.txt
+* 
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package org.sakaiproject.calendaring.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+import net.fortuna.ical4j.data.CalendarOutputter;
+import net.fortuna.ical4j.data.FoldingWriter;
+import net.fortuna.ical4j.model.Calendar;
+import net.fortuna.ical4j.model.Component;
+import net.fortuna.ical4j.model.ValidationException;
+import net.fortuna.ical4j.model.component.VTimeZone;
+
+/**
+ * Serialises iCal calendars using a single shared {@link CalendarOutputter} and a fixed size, per-thread char and byte buffer
+ * that are reused across calls, so that writing a calendar out does not allocate fresh buffers each time.
+ * <p>
+ * Output is encoded and written to the stream a buffer at a time, so however large the calendar,
+ * each thread only ever holds on to the configured number of bytes.
+ * <p>
+ * If given a {@link TimeZoneCache}, the shared VTIMEZONE components it hands out are written from their cached bytes rather than
+ * being serialised again for every calendar. The output is otherwise exactly as {@link CalendarOutputter} would write it.
+ */
+public class CalendarSerializer {
+
+	public static final int DEFAULT_BUFFER_SIZE = 32 * 1024;
+	
+	private static final int MIN_BUFFER_SIZE = 1024;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	
+	//CalendarOutputter holds no per-call state so can be shared across threads
+	private final CalendarOutputter outputter = new CalendarOutputter();
+	
+	private final int bufferSize;
+	private final TimeZoneCache timeZoneCache;
+	
+	private final ThreadLocal<EncodingWriter> writers = new ThreadLocal<EncodingWriter>() {
+		@Override
+		protected EncodingWriter initialValue() {
+			return new EncodingWriter(bufferSize);
+		}
+	};
+	
+	public CalendarSerializer() {
+		this(DEFAULT_BUFFER_SIZE);
+	}
+	
+	/**
+	 * @param bufferSize the size in bytes of the buffer each thread encodes into and keeps for reuse
+	 */
+	public CalendarSerializer(int bufferSize) {
+		this(bufferSize, null);
+	}
+	
+	/**
+	 * @param bufferSize the size in bytes of the buffer each thread encodes into and keeps for reuse
+	 * @param timeZoneCache the cache whose VTIMEZONE components are written from their cached bytes, may be null
+	 */
+	public CalendarSerializer(int bufferSize, TimeZoneCache timeZoneCache) {
+		this.bufferSize = Math.max(bufferSize, MIN_BUFFER_SIZE);
+		this.timeZoneCache = timeZoneCache;
+	}
+	
+	/**
+	 * Serialise the calendar and write it to the given stream a buffer at a time. The stream is not closed.
+	 * @param calendar
+	 * @param out
+	 * @throws IOException
+	 * @throws ValidationException
+	 */
+	public void write(Calendar calendar, OutputStream out) throws IOException, ValidationException {
+		writers.get().write(calendar, out);
+	}
+	
+	/**
+	 * Serialise the calendar into a new byte array
+	 * @param calendar
+	 * @return the UTF-8 encoded calendar
+	 * @throws IOException
+	 * @throws ValidationException
+	 */
+	public byte[] toByteArray(Calendar calendar) throws IOException, ValidationException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(bufferSize);
+		write(calendar, out);
+		return out.toByteArray();
+	}
+	
+	/**
+	 * Writer for a single thread that encodes chars into its byte buffer and writes that to the stream each time it fills.
+	 * A char that is split across buffers is held back until the rest of it arrives.
+	 */
+	private class EncodingWriter extends Writer {
+		
+		private final CharBuffer chars;
+		private final ByteBuffer bytes;
+		private final CharsetEncoder encoder = UTF8.newEncoder()
+				.onMalformedInput(CodingErrorAction.REPLACE)
+				.onUnmappableCharacter(CodingErrorAction.REPLACE);
+		
+		private OutputStream out;
+		
+		private EncodingWriter(int bufferSize) {
+			this.bytes = ByteBuffer.allocate(bufferSize);
+			this.chars = CharBuffer.allocate((int) (bufferSize / encoder.maxBytesPerChar()));
+		}
+		
+		/**
+		 * Serialise the calendar through this writer to the stream
+		 */
+		private void write(Calendar calendar, OutputStream out) throws IOException, ValidationException {
+			this.out = out;
+			chars.clear();
+			bytes.clear();
+			encoder.reset();
+			try {
+				if(timeZoneCache == null) {
+					outputter.output(calendar, this);
+				} else {
+					output(calendar);
+				}
+				
+				encode(true);
+				while(encoder.flush(bytes).isOverflow()) {
+					drain();
+				}
+				drain();
+			} finally {
+				this.out = null;
+			}
+		}
+		
+		/**
+		 * Write the calendar as CalendarOutputter does, but with any cached VTIMEZONE written straight from its bytes.
+		 * Each component ends a line, so folding each one separately gives the same result as folding the whole calendar.
+		 */
+		private void output(Calendar calendar) throws IOException, ValidationException {
+			if(outputter.isValidating()) {
+				calendar.validate();
+			}
+			
+			FoldingWriter folding = new FoldingWriter(this);
+			folding.write(Calendar.BEGIN + ':' + Calendar.VCALENDAR + "\r\n");
+			folding.write(calendar.getProperties().toString());
+			for(Object o: calendar.getComponents()) {
+				Component component = (Component) o;
+				byte[] cached = component instanceof VTimeZone ? timeZoneCache.getSerialized((VTimeZone) component) : null;
+				if(cached != null) {
+					folding.flush();
+					writeBytes(cached);
+				} else {
+					folding.write(component.toString());
+				}
+			}
+			folding.write(Calendar.END + ':' + Calendar.VCALENDAR + "\r\n");
+			folding.flush();
+		}
+		
+		/**
+		 * Write bytes that are already encoded, after everything written before them
+		 */
+		private void writeBytes(byte[] b) throws IOException {
+			encode(false);
+			drain();
+			out.write(b);
+		}
+		
+		@Override
+		public void write(int c) throws IOException {
+			chars.put((char) c);
+			if(!chars.hasRemaining()) {
+				encode(false);
+			}
+		}
+		
+		@Override
+		public void write(char[] cbuf, int off, int len) throws IOException {
+			while(len > 0) {
+				int n = Math.min(len, chars.remaining());
+				chars.put(cbuf, off, n);
+				off += n;
+				len -= n;
+				if(!chars.hasRemaining()) {
+					encode(false);
+				}
+			}
+		}
+		
+		@Override
+		public void write(String str, int off, int len) throws IOException {
+			while(len > 0) {
+				int n = Math.min(len, chars.remaining());
+				chars.put(str, off, off + n);
+				off += n;
+				len -= n;
+				if(!chars.hasRemaining()) {
+					encode(false);
+				}
+			}
+		}
+		
+		/**
+		 * Nothing to do, everything is written out at the end of the calendar
+		 */
+		@Override
+		public void flush() {
+		}
+		
+		/**
+		 * CalendarOutputter closes the writer it is given, but the stream belongs to the caller so is left open
+		 */
+		@Override
+		public void close() {
+		}
+		
+		/**
+		 * Encode the buffered chars, writing the bytes out whenever the byte buffer fills
+		 */
+		private void encode(boolean endOfInput) throws IOException {
+			chars.flip();
+			while(true) {
+				CoderResult result = encoder.encode(chars, bytes, endOfInput);
+				if(result.isOverflow()) {
+					drain();
+				} else if(result.isUnderflow()) {
+					break;
+				} else {
+					result.throwException();
+				}
+			}
+			chars.compact();
+		}
+		
+		private void drain() throws IOException {
+			if(bytes.position() > 0) {
+				out.write(bytes.array(), 0, bytes.position());
+				bytes.clear();
+			}
+		}
+	}
+}
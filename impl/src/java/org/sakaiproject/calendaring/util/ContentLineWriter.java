@@ -0,0 +1,310 @@
+/*
+* Licensed to The Apereo Foundation under one or more contributor license
+* agreements. See the NOTICE file distributed with this work for
+* additional information regarding copyright ownership.
+*
+* The Apereo Foundation licenses this file to you under the Educational 
+* Community License, Version 2.0 (the "License"); you may not use this file 
+* except in compliance with the License. You may obtain a copy of the 
+* License at:
+*
+* http://opensource.org/licenses/ecl2.txt
+* 
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package org.sakaiproject.calendaring.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes iCalendar content lines straight to UTF-8 bytes, escaping TEXT values and folding lines at 75 octets
+ * in a single pass, without building intermediate Strings.
+ * <p>
+ * Lines are only ever folded between whole UTF-8 sequences, and never inside an escape sequence, as per RFC 5545 section 3.1.
+ * In TEXT values, backslashes, semicolons and commas are escaped, and CRLF, LF and lone CR are all written as an escaped newline.
+ * <p>
+ * Output is buffered, call {@link #flush()} when done. Instances are not thread safe but can be reused for a new stream
+ * via {@link #reset(OutputStream)}.
+ */
+public class ContentLineWriter {
+
+	public static final int MAX_LINE_OCTETS = 75;
+	
+	private static final int DEFAULT_BUFFER_SIZE = 8 * 1024;
+	
+	private OutputStream out;
+	private final byte[] buf;
+	private int pos;
+	private int lineOctets;
+	private long flushed;
+	
+	public ContentLineWriter(OutputStream out) {
+		this(out, DEFAULT_BUFFER_SIZE);
+	}
+	
+	public ContentLineWriter(OutputStream out, int bufferSize) {
+		this.out = out;
+		this.buf = new byte[Math.max(bufferSize, 64)];
+	}
+	
+	/**
+	 * Discard any unflushed output and start writing to a new stream
+	 * @param out
+	 */
+	public void reset(OutputStream out) {
+		this.out = out;
+		this.pos = 0;
+		this.lineOctets = 0;
+		this.flushed = 0;
+	}
+	
+	/**
+	 * Write a complete content line with a TEXT value, e.g. DESCRIPTION
+	 * @param name property name, including any parameters
+	 * @param value unescaped value, may be null
+	 * @throws IOException
+	 */
+	public void writeText(CharSequence name, CharSequence value) throws IOException {
+		startLine(name);
+		appendText(value);
+		endLine();
+	}
+	
+	/**
+	 * Write a complete content line with a value that needs no escaping, e.g. DTSTART or UID
+	 * @param name property name, including any parameters
+	 * @param value the value, may be null
+	 * @throws IOException
+	 */
+	public void writeValue(CharSequence name, CharSequence value) throws IOException {
+		startLine(name);
+		appendValue(value);
+		endLine();
+	}
+	
+	/**
+	 * Start a new content line with the given property name
+	 * @param name
+	 * @throws IOException
+	 */
+	public void startLine(CharSequence name) throws IOException {
+		append(name, false);
+	}
+	
+	/**
+	 * Append a parameter to the current line, quoting the value if required.
+	 * Must be called after {@link #startLine(CharSequence)} and before the value.
+	 * @param name parameter name, e.g. CN
+	 * @param value the parameter value
+	 * @throws IOException
+	 */
+	public void appendParameter(String name, CharSequence value) throws IOException {
+		appendAscii(';');
+		append(name, false);
+		appendAscii('=');
+		
+		boolean quote = false;
+		for(int i=0;i<value.length();i++) {
+			char c = value.charAt(i);
+			if(c == ':' || c == ';' || c == ',') {
+				quote = true;
+				break;
+			}
+		}
+		if(quote) {
+			appendAscii('"');
+		}
+		//double quotes are not permitted inside parameter values
+		for(int i=0;i<value.length();i++) {
+			char c = value.charAt(i);
+			if(c == '"') {
+				appendAscii('\'');
+			} else if(c == '\r' || c == '\n') {
+				appendAscii(' ');
+			} else {
+				i = appendChar(value, i, false);
+			}
+		}
+		if(quote) {
+			appendAscii('"');
+		}
+	}
+	
+	/**
+	 * Append a TEXT value to the current line, escaping it as we go
+	 * @param value
+	 * @throws IOException
+	 */
+	public void appendText(CharSequence value) throws IOException {
+		appendAscii(':');
+		append(value, true);
+	}
+	
+	/**
+	 * Append a value that does not need escaping to the current line
+	 * @param value
+	 * @throws IOException
+	 */
+	public void appendValue(CharSequence value) throws IOException {
+		appendAscii(':');
+		append(value, false);
+	}
+	
+	/**
+	 * End the current content line
+	 * @throws IOException
+	 */
+	public void endLine() throws IOException {
+		ensureBuffer(2);
+		buf[pos++] = '\r';
+		buf[pos++] = '\n';
+		lineOctets = 0;
+	}
+	
+	/**
+	 * Write bytes that are already complete, folded content lines, e.g. a cached component. Must be called at the start of a line.
+	 * @param bytes
+	 * @param off
+	 * @param len
+	 * @throws IOException
+	 */
+	public void writeRaw(byte[] bytes, int off, int len) throws IOException {
+		lineOctets = 0;
+		if(len > buf.length - pos) {
+			drain();
+			if(len > buf.length) {
+				out.write(bytes, off, len);
+				flushed += len;
+				return;
+			}
+		}
+		System.arraycopy(bytes, off, buf, pos, len);
+		pos += len;
+	}
+	
+	/**
+	 * Write any buffered output to the underlying stream and flush it
+	 * @throws IOException
+	 */
+	public void flush() throws IOException {
+		drain();
+		out.flush();
+	}
+	
+	/**
+	 * Total number of bytes written so far, including any still buffered
+	 * @return
+	 */
+	public long getBytesWritten() {
+		return flushed + pos;
+	}
+	
+	private void append(CharSequence s, boolean escape) throws IOException {
+		if(s == null) {
+			return;
+		}
+		int len = s.length();
+		for(int i=0;i<len;i++) {
+			i = appendChar(s, i, escape);
+		}
+	}
+	
+	/**
+	 * Append the character at the given index, escaping and encoding it as required
+	 * @return the index of the last char consumed, which is further along for surrogate pairs and CRLF
+	 */
+	private int appendChar(CharSequence s, int i, boolean escape) throws IOException {
+		char c = s.charAt(i);
+		
+		if(c < 0x80) {
+			if(escape) {
+				switch(c) {
+					case '\\':
+					case ';':
+					case ',':
+						appendEscaped(c);
+						return i;
+					case '\r':
+						if(i + 1 < s.length() && s.charAt(i + 1) == '\n') {
+							i++;
+						}
+						appendEscaped('n');
+						return i;
+					case '\n':
+						appendEscaped('n');
+						return i;
+					default:
+						break;
+				}
+			}
+			appendAscii(c);
+		} else if(c < 0x800) {
+			startOctets(2);
+			buf[pos++] = (byte) (0xC0 | (c >> 6));
+			buf[pos++] = (byte) (0x80 | (c & 0x3F));
+		} else if(Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+			int cp = Character.toCodePoint(c, s.charAt(++i));
+			startOctets(4);
+			buf[pos++] = (byte) (0xF0 | (cp >> 18));
+			buf[pos++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+			buf[pos++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+			buf[pos++] = (byte) (0x80 | (cp & 0x3F));
+		} else if(Character.isSurrogate(c)) {
+			//unpaired surrogate, cannot be encoded
+			appendAscii('?');
+		} else {
+			startOctets(3);
+			buf[pos++] = (byte) (0xE0 | (c >> 12));
+			buf[pos++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+			buf[pos++] = (byte) (0x80 | (c & 0x3F));
+		}
+		return i;
+	}
+	
+	private void appendAscii(char c) throws IOException {
+		startOctets(1);
+		buf[pos++] = (byte) c;
+	}
+	
+	private void appendEscaped(char c) throws IOException {
+		startOctets(2);
+		buf[pos++] = '\\';
+		buf[pos++] = (byte) c;
+	}
+	
+	/**
+	 * Make room for a sequence of octets that must not be split, folding the line first if they won't fit
+	 */
+	private void startOctets(int n) throws IOException {
+		if(lineOctets + n > MAX_LINE_OCTETS) {
+			ensureBuffer(n + 3);
+			buf[pos++] = '\r';
+			buf[pos++] = '\n';
+			buf[pos++] = ' ';
+			lineOctets = 1;
+		} else {
+			ensureBuffer(n);
+		}
+		lineOctets += n;
+	}
+	
+	private void ensureBuffer(int n) throws IOException {
+		if(pos + n > buf.length) {
+			drain();
+		}
+	}
+	
+	private void drain() throws IOException {
+		if(pos > 0) {
+			out.write(buf, 0, pos);
+			flushed += pos;
+			pos = 0;
+		}
+	}
+}
@@ -0,0 +1,78 @@
+/*
+* Licensed to The Apereo Foundation under one or more contributor license
+* agreements. See the NOTICE file distributed with this work for
+* additional information regarding copyright ownership.
+*
+* The Apereo Foundation licenses this file to you under the Educational 
+* Community License, Version 2.0 (the "License"); you may not use this file 
+* except in compliance with the License. You may obtain a copy of the 
+* License at:
+*
+* http://opensource.org/licenses/ecl2.txt
+* 
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package org.sakaiproject.calendaring.util;
+
+import java.security.SecureRandom;
+import java.util.UUID;
+
+/**
+ * Default {@link IdGenerator} that produces random (type 4) UUIDs without going through a shared {@link SecureRandom} for every id.
+ * <p>
+ * Each thread has its own xorshift128+ generator, seeded with 128 bits from a SecureRandom the first time the thread asks for an id.
+ * After that, threads never contend or block waiting for entropy. With 128 bits of independently seeded state per thread,
+ * the 122 random bits of each id are as unlikely to collide as those of {@link UUID#randomUUID()}, across threads and across nodes.
+ * <p>
+ * xorshift128+ is not a cryptographic generator, so later ids can be predicted from earlier ones. The ids are unique, not unguessable.
+ * That is all file names and VEvent UIDs need; use {@link UUID#randomUUID()} where an id must also be secret.
+ */
+public class FastIdGenerator implements IdGenerator {
+
+	private final SecureRandom seeds = new SecureRandom();
+	
+	private final ThreadLocal<long[]> state = new ThreadLocal<long[]>() {
+		@Override
+		protected long[] initialValue() {
+			long[] s = new long[2];
+			synchronized(seeds) {
+				//xorshift128+ must not start from all zeros
+				while(s[0] == 0 && s[1] == 0) {
+					s[0] = seeds.nextLong();
+					s[1] = seeds.nextLong();
+				}
+			}
+			return s;
+		}
+	};
+	
+	@Override
+	public String nextId() {
+		long[] s = state.get();
+		long msb = next(s);
+		long lsb = next(s);
+		
+		//version 4, IETF variant
+		msb = (msb & 0xFFFFFFFFFFFF0FFFL) | 0x0000000000004000L;
+		lsb = (lsb & 0x3FFFFFFFFFFFFFFFL) | 0x8000000000000000L;
+		
+		return new UUID(msb, lsb).toString();
+	}
+	
+	/**
+	 * One step of xorshift128+
+	 */
+	private static long next(long[] s) {
+		long s1 = s[0];
+		long s0 = s[1];
+		s[0] = s0;
+		s1 ^= s1 << 23;
+		s[1] = s1 ^ s0 ^ (s1 >>> 17) ^ (s0 >>> 26);
+		return s[1] + s0;
+	}
+}
@@ -0,0 +1,187 @@
+/*
+* Licensed to The Apereo Foundation under one or more contributor license
+* agreements. See the NOTICE file distributed with this work for
+* additional information regarding copyright ownership.
+*
+* The Apereo Foundation licenses this file to you under the Educational 
+* Community License, Version 2.0 (the "License"); you may not use this file 
+* except in compliance with the License. You may obtain a copy of the 
+* License at:
+*
+* http://opensource.org/licenses/ecl2.txt
+* 
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package org.sakaiproject.calendaring.util;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.charset.Charset;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import lombok.extern.apachecommons.CommonsLog;
+import net.fortuna.ical4j.data.FoldingWriter;
+import net.fortuna.ical4j.model.Property;
+import net.fortuna.ical4j.model.TimeZone;
+import net.fortuna.ical4j.model.TimeZoneRegistry;
+import net.fortuna.ical4j.model.TimeZoneRegistryFactory;
+import net.fortuna.ical4j.model.component.VTimeZone;
+
+import org.apache.commons.lang.StringUtils;
+
+/**
+ * Caches the ical4j timezone and VTIMEZONE component for each zone, along with the component in serialised form,
+ * so that each zone is only ever loaded and built once.
+ * <p>
+ * UTC and its aliases, and zones unknown to ical4j, have no entry. Events in those zones should be output in UTC instead.
+ * <p>
+ * A zone can be asked for by an alias, e.g. US/Eastern, but the VTIMEZONE always carries the canonical TZID, e.g. America/New_York.
+ * Anything that refers to the zone in the same calendar must use {@link #getCanonicalId(String)}, or clients can't resolve the reference.
+ * <p>
+ * The cached VTIMEZONE components are shared between calendars so must not be modified. {@link CalendarSerializer} writes them
+ * from their cached bytes, so a change to one would not even be output.
+ */
+@CommonsLog
+public class TimeZoneCache {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	
+	private final TimeZoneRegistry registry = TimeZoneRegistryFactory.getInstance().createRegistry();
+	
+	private final ConcurrentMap<String, CachedZone> zones = new ConcurrentHashMap<String, CachedZone>();
+	
+	/**
+	 * Get the ical4j timezone for the given id
+	 * @param id timezone id, e.g. Europe/London
+	 * @return the timezone, or null if it is UTC or unknown
+	 */
+	public TimeZone getTimeZone(String id) {
+		CachedZone zone = get(id);
+		return zone == null ? null : zone.timezone;
+	}
+	
+	/**
+	 * Get the TZID of the VTIMEZONE component for the given id, which is what TZID parameters must refer to
+	 * @param id timezone id or alias, e.g. US/Eastern
+	 * @return the canonical id, e.g. America/New_York, or null if it is UTC or unknown
+	 */
+	public String getCanonicalId(String id) {
+		CachedZone zone = get(id);
+		return zone == null ? null : zone.tzid;
+	}
+	
+	/**
+	 * Get the VTIMEZONE component for the given id
+	 * @param id timezone id, e.g. Europe/London
+	 * @return the shared component, or null if it is UTC or unknown
+	 */
+	public VTimeZone getVTimeZone(String id) {
+		CachedZone zone = get(id);
+		return zone == null ? null : zone.timezone.getVTimeZone();
+	}
+	
+	/**
+	 * Get the VTIMEZONE component for the given id as folded, UTF-8 encoded content lines.
+	 * @param id timezone id, e.g. Europe/London
+	 * @return the serialised component, or null if it is UTC or unknown. Callers must not modify the array.
+	 */
+	public byte[] getSerialized(String id) {
+		CachedZone zone = get(id);
+		return zone == null ? null : zone.serialized;
+	}
+	
+	/**
+	 * Get the serialised form of a VTIMEZONE component, if it is one of the shared components from this cache.
+	 * @param vtimezone
+	 * @return the serialised component, or null if the component did not come from this cache. Callers must not modify the array.
+	 */
+	public byte[] getSerialized(VTimeZone vtimezone) {
+		Property tzid = vtimezone.getProperty(Property.TZID);
+		if(tzid == null) {
+			return null;
+		}
+		CachedZone zone = zones.get(tzid.getValue());
+		return zone != null && zone.timezone.getVTimeZone() == vtimezone ? zone.serialized : null;
+	}
+	
+	/**
+	 * Is the given timezone id UTC, or an alias for it?
+	 * @param id
+	 * @return
+	 */
+	public static boolean isUtc(String id) {
+		return StringUtils.isBlank(id)
+				|| StringUtils.equalsIgnoreCase(id, "UTC")
+				|| StringUtils.equalsIgnoreCase(id, "GMT")
+				|| StringUtils.equalsIgnoreCase(id, "Etc/UTC")
+				|| StringUtils.equalsIgnoreCase(id, "Etc/GMT")
+				|| StringUtils.equalsIgnoreCase(id, "Z");
+	}
+	
+	private CachedZone get(String id) {
+		if(isUtc(id)) {
+			return null;
+		}
+		
+		CachedZone zone = zones.get(id);
+		if(zone == null) {
+			zone = load(id);
+			if(zone == null) {
+				return null;
+			}
+			CachedZone existing = zones.putIfAbsent(id, zone);
+			if(existing != null) {
+				zone = existing;
+			}
+			//so the zone is shared whichever name it is asked for by, and its component is recognised by getSerialized(VTimeZone)
+			if(!zone.tzid.equals(id)) {
+				existing = zones.putIfAbsent(zone.tzid, zone);
+				if(existing != null) {
+					zone = existing;
+				}
+			}
+		}
+		return zone;
+	}
+	
+	private CachedZone load(String id) {
+		TimeZone timezone;
+		synchronized(registry) {
+			timezone = registry.getTimeZone(id);
+		}
+		if(timezone == null) {
+			log.warn("Unknown timezone: " + id + ", events will be output in UTC.");
+			return null;
+		}
+		
+		StringWriter sw = new StringWriter();
+		try {
+			FoldingWriter writer = new FoldingWriter(sw);
+			writer.write(timezone.getVTimeZone().toString());
+			writer.flush();
+		} catch (IOException e) {
+			//can't happen with a StringWriter
+			throw new IllegalStateException(e);
+		}
+		
+		return new CachedZone(timezone, timezone.getVTimeZone().getTimeZoneId().getValue(), sw.toString().getBytes(UTF8));
+	}
+	
+	private static class CachedZone {
+		private final TimeZone timezone;
+		private final String tzid;
+		private final byte[] serialized;
+		
+		private CachedZone(TimeZone timezone, String tzid, byte[] serialized) {
+			this.timezone = timezone;
+			this.tzid = tzid;
+			this.serialized = serialized;
+		}
+	}
+}
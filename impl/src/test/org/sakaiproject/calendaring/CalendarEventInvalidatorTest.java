@@ -0,0 +1,113 @@
+/*
+* Licensed to The Apereo Foundation under one or more contributor license
+* agreements. See the NOTICE file distributed with this work for
+* additional information regarding copyright ownership.
+*
+* The Apereo Foundation licenses this file to you under the Educational 
+* Community License, Version 2.0 (the "License"); you may not use this file 
+* except in compliance with the License. You may obtain a copy of the 
+* License at:
+*
+* http://opensource.org/licenses/ecl2.txt
+* 
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package org.sakaiproject.calendaring;
+
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.sakaiproject.calendar.api.CalendarEvent;
+import org.sakaiproject.calendaring.api.CalendarFeedProvider;
+import org.sakaiproject.calendaring.logic.CalendarEventInvalidator;
+import org.sakaiproject.calendaring.logic.InvalidationBroadcaster;
+import org.sakaiproject.calendaring.logic.LocalInvalidator;
+import org.sakaiproject.calendaring.mocks.MockCalendarEventEdit;
+import org.sakaiproject.calendaring.mocks.MockSakaiProxy;
+import org.sakaiproject.event.api.Event;
+
+/**
+ * Test that calendar changes drop exactly the affected entries
+ */
+public class CalendarEventInvalidatorTest {
+
+	private LocalInvalidator service;
+	private CalendarEventInvalidator invalidator;
+	
+	@Before
+	public void setup() {
+		service = mock(LocalInvalidator.class);
+		
+		//event2 has its own UID, event1 uses its id
+		final MockCalendarEventEdit withUid = new MockCalendarEventEdit();
+		withUid.setId("event2");
+		withUid.setField("vevent_uuid", "uid2");
+		
+		final CalendarFeedProvider provider = mock(CalendarFeedProvider.class);
+		when(provider.getFeedIds("/calendar/calendar/site1/main")).thenReturn(Arrays.asList("site1", "everything"));
+		
+		invalidator = new CalendarEventInvalidator();
+		invalidator.setExternalCalendaringService(service);
+		invalidator.setSakaiProxy(new MockSakaiProxy() {
+			@Override
+			public CalendarFeedProvider getCalendarFeedProvider() {
+				return provider;
+			}
+			@Override
+			public CalendarEvent getCalendarEvent(String calendarReference, String eventId) {
+				return "event2".equals(eventId) ? withUid : null;
+			}
+		});
+	}
+	
+	@Test
+	public void testRevisedEventIsInvalidated() {
+		invalidator.update(null, event("calendar.revise.event.time", "/calendar/event/site1/main/event1"));
+		
+		verify(service).invalidateLocally(InvalidationBroadcaster.REGION_EVENT, "event1");
+		verify(service).invalidateLocally(InvalidationBroadcaster.REGION_FEED, "site1");
+		verify(service).invalidateLocally(InvalidationBroadcaster.REGION_FEED, "everything");
+	}
+	
+	@Test
+	public void testRevisedEventIsInvalidatedByItsOwnUid() {
+		invalidator.update(null, event("calendar.revise.event.title", "/calendar/event/site1/main/event2"));
+		
+		verify(service).invalidateLocally(InvalidationBroadcaster.REGION_EVENT, "event2");
+		verify(service).invalidateLocally(InvalidationBroadcaster.REGION_EVENT, "uid2");
+	}
+	
+	@Test
+	public void testDeletedEventIsInvalidated() {
+		invalidator.update(null, event("calendar.delete", "/calendar/event/site1/main/event1"));
+		verify(service).invalidateLocally(InvalidationBroadcaster.REGION_EVENT, "event1");
+	}
+	
+	@Test
+	public void testOtherEventsAreIgnored() {
+		invalidator.update(null, event("content.revise", "/content/group/site1/file.txt"));
+		invalidator.update(null, event("calendar.read", "/calendar/event/site1/main/event1"));
+		invalidator.update(null, "not an event");
+		
+		verify(service, never()).invalidateLocally(anyString(), anyString());
+	}
+	
+	private Event event(String name, String resource) {
+		Event event = mock(Event.class);
+		when(event.getEvent()).thenReturn(name);
+		when(event.getResource()).thenReturn(resource);
+		return event;
+	}
+}
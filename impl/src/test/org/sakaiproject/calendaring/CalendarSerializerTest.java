@@ -0,0 +1,110 @@
+/*
+* Licensed to The Apereo Foundation under one or more contributor license
+* agreements. See the NOTICE file distributed with this work for
+* additional information regarding copyright ownership.
+*
+* The Apereo Foundation licenses this file to you under the Educational 
+* Community License, Version 2.0 (the "License"); you may not use this file 
+* except in compliance with the License. You may obtain a copy of the 
+* License at:
+*
+* http://opensource.org/licenses/ecl2.txt
+* 
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package org.sakaiproject.calendaring;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+
+import net.fortuna.ical4j.data.CalendarOutputter;
+import net.fortuna.ical4j.model.Calendar;
+import net.fortuna.ical4j.model.DateTime;
+import net.fortuna.ical4j.model.component.VEvent;
+import net.fortuna.ical4j.model.property.CalScale;
+import net.fortuna.ical4j.model.property.Description;
+import net.fortuna.ical4j.model.property.ProdId;
+import net.fortuna.ical4j.model.property.Uid;
+import net.fortuna.ical4j.model.property.Version;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.sakaiproject.calendaring.util.CalendarSerializer;
+import org.sakaiproject.calendaring.util.TimeZoneCache;
+
+/**
+ * Tests that the {@link CalendarSerializer} writes exactly what ical4j does, however the output falls across its buffers
+ */
+public class CalendarSerializerTest {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	
+	//multi byte and surrogate pair chars, so some are bound to straddle a buffer boundary
+	private static final String TEXT = "Διάλεξη για την ιστορία του ημερολογίου 关于日历历史的讲座 Party 🎉 time 📅, ";
+	
+	@Test
+	public void testLargeCalendarMatchesIcal4j() throws Exception {
+		Calendar calendar = generateCalendar(200);
+		
+		ByteArrayOutputStream expected = new ByteArrayOutputStream();
+		new CalendarOutputter().output(calendar, expected);
+		
+		//a small buffer so the calendar is written in many pieces
+		CalendarSerializer serializer = new CalendarSerializer(1024);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		serializer.write(calendar, out);
+		Assert.assertArrayEquals(expected.toByteArray(), out.toByteArray());
+		
+		//and again, reusing the buffers
+		Assert.assertArrayEquals(expected.toByteArray(), serializer.toByteArray(calendar));
+		Assert.assertTrue(new String(out.toByteArray(), UTF8).contains("🎉"));
+	}
+	
+	@Test
+	public void testSmallCalendarMatchesIcal4j() throws Exception {
+		Calendar calendar = generateCalendar(1);
+		
+		ByteArrayOutputStream expected = new ByteArrayOutputStream();
+		new CalendarOutputter().output(calendar, expected);
+		
+		Assert.assertArrayEquals(expected.toByteArray(), new CalendarSerializer().toByteArray(calendar));
+	}
+	
+	@Test
+	public void testCachedTimeZoneIsWrittenAsIcal4jWould() throws Exception {
+		TimeZoneCache timeZoneCache = new TimeZoneCache();
+		Calendar calendar = generateCalendar(20);
+		calendar.getComponents().add(0, timeZoneCache.getVTimeZone("Europe/London"));
+		Assert.assertNotNull(timeZoneCache.getSerialized(timeZoneCache.getVTimeZone("Europe/London")));
+		
+		ByteArrayOutputStream expected = new ByteArrayOutputStream();
+		new CalendarOutputter().output(calendar, expected);
+		
+		CalendarSerializer serializer = new CalendarSerializer(1024, timeZoneCache);
+		Assert.assertArrayEquals(expected.toByteArray(), serializer.toByteArray(calendar));
+	}
+	
+	/**
+	 * Helper to generate a calendar. NOT A TEST METHOD
+	 */
+	private Calendar generateCalendar(int events) {
+		Calendar calendar = new Calendar();
+		calendar.getProperties().add(new ProdId("-//Test//Sakai External Calendaring Service//EN"));
+		calendar.getProperties().add(Version.VERSION_2_0);
+		calendar.getProperties().add(CalScale.GREGORIAN);
+		for(int i=0;i<events;i++) {
+			DateTime start = new DateTime(1336136400000L + i * 86400000L);
+			start.setUtc(true);
+			VEvent vevent = new VEvent(start, "Lecture " + i + " " + TEXT);
+			vevent.getProperties().add(new Uid("event-" + i));
+			vevent.getProperties().add(new Description(TEXT + TEXT + TEXT + i));
+			calendar.getComponents().add(vevent);
+		}
+		return calendar;
+	}
+}
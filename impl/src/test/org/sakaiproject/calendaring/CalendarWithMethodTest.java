@@ -3,6 +3,7 @@ package org.sakaiproject.calendaring;
 import net.fortuna.ical4j.model.*;
 import net.fortuna.ical4j.model.Calendar;
 import net.fortuna.ical4j.model.component.VEvent;
+import org.apache.commons.io.IOUtils;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
@@ -22,7 +23,9 @@ import org.springframework.context.ApplicationContext;
 import org.springframework.test.context.ContextConfiguration;
 import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
 
+import javax.activation.DataSource;
 import javax.annotation.Resource;
+import java.io.IOException;
 import java.util.*;
 
 import static org.junit.Assert.*;
@@ -115,6 +118,75 @@ public class CalendarWithMethodTest {
         assertNotNull(calendar);
     }
 
+    @Test
+    public void testBatchCancelCalendar() {
+        List<VEvent> vevents = new ArrayList<VEvent>();
+        for(int i=0;i<5;i++) {
+            vevents.add(generateVEvent());
+        }
+        //can't be cancelled, so is skipped and left as it was
+        VEvent invalid = new VEvent();
+        vevents.add(invalid);
+        Calendar calendar = service.createCancelCalendar(vevents);
+        assertNotNull(calendar);
+        assertNull(invalid.getStatus());
+        assertNull(invalid.getSequence());
+        assertEquals("CANCEL", calendar.getMethod().getValue());
+        ComponentList cancelled = calendar.getComponents(Component.VEVENT);
+        assertEquals(5, cancelled.size());
+        for(Object o: cancelled) {
+            assertEquals("CANCELLED", ((VEvent) o).getStatus().getValue());
+            assertNotNull(((VEvent) o).getSequence());
+        }
+        assertEquals(1, calendar.getComponents(Component.VTIMEZONE).size());
+    }
+
+    @Test
+    public void testBatchCancelCalendarByUid() throws ValidationException {
+        List<String> uids = new ArrayList<String>();
+        for(int i=0;i<3;i++) {
+            CalendarEventEdit event = generateEvent(CREATOR);
+            event.setField("vevent_sequence", "2");
+            EventUpdate sent = service.createEventUpdate(event, users);
+            service.markSent(sent);
+            uids.add(sent.getUid());
+        }
+        uids.add("never-sent");
+
+        Calendar calendar = service.createCancelCalendarForUids(uids);
+        assertNotNull(calendar);
+        ComponentList cancelled = calendar.getComponents(Component.VEVENT);
+        assertEquals(3, cancelled.size());
+        VEvent first = (VEvent) cancelled.get(0);
+        assertEquals("3", first.getSequence().getValue());
+        assertEquals(1, first.getProperties(Property.DTSTAMP).size());
+        assertEquals("mailto:" + new MockSakaiProxy().getUserEmail(CREATOR), first.getOrganizer().getValue());
+        calendar.validate(true);
+
+        //they have been forgotten, so can't be cancelled again
+        assertNull(service.createCancelCalendarForUids(uids));
+    }
+
+    @Test
+    public void testDataSourceHasMethodContentType() throws IOException {
+        VEvent vevent = generateVEvent();
+        service.addChairAttendeesToEvent(vevent, users);
+        Calendar calendar = service.createCalendar(Collections.singletonList(vevent), "REQUEST");
+        DataSource dataSource = service.toDataSource(calendar);
+        assertNotNull(dataSource);
+        assertEquals("text/calendar; charset=UTF-8; method=REQUEST", dataSource.getContentType());
+        String ics = IOUtils.toString(dataSource.getInputStream(), "UTF-8");
+        assertTrue(ics.startsWith("BEGIN:VCALENDAR"));
+        assertTrue(ics.contains("METHOD:REQUEST"));
+    }
+
+    @Test
+    public void testDataSourceWithoutMethod() {
+        Calendar calendar = service.createCalendar(Collections.singletonList(generateVEvent()));
+        DataSource dataSource = service.toDataSource(calendar);
+        assertEquals("text/calendar; charset=UTF-8", dataSource.getContentType());
+    }
+
     private VEvent generateVEvent() {
         CalendarEvent event = generateEvent(CREATOR);
         return service.createEvent(event);
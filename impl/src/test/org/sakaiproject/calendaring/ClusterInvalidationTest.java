@@ -0,0 +1,124 @@
+/*
+* Licensed to The Apereo Foundation under one or more contributor license
+* agreements. See the NOTICE file distributed with this work for
+* additional information regarding copyright ownership.
+*
+* The Apereo Foundation licenses this file to you under the Educational 
+* Community License, Version 2.0 (the "License"); you may not use this file 
+* except in compliance with the License. You may obtain a copy of the 
+* License at:
+*
+* http://opensource.org/licenses/ecl2.txt
+* 
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package org.sakaiproject.calendaring;
+
+import java.util.Collections;
+import java.util.UUID;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.sakaiproject.calendar.api.CalendarEvent;
+import org.sakaiproject.calendaring.api.EventUpdate;
+import org.sakaiproject.calendaring.api.ExternalCalendaringServiceImpl;
+import org.sakaiproject.calendaring.mocks.LocalInvalidationBroadcaster;
+import org.sakaiproject.calendaring.mocks.MockCalendarEventEdit;
+import org.sakaiproject.calendaring.mocks.MockSakaiProxy;
+import org.sakaiproject.calendaring.mocks.MockTimeService;
+import org.sakaiproject.time.api.TimeService;
+
+/**
+ * Test that an invalidation on one node drops the matching entry on the others, and only that entry
+ */
+public class ClusterInvalidationTest {
+
+	private ExternalCalendaringServiceImpl node1;
+	private ExternalCalendaringServiceImpl node2;
+	
+	@Before
+	public void setup() {
+		LocalInvalidationBroadcaster cluster1 = new LocalInvalidationBroadcaster();
+		LocalInvalidationBroadcaster cluster2 = new LocalInvalidationBroadcaster();
+		cluster1.connect(cluster2);
+		
+		node1 = createNode(cluster1);
+		node2 = createNode(cluster2);
+	}
+	
+	@After
+	public void cleanup() {
+		node1.destroy();
+		node2.destroy();
+	}
+	
+	@Test
+	public void testInvalidatedEventIsSentAgainOnEveryNode() {
+		CalendarEvent event = generateEvent();
+		CalendarEvent other = generateEvent();
+		
+		//both nodes have sent the current version
+		Assert.assertTrue(send(node1, event));
+		Assert.assertTrue(send(node2, event));
+		Assert.assertTrue(send(node2, other));
+		Assert.assertFalse(send(node2, event));
+		
+		node1.invalidateEvent(event.getId());
+		
+		Assert.assertTrue(send(node1, event));
+		Assert.assertTrue(send(node2, event));
+		
+		//everything else is still known
+		Assert.assertFalse(send(node2, other));
+	}
+	
+	@Test
+	public void testCancelledEventIsForgottenOnEveryNode() {
+		CalendarEvent event = generateEvent();
+		
+		Assert.assertTrue(send(node1, event));
+		Assert.assertTrue(send(node2, event));
+		
+		Assert.assertNotNull(node1.createCancelCalendarForUids(Collections.singletonList(event.getId())));
+		
+		//if it is added back it is a new event wherever it goes
+		Assert.assertTrue(send(node2, event));
+	}
+	
+	/**
+	 * Send an update for an event from a node, if it has changed
+	 * @return true if there was anything to send
+	 */
+	private boolean send(ExternalCalendaringServiceImpl node, CalendarEvent event) {
+		EventUpdate update = node.createEventUpdate(event, null);
+		Assert.assertNotNull(update);
+		node.markSent(update);
+		return update.isChanged();
+	}
+	
+	private ExternalCalendaringServiceImpl createNode(LocalInvalidationBroadcaster broadcaster) {
+		ExternalCalendaringServiceImpl node = new ExternalCalendaringServiceImpl();
+		node.setSakaiProxy(new MockSakaiProxy());
+		node.setInvalidationBroadcaster(broadcaster);
+		node.init();
+		return node;
+	}
+	
+	private CalendarEvent generateEvent() {
+		MockCalendarEventEdit edit = new MockCalendarEventEdit();
+		edit.setDisplayName("A new event");
+		edit.setId(UUID.randomUUID().toString());
+		edit.setCreator("steve");
+		
+		TimeService timeService = new MockTimeService();
+		edit.setRange(timeService.newTimeRange(timeService.newTime(1336136400000L), timeService.newTime(1336140000000L), true, false));
+		return edit;
+	}
+}
@@ -0,0 +1,164 @@
+/*
+* Licensed to The Apereo Foundation under one or more contributor license
+* agreements. See the NOTICE file distributed with this work for
+* additional information regarding copyright ownership.
+*
+* The Apereo Foundation licenses this file to you under the Educational 
+* Community License, Version 2.0 (the "License"); you may not use this file 
+* except in compliance with the License. You may obtain a copy of the 
+* License at:
+*
+* http://opensource.org/licenses/ecl2.txt
+* 
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package org.sakaiproject.calendaring;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CodingErrorAction;
+
+import net.fortuna.ical4j.data.FoldingWriter;
+import net.fortuna.ical4j.model.Property;
+import net.fortuna.ical4j.model.property.Description;
+import net.fortuna.ical4j.model.property.Location;
+import net.fortuna.ical4j.model.property.Summary;
+
+import org.apache.commons.lang.StringUtils;
+import org.junit.Assert;
+import org.junit.Test;
+import org.sakaiproject.calendaring.util.ContentLineWriter;
+
+/**
+ * Conformance tests for the {@link ContentLineWriter} against the output of ical4j
+ */
+public class ContentLineWriterTest {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	
+	private static final String ASCII = "A lecture; with commas, semicolons; and a back\\slash.\nSecond line of the description.";
+	private static final String GREEK = "Διάλεξη για την ιστορία του ημερολογίου, μέρος πρώτο; ";
+	private static final String CHINESE = "关于日历历史的讲座，第一部分。";
+	private static final String EMOJI = "Party 🎉 time 📅, ";
+	
+	@Test
+	public void testShortAsciiMatchesIcal4j() throws IOException {
+		assertConforms(new Summary("A new event"));
+		assertConforms(new Location("Building 1"));
+	}
+	
+	@Test
+	public void testEscapingMatchesIcal4j() throws IOException {
+		assertConforms(new Description(ASCII));
+		assertConforms(new Location("Room 1, Building 2; Floor \\3"));
+	}
+	
+	@Test
+	public void testLongAsciiMatchesIcal4j() throws IOException {
+		assertConforms(new Description(StringUtils.repeat(ASCII, 10)));
+	}
+	
+	@Test
+	public void testMultilingualMatchesIcal4j() throws IOException {
+		assertConforms(new Description(StringUtils.repeat(GREEK, 5)));
+		assertConforms(new Description(StringUtils.repeat(CHINESE, 10)));
+		assertConforms(new Description(StringUtils.repeat(GREEK + CHINESE + EMOJI + ASCII, 5)));
+	}
+	
+	@Test
+	public void testFoldsNeverSplitMultiByteSequences() throws IOException {
+		//offset the start of the value by one octet at a time so every fold position gets exercised
+		for(int i=0;i<4;i++) {
+			String value = StringUtils.repeat("x", i) + StringUtils.repeat(CHINESE + EMOJI, 10);
+			assertLinesValid(write("DESCRIPTION", value));
+		}
+	}
+	
+	@Test
+	public void testEscapesAreNotSplitByFolds() throws IOException {
+		String ics = new String(write("DESCRIPTION", StringUtils.repeat(",", 200)), UTF8);
+		for(String line: ics.split("\r\n")) {
+			Assert.assertFalse("line ends in a dangling escape: " + line, line.endsWith("\\"));
+		}
+	}
+	
+	@Test
+	public void testCarriageReturnsAreEscaped() throws IOException {
+		String ics = new String(write("DESCRIPTION", "one\r\ntwo\rthree\nfour"), UTF8);
+		Assert.assertEquals("DESCRIPTION:one\\ntwo\\nthree\\nfour\r\n", ics);
+	}
+	
+	@Test
+	public void testParametersAreQuotedWhenRequired() throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ContentLineWriter writer = new ContentLineWriter(out);
+		writer.startLine("ATTENDEE");
+		writer.appendParameter("CN", "Swinsburg, Steve");
+		writer.appendParameter("ROLE", "CHAIR");
+		writer.appendValue("mailto:steve@email.com");
+		writer.endLine();
+		writer.flush();
+		
+		Assert.assertEquals("ATTENDEE;CN=\"Swinsburg, Steve\";ROLE=CHAIR:mailto:steve@email.com\r\n", new String(out.toByteArray(), UTF8));
+		Assert.assertEquals(out.size(), writer.getBytesWritten());
+	}
+	
+	/**
+	 * Check that our output for a property unfolds to the same content as ical4j's, and that our lines are valid
+	 */
+	private void assertConforms(Property property) throws IOException {
+		StringWriter expected = new StringWriter();
+		FoldingWriter folding = new FoldingWriter(expected);
+		folding.write(property.toString());
+		folding.flush();
+		
+		byte[] actual = write(property.getName(), property.getValue());
+		
+		Assert.assertEquals(unfold(expected.toString()), unfold(new String(actual, UTF8)));
+		assertLinesValid(actual);
+	}
+	
+	/**
+	 * Check every physical line is at most 75 octets and is valid UTF-8 on its own
+	 */
+	private void assertLinesValid(byte[] ics) {
+		int start = 0;
+		for(int i=0;i<ics.length - 1;i++) {
+			if(ics[i] == '\r' && ics[i+1] == '\n') {
+				int length = i - start;
+				Assert.assertTrue("line is " + length + " octets", length <= ContentLineWriter.MAX_LINE_OCTETS);
+				try {
+					UTF8.newDecoder()
+						.onMalformedInput(CodingErrorAction.REPORT)
+						.onUnmappableCharacter(CodingErrorAction.REPORT)
+						.decode(ByteBuffer.wrap(ics, start, length));
+				} catch (CharacterCodingException e) {
+					Assert.fail("line splits a UTF-8 sequence at octet " + start);
+				}
+				start = i + 2;
+			}
+		}
+		Assert.assertEquals("output must end with CRLF", ics.length, start);
+	}
+	
+	private byte[] write(String name, String value) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ContentLineWriter writer = new ContentLineWriter(out, 64);
+		writer.writeText(name, value);
+		writer.flush();
+		return out.toByteArray();
+	}
+	
+	private String unfold(String s) {
+		return s.replace("\r\n ", "").replace("\r\n\t", "");
+	}
+}
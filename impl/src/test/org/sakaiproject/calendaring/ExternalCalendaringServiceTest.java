@@ -19,28 +19,52 @@
 
 package org.sakaiproject.calendaring;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.annotation.Resource;
 
+import net.fortuna.ical4j.data.CalendarBuilder;
 import net.fortuna.ical4j.model.Calendar;
+import net.fortuna.ical4j.model.Component;
+import net.fortuna.ical4j.model.ComponentList;
+import net.fortuna.ical4j.model.Parameter;
+import net.fortuna.ical4j.model.Property;
+import net.fortuna.ical4j.model.PropertyList;
 import net.fortuna.ical4j.model.component.VEvent;
+import net.fortuna.ical4j.model.component.VTimeZone;
+import net.fortuna.ical4j.model.parameter.PartStat;
+import net.fortuna.ical4j.model.parameter.Role;
 import net.fortuna.ical4j.model.property.CalScale;
 import net.fortuna.ical4j.model.property.Version;
 
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang.StringUtils;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.sakaiproject.calendar.api.CalendarEvent;
 import org.sakaiproject.calendar.api.CalendarEventEdit;
+import org.sakaiproject.calendaring.api.CalendarOptions;
+import org.sakaiproject.calendaring.api.CompactCalendar;
+import org.sakaiproject.calendaring.api.EventUpdate;
 import org.sakaiproject.calendaring.api.ExternalCalendaringService;
+import org.sakaiproject.calendaring.api.ExternalCalendaringServiceImpl;
+import org.sakaiproject.calendaring.mocks.LocalInvalidationBroadcaster;
 import org.sakaiproject.calendaring.mocks.MockCalendarEventEdit;
+import org.sakaiproject.calendaring.mocks.MockSakaiProxy;
 import org.sakaiproject.calendaring.mocks.MockTimeService;
+import org.sakaiproject.calendaring.util.FastIdGenerator;
+import org.sakaiproject.calendaring.util.IdGenerator;
 import org.sakaiproject.time.api.Time;
 import org.sakaiproject.time.api.TimeRange;
 import org.sakaiproject.time.api.TimeService;
@@ -186,6 +210,112 @@ public class ExternalCalendaringServiceTest {
 		
 	}
 	
+	@Test
+	public void testGeneratingVEventWithAttendeeIds() {
+		
+		//generate new event
+		CalendarEvent event = generateEvent();
+		
+		List<String> userIds = new ArrayList<String>();
+		for(int i=0;i<5;i++) {
+			userIds.add("user" + i);
+		}
+		
+		//create vevent
+		net.fortuna.ical4j.model.component.VEvent vevent = service.createEventWithAttendeeIds(event, userIds);
+		
+		Assert.assertNotNull(vevent);
+		Assert.assertEquals("mailto:" + CREATOR + "@email.com", vevent.getOrganizer().getValue());
+		
+		PropertyList attendees = vevent.getProperties(Property.ATTENDEE);
+		Assert.assertEquals(userIds.size(), attendees.size());
+		Assert.assertEquals("mailto:user0@email.com", ((Property)attendees.get(0)).getValue());
+		Assert.assertEquals("User user0", ((Property)attendees.get(0)).getParameter(Parameter.CN).getValue());
+	}
+	
+	@Test
+	public void testBlankAttendeeIdsAreSkipped() {
+		
+		//generate new event
+		CalendarEvent event = generateEvent();
+		
+		List<String> userIds = new ArrayList<String>();
+		userIds.add("user0");
+		userIds.add(null);
+		userIds.add("");
+		userIds.add(" ");
+		userIds.add("user1");
+		
+		//create vevent
+		net.fortuna.ical4j.model.component.VEvent vevent = service.createEventWithAttendeeIds(event, userIds);
+		
+		Assert.assertNotNull(vevent);
+		PropertyList attendees = vevent.getProperties(Property.ATTENDEE);
+		Assert.assertEquals(2, attendees.size());
+		Assert.assertEquals("mailto:user0@email.com", ((Property)attendees.get(0)).getValue());
+		Assert.assertEquals("mailto:user1@email.com", ((Property)attendees.get(1)).getValue());
+	}
+	
+	@Test
+	public void testAttendeesAreReusedAcrossEvents() throws Exception {
+		
+		net.fortuna.ical4j.model.component.VEvent first = service.createEvent(generateEvent(), users);
+		net.fortuna.ical4j.model.component.VEvent second = service.createEvent(generateEvent(), users);
+		
+		PropertyList firstAttendees = first.getProperties(Property.ATTENDEE);
+		PropertyList secondAttendees = second.getProperties(Property.ATTENDEE);
+		Assert.assertEquals(users.size(), secondAttendees.size());
+		for(int i=0;i<users.size();i++) {
+			Property a = (Property)firstAttendees.get(i);
+			Property b = (Property)secondAttendees.get(i);
+			
+			//each event has its own attendee, built from the same cached address and parameters
+			Assert.assertNotSame(a, b);
+			Assert.assertEquals(a, b);
+			Assert.assertSame(a.getParameter(Parameter.CN), b.getParameter(Parameter.CN));
+		}
+		
+		//so changing an attendee on one event leaves the other alone
+		Property changed = (Property)firstAttendees.get(0);
+		changed.setValue("mailto:someone.else@email.com");
+		changed.getParameters().replace(PartStat.DECLINED);
+		Property unchanged = (Property)secondAttendees.get(0);
+		Assert.assertEquals("mailto:user0@email.com", unchanged.getValue());
+		Assert.assertEquals(PartStat.ACCEPTED, unchanged.getParameter(Parameter.PARTSTAT));
+		
+		//nor does it change the cached attendee
+		net.fortuna.ical4j.model.component.VEvent third = service.addAttendeesToEvent(service.createEvent(generateEvent()), users);
+		Property fresh = (Property)third.getProperties(Property.ATTENDEE).get(0);
+		Assert.assertEquals("mailto:user0@email.com", fresh.getValue());
+		Assert.assertEquals(PartStat.ACCEPTED, fresh.getParameter(Parameter.PARTSTAT));
+		
+		//a different role is a different attendee
+		net.fortuna.ical4j.model.component.VEvent chair = service.addChairAttendeesToEvent(service.createEvent(generateEvent()), users);
+		Assert.assertEquals(Role.CHAIR, ((Property)chair.getProperties(Property.ATTENDEE).get(0)).getParameter(Parameter.ROLE));
+	}
+	
+	@Test
+	public void testRepeatedValuesAreSharedAcrossEvents() throws Exception {
+		
+		//values read from the database are distinct strings, even when equal
+		MockCalendarEventEdit event = (MockCalendarEventEdit)generateEvent();
+		event.setLocation(new String(LOCATION));
+		event.setDescription(new String(DESCRIPTION));
+		event.setDisplayName(new String(EVENT_NAME));
+		
+		net.fortuna.ical4j.model.component.VEvent first = service.createEvent(generateEvent());
+		net.fortuna.ical4j.model.component.VEvent second = service.createEvent(event);
+		
+		Assert.assertSame(first.getLocation().getValue(), second.getLocation().getValue());
+		Assert.assertSame(first.getDescription().getValue(), second.getDescription().getValue());
+		Assert.assertSame(first.getSummary().getValue(), second.getSummary().getValue());
+		
+		//but not the properties, so changing one event leaves the other alone
+		Assert.assertNotSame(first.getLocation(), second.getLocation());
+		second.getLocation().setValue("Building 2");
+		Assert.assertEquals(LOCATION, first.getLocation().getValue());
+	}
+	
 	@Test
 	public void testUpdatingVEventWithAttendees() {
 		
@@ -288,6 +418,91 @@ public class ExternalCalendaringServiceTest {
 		
 	}
 	
+	@Test
+	public void testUpdatingUnchangedEventIsSkipped() {
+		
+		CalendarEvent event = generateEvent();
+		
+		EventUpdate first = service.createEventUpdate(event, users);
+		Assert.assertTrue(first.isChanged());
+		Assert.assertEquals("0", first.getEvent().getSequence().getValue());
+		service.markSent(first);
+		
+		//nothing changed so nothing to send
+		EventUpdate second = service.createEventUpdate(event, users);
+		Assert.assertNotNull(second);
+		Assert.assertFalse(second.isChanged());
+		Assert.assertNull(second.getEvent());
+		Assert.assertEquals(0, second.getSequence());
+		
+		//attendee order doesn't matter
+		List<User> reversed = new ArrayList<User>(users);
+		Collections.reverse(reversed);
+		Assert.assertFalse(service.createEventUpdate(event, reversed).isChanged());
+	}
+	
+	@Test
+	public void testUpdateIsNotRememberedUntilSent() {
+		
+		CalendarEvent event = generateEvent();
+		
+		//sending failed, so it is built again
+		EventUpdate failed = service.createEventUpdate(event, users);
+		Assert.assertTrue(failed.isChanged());
+		EventUpdate retry = service.createEventUpdate(event, users);
+		Assert.assertTrue(retry.isChanged());
+		Assert.assertEquals(failed.getSequence(), retry.getSequence());
+		service.markSent(retry);
+		Assert.assertFalse(service.createEventUpdate(event, users).isChanged());
+		
+		//an older update marked late doesn't replace a newer one
+		((MockCalendarEventEdit)event).setLocation("Building 2");
+		EventUpdate newer = service.createEventUpdate(event, users);
+		service.markSent(newer);
+		service.markSent(retry);
+		Assert.assertFalse(service.createEventUpdate(event, users).isChanged());
+	}
+	
+	@Test
+	public void testUpdatingChangedEventBumpsSequence() {
+		
+		MockCalendarEventEdit event = (MockCalendarEventEdit) generateEvent();
+		event.setField("vevent_sequence", "3");
+		
+		EventUpdate first = service.createEventUpdate(event, users);
+		Assert.assertEquals("3", first.getEvent().getSequence().getValue());
+		service.markSent(first);
+		
+		event.setLocation("Building 2");
+		EventUpdate second = service.createEventUpdate(event, users);
+		Assert.assertTrue(second.isChanged());
+		Assert.assertEquals(4, second.getSequence());
+		Assert.assertEquals("4", second.getEvent().getSequence().getValue());
+		Assert.assertEquals(1, second.getEvent().getProperties(Property.SEQUENCE).size());
+		service.markSent(second);
+		
+		//dropping an attendee is a change too
+		EventUpdate third = service.createEventUpdate(event, users.subList(1, users.size()));
+		Assert.assertTrue(third.isChanged());
+		Assert.assertEquals("5", third.getEvent().getSequence().getValue());
+	}
+	
+	@Test
+	public void testCreatingVEventWithoutIdGeneratesUid() {
+		
+		//generate new event with no id
+		CalendarEventEdit event = generateEvent();
+		((MockCalendarEventEdit) event).setId(null);
+		
+		//create vevent
+		net.fortuna.ical4j.model.component.VEvent vevent = service.createEvent(event);
+		
+		Assert.assertNotNull(vevent);
+		Assert.assertNotNull(vevent.getUid());
+		Assert.assertTrue(StringUtils.isNotBlank(vevent.getUid().getValue()));
+		
+	}
+	
 	@Test
 	public void testCreatingVEventWithUrlProperty() {
 		
@@ -389,6 +604,283 @@ public class ExternalCalendaringServiceTest {
 		
 	}
 	
+	/**
+	 * Events are output in the local timezone and the calendar carries its VTIMEZONE exactly once
+	 */
+	@Test
+	public void testGeneratingCalendarIncludesTimeZoneOnce() {
+		
+		List<VEvent> vevents = new ArrayList<VEvent>();
+		for(int i=0;i<3;i++) {
+			vevents.add(service.createEvent(generateEvent()));
+		}
+		
+		Assert.assertEquals("Europe/London", vevents.get(0).getStartDate().getParameter(Parameter.TZID).getValue());
+		Assert.assertEquals("Europe/London", vevents.get(0).getEndDate().getParameter(Parameter.TZID).getValue());
+		
+		Calendar calendar = service.createCalendar(vevents);
+		Assert.assertNotNull(calendar);
+		
+		ComponentList timezones = calendar.getComponents(Component.VTIMEZONE);
+		Assert.assertEquals(1, timezones.size());
+		Assert.assertEquals("Europe/London", ((VTimeZone) timezones.get(0)).getTimeZoneId().getValue());
+		Assert.assertEquals(3, calendar.getComponents(Component.VEVENT).size());
+	}
+	
+	@Test
+	public void testGeneratingCalendarForEventsSkipsEventsOutsideWindow() {
+		
+		long now = System.currentTimeMillis();
+		long day = 24L * 60 * 60 * 1000;
+		
+		List<CalendarEvent> events = new ArrayList<CalendarEvent>();
+		events.add(generateEvent(now - 60 * day, now - 60 * day + 3600000));
+		events.add(generateEvent(now - 10 * day, now - 10 * day + 3600000));
+		events.add(generateEvent(now + 10 * day, now + 10 * day + 3600000));
+		events.add(generateEvent(now + 400 * day, now + 400 * day + 3600000));
+		
+		Calendar calendar = service.createCalendarForEvents(events, CalendarOptions.window(30, 365));
+		
+		Assert.assertNotNull(calendar);
+		Assert.assertEquals(2, calendar.getComponents(Component.VEVENT).size());
+		Assert.assertNull(calendar.getProperty(CalendarOptions.X_TRUNCATED));
+	}
+	
+	@Test
+	public void testGeneratingCalendarForEventsIsTruncated() {
+		
+		List<CalendarEvent> events = new ArrayList<CalendarEvent>();
+		for(int i=0;i<10;i++) {
+			events.add(generateEvent());
+		}
+		
+		CalendarOptions options = new CalendarOptions();
+		options.setMaxEvents(4);
+		Calendar calendar = service.createCalendarForEvents(events, options);
+		
+		Assert.assertEquals(4, calendar.getComponents(Component.VEVENT).size());
+		Assert.assertEquals("TRUE", calendar.getProperty(CalendarOptions.X_TRUNCATED).getValue());
+		Assert.assertEquals("6", calendar.getProperty(CalendarOptions.X_OMITTED_EVENTS).getValue());
+		
+		//roughly one event's worth of characters
+		options = new CalendarOptions();
+		options.setMaxBytes(400);
+		calendar = service.createCalendarForEvents(events, options);
+		Assert.assertEquals(1, calendar.getComponents(Component.VEVENT).size());
+		Assert.assertEquals("9", calendar.getProperty(CalendarOptions.X_OMITTED_EVENTS).getValue());
+	}
+	
+	@Test
+	public void testGeneratingCompactCalendar() throws Exception {
+		
+		List<CalendarEvent> events = new ArrayList<CalendarEvent>();
+		for(int i=0;i<10;i++) {
+			events.add(generateEvent());
+		}
+		List<String> attendeeIds = new ArrayList<String>();
+		for(int i=0;i<users.size();i++) {
+			attendeeIds.add("user" + i);
+		}
+		
+		CompactCalendar compact = service.createCompactCalendar(events, attendeeIds, null);
+		Assert.assertEquals(10, compact.size());
+		Assert.assertEquals(0, compact.getOmitted());
+		
+		//what is written must parse back to the same events as the materialised calendar
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		compact.write(out);
+		Calendar written = new CalendarBuilder().build(new ByteArrayInputStream(out.toByteArray()));
+		Calendar materialised = compact.toCalendar();
+		materialised.validate();
+		
+		Assert.assertEquals(1, written.getComponents(Component.VTIMEZONE).size());
+		ComponentList writtenEvents = written.getComponents(Component.VEVENT);
+		ComponentList materialisedEvents = materialised.getComponents(Component.VEVENT);
+		Assert.assertEquals(10, writtenEvents.size());
+		Assert.assertEquals(10, materialisedEvents.size());
+		for(int i=0;i<10;i++) {
+			VEvent w = (VEvent)writtenEvents.get(i);
+			VEvent m = (VEvent)materialisedEvents.get(i);
+			Assert.assertEquals(m.getUid(), w.getUid());
+			Assert.assertEquals(m.getStartDate(), w.getStartDate());
+			Assert.assertEquals(m.getEndDate(), w.getEndDate());
+			Assert.assertEquals(LOCATION, w.getLocation().getValue());
+			Assert.assertEquals(DESCRIPTION, w.getDescription().getValue());
+			Assert.assertEquals(m.getOrganizer(), w.getOrganizer());
+			Assert.assertEquals(m.getProperties(Property.ATTENDEE), w.getProperties(Property.ATTENDEE));
+			Assert.assertEquals(users.size(), w.getProperties(Property.ATTENDEE).size());
+		}
+		
+		//each event has its own attendees, so changing one leaves the others alone
+		Property first = (Property)((VEvent)materialisedEvents.get(0)).getProperties(Property.ATTENDEE).get(0);
+		Property last = (Property)((VEvent)materialisedEvents.get(9)).getProperties(Property.ATTENDEE).get(0);
+		Assert.assertNotSame(first, last);
+		Assert.assertEquals(first, last);
+		first.getParameters().remove(first.getParameter(Parameter.CN));
+		Assert.assertNotNull(last.getParameter(Parameter.CN));
+		Assert.assertNotSame(((VEvent)materialisedEvents.get(0)).getOrganizer(), ((VEvent)materialisedEvents.get(9)).getOrganizer());
+	}
+	
+	@Test
+	public void testCompactCalendarSkipsBlankAttendeeIds() throws Exception {
+		
+		List<CalendarEvent> events = Collections.singletonList(generateEvent());
+		
+		CompactCalendar compact = service.createCompactCalendar(events, Arrays.asList("user0", null, "", " ", "user1"), null);
+		
+		VEvent vevent = (VEvent)compact.toCalendar().getComponents(Component.VEVENT).get(0);
+		PropertyList attendees = vevent.getProperties(Property.ATTENDEE);
+		Assert.assertEquals(2, attendees.size());
+		Assert.assertEquals("mailto:user0@email.com", ((Property)attendees.get(0)).getValue());
+		Assert.assertEquals("mailto:user1@email.com", ((Property)attendees.get(1)).getValue());
+	}
+	
+	@Test
+	public void testCompactCalendarRefersToTheCanonicalTimeZone() throws Exception {
+		
+		//an alias, the VTIMEZONE is America/New_York
+		MockSakaiProxy sakaiProxy = new MockSakaiProxy() {
+			@Override
+			public String getTimeZoneId() {
+				return "US/Eastern";
+			}
+		};
+		ExternalCalendaringServiceImpl aliased = createService(sakaiProxy, new FastIdGenerator());
+		try {
+			CompactCalendar compact = aliased.createCompactCalendar(Collections.singletonList((CalendarEvent)generateEvent()), null, null);
+			
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			compact.write(out);
+			String ics = out.toString("UTF-8");
+			Assert.assertTrue(ics, ics.contains("TZID:America/New_York"));
+			Assert.assertTrue(ics, ics.contains("DTSTART;TZID=America/New_York:"));
+			Assert.assertFalse(ics, ics.contains("US/Eastern"));
+			
+			Calendar calendar = compact.toCalendar();
+			VTimeZone vtimezone = (VTimeZone)calendar.getComponents(Component.VTIMEZONE).get(0);
+			VEvent vevent = (VEvent)calendar.getComponents(Component.VEVENT).get(0);
+			Assert.assertEquals(vtimezone.getTimeZoneId().getValue(), vevent.getStartDate().getParameter(Parameter.TZID).getValue());
+		} finally {
+			aliased.destroy();
+		}
+	}
+	
+	@Test
+	public void testGeneratingCompactCalendarIsTruncated() {
+		
+		List<CalendarEvent> events = new ArrayList<CalendarEvent>();
+		for(int i=0;i<10;i++) {
+			events.add(generateEvent());
+		}
+		
+		CalendarOptions options = new CalendarOptions();
+		options.setMaxEvents(4);
+		CompactCalendar compact = service.createCompactCalendar(events, null, options);
+		Assert.assertEquals(4, compact.size());
+		Assert.assertEquals(6, compact.getOmitted());
+		Assert.assertEquals("6", compact.toCalendar().getProperty(CalendarOptions.X_OMITTED_EVENTS).getValue());
+		
+		Assert.assertNull(service.createCompactCalendar(null, null, options));
+	}
+	
+	@Test
+	public void testStreamingCalendar() throws Exception {
+		
+		//more than one batch
+		List<CalendarEvent> events = new ArrayList<CalendarEvent>();
+		for(int i=0;i<1200;i++) {
+			events.add(generateEvent());
+		}
+		
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		int written = service.streamCalendar(events.iterator(), Collections.singletonList("user0"), null, out);
+		Assert.assertEquals(1200, written);
+		
+		Calendar calendar = new CalendarBuilder().build(new ByteArrayInputStream(out.toByteArray()));
+		Assert.assertEquals(1, calendar.getComponents(Component.VTIMEZONE).size());
+		ComponentList vevents = calendar.getComponents(Component.VEVENT);
+		Assert.assertEquals(1200, vevents.size());
+		for(int i=0;i<vevents.size();i++) {
+			VEvent vevent = (VEvent)vevents.get(i);
+			Assert.assertEquals(events.get(i).getId(), vevent.getUid().getValue());
+			Assert.assertEquals(EVENT_NAME, vevent.getSummary().getValue());
+			Assert.assertEquals(1, vevent.getProperties(Property.ATTENDEE).size());
+			Assert.assertNotNull(vevent.getOrganizer());
+		}
+		
+		//stops at the limit
+		CalendarOptions options = new CalendarOptions();
+		options.setMaxEvents(700);
+		out = new ByteArrayOutputStream();
+		Assert.assertEquals(700, service.streamCalendar(events.iterator(), null, options, out));
+		calendar = new CalendarBuilder().build(new ByteArrayInputStream(out.toByteArray()));
+		Assert.assertEquals(700, calendar.getComponents(Component.VEVENT).size());
+	}
+	
+	@Test
+	public void testStreamingCalendarSkipsBlankAttendeeIds() throws Exception {
+		
+		List<CalendarEvent> events = Collections.singletonList(generateEvent());
+		
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		service.streamCalendar(events.iterator(), Arrays.asList("user0", null, "", " ", "user1"), null, out);
+		
+		Calendar calendar = new CalendarBuilder().build(new ByteArrayInputStream(out.toByteArray()));
+		VEvent vevent = (VEvent)calendar.getComponents(Component.VEVENT).get(0);
+		Assert.assertEquals(2, vevent.getProperties(Property.ATTENDEE).size());
+		Assert.assertFalse(out.toString("UTF-8").contains("noemail"));
+	}
+	
+	@Test
+	public void testCreatingFilesSkipsBlankAttendeeIds() throws Exception {
+		
+		List<CalendarEvent> events = Collections.singletonList(generateEvent());
+		
+		List<String> paths = service.toFiles(events.iterator(), Arrays.asList("user0", null, "", " ", "user1"), null);
+		Assert.assertEquals(1, paths.size());
+		
+		Calendar calendar = new CalendarBuilder().build(new FileInputStream(paths.get(0)));
+		VEvent vevent = (VEvent)calendar.getComponents(Component.VEVENT).get(0);
+		Assert.assertEquals(2, vevent.getProperties(Property.ATTENDEE).size());
+		Assert.assertFalse(FileUtils.readFileToString(new File(paths.get(0)), "UTF-8").contains("noemail"));
+	}
+	
+	@Test
+	public void testCreatingFilesSplitsCalendar() throws Exception {
+		
+		List<CalendarEvent> events = new ArrayList<CalendarEvent>();
+		for(int i=0;i<1200;i++) {
+			events.add(generateEvent());
+		}
+		
+		//by number of events
+		CalendarOptions options = new CalendarOptions();
+		options.setMaxEventsPerFile(500);
+		List<String> paths = service.toFiles(events.iterator(), null, options);
+		Assert.assertEquals(3, paths.size());
+		int[] expected = {500, 500, 200};
+		for(int i=0;i<paths.size();i++) {
+			Calendar calendar = new CalendarBuilder().build(new FileInputStream(paths.get(i)));
+			Assert.assertEquals(1, calendar.getComponents(Component.VTIMEZONE).size());
+			Assert.assertEquals(expected[i], calendar.getComponents(Component.VEVENT).size());
+		}
+		
+		//by size, every event still goes in exactly one file
+		options = new CalendarOptions();
+		options.setMaxBytesPerFile(50000);
+		paths = service.toFiles(events.iterator(), Collections.singletonList("user0"), options);
+		Assert.assertTrue(paths.size() > 1);
+		int total = 0;
+		for(String path: paths) {
+			File file = new File(path);
+			Assert.assertTrue(file.length() <= 50000);
+			Calendar calendar = new CalendarBuilder().build(new FileInputStream(file));
+			Assert.assertEquals(1, calendar.getComponents(Component.VTIMEZONE).size());
+			total += calendar.getComponents(Component.VEVENT).size();
+		}
+		Assert.assertEquals(1200, total);
+	}
+	
 	@Test
 	public void testGeneratingCalendarWithNullList() {
 		
@@ -448,6 +940,42 @@ public class ExternalCalendaringServiceTest {
 		
 	}
 	
+	@Test
+	public void testFilesFromBeforeRestartAreCountedWhateverTheirIds() throws Exception {
+		
+		final File dir = File.createTempFile("ecs", "");
+		dir.delete();
+		dir.mkdirs();
+		MockSakaiProxy sakaiProxy = new MockSakaiProxy() {
+			@Override
+			public String getCalendarFilePath() {
+				return dir.getPath();
+			}
+		};
+		IdGenerator ids = new IdGenerator() {
+			private final AtomicInteger next = new AtomicInteger();
+			public String nextId() {
+				return "not-a-uuid-" + next.incrementAndGet();
+			}
+		};
+		
+		try {
+			ExternalCalendaringServiceImpl before = createService(sakaiProxy, ids);
+			String path = before.toFile(before.createCalendar(Collections.singletonList(before.createEvent(generateEvent()))));
+			Assert.assertTrue(new File(path).getName(), new File(path).getName().startsWith("ecs-"));
+			before.destroy();
+			
+			//only our own files are counted
+			FileUtils.writeStringToFile(new File(dir, "notes.ics"), "not ours");
+			
+			ExternalCalendaringServiceImpl after = createService(sakaiProxy, ids);
+			Assert.assertEquals(Long.valueOf(1), after.getMetrics().get("quota.files.used"));
+			after.destroy();
+		} finally {
+			FileUtils.deleteDirectory(dir);
+		}
+	}
+	
 	@Test
 	public void testCreatingFileWithNullCalendar() {
 		
@@ -462,11 +990,33 @@ public class ExternalCalendaringServiceTest {
 		
 	}
 	
+	/**
+	 * Helper to create a standalone service, e.g. to simulate a restart. NOT A TEST METHOD
+	 */
+	private ExternalCalendaringServiceImpl createService(MockSakaiProxy sakaiProxy, IdGenerator ids) {
+		ExternalCalendaringServiceImpl s = new ExternalCalendaringServiceImpl();
+		s.setSakaiProxy(sakaiProxy);
+		s.setIdGenerator(ids);
+		s.setInvalidationBroadcaster(new LocalInvalidationBroadcaster());
+		s.init();
+		return s;
+	}
+	
 	/**
 	 * Helper to generate an event. NOT A TEST METHOD
 	 * @return
 	 */
 	private CalendarEventEdit generateEvent() {
+		return generateEvent(START_TIME, END_TIME);
+	}
+	
+	/**
+	 * Helper to generate an event at a given time. NOT A TEST METHOD
+	 * @param startTime millis
+	 * @param endTime millis
+	 * @return
+	 */
+	private CalendarEventEdit generateEvent(long startTime, long endTime) {
 		
 		MockCalendarEventEdit edit = new MockCalendarEventEdit();
 		
@@ -477,8 +1027,8 @@ public class ExternalCalendaringServiceTest {
 		edit.setCreator(CREATOR);
 		
 		TimeService timeService = new MockTimeService();
-		Time start = timeService.newTime(START_TIME);
-		Time end = timeService.newTime(END_TIME);
+		Time start = timeService.newTime(startTime);
+		Time end = timeService.newTime(endTime);
 		TimeRange timeRange = timeService.newTimeRange(start, end, true, false);
 		
 		edit.setRange(timeRange);
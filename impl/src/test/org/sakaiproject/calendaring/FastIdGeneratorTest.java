@@ -0,0 +1,112 @@
+/*
+* Licensed to The Apereo Foundation under one or more contributor license
+* agreements. See the NOTICE file distributed with this work for
+* additional information regarding copyright ownership.
+*
+* The Apereo Foundation licenses this file to you under the Educational 
+* Community License, Version 2.0 (the "License"); you may not use this file 
+* except in compliance with the License. You may obtain a copy of the 
+* License at:
+*
+* http://opensource.org/licenses/ecl2.txt
+* 
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package org.sakaiproject.calendaring;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.sakaiproject.calendaring.util.FastIdGenerator;
+import org.sakaiproject.calendaring.util.IdGenerator;
+
+/**
+ * Test the default id generator
+ */
+public class FastIdGeneratorTest {
+
+	private static final int THREADS = 8;
+	private static final int IDS_PER_THREAD = 20000;
+	
+	@Test
+	public void testIdsAreValidRandomUuids() {
+		IdGenerator generator = new FastIdGenerator();
+		for(int i=0;i<100;i++) {
+			UUID uuid = UUID.fromString(generator.nextId());
+			Assert.assertEquals(4, uuid.version());
+			Assert.assertEquals(2, uuid.variant());
+		}
+	}
+	
+	@Test
+	public void testIdsAreUniqueAcrossThreads() throws Exception {
+		final IdGenerator generator = new FastIdGenerator();
+		final Set<String> ids = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+		
+		ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+		List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+		for(int t=0;t<THREADS;t++) {
+			results.add(executor.submit(new Callable<Boolean>() {
+				@Override
+				public Boolean call() {
+					boolean unique = true;
+					for(int i=0;i<IDS_PER_THREAD;i++) {
+						unique &= ids.add(generator.nextId());
+					}
+					return unique;
+				}
+			}));
+		}
+		for(Future<Boolean> result: results) {
+			Assert.assertTrue(result.get());
+		}
+		executor.shutdown();
+		
+		Assert.assertEquals(THREADS * IDS_PER_THREAD, ids.size());
+	}
+	
+	@Test
+	public void testThreadsDoNotShareSequences() throws Exception {
+		final IdGenerator generator = new FastIdGenerator();
+		
+		//each new thread is seeded separately, so their first ids differ
+		ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+		List<Future<String>> firsts = new ArrayList<Future<String>>();
+		for(int t=0;t<THREADS;t++) {
+			firsts.add(executor.submit(new Callable<String>() {
+				@Override
+				public String call() {
+					return generator.nextId();
+				}
+			}));
+		}
+		Set<String> ids = new HashSet<String>();
+		for(Future<String> first: firsts) {
+			ids.add(first.get());
+		}
+		executor.shutdown();
+		
+		Assert.assertEquals(THREADS, ids.size());
+	}
+	
+	@Test
+	public void testGeneratorsDoNotShareSequences() {
+		Assert.assertFalse(new FastIdGenerator().nextId().equals(new FastIdGenerator().nextId()));
+	}
+}
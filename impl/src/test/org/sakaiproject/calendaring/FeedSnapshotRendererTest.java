@@ -0,0 +1,249 @@
+/*
+* Licensed to The Apereo Foundation under one or more contributor license
+* agreements. See the NOTICE file distributed with this work for
+* additional information regarding copyright ownership.
+*
+* The Apereo Foundation licenses this file to you under the Educational 
+* Community License, Version 2.0 (the "License"); you may not use this file 
+* except in compliance with the License. You may obtain a copy of the 
+* License at:
+*
+* http://opensource.org/licenses/ecl2.txt
+* 
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package org.sakaiproject.calendaring;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.OutputStream;
+import java.util.zip.GZIPInputStream;
+
+import net.fortuna.ical4j.model.Calendar;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.sakaiproject.calendaring.api.CalendarFeed;
+import org.sakaiproject.calendaring.api.CalendarFeedProvider;
+import org.sakaiproject.calendaring.api.ExternalCalendaringService;
+import org.sakaiproject.calendaring.api.FeedSnapshot;
+import org.sakaiproject.calendaring.logic.FeedSnapshotRenderer;
+import org.sakaiproject.calendaring.logic.GeneratedFileQuota;
+import org.sakaiproject.calendaring.logic.ServiceMetrics;
+import org.sakaiproject.calendaring.mocks.MockSakaiProxy;
+
+/**
+ * Test rendering feeds to disk
+ */
+public class FeedSnapshotRendererTest {
+
+	private static final String BODY = "BEGIN:VCALENDAR\r\nEND:VCALENDAR\r\n";
+	
+	private File root;
+	private CalendarFeed feed;
+	private ServiceMetrics metrics;
+	private GeneratedFileQuota quota;
+	private FeedSnapshotRenderer renderer;
+	private int maxAge = 900;
+	private int sendTime = 300;
+	private int quotaFiles;
+	
+	@Before
+	public void setup() throws Exception {
+		root = new File(System.getProperty("java.io.tmpdir"), "feedsnapshottest-" + System.nanoTime());
+		
+		ExternalCalendaringService service = mock(ExternalCalendaringService.class);
+		doAnswer(new Answer<Void>() {
+			public Void answer(InvocationOnMock invocation) throws Throwable {
+				((OutputStream) invocation.getArguments()[1]).write(BODY.getBytes("UTF-8"));
+				return null;
+			}
+		}).when(service).writeCalendar(any(Calendar.class), any(OutputStream.class));
+		
+		feed = mock(CalendarFeed.class);
+		when(feed.getETag()).thenReturn("v1");
+		when(feed.getCalendar()).thenReturn(new Calendar());
+		
+		final CalendarFeedProvider provider = mock(CalendarFeedProvider.class);
+		when(provider.getFeed("term-dates")).thenReturn(feed);
+		
+		metrics = new ServiceMetrics();
+		MockSakaiProxy sakaiProxy = new MockSakaiProxy() {
+			@Override
+			public String getCalendarFilePath() {
+				return root.getPath();
+			}
+			@Override
+			public CalendarFeedProvider getCalendarFeedProvider() {
+				return provider;
+			}
+			@Override
+			public int getFeedSnapshotMaxAge() {
+				return maxAge;
+			}
+			@Override
+			public int getFeedSnapshotSendTime() {
+				return sendTime;
+			}
+			@Override
+			public int getCalendarFileQuotaFiles() {
+				return quotaFiles;
+			}
+		};
+		quota = new GeneratedFileQuota(sakaiProxy, metrics);
+		renderer = new FeedSnapshotRenderer(service, sakaiProxy, metrics, quota);
+	}
+	
+	@After
+	public void cleanup() {
+		FileUtils.deleteQuietly(root);
+	}
+	
+	@Test
+	public void testRenderedSnapshotIsComplete() throws Exception {
+		FeedSnapshot snapshot = renderer.render("term-dates");
+		
+		Assert.assertEquals("v1", snapshot.getETag());
+		Assert.assertEquals(BODY, FileUtils.readFileToString(snapshot.getFile(), "UTF-8"));
+		Assert.assertEquals(BODY, IOUtils.toString(new GZIPInputStream(new FileInputStream(snapshot.getGzipFile())), "UTF-8"));
+		Assert.assertSame(snapshot, renderer.get("term-dates"));
+		
+		//no temporary files left behind
+		Assert.assertEquals(2, new File(root, "feeds").list().length);
+	}
+	
+	@Test
+	public void testUnchangedFeedIsNotRenderedAgain() throws Exception {
+		FeedSnapshot first = renderer.render("term-dates");
+		FeedSnapshot second = renderer.render("term-dates");
+		
+		Assert.assertEquals(first.getFile(), second.getFile());
+		verify(feed, times(1)).getCalendar();
+		Assert.assertEquals(1, metrics.getValue("feeds.snapshot.unchanged"));
+	}
+	
+	@Test
+	public void testChangedFeedIsRenderedToNewFiles() throws Exception {
+		FeedSnapshot first = renderer.render("term-dates");
+		Thread.sleep(5);
+		when(feed.getETag()).thenReturn("v2");
+		FeedSnapshot second = renderer.render("term-dates");
+		
+		Assert.assertFalse(first.getFile().equals(second.getFile()));
+		
+		//replaced generations are kept for anyone still sending them
+		Assert.assertTrue(first.getFile().exists());
+		Thread.sleep(5);
+		when(feed.getETag()).thenReturn("v3");
+		renderer.render("term-dates");
+		Assert.assertTrue(first.getFile().exists());
+		Assert.assertTrue(second.getFile().exists());
+		
+		//and removed once they can't be
+		maxAge = 0;
+		sendTime = 0;
+		Thread.sleep(5);
+		when(feed.getETag()).thenReturn("v4");
+		FeedSnapshot fourth = renderer.render("term-dates");
+		Assert.assertFalse(first.getFile().exists());
+		Assert.assertFalse(second.getFile().exists());
+		Assert.assertTrue(fourth.getFile().exists());
+	}
+	
+	@Test
+	public void testInvalidatedSnapshotIsReplacedByTheNextRender() throws Exception {
+		FeedSnapshot first = renderer.render("term-dates");
+		
+		//no longer served, but the files are left for the next render to retire
+		renderer.invalidate("term-dates");
+		Assert.assertNull(renderer.get("term-dates"));
+		Assert.assertTrue(first.getFile().exists());
+		
+		//rendered again even though the ETag is the same
+		Thread.sleep(5);
+		FeedSnapshot second = renderer.render("term-dates");
+		Assert.assertFalse(first.getFile().equals(second.getFile()));
+		verify(feed, times(2)).getCalendar();
+		Assert.assertSame(second, renderer.get("term-dates"));
+		Assert.assertTrue(first.getFile().exists());
+		Assert.assertEquals(4, quota.getFilesUsed());
+	}
+	
+	@Test
+	public void testSnapshotsAreNotEvictedByTheQuota() throws Exception {
+		FeedSnapshot snapshot = renderer.render("term-dates");
+		
+		//another file needing all the room there is doesn't push out a snapshot that may be being sent
+		File other = new File(root, "other.ics");
+		FileUtils.writeStringToFile(other, BODY, "UTF-8");
+		quotaFiles = 1;
+		Assert.assertTrue(quota.admit(other));
+		Assert.assertTrue(snapshot.getFile().exists());
+		Assert.assertTrue(snapshot.getGzipFile().exists());
+		Assert.assertEquals(3, quota.getFilesUsed());
+	}
+	
+	@Test
+	public void testStaleSnapshotIsNotServed() throws Exception {
+		renderer.render("term-dates");
+		maxAge = -1;
+		Assert.assertNull(renderer.get("term-dates"));
+		Assert.assertNull(renderer.get("unknown"));
+	}
+	
+	@Test
+	public void testSnapshotsCountTowardsQuota() throws Exception {
+		FeedSnapshot first = renderer.render("term-dates");
+		Assert.assertEquals(2, quota.getFilesUsed());
+		Assert.assertEquals(first.getFile().length() + first.getGzipFile().length(), quota.getBytesUsed());
+		
+		//retired snapshots are released once they're deleted
+		maxAge = 0;
+		sendTime = 0;
+		Thread.sleep(5);
+		when(feed.getETag()).thenReturn("v2");
+		renderer.render("term-dates");
+		Thread.sleep(5);
+		when(feed.getETag()).thenReturn("v3");
+		renderer.render("term-dates");
+		Assert.assertEquals(2, quota.getFilesUsed());
+		maxAge = 900;
+		
+		//a snapshot whose files have gone is not served
+		FeedSnapshot current = renderer.get("term-dates");
+		Assert.assertTrue(current.getGzipFile().delete());
+		Assert.assertNull(renderer.get("term-dates"));
+	}
+	
+	@Test
+	public void testOldSnapshotsAreDeletedOnStart() throws Exception {
+		File feeds = new File(root, "feeds");
+		FileUtils.writeStringToFile(new File(feeds, "0123456789abcdef0123456789abcdef-1400000000000.ics"), BODY, "UTF-8");
+		FileUtils.writeStringToFile(new File(feeds, "0123456789abcdef0123456789abcdef-1400000000000.ics.gz"), BODY, "UTF-8");
+		FileUtils.writeStringToFile(new File(feeds, "feed123.tmp"), BODY, "UTF-8");
+		FileUtils.writeStringToFile(new File(feeds, "readme.txt"), BODY, "UTF-8");
+		
+		//no feeds are configured, old snapshots are still removed
+		renderer.start();
+		
+		Assert.assertArrayEquals(new String[]{"readme.txt"}, feeds.list());
+	}
+}
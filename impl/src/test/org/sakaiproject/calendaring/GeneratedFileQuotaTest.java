@@ -0,0 +1,212 @@
+/*
+* Licensed to The Apereo Foundation under one or more contributor license
+* agreements. See the NOTICE file distributed with this work for
+* additional information regarding copyright ownership.
+*
+* The Apereo Foundation licenses this file to you under the Educational 
+* Community License, Version 2.0 (the "License"); you may not use this file 
+* except in compliance with the License. You may obtain a copy of the 
+* License at:
+*
+* http://opensource.org/licenses/ecl2.txt
+* 
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package org.sakaiproject.calendaring;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.sakaiproject.calendaring.logic.GeneratedFileQuota;
+import org.sakaiproject.calendaring.logic.ServiceMetrics;
+import org.sakaiproject.calendaring.mocks.MockSakaiProxy;
+
+/**
+ * Test the accounting and enforcement of the calendar file quota
+ */
+public class GeneratedFileQuotaTest {
+
+	private File dir;
+	private QuotaSakaiProxy sakaiProxy;
+	private ServiceMetrics metrics;
+	private GeneratedFileQuota quota;
+	
+	@Before
+	public void setup() throws IOException {
+		dir = File.createTempFile("quota", "");
+		dir.delete();
+		dir.mkdirs();
+		
+		sakaiProxy = new QuotaSakaiProxy();
+		metrics = new ServiceMetrics();
+		quota = new GeneratedFileQuota(sakaiProxy, metrics);
+	}
+	
+	@After
+	public void cleanup() throws IOException {
+		FileUtils.deleteDirectory(dir);
+	}
+	
+	@Test
+	public void testUnlimitedQuotaAdmitsEverything() throws IOException {
+		for(int i=0;i<10;i++) {
+			Assert.assertTrue(quota.admit(createFile("f" + i, 100)));
+		}
+		Assert.assertEquals(10, quota.getFilesUsed());
+		Assert.assertEquals(1000, quota.getBytesUsed());
+		Assert.assertEquals(1000, metrics.getValue("quota.bytes.used"));
+	}
+	
+	@Test
+	public void testEvictsOldestFilesWhenByteQuotaExceeded() throws IOException {
+		sakaiProxy.maxBytes = 250;
+		
+		File first = createFile("first", 100);
+		File second = createFile("second", 100);
+		File third = createFile("third", 100);
+		
+		Assert.assertTrue(quota.admit(first));
+		Assert.assertTrue(quota.admit(second));
+		Assert.assertTrue(quota.admit(third));
+		
+		Assert.assertFalse(first.exists());
+		Assert.assertTrue(second.exists());
+		Assert.assertTrue(third.exists());
+		Assert.assertEquals(200, quota.getBytesUsed());
+		Assert.assertEquals(1, metrics.getValue("quota.evicted"));
+	}
+	
+	@Test
+	public void testRefusesWhenFileQuotaExceeded() throws IOException {
+		sakaiProxy.maxFiles = 2;
+		sakaiProxy.evict = false;
+		
+		Assert.assertTrue(quota.admit(createFile("first", 10)));
+		Assert.assertTrue(quota.admit(createFile("second", 10)));
+		Assert.assertFalse(quota.hasRoom());
+		
+		File third = createFile("third", 10);
+		Assert.assertFalse(quota.admit(third));
+		Assert.assertFalse(third.exists());
+		Assert.assertEquals(2, quota.getFilesUsed());
+		Assert.assertEquals(1, metrics.getValue("quota.refused"));
+	}
+	
+	@Test
+	public void testAdmittingASetNeverEvictsItsOwnMembers() throws IOException {
+		sakaiProxy.maxFiles = 3;
+		
+		File old = createFile("old", 10);
+		Assert.assertTrue(quota.admit(old));
+		
+		List<File> set = Arrays.asList(createFile("part1", 10), createFile("part2", 10), createFile("part3", 10));
+		Assert.assertTrue(quota.admitAll(set));
+		
+		//the older file makes room for the set, every part of which is still there
+		Assert.assertFalse(old.exists());
+		for(File f: set) {
+			Assert.assertTrue(f.exists());
+		}
+		Assert.assertEquals(3, quota.getFilesUsed());
+		Assert.assertEquals(30, quota.getBytesUsed());
+	}
+	
+	@Test
+	public void testRefusedSetIsDeletedAndNotCounted() throws IOException {
+		sakaiProxy.maxFiles = 3;
+		sakaiProxy.evict = false;
+		
+		Assert.assertTrue(quota.admit(createFile("old", 10)));
+		
+		List<File> set = Arrays.asList(createFile("part1", 10), createFile("part2", 10), createFile("part3", 10));
+		Assert.assertFalse(quota.admitAll(set));
+		
+		for(File f: set) {
+			Assert.assertFalse(f.exists());
+		}
+		Assert.assertEquals(1, quota.getFilesUsed());
+		Assert.assertEquals(10, quota.getBytesUsed());
+		Assert.assertEquals(1, metrics.getValue("quota.refused"));
+	}
+	
+	@Test
+	public void testFilesRemovedElsewhereFreeTheQuota() throws IOException {
+		sakaiProxy.maxFiles = 1;
+		sakaiProxy.evict = false;
+		
+		File first = createFile("first", 10);
+		Assert.assertTrue(quota.admit(first));
+		Assert.assertFalse(quota.hasRoom());
+		
+		first.delete();
+		Assert.assertTrue(quota.hasRoom());
+		Assert.assertTrue(quota.admit(createFile("second", 10)));
+		Assert.assertEquals(1, quota.getFilesUsed());
+	}
+	
+	@Test
+	public void testFilesFromBeforeStartupAreCounted() throws IOException {
+		sakaiProxy.maxFiles = 2;
+		
+		File oldest = createFile("oldest", 10);
+		oldest.setLastModified(System.currentTimeMillis() - 60000);
+		createFile("older", 20);
+		FileUtils.writeByteArrayToFile(new File(dir, "notours.txt"), new byte[1000]);
+		
+		Assert.assertEquals(2, quota.scan(dir, Pattern.compile(".*\\.ics")));
+		Assert.assertEquals(2, quota.getFilesUsed());
+		Assert.assertEquals(30, quota.getBytesUsed());
+		
+		//the oldest is evicted first, files that aren't ours are left alone
+		Assert.assertTrue(quota.admit(createFile("new", 10)));
+		Assert.assertFalse(oldest.exists());
+		Assert.assertTrue(new File(dir, "notours.txt").exists());
+		Assert.assertEquals(2, quota.getFilesUsed());
+	}
+	
+	/**
+	 * Helper to create a file of the given size. NOT A TEST METHOD
+	 */
+	private File createFile(String name, int size) throws IOException {
+		File f = new File(dir, name + ".ics");
+		FileUtils.writeByteArrayToFile(f, new byte[size]);
+		return f;
+	}
+	
+	/**
+	 * SakaiProxy with a configurable quota
+	 */
+	private static class QuotaSakaiProxy extends MockSakaiProxy {
+		long maxBytes;
+		int maxFiles;
+		boolean evict = true;
+		
+		@Override
+		public long getCalendarFileQuotaBytes() {
+			return maxBytes;
+		}
+
+		@Override
+		public int getCalendarFileQuotaFiles() {
+			return maxFiles;
+		}
+
+		@Override
+		public boolean isCalendarFileQuotaEvictionEnabled() {
+			return evict;
+		}
+	}
+}
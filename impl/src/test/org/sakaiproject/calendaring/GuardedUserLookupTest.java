@@ -0,0 +1,198 @@
+/*
+* Licensed to The Apereo Foundation under one or more contributor license
+* agreements. See the NOTICE file distributed with this work for
+* additional information regarding copyright ownership.
+*
+* The Apereo Foundation licenses this file to you under the Educational 
+* Community License, Version 2.0 (the "License"); you may not use this file 
+* except in compliance with the License. You may obtain a copy of the 
+* License at:
+*
+* http://opensource.org/licenses/ecl2.txt
+* 
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package org.sakaiproject.calendaring;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.sakaiproject.calendaring.logic.GuardedUserLookup;
+import org.sakaiproject.calendaring.logic.ServiceMetrics;
+import org.sakaiproject.calendaring.logic.UserDetails;
+import org.sakaiproject.calendaring.mocks.LatencySakaiProxy;
+import org.sakaiproject.calendaring.mocks.LatencySakaiProxy.FailureMode;
+import org.sakaiproject.calendaring.mocks.LatencySakaiProxy.Latency;
+
+/**
+ * Test the timeouts, fallbacks and circuit breaker around user directory lookups
+ */
+public class GuardedUserLookupTest {
+
+	private static final long TIMEOUT = 100;
+	
+	private LatencySakaiProxy sakaiProxy;
+	private ServiceMetrics metrics;
+	private GuardedUserLookup lookup;
+	
+	@Before
+	public void setup() {
+		sakaiProxy = new LatencySakaiProxy(TIMEOUT, 3, 60000);
+		metrics = new ServiceMetrics();
+		lookup = new GuardedUserLookup(sakaiProxy, metrics);
+	}
+	
+	@After
+	public void cleanup() {
+		lookup.shutdown();
+	}
+	
+	@Test
+	public void testFastLookup() {
+		UserDetails details = lookup.lookup("fred");
+		Assert.assertEquals("fred@email.com", details.getEmail());
+		Assert.assertEquals("User fred", details.getDisplayName());
+		Assert.assertEquals(1, metrics.getValue("lookup.success"));
+	}
+	
+	@Test
+	public void testBulkLookupIsOneDirectoryCall() {
+		Map<String, UserDetails> details = lookup.lookupAll(Arrays.asList("fred", "wilma", "barney", "fred"));
+		Assert.assertEquals(3, details.size());
+		Assert.assertEquals("wilma@email.com", details.get("wilma").getEmail());
+		Assert.assertEquals(1, sakaiProxy.getCalls());
+	}
+	
+	@Test
+	public void testBulkLookupFallsBackOnError() {
+		lookup.lookup("fred");
+		
+		sakaiProxy.setFailureRate(1);
+		sakaiProxy.setFailureMode(FailureMode.EXCEPTION);
+		Map<String, UserDetails> details = lookup.lookupAll(Arrays.asList("fred", "wilma"));
+		Assert.assertEquals("fred@email.com", details.get("fred").getEmail());
+		Assert.assertEquals("wilma", details.get("wilma").getDisplayName());
+		Assert.assertEquals(1, metrics.getValue("lookup.error"));
+	}
+	
+	@Test
+	public void testManyConcurrentLookupsOfAHealthyDirectoryAreNotDegraded() throws Exception {
+		sakaiProxy.setLatency(Latency.fixed(10));
+		
+		//more callers than lookup threads, all at once
+		final int callers = 40;
+		final CountDownLatch go = new CountDownLatch(1);
+		final AtomicInteger degraded = new AtomicInteger();
+		List<Thread> threads = new ArrayList<Thread>();
+		for(int i=0;i<callers;i++) {
+			final String userId = "user" + i;
+			Thread t = new Thread(new Runnable() {
+				public void run() {
+					try {
+						go.await();
+					} catch (InterruptedException e) {
+						return;
+					}
+					if(lookup.lookup(userId).getEmail() == null) {
+						degraded.incrementAndGet();
+					}
+				}
+			});
+			t.start();
+			threads.add(t);
+		}
+		go.countDown();
+		for(Thread t: threads) {
+			t.join();
+		}
+		
+		Assert.assertEquals(0, degraded.get());
+		Assert.assertEquals(callers, metrics.getValue("lookup.success"));
+		Assert.assertEquals(0, metrics.getValue("lookup.rejected"));
+		Assert.assertFalse(lookup.isSkipping());
+	}
+	
+	@Test
+	public void testTimeoutFallsBackToPlaceholder() {
+		sakaiProxy.setLatency(Latency.fixed(5000));
+		
+		long start = System.currentTimeMillis();
+		UserDetails details = lookup.lookup("fred");
+		long elapsed = System.currentTimeMillis() - start;
+		
+		Assert.assertTrue("lookup took " + elapsed + "ms", elapsed < 2000);
+		Assert.assertNull(details.getEmail());
+		Assert.assertEquals("fred", details.getDisplayName());
+		Assert.assertEquals(1, metrics.getValue("lookup.timeout"));
+		Assert.assertEquals(1, metrics.getValue("lookup.fallback.default"));
+	}
+	
+	@Test
+	public void testTimeoutFallsBackToLastKnownDetails() {
+		lookup.lookup("fred");
+		
+		sakaiProxy.setLatency(Latency.fixed(5000));
+		UserDetails details = lookup.lookup("fred");
+		
+		Assert.assertEquals("fred@email.com", details.getEmail());
+		Assert.assertEquals(1, metrics.getValue("lookup.fallback.cached"));
+	}
+	
+	@Test
+	public void testErrorsFallBack() {
+		sakaiProxy.setFailureRate(1);
+		sakaiProxy.setFailureMode(FailureMode.EXCEPTION);
+		
+		UserDetails details = lookup.lookup("fred");
+		Assert.assertEquals("fred", details.getDisplayName());
+		Assert.assertEquals(1, metrics.getValue("lookup.error"));
+	}
+	
+	@Test
+	public void testRepeatedFailuresSkipTheDirectory() {
+		sakaiProxy.setFailureRate(1);
+		sakaiProxy.setFailureMode(FailureMode.EXCEPTION);
+		
+		for(int i=0;i<3;i++) {
+			lookup.lookup("user" + i);
+		}
+		Assert.assertTrue(lookup.isSkipping());
+		Assert.assertEquals(1, metrics.getValue("lookup.breaker.opened"));
+		
+		//the directory is no longer called
+		sakaiProxy.resetCounters();
+		UserDetails details = lookup.lookup("fred");
+		Assert.assertEquals(0, sakaiProxy.getCalls());
+		Assert.assertEquals("fred", details.getDisplayName());
+		Assert.assertEquals(1, metrics.getValue("lookup.skipped"));
+	}
+	
+	@Test
+	public void testSuccessResetsFailureCount() {
+		sakaiProxy.setFailureRate(1);
+		sakaiProxy.setFailureMode(FailureMode.EXCEPTION);
+		lookup.lookup("user1");
+		lookup.lookup("user2");
+		
+		sakaiProxy.setFailureRate(0);
+		lookup.lookup("user3");
+		
+		sakaiProxy.setFailureRate(1);
+		lookup.lookup("user4");
+		lookup.lookup("user5");
+		Assert.assertFalse(lookup.isSkipping());
+	}
+}
@@ -0,0 +1,129 @@
+/*
+* Licensed to The Apereo Foundation under one or more contributor license
+* agreements. See the NOTICE file distributed with this work for
+* additional information regarding copyright ownership.
+*
+* The Apereo Foundation licenses this file to you under the Educational 
+* Community License, Version 2.0 (the "License"); you may not use this file 
+* except in compliance with the License. You may obtain a copy of the 
+* License at:
+*
+* http://opensource.org/licenses/ecl2.txt
+* 
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package org.sakaiproject.calendaring;
+
+import java.io.ByteArrayOutputStream;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.sakaiproject.calendaring.logic.ServiceMetrics;
+import org.sakaiproject.calendaring.logic.TimedOutputStream;
+import org.sakaiproject.calendaring.logic.Trace;
+import org.sakaiproject.calendaring.logic.Tracer;
+
+/**
+ * Test the sampling and slow call rules for traces
+ */
+public class TracerTest {
+
+	@Test
+	public void testUnsampledFastCallIsDiscarded() {
+		ServiceMetrics metrics = new ServiceMetrics();
+		Tracer tracer = new Tracer(0, 60000, metrics);
+		
+		Trace trace = tracer.start("createEvent");
+		trace.span("timezone", trace.mark());
+		
+		Assert.assertFalse(trace.isSampled());
+		Assert.assertFalse(tracer.finish(trace));
+		Assert.assertEquals(0, metrics.getValue("traces.sampled"));
+	}
+	
+	@Test
+	public void testUntracedCallsShareANoopTrace() {
+		ServiceMetrics metrics = new ServiceMetrics();
+		Tracer tracer = new Tracer(0, -1, metrics);
+		
+		Trace trace = tracer.start("createEvent");
+		Assert.assertSame(Trace.NOOP, trace);
+		Assert.assertSame(trace, tracer.start("toFile"));
+		
+		trace.span("timezone", trace.mark(), 10);
+		trace.record("write", 1000, 10);
+		Assert.assertEquals(0, trace.getSpanCount());
+		Assert.assertFalse(tracer.finish(trace));
+		Assert.assertEquals(0, metrics.getValue("traces.sampled"));
+		Assert.assertEquals(0, metrics.getValue("traces.slow"));
+	}
+	
+	@Test
+	public void testCallsThatMayBeSlowAreStillTraced() {
+		Tracer tracer = new Tracer(0, 60000, new ServiceMetrics());
+		
+		Trace trace = tracer.start("createEvent");
+		Assert.assertNotSame(Trace.NOOP, trace);
+		Assert.assertEquals(0, trace.getSpanCount());
+		trace.span("timezone", trace.mark());
+		Assert.assertEquals(1, trace.getSpanCount());
+	}
+	
+	@Test
+	public void testSampledCallIsRecorded() {
+		ServiceMetrics metrics = new ServiceMetrics();
+		Tracer tracer = new Tracer(1, 60000, metrics);
+		
+		Trace trace = tracer.start("createEvent");
+		Assert.assertTrue(trace.isSampled());
+		Assert.assertTrue(tracer.finish(trace));
+		Assert.assertEquals(1, metrics.getValue("traces.sampled"));
+	}
+	
+	@Test
+	public void testSlowCallIsAlwaysRecorded() {
+		ServiceMetrics metrics = new ServiceMetrics();
+		Tracer tracer = new Tracer(0, 0, metrics);
+		
+		Trace trace = tracer.start("toFile");
+		Assert.assertTrue(tracer.finish(trace));
+		Assert.assertEquals(1, metrics.getValue("traces.slow"));
+	}
+	
+	@Test
+	public void testFormatHasSizesButNoContent() {
+		Tracer tracer = new Tracer(1, -1, new ServiceMetrics());
+		Trace trace = tracer.start("createEvent");
+		for(int i=0;i<20;i++) {
+			trace.span("stage" + i, trace.mark(), i);
+		}
+		trace.span("organizer", trace.mark());
+		
+		String formatted = trace.format(1234567);
+		Assert.assertEquals(21, trace.getSpanCount());
+		Assert.assertTrue(formatted, formatted.startsWith("op=createEvent total=1.234ms "));
+		Assert.assertTrue(formatted, formatted.contains(" stage19="));
+		Assert.assertTrue(formatted, formatted.contains("ms/19"));
+		Assert.assertTrue(formatted, formatted.matches(".* organizer=\\d+\\.\\d{3}ms$"));
+	}
+	
+	@Test
+	public void testTimedWritesAreRecordedAsTheirOwnSpan() throws Exception {
+		Tracer tracer = new Tracer(1, -1, new ServiceMetrics());
+		Trace trace = tracer.start("toFile");
+		
+		TimedOutputStream out = new TimedOutputStream(new ByteArrayOutputStream());
+		out.write(new byte[100]);
+		out.write('x');
+		out.close();
+		Assert.assertEquals(101, out.getBytes());
+		
+		trace.record("write", 2500000, out.getBytes());
+		Assert.assertTrue(trace.format(3000000).endsWith(" write=2.500ms/101"));
+	}
+}
@@ -0,0 +1,104 @@
+/*
+* Licensed to The Apereo Foundation under one or more contributor license
+* agreements. See the NOTICE file distributed with this work for
+* additional information regarding copyright ownership.
+*
+* The Apereo Foundation licenses this file to you under the Educational 
+* Community License, Version 2.0 (the "License"); you may not use this file 
+* except in compliance with the License. You may obtain a copy of the 
+* License at:
+*
+* http://opensource.org/licenses/ecl2.txt
+* 
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package org.sakaiproject.calendaring;
+
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.net.URI;
+
+import net.fortuna.ical4j.model.parameter.Role;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.sakaiproject.calendaring.logic.AttendeeCache;
+import org.sakaiproject.calendaring.logic.ImmutableAttendee;
+import org.sakaiproject.calendaring.logic.InvalidationBroadcaster;
+import org.sakaiproject.calendaring.logic.LocalInvalidator;
+import org.sakaiproject.calendaring.logic.UserChangeInvalidator;
+import org.sakaiproject.calendaring.mocks.MockSakaiProxy;
+import org.sakaiproject.event.api.Event;
+
+/**
+ * Test that account changes drop what is remembered about that user, and only that user
+ */
+public class UserChangeInvalidatorTest {
+
+	private LocalInvalidator service;
+	private UserChangeInvalidator invalidator;
+	
+	@Before
+	public void setup() {
+		service = mock(LocalInvalidator.class);
+		
+		invalidator = new UserChangeInvalidator();
+		invalidator.setExternalCalendaringService(service);
+		invalidator.setSakaiProxy(new MockSakaiProxy());
+	}
+	
+	@Test
+	public void testUpdatedUserIsInvalidated() {
+		invalidator.update(null, event("user.upd.any", "/user/user1"));
+		invalidator.update(null, event("user.upd.own.name", "/user/user2"));
+		invalidator.update(null, event("user.del", "/user/user3"));
+		
+		verify(service).invalidateLocally(InvalidationBroadcaster.REGION_USER, "user1");
+		verify(service).invalidateLocally(InvalidationBroadcaster.REGION_USER, "user2");
+		verify(service).invalidateLocally(InvalidationBroadcaster.REGION_USER, "user3");
+	}
+	
+	@Test
+	public void testOtherEventsAreIgnored() {
+		invalidator.update(null, event("user.login", "/user/user1"));
+		invalidator.update(null, event("calendar.revise", "/calendar/event/site1/main/event1"));
+		invalidator.update(null, event("user.upd.any", "/user/"));
+		invalidator.update(null, "not an event");
+		
+		verify(service, never()).invalidateLocally(anyString(), anyString());
+	}
+	
+	@Test
+	public void testAttendeesOfUserAreForgotten() throws Exception {
+		AttendeeCache cache = new AttendeeCache(100);
+		AttendeeCache.Key required = AttendeeCache.key("user1", "user1@email.com", "User One", Role.REQ_PARTICIPANT);
+		AttendeeCache.Key chair = AttendeeCache.key("user1", "user1@email.com", "User One", Role.CHAIR);
+		AttendeeCache.Key other = AttendeeCache.key("user2", "user2@email.com", "User Two", Role.REQ_PARTICIPANT);
+		cache.put(required, new ImmutableAttendee(new URI("mailto:user1@email.com")));
+		cache.put(chair, new ImmutableAttendee(new URI("mailto:user1@email.com")));
+		cache.put(other, new ImmutableAttendee(new URI("mailto:user2@email.com")));
+		
+		cache.forget("user1");
+		
+		Assert.assertNull(cache.get(required));
+		Assert.assertNull(cache.get(chair));
+		Assert.assertNotNull(cache.get(other));
+	}
+	
+	private Event event(String name, String resource) {
+		Event event = mock(Event.class);
+		when(event.getEvent()).thenReturn(name);
+		when(event.getResource()).thenReturn(resource);
+		return event;
+	}
+}
@@ -0,0 +1,76 @@
+/*
+* Licensed to The Apereo Foundation under one or more contributor license
+* agreements. See the NOTICE file distributed with this work for
+* additional information regarding copyright ownership.
+*
+* The Apereo Foundation licenses this file to you under the Educational 
+* Community License, Version 2.0 (the "License"); you may not use this file 
+* except in compliance with the License. You may obtain a copy of the 
+* License at:
+*
+* http://opensource.org/licenses/ecl2.txt
+* 
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package org.sakaiproject.calendaring;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.sakaiproject.calendaring.api.ExternalCalendaringServiceImpl;
+import org.sakaiproject.calendaring.mocks.MockSakaiProxy;
+
+/**
+ * Test that warm up completes when it has time and gives up when it doesn't
+ */
+public class WarmUpTest {
+
+	private WarmUpService service;
+	
+	@Before
+	public void setup() {
+		service = new WarmUpService();
+		service.setSakaiProxy(new MockSakaiProxy() {
+			@Override
+			public String[] getWarmupTimeZoneIds() {
+				return new String[] {"America/New_York", "Australia/Sydney", "Not/AZone"};
+			}
+		});
+		service.init();
+	}
+	
+	@After
+	public void cleanup() {
+		service.destroy();
+	}
+	
+	@Test
+	public void testWarmUpCompletesBeforeDeadline() {
+		Assert.assertTrue(service.warmUpUntil(System.currentTimeMillis() + 60000));
+		Assert.assertTrue(service.getMetrics().containsKey("warmup.millis"));
+	}
+	
+	@Test
+	public void testWarmUpStopsAfterDeadline() {
+		Assert.assertFalse(service.warmUpUntil(System.currentTimeMillis() - 1000));
+		Assert.assertFalse(service.getMetrics().containsKey("warmup.millis"));
+		
+		//the service still works
+		Assert.assertTrue(service.warmUpUntil(System.currentTimeMillis() + 60000));
+	}
+	
+	/**
+	 * Service with warm up exposed so it can be called directly
+	 */
+	private static class WarmUpService extends ExternalCalendaringServiceImpl {
+		private boolean warmUpUntil(long deadline) {
+			return warmUp(deadline);
+		}
+	}
+}
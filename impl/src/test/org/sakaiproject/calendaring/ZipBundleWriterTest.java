@@ -0,0 +1,225 @@
+/*
+* Licensed to The Apereo Foundation under one or more contributor license
+* agreements. See the NOTICE file distributed with this work for
+* additional information regarding copyright ownership.
+*
+* The Apereo Foundation licenses this file to you under the Educational 
+* Community License, Version 2.0 (the "License"); you may not use this file 
+* except in compliance with the License. You may obtain a copy of the 
+* License at:
+*
+* http://opensource.org/licenses/ecl2.txt
+* 
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package org.sakaiproject.calendaring;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.sakaiproject.calendar.api.CalendarEvent;
+import org.sakaiproject.calendaring.api.CalendarOptions;
+import org.sakaiproject.calendaring.api.ExternalCalendaringService;
+import org.sakaiproject.calendaring.logic.ServiceMetrics;
+import org.sakaiproject.calendaring.logic.ZipBundleWriter;
+import org.sakaiproject.calendaring.mocks.MockCalendarEventEdit;
+import org.sakaiproject.calendaring.mocks.MockSakaiProxy;
+
+/**
+ * Test writing many calendars into one zip
+ */
+public class ZipBundleWriterTest {
+
+	private ExternalCalendaringService service;
+	private ZipBundleWriter writer;
+	
+	@Before
+	public void setup() throws Exception {
+		//each calendar just records how many events it was given
+		service = mock(ExternalCalendaringService.class);
+		doAnswer(new Answer<Integer>() {
+			public Integer answer(InvocationOnMock invocation) throws Throwable {
+				Iterator<?> events = (Iterator<?>) invocation.getArguments()[0];
+				int count = 0;
+				while(events.hasNext()) {
+					CalendarEvent event = (CalendarEvent) events.next();
+					if("broken".equals(event.getId())) {
+						throw new IOException("broken");
+					}
+					count++;
+				}
+				((OutputStream) invocation.getArguments()[3]).write(("BEGIN:VCALENDAR\r\nX-EVENTS:" + count + "\r\nEND:VCALENDAR\r\n").getBytes("UTF-8"));
+				return count;
+			}
+		}).when(service).streamCalendar(any(Iterator.class), any(Collection.class), any(CalendarOptions.class), any(OutputStream.class));
+	}
+	
+	@After
+	public void cleanup() {
+		if(writer != null) {
+			writer.shutdown();
+		}
+	}
+	
+	@Test
+	public void testCalendarsAreWrittenInOrder() throws Exception {
+		writer = new ZipBundleWriter(service, new MockSakaiProxy(), new ServiceMetrics());
+		assertZip(writer);
+	}
+	
+	@Test
+	public void testCalendarsRenderedInParallelAreWrittenInOrder() throws Exception {
+		writer = new ZipBundleWriter(service, new MockSakaiProxy() {
+			@Override
+			public int getZipThreads() {
+				return 4;
+			}
+		}, new ServiceMetrics());
+		assertZip(writer);
+	}
+	
+	@Test
+	public void testStreamIsLeftOpen() throws Exception {
+		writer = new ZipBundleWriter(service, new MockSakaiProxy(), new ServiceMetrics());
+		final boolean[] closed = new boolean[1];
+		ByteArrayOutputStream out = new ByteArrayOutputStream() {
+			@Override
+			public void close() {
+				closed[0] = true;
+			}
+		};
+		writer.write(calendars(3), null, out);
+		Assert.assertFalse(closed[0]);
+	}
+	
+	@Test
+	public void testFailureIsReported() throws Exception {
+		writer = new ZipBundleWriter(service, new MockSakaiProxy() {
+			@Override
+			public int getZipThreads() {
+				return 4;
+			}
+		}, new ServiceMetrics());
+		
+		Map<String, List<CalendarEvent>> calendars = calendars(10);
+		calendars.get("user5").add(event("broken"));
+		try {
+			writer.write(calendars, null, new ByteArrayOutputStream());
+			Assert.fail("Expected IOException");
+		} catch (IOException e) {
+			Assert.assertEquals("broken", e.getMessage());
+		}
+	}
+	
+	@Test
+	public void testEntryNamesAreSafe() throws Exception {
+		writer = new ZipBundleWriter(service, new MockSakaiProxy(), new ServiceMetrics());
+		Map<String, List<CalendarEvent>> calendars = new LinkedHashMap<String, List<CalendarEvent>>();
+		calendars.put("../../etc/passwd", Collections.<CalendarEvent>emptyList());
+		calendars.put("jo.bloggs@example.com", Collections.<CalendarEvent>emptyList());
+		
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		writer.write(calendars, null, out);
+		
+		ZipInputStream zip = new ZipInputStream(new ByteArrayInputStream(out.toByteArray()));
+		Assert.assertEquals("_._.._etc_passwd.ics", zip.getNextEntry().getName());
+		Assert.assertEquals("jo.bloggs@example.com.ics", zip.getNextEntry().getName());
+		Assert.assertNull(zip.getNextEntry());
+	}
+	
+	@Test
+	public void testClashingEntryNamesAreMadeUnique() throws Exception {
+		writer = new ZipBundleWriter(service, new MockSakaiProxy() {
+			@Override
+			public int getZipThreads() {
+				return 4;
+			}
+		}, new ServiceMetrics());
+		
+		//all of these are the same once made safe
+		Map<String, List<CalendarEvent>> calendars = new LinkedHashMap<String, List<CalendarEvent>>();
+		calendars.put("jo/bloggs", Collections.<CalendarEvent>emptyList());
+		calendars.put("jo bloggs", Collections.<CalendarEvent>emptyList());
+		calendars.put("jo_bloggs-1", Collections.<CalendarEvent>emptyList());
+		calendars.put("JO:BLOGGS", Collections.<CalendarEvent>emptyList());
+		calendars.put(null, Collections.<CalendarEvent>emptyList());
+		calendars.put("", Collections.<CalendarEvent>emptyList());
+		
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		Assert.assertEquals(6, writer.write(calendars, null, out));
+		
+		ZipInputStream zip = new ZipInputStream(new ByteArrayInputStream(out.toByteArray()));
+		Assert.assertEquals("jo_bloggs.ics", zip.getNextEntry().getName());
+		Assert.assertEquals("jo_bloggs-1.ics", zip.getNextEntry().getName());
+		Assert.assertEquals("jo_bloggs-1-1.ics", zip.getNextEntry().getName());
+		Assert.assertEquals("JO_BLOGGS-2.ics", zip.getNextEntry().getName());
+		Assert.assertEquals("calendar.ics", zip.getNextEntry().getName());
+		Assert.assertEquals("calendar-1.ics", zip.getNextEntry().getName());
+		Assert.assertNull(zip.getNextEntry());
+	}
+	
+	/**
+	 * Write 50 calendars and check each entry. NOT A TEST METHOD
+	 */
+	private void assertZip(ZipBundleWriter writer) throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		Assert.assertEquals(50, writer.write(calendars(50), null, out));
+		
+		ZipInputStream zip = new ZipInputStream(new ByteArrayInputStream(out.toByteArray()));
+		for(int i=0;i<50;i++) {
+			ZipEntry entry = zip.getNextEntry();
+			Assert.assertEquals("user" + i + ".ics", entry.getName());
+			String body = IOUtils.toString(zip, "UTF-8");
+			Assert.assertTrue(body.contains("X-EVENTS:" + i + "\r\n"));
+		}
+		Assert.assertNull(zip.getNextEntry());
+	}
+	
+	/**
+	 * Helper to generate calendars, where user i has i events. NOT A TEST METHOD
+	 */
+	private Map<String, List<CalendarEvent>> calendars(int users) {
+		Map<String, List<CalendarEvent>> calendars = new LinkedHashMap<String, List<CalendarEvent>>();
+		for(int i=0;i<users;i++) {
+			List<CalendarEvent> events = new ArrayList<CalendarEvent>();
+			for(int j=0;j<i;j++) {
+				events.add(event("event" + j));
+			}
+			calendars.put("user" + i, events);
+		}
+		return calendars;
+	}
+	
+	private CalendarEvent event(String id) {
+		MockCalendarEventEdit edit = new MockCalendarEventEdit();
+		edit.setId(id);
+		return edit;
+	}
+}
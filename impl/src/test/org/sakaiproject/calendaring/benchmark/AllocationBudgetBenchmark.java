@@ -0,0 +1,189 @@
+/*
+* Licensed to The Apereo Foundation under one or more contributor license
+* agreements. See the NOTICE file distributed with this work for
+* additional information regarding copyright ownership.
+*
+* The Apereo Foundation licenses this file to you under the Educational 
+* Community License, Version 2.0 (the "License"); you may not use this file 
+* except in compliance with the License. You may obtain a copy of the 
+* License at:
+*
+* http://opensource.org/licenses/ecl2.txt
+* 
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package org.sakaiproject.calendaring.benchmark;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import lombok.extern.apachecommons.CommonsLog;
+import net.fortuna.ical4j.model.Calendar;
+import net.fortuna.ical4j.model.component.VEvent;
+
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.sakaiproject.calendar.api.CalendarEvent;
+import org.sakaiproject.calendaring.api.ExternalCalendaringServiceImpl;
+import org.sakaiproject.calendaring.mocks.MockCalendarEventEdit;
+import org.sakaiproject.calendaring.mocks.MockSakaiProxy;
+import org.sakaiproject.calendaring.mocks.MockTimeService;
+import org.sakaiproject.time.api.TimeService;
+import org.sakaiproject.user.api.User;
+
+/**
+ * Measures the heap allocated by each of the main operations of the service and fails if any exceeds its budget.
+ * <p>
+ * Budgets are in bytes and can be overridden with system properties, e.g. -Dallocation.budget.createEvent=16384
+ * Skipped on JVMs without per-thread allocation counters.
+ * <p>
+ * The default budgets are the expected allocation of each operation, from the objects it creates, with a margin of half as much again on top.
+ * That is tight enough that an extra formatter, copy or buffer per call goes over. When an operation legitimately changes, re-baseline
+ * from the figures this logs on the reference JVM, keeping the same margin.
+ * <p>
+ * Not run as part of the normal build, as the figures depend on the JVM and what else is running.
+ * Run with the other benchmarks with: mvn test -Pbenchmarks, or on its own with: mvn test -Dtest=AllocationBudgetBenchmark
+ */
+@CommonsLog
+public class AllocationBudgetBenchmark {
+
+	private static final int WARMUP = 200;
+	private static final int ITERATIONS = 500;
+	private static final int FILE_ITERATIONS = 50;
+	private static final int ATTENDEES = 50;
+	private static final int EVENTS = 10;
+	
+	//expected bytes per operation plus MARGIN_PERCENT, see the class javadoc
+	private static final int MARGIN_PERCENT = 50;
+	
+	//the VEvent with three dates, each with its own formatter, and its properties and parameter lists
+	private static final long CREATE_EVENT = 12 * 1024;
+	
+	//per attendee, a copy of the cached attendee and its parameter list
+	private static final long ADD_ATTENDEE = 1024;
+	
+	//per event, validating its properties and looking up its timezone
+	private static final long CREATE_CALENDAR = 4 * 1024;
+	
+	//per event, formatting and folding its properties into the fixed buffers, plus its share of opening the file
+	private static final long TO_FILE = 4 * 1024;
+	
+	private AllocationMeter meter;
+	private ExternalCalendaringServiceImpl service;
+	private List<User> users;
+	
+	@Before
+	public void setup() {
+		meter = new AllocationMeter();
+		Assume.assumeTrue(meter.isSupported());
+		
+		service = new ExternalCalendaringServiceImpl();
+		service.setSakaiProxy(new MockSakaiProxy());
+		service.init();
+		
+		users = new ArrayList<User>();
+		for(int i=0;i<ATTENDEES;i++) {
+			users.add(new org.sakaiproject.mock.domain.User(null, "user"+i, "user"+i, "user"+i, "user"+i+"@email.com", "User", String.valueOf(i),
+					null, null, null, null, null,null,null,null,null,null));
+		}
+	}
+	
+	@Test
+	public void testCreateEvent() throws Exception {
+		final CalendarEvent event = generateEvent();
+		long bytes = meter.bytesPerOperation(new AllocationMeter.Operation() {
+			public void run() {
+				service.createEvent(event);
+			}
+		}, WARMUP, ITERATIONS);
+		
+		assertWithinBudget("createEvent", bytes, CREATE_EVENT);
+	}
+	
+	@Test
+	public void testAddAttendee() throws Exception {
+		long bytes = meter.bytesPerOperation(new AllocationMeter.Operation() {
+			public void run() {
+				//a fresh event each time so the property list doesn't keep growing
+				service.addAttendeesToEvent(new VEvent(), users);
+			}
+		}, WARMUP, ITERATIONS);
+		
+		assertWithinBudget("addAttendee", bytes / ATTENDEES, ADD_ATTENDEE);
+	}
+	
+	@Test
+	public void testCreateCalendar() throws Exception {
+		final List<VEvent> vevents = generateVEvents();
+		long bytes = meter.bytesPerOperation(new AllocationMeter.Operation() {
+			public void run() {
+				service.createCalendar(vevents);
+			}
+		}, WARMUP, ITERATIONS);
+		
+		assertWithinBudget("createCalendar", bytes / EVENTS, CREATE_CALENDAR);
+	}
+	
+	@Test
+	public void testToFile() throws Exception {
+		final Calendar calendar = service.createCalendar(generateVEvents());
+		final List<String> paths = new ArrayList<String>();
+		long bytes = meter.bytesPerOperation(new AllocationMeter.Operation() {
+			public void run() {
+				paths.add(service.toFile(calendar));
+			}
+		}, FILE_ITERATIONS, FILE_ITERATIONS);
+		
+		for(String path: paths) {
+			new File(path).delete();
+		}
+		
+		assertWithinBudget("toFile", bytes / EVENTS, TO_FILE);
+	}
+	
+	/**
+	 * Report the measurement and check it against the budget, which is the expected figure plus the margin unless overridden by a system property
+	 */
+	private void assertWithinBudget(String name, long bytes, long expected) {
+		long budget = Long.getLong("allocation.budget." + name, expected + expected * MARGIN_PERCENT / 100);
+		log.info(name + " allocated " + bytes + " bytes per " + (name.startsWith("add") ? "attendee" : "event") + ", budget " + budget);
+		Assert.assertTrue(name + " allocated " + bytes + " bytes, over its budget of " + budget, bytes <= budget);
+	}
+	
+	/**
+	 * Helper to generate a list of vevents. NOT A TEST METHOD
+	 */
+	private List<VEvent> generateVEvents() {
+		List<VEvent> vevents = new ArrayList<VEvent>();
+		for(int i=0;i<EVENTS;i++) {
+			vevents.add(service.createEvent(generateEvent()));
+		}
+		return vevents;
+	}
+	
+	/**
+	 * Helper to generate an event. NOT A TEST METHOD
+	 */
+	private CalendarEvent generateEvent() {
+		MockCalendarEventEdit edit = new MockCalendarEventEdit();
+		edit.setDisplayName("A new event");
+		edit.setLocation("Building 1");
+		edit.setDescription("This is a sample event.");
+		edit.setId(UUID.randomUUID().toString());
+		edit.setCreator("steve");
+		
+		TimeService timeService = new MockTimeService();
+		long start = 1336136400000L;
+		edit.setRange(timeService.newTimeRange(timeService.newTime(start), timeService.newTime(start + 3600000L), true, false));
+		return edit;
+	}
+}
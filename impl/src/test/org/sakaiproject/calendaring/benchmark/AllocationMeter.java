@@ -0,0 +1,82 @@
+/*
+* Licensed to The Apereo Foundation under one or more contributor license
+* agreements. See the NOTICE file distributed with this work for
+* additional information regarding copyright ownership.
+*
+* The Apereo Foundation licenses this file to you under the Educational 
+* Community License, Version 2.0 (the "License"); you may not use this file 
+* except in compliance with the License. You may obtain a copy of the 
+* License at:
+*
+* http://opensource.org/licenses/ecl2.txt
+* 
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package org.sakaiproject.calendaring.benchmark;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * Measures heap allocation on the current thread using the JVM's per-thread allocation counters.
+ */
+public class AllocationMeter {
+
+	/**
+	 * An operation to measure
+	 */
+	public interface Operation {
+		public void run() throws Exception;
+	}
+	
+	private final com.sun.management.ThreadMXBean threads;
+	
+	public AllocationMeter() {
+		java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if(bean instanceof com.sun.management.ThreadMXBean && ((com.sun.management.ThreadMXBean) bean).isThreadAllocatedMemorySupported()) {
+			threads = (com.sun.management.ThreadMXBean) bean;
+			threads.setThreadAllocatedMemoryEnabled(true);
+		} else {
+			threads = null;
+		}
+	}
+	
+	/**
+	 * Does this JVM support per-thread allocation counters?
+	 * @return
+	 */
+	public boolean isSupported() {
+		return threads != null;
+	}
+	
+	/**
+	 * Total bytes allocated by the current thread so far
+	 * @return
+	 */
+	public long allocatedBytes() {
+		return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+	
+	/**
+	 * Run an operation a number of times to warm up, then measure the average bytes allocated per run
+	 * @param operation
+	 * @param warmup number of unmeasured runs
+	 * @param iterations number of measured runs
+	 * @return average bytes allocated per run
+	 * @throws Exception
+	 */
+	public long bytesPerOperation(Operation operation, int warmup, int iterations) throws Exception {
+		for(int i=0;i<warmup;i++) {
+			operation.run();
+		}
+		long before = allocatedBytes();
+		for(int i=0;i<iterations;i++) {
+			operation.run();
+		}
+		return (allocatedBytes() - before) / iterations;
+	}
+}
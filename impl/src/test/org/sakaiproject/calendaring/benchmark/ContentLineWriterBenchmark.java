@@ -0,0 +1,91 @@
+/*
+* Licensed to The Apereo Foundation under one or more contributor license
+* agreements. See the NOTICE file distributed with this work for
+* additional information regarding copyright ownership.
+*
+* The Apereo Foundation licenses this file to you under the Educational 
+* Community License, Version 2.0 (the "License"); you may not use this file 
+* except in compliance with the License. You may obtain a copy of the 
+* License at:
+*
+* http://opensource.org/licenses/ecl2.txt
+* 
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package org.sakaiproject.calendaring.benchmark;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+
+import net.fortuna.ical4j.data.FoldingWriter;
+import net.fortuna.ical4j.model.property.Description;
+
+import org.apache.commons.io.output.NullOutputStream;
+import org.apache.commons.lang.StringUtils;
+import org.junit.Test;
+import org.sakaiproject.calendaring.util.ContentLineWriter;
+
+/**
+ * Compares the throughput of escaping and folding long multilingual descriptions with ical4j
+ * against the {@link ContentLineWriter}.
+ * <p>
+ * Not run as part of the normal build. Run with: mvn test -Dtest=ContentLineWriterBenchmark
+ */
+public class ContentLineWriterBenchmark {
+
+	private static final int WARMUP = 2000;
+	private static final int ITERATIONS = 20000;
+	
+	private static final String DESCRIPTION = StringUtils.repeat(
+			"Lecture on the history of the calendar; part one, with notes.\n"
+			+ "Διάλεξη για την ιστορία του ημερολογίου, μέρος πρώτο.\n"
+			+ "关于日历历史的讲座，第一部分。\n"
+			+ "محاضرة حول تاريخ التقويم، الجزء الأول.\n"
+			+ "Vorlesung über die Geschichte des Kalenders; Teil eins. 📅\n", 8);
+	
+	@Test
+	public void compareThroughput() throws IOException {
+		
+		Description description = new Description(DESCRIPTION);
+		NullOutputStream out = new NullOutputStream();
+		ContentLineWriter writer = new ContentLineWriter(out);
+		
+		for(int i=0;i<WARMUP;i++) {
+			writeIcal4j(description, out);
+			writeContentLine(writer, out);
+		}
+		
+		long start = System.nanoTime();
+		for(int i=0;i<ITERATIONS;i++) {
+			writeIcal4j(description, out);
+		}
+		long ical4jTime = System.nanoTime() - start;
+		
+		start = System.nanoTime();
+		for(int i=0;i<ITERATIONS;i++) {
+			writeContentLine(writer, out);
+		}
+		long writerTime = System.nanoTime() - start;
+		
+		System.out.println("ContentLineWriterBenchmark (" + DESCRIPTION.length() + " chars, " + ITERATIONS + " iterations)");
+		System.out.println("  ical4j escape + FoldingWriter: " + (ical4jTime / ITERATIONS) + " ns/op");
+		System.out.println("  ContentLineWriter:             " + (writerTime / ITERATIONS) + " ns/op");
+	}
+	
+	private void writeIcal4j(Description description, NullOutputStream out) throws IOException {
+		FoldingWriter folding = new FoldingWriter(new OutputStreamWriter(out, "UTF-8"));
+		folding.write(description.toString());
+		folding.flush();
+	}
+	
+	private void writeContentLine(ContentLineWriter writer, NullOutputStream out) throws IOException {
+		writer.reset(out);
+		writer.writeText("DESCRIPTION", DESCRIPTION);
+		writer.flush();
+	}
+}
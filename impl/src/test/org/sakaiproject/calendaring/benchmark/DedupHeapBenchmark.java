@@ -0,0 +1,125 @@
+/*
+* Licensed to The Apereo Foundation under one or more contributor license
+* agreements. See the NOTICE file distributed with this work for
+* additional information regarding copyright ownership.
+*
+* The Apereo Foundation licenses this file to you under the Educational 
+* Community License, Version 2.0 (the "License"); you may not use this file 
+* except in compliance with the License. You may obtain a copy of the 
+* License at:
+*
+* http://opensource.org/licenses/ecl2.txt
+* 
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package org.sakaiproject.calendaring.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import net.fortuna.ical4j.model.component.VEvent;
+
+import org.junit.Test;
+import org.sakaiproject.calendaring.api.ExternalCalendaringServiceImpl;
+import org.sakaiproject.calendaring.mocks.MockCalendarEventEdit;
+import org.sakaiproject.calendaring.mocks.MockSakaiProxy;
+import org.sakaiproject.calendaring.mocks.MockTimeService;
+import org.sakaiproject.time.api.TimeService;
+
+/**
+ * Compares the heap held by a large calendar of events with and without sharing repeated values between events.
+ * <p>
+ * Each event gets fresh copies of its strings, as it would when read from the database,
+ * from a small set of rooms, lecturers and boilerplate descriptions.
+ * <p>
+ * Not run as part of the normal build. Run with: mvn test -Dtest=DedupHeapBenchmark -DargLine=-Xmx2g
+ */
+public class DedupHeapBenchmark {
+
+	private static final int EVENTS = 20000;
+	private static final int ATTENDEES = 50;
+	private static final int USERS = 500;
+	private static final int ROOMS = 40;
+	private static final int LECTURERS = 20;
+	
+	@Test
+	public void compareHeapUsage() throws Exception {
+		long without = retainedBytes(0);
+		long with = retainedBytes(8192);
+		
+		System.out.println("DedupHeapBenchmark (" + EVENTS + " events, " + ATTENDEES + " attendees each)");
+		System.out.println("  without sharing: " + (without / 1024 / 1024) + " MB, " + (without / EVENTS) + " bytes/event");
+		System.out.println("  with sharing:    " + (with / 1024 / 1024) + " MB, " + (with / EVENTS) + " bytes/event");
+	}
+	
+	/**
+	 * Build the events and measure how much more heap is in use while they are held
+	 * @param dedupSize
+	 * @return bytes
+	 */
+	private long retainedBytes(final int dedupSize) {
+		ExternalCalendaringServiceImpl service = new ExternalCalendaringServiceImpl();
+		service.setSakaiProxy(new MockSakaiProxy() {
+			@Override
+			public int getDedupSize() {
+				return dedupSize;
+			}
+		});
+		service.init();
+		
+		TimeService timeService = new MockTimeService();
+		List<String> users = new ArrayList<String>(USERS);
+		for(int i=0;i<USERS;i++) {
+			users.add(UUID.randomUUID().toString());
+		}
+		
+		long before = usedHeap();
+		
+		List<VEvent> vevents = new ArrayList<VEvent>(EVENTS);
+		for(int i=0;i<EVENTS;i++) {
+			MockCalendarEventEdit edit = new MockCalendarEventEdit();
+			edit.setDisplayName(copy("Lecture in the series on the history of the calendar"));
+			edit.setLocation(copy("Examination Schools, Room " + (i % ROOMS)));
+			edit.setDescription(copy("Attendance is compulsory. Please bring your student card and arrive ten minutes early. Course " + (i % ROOMS) + "."));
+			edit.setId(UUID.randomUUID().toString());
+			edit.setCreator(users.get(i % LECTURERS));
+			long start = 1336136400000L + (i / 8) * 86400000L;
+			edit.setRange(timeService.newTimeRange(timeService.newTime(start), timeService.newTime(start + 3600000L), true, false));
+			
+			int first = (i * 7) % (USERS - ATTENDEES);
+			vevents.add(service.createEventWithAttendeeIds(edit, users.subList(first, first + ATTENDEES)));
+		}
+		
+		long after = usedHeap();
+		
+		//keep the events reachable until measured
+		if(vevents.size() != EVENTS) {
+			throw new IllegalStateException();
+		}
+		service.destroy();
+		return after - before;
+	}
+	
+	private static String copy(String s) {
+		return new String(s.toCharArray());
+	}
+	
+	private static long usedHeap() {
+		Runtime runtime = Runtime.getRuntime();
+		for(int i=0;i<5;i++) {
+			System.gc();
+			try {
+				Thread.sleep(100);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+}
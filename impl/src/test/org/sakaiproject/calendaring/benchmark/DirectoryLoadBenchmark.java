@@ -0,0 +1,120 @@
+/*
+* Licensed to The Apereo Foundation under one or more contributor license
+* agreements. See the NOTICE file distributed with this work for
+* additional information regarding copyright ownership.
+*
+* The Apereo Foundation licenses this file to you under the Educational 
+* Community License, Version 2.0 (the "License"); you may not use this file 
+* except in compliance with the License. You may obtain a copy of the 
+* License at:
+*
+* http://opensource.org/licenses/ecl2.txt
+* 
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package org.sakaiproject.calendaring.benchmark;
+
+import java.util.Map;
+import java.util.UUID;
+
+import org.junit.Test;
+import org.sakaiproject.calendaring.api.ExternalCalendaringServiceImpl;
+import org.sakaiproject.calendaring.mocks.LatencySakaiProxy;
+import org.sakaiproject.calendaring.mocks.LatencySakaiProxy.Latency;
+import org.sakaiproject.calendaring.mocks.MockCalendarEventEdit;
+import org.sakaiproject.calendaring.mocks.MockTimeService;
+import org.sakaiproject.time.api.TimeService;
+
+/**
+ * Measures createEvent throughput and latency while user lookups go to a slow and unreliable directory.
+ * Each directory is run twice, once unguarded, waiting for every lookup however long it takes, and once with the lookup timeout and
+ * circuit breaker on, so the cost of degraded lookups (the fallbacks) can be weighed against the latency saved.
+ * <p>
+ * Not run as part of the normal build. Run with: mvn test -Dtest=DirectoryLoadBenchmark
+ */
+public class DirectoryLoadBenchmark {
+
+	private static final int THREADS = 32;
+	private static final long DURATION = 10000;
+	
+	//the guard used for the guarded runs
+	private static final long TIMEOUT = 200;
+	private static final int FAILURE_THRESHOLD = 5;
+	private static final long COOLDOWN = 5000;
+	
+	@Test
+	public void fastDirectory() throws Exception {
+		run("fast directory", new LatencySakaiProxy());
+		run("fast directory, guarded", new LatencySakaiProxy(TIMEOUT, FAILURE_THRESHOLD, COOLDOWN));
+	}
+	
+	@Test
+	public void slowDirectory() throws Exception {
+		run("slow directory", slow(new LatencySakaiProxy()));
+		run("slow directory, guarded", slow(new LatencySakaiProxy(TIMEOUT, FAILURE_THRESHOLD, COOLDOWN)));
+	}
+	
+	@Test
+	public void failingDirectory() throws Exception {
+		run("failing directory", failing(new LatencySakaiProxy()));
+		run("failing directory, guarded", failing(new LatencySakaiProxy(TIMEOUT, FAILURE_THRESHOLD, COOLDOWN)));
+	}
+	
+	private LatencySakaiProxy slow(LatencySakaiProxy proxy) {
+		proxy.setLatency(Latency.exponential(20).withSlowTail(0.01, 2000));
+		return proxy;
+	}
+	
+	private LatencySakaiProxy failing(LatencySakaiProxy proxy) {
+		proxy.setLatency(Latency.uniform(5, 50));
+		proxy.setFailureRate(0.2);
+		proxy.setHangRate(0.005);
+		proxy.setHangMillis(30000);
+		return proxy;
+	}
+	
+	private void run(String name, LatencySakaiProxy proxy) throws Exception {
+		final ExternalCalendaringServiceImpl service = new ExternalCalendaringServiceImpl();
+		service.setSakaiProxy(proxy);
+		service.init();
+		
+		try {
+			final TimeService timeService = new MockTimeService();
+			LoadDriver.Result result = new LoadDriver().run(new AllocationMeter.Operation() {
+				public void run() {
+					MockCalendarEventEdit edit = new MockCalendarEventEdit();
+					edit.setDisplayName("A new event");
+					edit.setLocation("Building 1");
+					edit.setDescription("This is a sample event.");
+					edit.setId(UUID.randomUUID().toString());
+					edit.setCreator("steve");
+					long start = 1336136400000L;
+					edit.setRange(timeService.newTimeRange(timeService.newTime(start), timeService.newTime(start + 3600000L), true, false));
+					service.createEvent(edit);
+				}
+			}, THREADS, DURATION);
+			
+			Map<String, Long> metrics = service.getMetrics();
+			System.out.println("DirectoryLoadBenchmark " + name + " (" + THREADS + " threads): " + result);
+			System.out.println("  directory calls " + proxy.getCalls() + ", failures " + proxy.getFailures() + ", hangs " + proxy.getHangs()
+					+ ", max concurrent " + proxy.getMaxConcurrentCalls());
+			System.out.println("  fallbacks " + (value(metrics, "lookup.fallback.cached") + value(metrics, "lookup.fallback.default"))
+					+ " (" + value(metrics, "lookup.fallback.default") + " without an email), timeouts " + value(metrics, "lookup.timeout")
+					+ ", breaker opened " + value(metrics, "lookup.breaker.opened") + " times");
+			System.out.println("  service metrics " + metrics);
+		} finally {
+			//stops the lookup, feed, zip and invalidation threads
+			service.destroy();
+		}
+	}
+	
+	private long value(Map<String, Long> metrics, String name) {
+		Long value = metrics.get(name);
+		return value != null ? value : 0;
+	}
+}
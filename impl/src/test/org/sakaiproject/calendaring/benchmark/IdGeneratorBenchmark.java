@@ -0,0 +1,99 @@
+/*
+* Licensed to The Apereo Foundation under one or more contributor license
+* agreements. See the NOTICE file distributed with this work for
+* additional information regarding copyright ownership.
+*
+* The Apereo Foundation licenses this file to you under the Educational 
+* Community License, Version 2.0 (the "License"); you may not use this file 
+* except in compliance with the License. You may obtain a copy of the 
+* License at:
+*
+* http://opensource.org/licenses/ecl2.txt
+* 
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package org.sakaiproject.calendaring.benchmark;
+
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Test;
+import org.sakaiproject.calendaring.util.FastIdGenerator;
+import org.sakaiproject.calendaring.util.IdGenerator;
+
+/**
+ * Compares id generation throughput under contention between {@link UUID#randomUUID()} and the {@link FastIdGenerator}.
+ * <p>
+ * Not run as part of the normal build. Run with: mvn test -Dtest=IdGeneratorBenchmark
+ */
+public class IdGeneratorBenchmark {
+
+	private static final int[] THREAD_COUNTS = {1, 4, 16, 64};
+	private static final int IDS_PER_THREAD = 50000;
+	
+	@Test
+	public void compareContention() throws InterruptedException {
+		
+		IdGenerator uuids = new IdGenerator() {
+			@Override
+			public String nextId() {
+				return UUID.randomUUID().toString();
+			}
+		};
+		IdGenerator fast = new FastIdGenerator();
+		
+		//warm up
+		run(uuids, 4);
+		run(fast, 4);
+		
+		System.out.println("IdGeneratorBenchmark (" + IDS_PER_THREAD + " ids per thread)");
+		for(int threads: THREAD_COUNTS) {
+			long uuidTime = run(uuids, threads);
+			long fastTime = run(fast, threads);
+			long total = (long) threads * IDS_PER_THREAD;
+			System.out.println("  " + threads + " threads: UUID.randomUUID " + (total * 1000 / Math.max(uuidTime, 1)) + " ids/ms, "
+					+ "FastIdGenerator " + (total * 1000 / Math.max(fastTime, 1)) + " ids/ms");
+		}
+	}
+	
+	/**
+	 * Generate ids on the given number of threads, all starting together
+	 * @return elapsed time in microseconds
+	 */
+	private long run(final IdGenerator generator, int threads) throws InterruptedException {
+		final CountDownLatch start = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(threads);
+		
+		for(int t=0;t<threads;t++) {
+			new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+						int length = 0;
+						for(int i=0;i<IDS_PER_THREAD;i++) {
+							length += generator.nextId().length();
+						}
+						if(length == 0) {
+							System.out.println("unreachable");
+						}
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					} finally {
+						done.countDown();
+					}
+				}
+			}).start();
+		}
+		
+		long begin = System.nanoTime();
+		start.countDown();
+		done.await();
+		return (System.nanoTime() - begin) / 1000;
+	}
+}
@@ -0,0 +1,147 @@
+/*
+* Licensed to The Apereo Foundation under one or more contributor license
+* agreements. See the NOTICE file distributed with this work for
+* additional information regarding copyright ownership.
+*
+* The Apereo Foundation licenses this file to you under the Educational 
+* Community License, Version 2.0 (the "License"); you may not use this file 
+* except in compliance with the License. You may obtain a copy of the 
+* License at:
+*
+* http://opensource.org/licenses/ecl2.txt
+* 
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package org.sakaiproject.calendaring.benchmark;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Drives an operation from many threads for a fixed time and reports throughput and latency percentiles.
+ */
+public class LoadDriver {
+
+	//each thread stops once it has recorded this many operations
+	private static final int MAX_SAMPLES = 100000;
+
+	/**
+	 * The results of a run
+	 */
+	public static class Result {
+		private final long operations;
+		private final long errors;
+		private final long elapsedMillis;
+		private final long[] latencies;
+		
+		private Result(long operations, long errors, long elapsedMillis, long[] latencies) {
+			this.operations = operations;
+			this.errors = errors;
+			this.elapsedMillis = elapsedMillis;
+			this.latencies = latencies;
+			Arrays.sort(this.latencies);
+		}
+		
+		public long getOperations() {
+			return operations;
+		}
+		
+		public long getErrors() {
+			return errors;
+		}
+		
+		public double getThroughput() {
+			return operations * 1000.0 / Math.max(elapsedMillis, 1);
+		}
+		
+		/**
+		 * Latency at the given percentile, in millis
+		 */
+		public double getPercentile(double percentile) {
+			if(latencies.length == 0) {
+				return 0;
+			}
+			int index = (int) Math.min(latencies.length - 1, Math.ceil(percentile / 100 * latencies.length) - 1);
+			return latencies[Math.max(index, 0)] / 1000000.0;
+		}
+		
+		@Override
+		public String toString() {
+			return String.format("%d ops (%d errors), %.1f ops/s, p50 %.1fms, p95 %.1fms, p99 %.1fms, max %.1fms",
+					operations, errors, getThroughput(), getPercentile(50), getPercentile(95), getPercentile(99), getPercentile(100));
+		}
+	}
+	
+	/**
+	 * Run the operation on the given number of threads until the duration has passed
+	 * @param operation
+	 * @param threads
+	 * @param durationMillis
+	 * @return the results
+	 * @throws InterruptedException
+	 */
+	public Result run(final AllocationMeter.Operation operation, int threads, long durationMillis) throws InterruptedException {
+		
+		final long deadline = System.currentTimeMillis() + durationMillis;
+		final CountDownLatch start = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(threads);
+		final AtomicLong errors = new AtomicLong();
+		final List<long[]> perThread = new ArrayList<long[]>();
+		final int[] counts = new int[threads];
+		
+		for(int t=0;t<threads;t++) {
+			final int index = t;
+			final long[] latencies = new long[MAX_SAMPLES];
+			perThread.add(latencies);
+			
+			new Thread(new Runnable() {
+				public void run() {
+					int n = 0;
+					try {
+						start.await();
+						while(System.currentTimeMillis() < deadline && n < latencies.length) {
+							long begin = System.nanoTime();
+							try {
+								operation.run();
+							} catch (Exception e) {
+								errors.incrementAndGet();
+							}
+							latencies[n++] = System.nanoTime() - begin;
+						}
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					} finally {
+						counts[index] = n;
+						done.countDown();
+					}
+				}
+			}, "LoadDriver-" + t).start();
+		}
+		
+		long begin = System.currentTimeMillis();
+		start.countDown();
+		done.await();
+		long elapsed = System.currentTimeMillis() - begin;
+		
+		int total = 0;
+		for(int count: counts) {
+			total += count;
+		}
+		long[] all = new long[total];
+		int pos = 0;
+		for(int t=0;t<threads;t++) {
+			System.arraycopy(perThread.get(t), 0, all, pos, counts[t]);
+			pos += counts[t];
+		}
+		
+		return new Result(total, errors.get(), elapsed, all);
+	}
+}
@@ -0,0 +1,106 @@
+/*
+* Licensed to The Apereo Foundation under one or more contributor license
+* agreements. See the NOTICE file distributed with this work for
+* additional information regarding copyright ownership.
+*
+* The Apereo Foundation licenses this file to you under the Educational 
+* Community License, Version 2.0 (the "License"); you may not use this file 
+* except in compliance with the License. You may obtain a copy of the 
+* License at:
+*
+* http://opensource.org/licenses/ecl2.txt
+* 
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package org.sakaiproject.calendaring.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import net.fortuna.ical4j.data.CalendarOutputter;
+import net.fortuna.ical4j.model.Calendar;
+import net.fortuna.ical4j.model.component.VEvent;
+
+import org.apache.commons.io.output.NullOutputStream;
+import org.junit.Assume;
+import org.junit.Test;
+import org.sakaiproject.calendaring.api.ExternalCalendaringServiceImpl;
+import org.sakaiproject.calendaring.mocks.MockCalendarEventEdit;
+import org.sakaiproject.calendaring.mocks.MockSakaiProxy;
+import org.sakaiproject.calendaring.mocks.MockTimeService;
+import org.sakaiproject.calendaring.util.CalendarSerializer;
+import org.sakaiproject.time.api.TimeService;
+
+/**
+ * Compares the allocation rate of serialising a calendar with a fresh CalendarOutputter per call
+ * against the reusable {@link CalendarSerializer}.
+ * <p>
+ * Not run as part of the normal build. Run with: mvn test -Dtest=SerializationAllocationBenchmark
+ */
+public class SerializationAllocationBenchmark {
+
+	private static final int EVENTS = 20;
+	private static final int WARMUP = 500;
+	private static final int ITERATIONS = 5000;
+	
+	@Test
+	public void compareAllocationRate() throws Exception {
+		
+		AllocationMeter meter = new AllocationMeter();
+		Assume.assumeTrue(meter.isSupported());
+		
+		final Calendar calendar = generateCalendar();
+		final CalendarSerializer serializer = new CalendarSerializer();
+		final NullOutputStream out = new NullOutputStream();
+		
+		long start = System.nanoTime();
+		long outputterBytes = meter.bytesPerOperation(new AllocationMeter.Operation() {
+			public void run() throws Exception {
+				new CalendarOutputter().output(calendar, out);
+			}
+		}, WARMUP, ITERATIONS);
+		long outputterTime = System.nanoTime() - start;
+		
+		start = System.nanoTime();
+		long serializerBytes = meter.bytesPerOperation(new AllocationMeter.Operation() {
+			public void run() throws Exception {
+				serializer.write(calendar, out);
+			}
+		}, WARMUP, ITERATIONS);
+		long serializerTime = System.nanoTime() - start;
+		
+		System.out.println("SerializationAllocationBenchmark (" + EVENTS + " events, " + ITERATIONS + " iterations)");
+		System.out.println("  new CalendarOutputter: " + outputterBytes + " bytes/op, " + (outputterTime / (WARMUP + ITERATIONS) / 1000) + " us/op");
+		System.out.println("  CalendarSerializer:    " + serializerBytes + " bytes/op, " + (serializerTime / (WARMUP + ITERATIONS) / 1000) + " us/op");
+	}
+	
+	/**
+	 * Helper to generate a calendar of events. NOT A TEST METHOD
+	 */
+	private Calendar generateCalendar() {
+		ExternalCalendaringServiceImpl service = new ExternalCalendaringServiceImpl();
+		service.setSakaiProxy(new MockSakaiProxy());
+		service.init();
+		
+		TimeService timeService = new MockTimeService();
+		List<VEvent> vevents = new ArrayList<VEvent>();
+		for(int i=0;i<EVENTS;i++) {
+			MockCalendarEventEdit edit = new MockCalendarEventEdit();
+			edit.setDisplayName("Lecture " + i);
+			edit.setLocation("Examination Schools, Room " + i);
+			edit.setDescription("A lecture in the series on the history of the calendar, part " + i + " of " + EVENTS + ".");
+			edit.setId(UUID.randomUUID().toString());
+			edit.setCreator("steve");
+			long start = 1336136400000L + i * 86400000L;
+			edit.setRange(timeService.newTimeRange(timeService.newTime(start), timeService.newTime(start + 3600000L), true, false));
+			vevents.add(service.createEvent(edit));
+		}
+		return service.createCalendar(vevents);
+	}
+}
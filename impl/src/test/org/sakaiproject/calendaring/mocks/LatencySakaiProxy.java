@@ -0,0 +1,264 @@
+/*
+* Licensed to The Apereo Foundation under one or more contributor license
+* agreements. See the NOTICE file distributed with this work for
+* additional information regarding copyright ownership.
+*
+* The Apereo Foundation licenses this file to you under the Educational 
+* Community License, Version 2.0 (the "License"); you may not use this file 
+* except in compliance with the License. You may obtain a copy of the 
+* License at:
+*
+* http://opensource.org/licenses/ecl2.txt
+* 
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package org.sakaiproject.calendaring.mocks;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import lombok.Setter;
+
+import org.sakaiproject.calendaring.logic.UserDetails;
+
+/**
+ * Mock of SakaiProxy whose user lookups behave like a slow, unreliable directory (e.g. LDAP).
+ * <p>
+ * Each call to {@link #getUserEmail(String)}, {@link #getUserDisplayName(String)} or {@link #getUserDetails(Collection)} waits for a delay drawn from the configured
+ * {@link Latency} distribution, and may fail or hang according to the configured rates. Everything else behaves as {@link MockSakaiProxy}.
+ * <p>
+ * By default lookups are unguarded, i.e. there is no lookup timeout, as in {@link MockSakaiProxy}. Use {@link #LatencySakaiProxy(long, int, long)}
+ * to have the lookups timed out, and the circuit breaker opened, by {@link org.sakaiproject.calendaring.logic.GuardedUserLookup}.
+ */
+public class LatencySakaiProxy extends MockSakaiProxy {
+
+	/**
+	 * A distribution of lookup delays
+	 */
+	public static abstract class Latency {
+		
+		public abstract long nextMillis(Random random);
+		
+		public static Latency none() {
+			return fixed(0);
+		}
+		
+		public static Latency fixed(final long millis) {
+			return new Latency() {
+				public long nextMillis(Random random) {
+					return millis;
+				}
+			};
+		}
+		
+		public static Latency uniform(final long minMillis, final long maxMillis) {
+			return new Latency() {
+				public long nextMillis(Random random) {
+					return minMillis + (long) (random.nextDouble() * (maxMillis - minMillis));
+				}
+			};
+		}
+		
+		public static Latency exponential(final long meanMillis) {
+			return new Latency() {
+				public long nextMillis(Random random) {
+					return (long) (-meanMillis * Math.log(1 - random.nextDouble()));
+				}
+			};
+		}
+		
+		/**
+		 * Mostly this distribution, but with the given probability a much slower lookup instead
+		 */
+		public Latency withSlowTail(final double probability, final long slowMillis) {
+			final Latency base = this;
+			return new Latency() {
+				public long nextMillis(Random random) {
+					return random.nextDouble() < probability ? slowMillis : base.nextMillis(random);
+				}
+			};
+		}
+	}
+	
+	/**
+	 * How a failed lookup behaves
+	 */
+	public enum FailureMode {
+		/** return null, as SakaiProxyImpl does when the user is not found */
+		NULL,
+		/** throw an exception, as a broken directory connection might */
+		EXCEPTION
+	}
+	
+	@Setter
+	private volatile Latency latency = Latency.none();
+	
+	@Setter
+	private volatile double failureRate;
+	
+	@Setter
+	private volatile FailureMode failureMode = FailureMode.NULL;
+	
+	@Setter
+	private volatile double hangRate;
+	
+	@Setter
+	private volatile long hangMillis = 60000;
+	
+	private final long lookupTimeout;
+	private final int failureThreshold;
+	private final long cooldown;
+	
+	private final AtomicLong calls = new AtomicLong();
+	private final AtomicLong failures = new AtomicLong();
+	private final AtomicLong hangs = new AtomicLong();
+	private final AtomicInteger inFlight = new AtomicInteger();
+	private final AtomicInteger maxInFlight = new AtomicInteger();
+	
+	/**
+	 * A directory whose lookups are unguarded, they are waited for however long they take
+	 */
+	public LatencySakaiProxy() {
+		this(0, 5, 30000);
+	}
+	
+	/**
+	 * A directory whose lookups are guarded
+	 * @param lookupTimeout see {@link #getUserLookupTimeout()}, 0 for none
+	 * @param failureThreshold see {@link #getUserLookupFailureThreshold()}
+	 * @param cooldown see {@link #getUserLookupCooldown()}
+	 */
+	public LatencySakaiProxy(long lookupTimeout, int failureThreshold, long cooldown) {
+		this.lookupTimeout = lookupTimeout;
+		this.failureThreshold = failureThreshold;
+		this.cooldown = cooldown;
+	}
+	
+	@Override
+	public long getUserLookupTimeout() {
+		return lookupTimeout;
+	}
+	
+	@Override
+	public int getUserLookupFailureThreshold() {
+		return failureThreshold;
+	}
+	
+	@Override
+	public long getUserLookupCooldown() {
+		return cooldown;
+	}
+	
+	@Override
+	public String getUserEmail(String uuid) {
+		return lookup() ? super.getUserEmail(uuid) : null;
+	}
+	
+	@Override
+	public String getUserDisplayName(String uuid) {
+		return lookup() ? super.getUserDisplayName(uuid) : null;
+	}
+	
+	@Override
+	public Map<String, UserDetails> getUserDetails(Collection<String> uuids) {
+		//one round trip for the lot
+		return lookup() ? super.getUserDetails(uuids) : new HashMap<String, UserDetails>();
+	}
+	
+	/**
+	 * Simulate a directory lookup
+	 * @return true if it succeeded, false if it should return null
+	 */
+	protected boolean lookup() {
+		calls.incrementAndGet();
+		int current = inFlight.incrementAndGet();
+		int max;
+		while(current > (max = maxInFlight.get()) && !maxInFlight.compareAndSet(max, current)) {
+			//retry
+		}
+		
+		try {
+			Random random = ThreadLocalRandom.current();
+			if(random.nextDouble() < hangRate) {
+				hangs.incrementAndGet();
+				sleep(hangMillis);
+			} else {
+				sleep(latency.nextMillis(random));
+			}
+			
+			if(random.nextDouble() < failureRate) {
+				failures.incrementAndGet();
+				if(failureMode == FailureMode.EXCEPTION) {
+					throw new IllegalStateException("Simulated directory failure");
+				}
+				return false;
+			}
+			return true;
+		} finally {
+			inFlight.decrementAndGet();
+		}
+	}
+	
+	private void sleep(long millis) {
+		if(millis <= 0) {
+			return;
+		}
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	/**
+	 * Number of lookups made
+	 * @return
+	 */
+	public long getCalls() {
+		return calls.get();
+	}
+	
+	/**
+	 * Number of lookups that failed
+	 * @return
+	 */
+	public long getFailures() {
+		return failures.get();
+	}
+	
+	/**
+	 * Number of lookups that hung
+	 * @return
+	 */
+	public long getHangs() {
+		return hangs.get();
+	}
+	
+	/**
+	 * Most lookups that were in progress at the same time
+	 * @return
+	 */
+	public int getMaxConcurrentCalls() {
+		return maxInFlight.get();
+	}
+	
+	/**
+	 * Reset all counters
+	 */
+	public void resetCounters() {
+		calls.set(0);
+		failures.set(0);
+		hangs.set(0);
+		maxInFlight.set(0);
+	}
+}
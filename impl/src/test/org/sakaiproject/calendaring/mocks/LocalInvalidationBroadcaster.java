@@ -0,0 +1,69 @@
+/*
+* Licensed to The Apereo Foundation under one or more contributor license
+* agreements. See the NOTICE file distributed with this work for
+* additional information regarding copyright ownership.
+*
+* The Apereo Foundation licenses this file to you under the Educational 
+* Community License, Version 2.0 (the "License"); you may not use this file 
+* except in compliance with the License. You may obtain a copy of the 
+* License at:
+*
+* http://opensource.org/licenses/ecl2.txt
+* 
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package org.sakaiproject.calendaring.mocks;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.sakaiproject.calendaring.logic.InvalidationBroadcaster;
+import org.sakaiproject.calendaring.logic.InvalidationListener;
+
+/**
+ * In-process stand-in for the cluster. Each instance is one node, and {@link #connect(LocalInvalidationBroadcaster)} puts nodes in the same cluster.
+ * Invalidations are delivered to every node straight away.
+ */
+public class LocalInvalidationBroadcaster implements InvalidationBroadcaster {
+
+	private final List<InvalidationListener> listeners = new CopyOnWriteArrayList<InvalidationListener>();
+	private final List<LocalInvalidationBroadcaster> peers = new CopyOnWriteArrayList<LocalInvalidationBroadcaster>();
+	
+	/**
+	 * Put another node in the same cluster as this one
+	 * @param other
+	 */
+	public void connect(LocalInvalidationBroadcaster other) {
+		peers.add(other);
+		other.peers.add(this);
+	}
+	
+	@Override
+	public void broadcast(String region, String key) {
+		deliver(region, key);
+		for(LocalInvalidationBroadcaster peer: peers) {
+			peer.deliver(region, key);
+		}
+	}
+
+	@Override
+	public void addListener(InvalidationListener listener) {
+		listeners.add(listener);
+	}
+
+	@Override
+	public void shutdown() {
+		listeners.clear();
+	}
+	
+	private void deliver(String region, String key) {
+		for(InvalidationListener listener: listeners) {
+			listener.invalidate(region, key);
+		}
+	}
+}
@@ -19,7 +19,15 @@
 
 package org.sakaiproject.calendaring.mocks;
 
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Observer;
+
+import org.sakaiproject.calendar.api.CalendarEvent;
+import org.sakaiproject.calendaring.api.CalendarFeedProvider;
 import org.sakaiproject.calendaring.logic.SakaiProxy;
+import org.sakaiproject.calendaring.logic.UserDetails;
 
 /**
  * Mock of SakaiProxy so we can call the main service API
@@ -53,12 +61,12 @@ public class MockSakaiProxy implements SakaiProxy {
 
 	@Override
 	public String getUserEmail(String uuid) {
-		return uuid.equals(NO_EMAIL_ID) ? "" : uuid + "@email.com";
+		return email(uuid);
 	}
 
 	@Override
 	public String getUserDisplayName(String uuid) {
-		return "User " + uuid;
+		return displayName(uuid);
 	}
 
 	@Override
@@ -71,4 +79,161 @@ public class MockSakaiProxy implements SakaiProxy {
 		return true;
 	}
 
+	@Override
+	public long getCalendarFileQuotaBytes() {
+		return 0;
+	}
+
+	@Override
+	public int getCalendarFileQuotaFiles() {
+		return 0;
+	}
+
+	@Override
+	public boolean isCalendarFileQuotaEvictionEnabled() {
+		return true;
+	}
+
+	@Override
+	public int getSerializationBufferLimit() {
+		return 32 * 1024;
+	}
+
+	@Override
+	public boolean isWarmupEnabled() {
+		return false;
+	}
+
+	@Override
+	public int getWarmupTimeout() {
+		return 30;
+	}
+
+	@Override
+	public String[] getWarmupTimeZoneIds() {
+		return new String[0];
+	}
+
+	@Override
+	public String getTimeZoneId() {
+		return "Europe/London";
+	}
+
+	@Override
+	public int getEventSnapshotLimit() {
+		return 1000;
+	}
+
+	@Override
+	public long getUserLookupTimeout() {
+		return 0;
+	}
+
+	@Override
+	public int getUserLookupFailureThreshold() {
+		return 5;
+	}
+
+	@Override
+	public long getUserLookupCooldown() {
+		return 30000;
+	}
+
+	@Override
+	public int getUserLookupCacheSize() {
+		return 1000;
+	}
+
+	@Override
+	public Map<String, UserDetails> getUserDetails(Collection<String> uuids) {
+		Map<String, UserDetails> details = new HashMap<String, UserDetails>();
+		for(String uuid: uuids) {
+			details.put(uuid, new UserDetails(email(uuid), displayName(uuid)));
+		}
+		return details;
+	}
+
+	@Override
+	public int getAttendeeCacheSize() {
+		return 1000;
+	}
+
+	@Override
+	public double getTraceSampleRate() {
+		return 0;
+	}
+
+	@Override
+	public long getTraceSlowThreshold() {
+		return 1000;
+	}
+
+	@Override
+	public CalendarFeedProvider getCalendarFeedProvider() {
+		return null;
+	}
+
+	@Override
+	public CalendarEvent getCalendarEvent(String calendarReference, String eventId) {
+		return null;
+	}
+
+	@Override
+	public String[] getFeedSnapshotIds() {
+		return new String[0];
+	}
+
+	@Override
+	public int getFeedSnapshotInterval() {
+		return 300;
+	}
+
+	@Override
+	public int getFeedSnapshotMaxAge() {
+		return 900;
+	}
+
+	@Override
+	public int getFeedSnapshotSendTime() {
+		return 300;
+	}
+
+	@Override
+	public void postEvent(String event, String reference, boolean modify) {
+		//no cluster in tests
+	}
+
+	@Override
+	public void addEventObserver(Observer observer) {
+		//no events in tests
+	}
+
+	@Override
+	public void deleteEventObserver(Observer observer) {
+		//no events in tests
+	}
+
+	@Override
+	public int getDedupSize() {
+		return 1024;
+	}
+
+	@Override
+	public int getZipCompressionLevel() {
+		return -1;
+	}
+
+	@Override
+	public int getZipThreads() {
+		return 1;
+	}
+
+	private static String email(String uuid) {
+		return uuid.equals(NO_EMAIL_ID) ? "" : uuid + "@email.com";
+	}
+
+	private static String displayName(String uuid) {
+		return "User " + uuid;
+	}
+
 }
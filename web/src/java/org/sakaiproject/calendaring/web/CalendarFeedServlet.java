@@ -0,0 +1,308 @@
+/*
+* Licensed to The Apereo Foundation under one or more contributor license
+* agreements. See the NOTICE file distributed with this work for
+* additional information regarding copyright ownership.
+*
+* The Apereo Foundation licenses this file to you under the Educational 
+* Community License, Version 2.0 (the "License"); you may not use this file 
+* except in compliance with the License. You may obtain a copy of the 
+* License at:
+*
+* http://opensource.org/licenses/ecl2.txt
+* 
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package org.sakaiproject.calendaring.web;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.util.zip.GZIPOutputStream;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import lombok.Setter;
+import lombok.extern.apachecommons.CommonsLog;
+import net.fortuna.ical4j.model.Calendar;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.lang.math.NumberUtils;
+import org.sakaiproject.calendaring.api.CalendarFeed;
+import org.sakaiproject.calendaring.api.CalendarFeedProvider;
+import org.sakaiproject.calendaring.api.ExternalCalendaringService;
+import org.sakaiproject.calendaring.api.FeedSnapshot;
+import org.sakaiproject.calendaring.api.StreamableCalendarFeed;
+import org.sakaiproject.component.cover.ComponentManager;
+
+/**
+ * Serves calendar feeds to subscribed calendar clients at <code>/feed/{feedId}</code>.
+ * <p>
+ * Feeds come from the {@link CalendarFeedProvider} component. Clients that already have the current version of a feed,
+ * going by <code>If-None-Match</code> or <code>If-Modified-Since</code>, get a 304 without the calendar being built.
+ * Otherwise the calendar is written straight to the response, gzipped if the client accepts it. Feeds that have been
+ * pre-rendered to disk are sent straight from the file, and {@link StreamableCalendarFeed}s are written as their events are read.
+ * <p>
+ * The response is buffered up to {@link #RESPONSE_BUFFER_SIZE}, so if writing a feed fails before then the client gets an error
+ * status rather than a truncated calendar. Beyond that the response has already been sent, so a failure can only cut it short.
+ */
+@CommonsLog
+public class CalendarFeedServlet extends HttpServlet {
+
+	private static final long serialVersionUID = 1L;
+	
+	private static final String CONTENT_TYPE = "text/calendar; charset=UTF-8";
+	
+	//most feeds fit within this, so nothing is sent until they have been written in full
+	private static final int RESPONSE_BUFFER_SIZE = 256 * 1024;
+	
+	//Tomcat's sendfile request attributes
+	private static final String SENDFILE_SUPPORT = "org.apache.tomcat.sendfile.support";
+	private static final String SENDFILE_FILENAME = "org.apache.tomcat.sendfile.filename";
+	private static final String SENDFILE_START = "org.apache.tomcat.sendfile.start";
+	private static final String SENDFILE_END = "org.apache.tomcat.sendfile.end";
+	
+	@Setter
+	private transient ExternalCalendaringService externalCalendaringService;
+	
+	@Setter
+	private transient CalendarFeedProvider calendarFeedProvider;
+	
+	@Override
+	protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+		
+		String feedId = StringUtils.removeStart(request.getPathInfo(), "/");
+		if(StringUtils.isBlank(feedId)) {
+			response.sendError(HttpServletResponse.SC_NOT_FOUND);
+			return;
+		}
+		
+		ExternalCalendaringService service = getExternalCalendaringService();
+		CalendarFeedProvider provider = getCalendarFeedProvider();
+		if(service == null || provider == null || !service.isIcsEnabled()) {
+			response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+			return;
+		}
+		
+		//the busiest feeds are pre-rendered to disk
+		FeedSnapshot snapshot = service.getFeedSnapshot(feedId);
+		if(snapshot != null) {
+			if(checkNotModified(request, response, snapshot.getETag(), snapshot.getLastModified()) || sendSnapshot(request, response, snapshot)) {
+				return;
+			}
+		}
+		
+		CalendarFeed feed = provider.getFeed(feedId);
+		if(feed == null) {
+			response.sendError(HttpServletResponse.SC_NOT_FOUND);
+			return;
+		}
+		
+		if(checkNotModified(request, response, feed.getETag(), feed.getLastModified())) {
+			return;
+		}
+		
+		//large feeds are written as the events are read, without building the calendar
+		Calendar calendar = null;
+		if(!(feed instanceof StreamableCalendarFeed)) {
+			calendar = feed.getCalendar();
+			if(calendar == null) {
+				log.error("No calendar for feed: " + feedId);
+				response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+				return;
+			}
+		}
+		
+		response.setContentType(CONTENT_TYPE);
+		response.setBufferSize(RESPONSE_BUFFER_SIZE);
+		
+		try {
+			OutputStream out = response.getOutputStream();
+			GZIPOutputStream gzip = null;
+			if(acceptsGzip(request)) {
+				response.setHeader("Content-Encoding", "gzip");
+				gzip = new GZIPOutputStream(out, 8192);
+				out = gzip;
+			}
+			
+			if(calendar != null) {
+				service.writeCalendar(calendar, out);
+			} else {
+				StreamableCalendarFeed streamable = (StreamableCalendarFeed) feed;
+				service.streamCalendar(streamable.getEvents(), null, streamable.getOptions(), out);
+			}
+			
+			if(gzip != null) {
+				gzip.finish();
+			}
+			out.flush();
+		} catch (IOException e) {
+			log.error("Couldn't write feed: " + feedId + " : " + e.getClass() + " : " + e.getMessage());
+			if(response.isCommitted()) {
+				//part of the feed has already gone with a 200, so make sure the client sees the response is incomplete
+				throw e;
+			}
+			response.reset();
+			response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+		}
+	}
+	
+	/**
+	 * Set the caching headers for a version of a feed, and send a 304 if the client already has it
+	 * @return true if a 304 was sent
+	 */
+	private boolean checkNotModified(HttpServletRequest request, HttpServletResponse response, String tag, long modified) {
+		
+		//HTTP dates only have second precision
+		String etag = tag != null ? "\"" + tag + "\"" : null;
+		long lastModified = modified > 0 ? modified / 1000 * 1000 : 0;
+		
+		if(etag != null) {
+			response.setHeader("ETag", etag);
+		}
+		if(lastModified > 0) {
+			response.setDateHeader("Last-Modified", lastModified);
+		}
+		response.setHeader("Cache-Control", "private, must-revalidate");
+		response.setHeader("Vary", "Accept-Encoding");
+		
+		if(isNotModified(request, etag, lastModified)) {
+			response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+			return true;
+		}
+		return false;
+	}
+	
+	/**
+	 * Send a pre-rendered feed straight from disk. Tomcat's sendfile is used if the connector supports it, in which case the
+	 * container opens the file again by name after this returns. That is safe because snapshot files never change and are kept
+	 * for {@link org.sakaiproject.calendaring.logic.SakaiProxy#getFeedSnapshotSendTime()} after they are replaced, so the length
+	 * found here is the length sent.
+	 * <p>
+	 * Otherwise the file is copied to the response through a buffer, like any other stream. That still saves building and
+	 * serialising the calendar, but it is not zero-copy.
+	 * @return false if the snapshot has already been cleaned up, so the feed should be built instead
+	 */
+	private boolean sendSnapshot(HttpServletRequest request, HttpServletResponse response, FeedSnapshot snapshot) throws IOException {
+		
+		boolean gzip = acceptsGzip(request);
+		File file = gzip ? snapshot.getGzipFile() : snapshot.getFile();
+		
+		FileInputStream in = null;
+		try {
+			try {
+				in = new FileInputStream(file);
+			} catch (FileNotFoundException e) {
+				log.warn("Snapshot has gone, building feed instead: " + file);
+				return false;
+			}
+			FileChannel channel = in.getChannel();
+			long size = channel.size();
+			
+			response.setContentType(CONTENT_TYPE);
+			if(gzip) {
+				response.setHeader("Content-Encoding", "gzip");
+			}
+			response.setContentLength((int) size);
+			
+			//the container sends the file itself, without it passing through the JVM
+			if(Boolean.TRUE.equals(request.getAttribute(SENDFILE_SUPPORT))) {
+				request.setAttribute(SENDFILE_FILENAME, file.getCanonicalPath());
+				request.setAttribute(SENDFILE_START, Long.valueOf(0));
+				request.setAttribute(SENDFILE_END, Long.valueOf(size));
+				return true;
+			}
+			
+			OutputStream out = response.getOutputStream();
+			IOUtils.copyLarge(in, out);
+			out.flush();
+			return true;
+		} finally {
+			IOUtils.closeQuietly(in);
+		}
+	}
+	
+	/**
+	 * Does the client already have this version of the feed?
+	 * If-None-Match takes precedence over If-Modified-Since, as per RFC 7232.
+	 */
+	protected boolean isNotModified(HttpServletRequest request, String etag, long lastModified) {
+		
+		String ifNoneMatch = request.getHeader("If-None-Match");
+		if(ifNoneMatch != null) {
+			if(etag == null) {
+				return false;
+			}
+			for(String tag: StringUtils.split(ifNoneMatch, ',')) {
+				tag = StringUtils.removeStart(tag.trim(), "W/");
+				if(tag.equals("*") || tag.equals(etag)) {
+					return true;
+				}
+			}
+			return false;
+		}
+		
+		if(lastModified > 0) {
+			try {
+				long ifModifiedSince = request.getDateHeader("If-Modified-Since");
+				return ifModifiedSince >= lastModified;
+			} catch (IllegalArgumentException e) {
+				//unparseable date, send the feed
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * Does the client accept a gzipped response? A quality of 0 means it doesn't.
+	 */
+	protected boolean acceptsGzip(HttpServletRequest request) {
+		String acceptEncoding = request.getHeader("Accept-Encoding");
+		if(acceptEncoding == null) {
+			return false;
+		}
+		for(String encoding: StringUtils.split(acceptEncoding, ',')) {
+			String[] parts = StringUtils.split(encoding, ';');
+			if(parts.length == 0 || !parts[0].trim().equalsIgnoreCase("gzip")) {
+				continue;
+			}
+			for(int i=1;i<parts.length;i++) {
+				String param = parts[i].trim();
+				if(param.startsWith("q=") && NumberUtils.toDouble(param.substring(2), 1) == 0) {
+					return false;
+				}
+			}
+			return true;
+		}
+		return false;
+	}
+	
+	private ExternalCalendaringService getExternalCalendaringService() {
+		if(externalCalendaringService == null) {
+			externalCalendaringService = (ExternalCalendaringService) ComponentManager.get(ExternalCalendaringService.class);
+		}
+		return externalCalendaringService;
+	}
+	
+	//looked up when first needed, as the tool that provides the feeds may not be deployed
+	private CalendarFeedProvider getCalendarFeedProvider() {
+		if(calendarFeedProvider == null) {
+			calendarFeedProvider = (CalendarFeedProvider) ComponentManager.get(CalendarFeedProvider.class);
+			if(calendarFeedProvider == null) {
+				log.warn("No CalendarFeedProvider is registered, no feeds can be served.");
+			}
+		}
+		return calendarFeedProvider;
+	}
+}
@@ -0,0 +1,247 @@
+/*
+* Licensed to The Apereo Foundation under one or more contributor license
+* agreements. See the NOTICE file distributed with this work for
+* additional information regarding copyright ownership.
+*
+* The Apereo Foundation licenses this file to you under the Educational 
+* Community License, Version 2.0 (the "License"); you may not use this file 
+* except in compliance with the License. You may obtain a copy of the 
+* License at:
+*
+* http://opensource.org/licenses/ecl2.txt
+* 
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package org.sakaiproject.calendaring.web;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Matchers.isNull;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.zip.GZIPInputStream;
+
+import javax.servlet.http.HttpServletResponse;
+
+import net.fortuna.ical4j.model.Calendar;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.sakaiproject.calendar.api.CalendarEvent;
+import org.sakaiproject.calendaring.api.CalendarFeed;
+import org.sakaiproject.calendaring.api.CalendarFeedProvider;
+import org.sakaiproject.calendaring.api.CalendarOptions;
+import org.sakaiproject.calendaring.api.ExternalCalendaringService;
+import org.sakaiproject.calendaring.api.FeedSnapshot;
+import org.sakaiproject.calendaring.api.StreamableCalendarFeed;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+/**
+ * Test the conditional requests and gzip handling of the calendar feed servlet
+ */
+public class CalendarFeedServletTest {
+
+	private static final String BODY = "BEGIN:VCALENDAR\r\nEND:VCALENDAR\r\n";
+	private static final long LAST_MODIFIED = 1336136400000L;
+	
+	private CalendarFeedServlet servlet;
+	private ExternalCalendaringService service;
+	private CalendarFeed feed;
+	
+	@Before
+	public void setup() throws Exception {
+		service = mock(ExternalCalendaringService.class);
+		when(service.isIcsEnabled()).thenReturn(true);
+		doAnswer(new Answer<Void>() {
+			public Void answer(InvocationOnMock invocation) throws Throwable {
+				((OutputStream) invocation.getArguments()[1]).write(BODY.getBytes("UTF-8"));
+				return null;
+			}
+		}).when(service).writeCalendar(any(Calendar.class), any(OutputStream.class));
+		
+		feed = mock(CalendarFeed.class);
+		when(feed.getETag()).thenReturn("v1");
+		when(feed.getLastModified()).thenReturn(LAST_MODIFIED);
+		when(feed.getCalendar()).thenReturn(new Calendar());
+		
+		CalendarFeedProvider provider = mock(CalendarFeedProvider.class);
+		when(provider.getFeed("site1")).thenReturn(feed);
+		
+		servlet = new CalendarFeedServlet();
+		servlet.setExternalCalendaringService(service);
+		servlet.setCalendarFeedProvider(provider);
+	}
+	
+	@Test
+	public void testFeedIsStreamed() throws Exception {
+		MockHttpServletResponse response = get(request());
+		
+		Assert.assertEquals(HttpServletResponse.SC_OK, response.getStatus());
+		Assert.assertEquals(BODY, response.getContentAsString());
+		Assert.assertEquals("\"v1\"", response.getHeader("ETag"));
+		Assert.assertTrue(response.getContentType().startsWith("text/calendar"));
+	}
+	
+	@Test
+	public void testUnknownFeedIsNotFound() throws Exception {
+		MockHttpServletRequest request = request();
+		request.setPathInfo("/site2");
+		Assert.assertEquals(HttpServletResponse.SC_NOT_FOUND, get(request).getStatus());
+	}
+	
+	@Test
+	public void testMatchingETagIsNotModified() throws Exception {
+		MockHttpServletRequest request = request();
+		request.addHeader("If-None-Match", "\"v0\", \"v1\"");
+		
+		MockHttpServletResponse response = get(request);
+		Assert.assertEquals(HttpServletResponse.SC_NOT_MODIFIED, response.getStatus());
+		Assert.assertEquals(0, response.getContentAsByteArray().length);
+		
+		//the calendar is never built
+		verify(feed, never()).getCalendar();
+	}
+	
+	@Test
+	public void testStaleETagIsSent() throws Exception {
+		MockHttpServletRequest request = request();
+		request.addHeader("If-None-Match", "\"v0\"");
+		//ignored as If-None-Match takes precedence
+		request.addHeader("If-Modified-Since", LAST_MODIFIED);
+		
+		Assert.assertEquals(HttpServletResponse.SC_OK, get(request).getStatus());
+	}
+	
+	@Test
+	public void testIfModifiedSinceIsNotModified() throws Exception {
+		MockHttpServletRequest request = request();
+		request.addHeader("If-Modified-Since", LAST_MODIFIED + 500);
+		Assert.assertEquals(HttpServletResponse.SC_NOT_MODIFIED, get(request).getStatus());
+		
+		request = request();
+		request.addHeader("If-Modified-Since", LAST_MODIFIED - 1000);
+		Assert.assertEquals(HttpServletResponse.SC_OK, get(request).getStatus());
+	}
+	
+	@Test
+	public void testGzip() throws Exception {
+		MockHttpServletRequest request = request();
+		request.addHeader("Accept-Encoding", "deflate, gzip");
+		
+		MockHttpServletResponse response = get(request);
+		Assert.assertEquals("gzip", response.getHeader("Content-Encoding"));
+		
+		GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(response.getContentAsByteArray()));
+		Assert.assertEquals(BODY, IOUtils.toString(in, "UTF-8"));
+	}
+	
+	@Test
+	public void testGzipRefused() throws Exception {
+		MockHttpServletRequest request = request();
+		request.addHeader("Accept-Encoding", "gzip;q=0, identity");
+		
+		MockHttpServletResponse response = get(request);
+		Assert.assertNull(response.getHeader("Content-Encoding"));
+		Assert.assertEquals(BODY, response.getContentAsString());
+	}
+	
+	@Test
+	public void testSnapshotIsServedFromFile() throws Exception {
+		File file = File.createTempFile("feed", ".ics");
+		file.deleteOnExit();
+		FileUtils.writeStringToFile(file, BODY, "UTF-8");
+		when(service.getFeedSnapshot("site1")).thenReturn(new FeedSnapshot("site1", file, file, "v2", LAST_MODIFIED, System.currentTimeMillis()));
+		
+		MockHttpServletResponse response = get(request());
+		Assert.assertEquals(BODY, response.getContentAsString());
+		Assert.assertEquals("\"v2\"", response.getHeader("ETag"));
+		Assert.assertEquals(BODY.length(), response.getContentLength());
+		verify(feed, never()).getCalendar();
+		
+		//handed to the container if it can send files itself
+		MockHttpServletRequest request = request();
+		request.setAttribute("org.apache.tomcat.sendfile.support", Boolean.TRUE);
+		response = get(request);
+		Assert.assertEquals(0, response.getContentAsByteArray().length);
+		Assert.assertEquals(file.getCanonicalPath(), request.getAttribute("org.apache.tomcat.sendfile.filename"));
+	}
+	
+	@Test
+	public void testMissingSnapshotFallsBackToFeed() throws Exception {
+		when(service.getFeedSnapshot("site1")).thenReturn(new FeedSnapshot("site1", new File("/nonexistent/feed.ics"), null, "v2", LAST_MODIFIED, System.currentTimeMillis()));
+		
+		MockHttpServletResponse response = get(request());
+		Assert.assertEquals(BODY, response.getContentAsString());
+		Assert.assertEquals("\"v1\"", response.getHeader("ETag"));
+	}
+	
+	@Test
+	public void testSerialisationFailureIsAnError() throws Exception {
+		doAnswer(new Answer<Void>() {
+			public Void answer(InvocationOnMock invocation) throws Throwable {
+				//part of the calendar is written before it fails
+				((OutputStream) invocation.getArguments()[1]).write("BEGIN:VCALENDAR\r\n".getBytes("UTF-8"));
+				throw new IOException("Calendar failed validation");
+			}
+		}).when(service).writeCalendar(any(Calendar.class), any(OutputStream.class));
+		
+		MockHttpServletResponse response = get(request());
+		Assert.assertEquals(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, response.getStatus());
+		Assert.assertEquals(0, response.getContentAsByteArray().length);
+	}
+	
+	@Test
+	public void testStreamableFeedIsWrittenAsItsEventsAreRead() throws Exception {
+		StreamableCalendarFeed streamable = mock(StreamableCalendarFeed.class);
+		when(streamable.getETag()).thenReturn("v1");
+		Iterator<CalendarEvent> events = Collections.<CalendarEvent>emptyList().iterator();
+		when(streamable.getEvents()).thenReturn(events);
+		CalendarFeedProvider provider = mock(CalendarFeedProvider.class);
+		when(provider.getFeed("site1")).thenReturn(streamable);
+		servlet.setCalendarFeedProvider(provider);
+		
+		Assert.assertEquals(HttpServletResponse.SC_OK, get(request()).getStatus());
+		verify(service).streamCalendar(eq(events), isNull(Collection.class), isNull(CalendarOptions.class), any(OutputStream.class));
+		verify(streamable, never()).getCalendar();
+	}
+	
+	@Test
+	public void testDisabledServiceIsUnavailable() throws Exception {
+		when(service.isIcsEnabled()).thenReturn(false);
+		Assert.assertEquals(HttpServletResponse.SC_SERVICE_UNAVAILABLE, get(request()).getStatus());
+	}
+	
+	private MockHttpServletRequest request() {
+		MockHttpServletRequest request = new MockHttpServletRequest("GET", "/feed/site1");
+		request.setPathInfo("/site1");
+		return request;
+	}
+	
+	private MockHttpServletResponse get(MockHttpServletRequest request) throws Exception {
+		MockHttpServletResponse response = new MockHttpServletResponse();
+		servlet.service(request, response);
+		return response;
+	}
+}